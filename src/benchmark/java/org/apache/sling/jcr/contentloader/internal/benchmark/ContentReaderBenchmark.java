@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.benchmark;
+
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.OVERWRITE_NODE;
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.OVERWRITE_PROPERTIES;
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.createImportOptions;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.internal.DefaultContentCreator;
+import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
+import org.apache.sling.jcr.contentloader.internal.readers.OrderedJsonReader;
+import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
+import org.apache.sling.jcr.contentloader.internal.readers.ZipReader;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the content readers on synthetic content, once into a
+ * {@link NoopContentCreator} and once into a {@link DefaultContentCreator}
+ * writing to an in-memory Oak repository. Run with the gc profiler to also
+ * get the allocation rate, see the <code>benchmark</code> profile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContentReaderBenchmark {
+
+    @Param({ "json", "ordered-json", "xml", "zip" })
+    public String format;
+
+    @Param({ "3" })
+    public int depth;
+
+    @Param({ "5" })
+    public int fanOut;
+
+    @Param({ "10" })
+    public int properties;
+
+    @Param({ "1024" })
+    public int binarySize;
+
+    private ContentReader reader;
+
+    private byte[] content;
+
+    private BundleContext bundleContext;
+
+    private ResourceResolver resourceResolver;
+
+    private Session session;
+
+    private Node parent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        reader = newReader(format);
+        content = new SyntheticContent(depth, fanOut, properties, binarySize).generate(format);
+        bundleContext = MockOsgi.newBundleContext();
+        resourceResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_OAK, bundleContext);
+        session = resourceResolver.adaptTo(Session.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        resourceResolver.close();
+        MockOsgi.shutdown(bundleContext);
+    }
+
+    @Setup(Level.Invocation)
+    public void createParent() throws Exception {
+        parent = session.getRootNode().addNode("benchmark", "nt:unstructured");
+        session.save();
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeParent() throws Exception {
+        parent.remove();
+        session.save();
+    }
+
+    @Benchmark
+    public long noopCreator() throws Exception {
+        final NoopContentCreator creator = new NoopContentCreator();
+        reader.parse(new ByteArrayInputStream(content), creator);
+        return creator.getCalls();
+    }
+
+    @Benchmark
+    public long repositoryCreator() throws Exception {
+        final DefaultContentCreator creator = new DefaultContentCreator(name -> "application/octet-stream");
+        creator.startImport();
+        creator.init(createImportOptions(OVERWRITE_NODE | OVERWRITE_PROPERTIES),
+                Collections.<String, ContentReader>emptyMap(), null, null);
+        creator.prepareParsing(parent, "content");
+        reader.parse(new ByteArrayInputStream(content), creator);
+        session.save();
+        return creator.getCreatedNodeCount();
+    }
+
+    private static ContentReader newReader(final String format) {
+        switch (format) {
+        case "json":
+            return new JsonReader();
+        case "ordered-json":
+            return new OrderedJsonReader();
+        case "xml":
+            return new XmlReader();
+        case "zip":
+            return new ZipReader();
+        default:
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+}
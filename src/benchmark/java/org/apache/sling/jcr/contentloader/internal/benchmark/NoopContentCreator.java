@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.sling.jcr.contentloader.ContentCreator;
+
+/**
+ * A content creator which only counts the calls, to measure the cost of the
+ * content readers alone. Binaries are consumed like a repository would.
+ */
+final class NoopContentCreator implements ContentCreator {
+
+    private final byte[] buffer = new byte[8192];
+
+    private long calls;
+
+    long getCalls() {
+        return calls;
+    }
+
+    @Override
+    public void createNode(String name, String primaryNodeType, String[] mixinNodeTypes) {
+        calls++;
+    }
+
+    @Override
+    public void finishNode() {
+        calls++;
+    }
+
+    @Override
+    public void finish() {
+        calls++;
+    }
+
+    @Override
+    public void createProperty(String name, int propertyType, String value) {
+        calls++;
+    }
+
+    @Override
+    public void createProperty(String name, int propertyType, String[] values) {
+        calls++;
+    }
+
+    @Override
+    public void createProperty(String name, Object value) {
+        calls++;
+    }
+
+    @Override
+    public void createProperty(String name, Object[] values) {
+        calls++;
+    }
+
+    @Override
+    public void createFileAndResourceNode(String name, InputStream data, String mimeType, long lastModified) {
+        calls++;
+        try {
+            while (data.read(buffer) != -1) {
+                calls++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean switchCurrentNode(String subPath, String newNodeType) {
+        calls++;
+        return true;
+    }
+
+    @Override
+    public void createUser(String name, String password, Map<String, Object> extraProperties) {
+        calls++;
+    }
+
+    @Override
+    public void createGroup(String name, String[] members, Map<String, Object> extraProperties) {
+        calls++;
+    }
+
+    @Override
+    public void createAce(String principal, String[] grantedPrivileges, String[] deniedPrivileges, String order) {
+        calls++;
+    }
+}
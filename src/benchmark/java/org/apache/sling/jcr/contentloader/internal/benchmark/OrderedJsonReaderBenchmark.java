@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import org.apache.sling.jcr.contentloader.ContentCreator;
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.internal.readers.OrderedJsonReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link OrderedJsonReader}, which skips the name of ordered
+ * children while iterating, with a reader copying every ordered child without
+ * its name as before. Both write into a {@link NoopContentCreator}, run with
+ * the gc profiler to compare the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OrderedJsonReaderBenchmark {
+
+    @Param({ "3", "5" })
+    public int depth;
+
+    @Param({ "5" })
+    public int fanOut;
+
+    @Param({ "10" })
+    public int properties;
+
+    private final ContentReader reader = new OrderedJsonReader();
+
+    private final ContentReader copyingReader = new CopyingOrderedJsonReader();
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        content = new SyntheticContent(depth, fanOut, properties, 0).generate("ordered-json");
+    }
+
+    @Benchmark
+    public long skipName() throws Exception {
+        final NoopContentCreator creator = new NoopContentCreator();
+        reader.parse(new ByteArrayInputStream(content), creator);
+        return creator.getCalls();
+    }
+
+    @Benchmark
+    public long copyWithoutName() throws Exception {
+        final NoopContentCreator creator = new NoopContentCreator();
+        copyingReader.parse(new ByteArrayInputStream(content), creator);
+        return creator.getCalls();
+    }
+
+    /**
+     * Copies every ordered child without its <code>SLING:name</code>, like
+     * the ordered reader did before.
+     */
+    private static final class CopyingOrderedJsonReader extends OrderedJsonReader {
+
+        private final JsonBuilderFactory builderFactory = Json.createBuilderFactory(Collections.<String, Object>emptyMap());
+
+        @Override
+        protected void createOrderedNode(String name, JsonObject obj, ContentCreator contentCreator)
+                throws RepositoryException {
+            final JsonObjectBuilder builder = builderFactory.createObjectBuilder();
+            for (Map.Entry<String, JsonValue> e : obj.entrySet()) {
+                if (!"SLING:name".equals(e.getKey())) {
+                    builder.add(e.getKey(), e.getValue());
+                }
+            }
+            this.createNode(name, builder.build(), contentCreator);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.benchmark;
+
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.NO_OPTIONS;
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.createImportOptions;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.internal.DefaultContentCreator;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the creation of <code>users</code> users and
+ * <code>groups</code> groups, each listing all users as members, in an
+ * in-memory Oak repository, once one principal at a time and once as a
+ * principal batch. The changes are discarded after every invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PrincipalImportBenchmark {
+
+    @Param({ "100" })
+    public int users;
+
+    @Param({ "10" })
+    public int groups;
+
+    private String[] userNames;
+
+    private BundleContext bundleContext;
+
+    private ResourceResolver resourceResolver;
+
+    private Session session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        userNames = new String[users];
+        for (int i = 0; i < users; i++) {
+            userNames[i] = "benchmark-user-" + i;
+        }
+        bundleContext = MockOsgi.newBundleContext();
+        resourceResolver = MockSling.newResourceResolver(ResourceResolverType.JCR_OAK, bundleContext);
+        session = resourceResolver.adaptTo(Session.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        resourceResolver.close();
+        MockOsgi.shutdown(bundleContext);
+    }
+
+    @TearDown(Level.Invocation)
+    public void discard() throws Exception {
+        session.refresh(false);
+    }
+
+    @Benchmark
+    public int single() throws Exception {
+        return create(false);
+    }
+
+    @Benchmark
+    public int batch() throws Exception {
+        return create(true);
+    }
+
+    private int create(final boolean batch) throws Exception {
+        final DefaultContentCreator creator = new DefaultContentCreator(null);
+        creator.startImport();
+        creator.init(createImportOptions(NO_OPTIONS), Collections.<String, ContentReader>emptyMap(), null, null);
+        creator.prepareParsing(session.getRootNode(), null);
+        if (batch) {
+            creator.startPrincipalBatch();
+        }
+        for (final String userName : userNames) {
+            creator.createUser(userName, "pwd", null);
+        }
+        for (int i = 0; i < groups; i++) {
+            creator.createGroup("benchmark-group-" + i, userNames, null);
+        }
+        creator.finishPrincipalBatch();
+        return users + groups;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic content trees in the formats of the content readers.
+ * Every node has <code>fanOut</code> child nodes down to <code>depth</code>
+ * and <code>properties</code> properties of alternating types. Binaries of
+ * <code>binarySize</code> bytes are only part of the zip format, which stores
+ * one file per node.
+ */
+final class SyntheticContent {
+
+    private final int depth;
+
+    private final int fanOut;
+
+    private final int properties;
+
+    private final int binarySize;
+
+    SyntheticContent(final int depth, final int fanOut, final int properties, final int binarySize) {
+        this.depth = depth;
+        this.fanOut = fanOut;
+        this.properties = properties;
+        this.binarySize = binarySize;
+    }
+
+    /**
+     * @param format One of <code>json</code>, <code>ordered-json</code>,
+     *            <code>xml</code> or <code>zip</code>
+     * @return The generated content
+     */
+    byte[] generate(final String format) throws IOException {
+        switch (format) {
+        case "json":
+            return json(new StringBuilder(), null, 0, false).toString().getBytes(StandardCharsets.UTF_8);
+        case "ordered-json":
+            return json(new StringBuilder(), null, 0, true).toString().getBytes(StandardCharsets.UTF_8);
+        case "xml":
+            return xml(new StringBuilder(), "content", 0).toString().getBytes(StandardCharsets.UTF_8);
+        case "zip":
+            return zip();
+        default:
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    private StringBuilder json(final StringBuilder json, final String orderedName, final int level,
+            final boolean ordered) {
+        json.append('{');
+        if (orderedName != null) {
+            json.append("\"SLING:name\":\"").append(orderedName).append("\",");
+        }
+        json.append("\"jcr:primaryType\":\"nt:unstructured\"");
+        for (int p = 0; p < properties; p++) {
+            json.append(",\"p").append(p).append("\":");
+            switch (p % 4) {
+            case 0:
+                json.append("\"value ").append(p).append('"');
+                break;
+            case 1:
+                json.append(p);
+                break;
+            case 2:
+                json.append("\"2020-07-27T15:10:15.000+02:00\"");
+                break;
+            default:
+                json.append("[\"a\",\"b\",\"c\"]");
+            }
+        }
+        if (level < depth) {
+            if (ordered) {
+                json.append(",\"SLING:ordered\":[");
+            }
+            for (int c = 0; c < fanOut; c++) {
+                if (ordered) {
+                    json.append(c == 0 ? "" : ",");
+                    json(json, "n" + c, level + 1, true);
+                } else {
+                    json.append(",\"n").append(c).append("\":");
+                    json(json, null, level + 1, false);
+                }
+            }
+            if (ordered) {
+                json.append(']');
+            }
+        }
+        return json.append('}');
+    }
+
+    private StringBuilder xml(final StringBuilder xml, final String name, final int level) {
+        xml.append("<node><name>").append(name).append("</name>");
+        xml.append("<primaryNodeType>nt:unstructured</primaryNodeType><properties>");
+        for (int p = 0; p < properties; p++) {
+            xml.append("<property><name>p").append(p).append("</name>");
+            switch (p % 4) {
+            case 0:
+                xml.append("<value>value ").append(p).append("</value><type>String</type>");
+                break;
+            case 1:
+                xml.append("<value>").append(p).append("</value><type>Long</type>");
+                break;
+            case 2:
+                xml.append("<value>2020-07-27T15:10:15.000+02:00</value><type>Date</type>");
+                break;
+            default:
+                xml.append("<values><value>a</value><value>b</value><value>c</value></values><type>String</type>");
+            }
+            xml.append("</property>");
+        }
+        xml.append("</properties>");
+        if (level < depth) {
+            xml.append("<nodes>");
+            for (int c = 0; c < fanOut; c++) {
+                xml(xml, "n" + c, level + 1);
+            }
+            xml.append("</nodes>");
+        }
+        return xml.append("</node>");
+    }
+
+    private byte[] zip() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] binary = new byte[binarySize];
+        new Random(0).nextBytes(binary);
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zipEntries(zip, "", 0, binary);
+        }
+        return out.toByteArray();
+    }
+
+    private void zipEntries(final ZipOutputStream zip, final String path, final int level, final byte[] binary)
+            throws IOException {
+        zip.putNextEntry(new ZipEntry(path + "file.bin"));
+        zip.write(binary);
+        zip.closeEntry();
+        if (level < depth) {
+            for (int c = 0; c < fanOut; c++) {
+                zipEntries(zip, path + "n" + c + "/", level + 1, binary);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 
+import org.apache.sling.jcr.contentloader.internal.PropertyStrings;
 import org.osgi.annotation.versioning.ProviderType;
 
 
@@ -211,4 +212,71 @@ public interface ContentCreator {
     	throw new UnsupportedOperationException();
     }
 
+    /**
+     * Start collecting users and groups. Until {@link #finishPrincipalBatch()}
+     * is called, {@link #createUser(String, String, Map)} and
+     * {@link #createGroup(String, String[], Map)} may defer their work, so that
+     * all principals are resolved and created together and the members of a
+     * group are added at once. The default implementation does nothing.
+     *
+     * @throws RepositoryException If anything goes wrong.
+     * @since 0.5.0
+     */
+    default void startPrincipalBatch() throws RepositoryException {
+        // principals are created immediately
+    }
+
+    /**
+     * Create or update the users and groups collected since
+     * {@link #startPrincipalBatch()}. The default implementation does nothing.
+     *
+     * @throws RepositoryException If anything goes wrong.
+     * @since 0.5.0
+     */
+    default void finishPrincipalBatch() throws RepositoryException {
+        // principals are created immediately
+    }
+
+    /**
+     * Create a new property to the current node from a typed value, sparing
+     * the conversion to a string and back. The default implementation
+     * converts the value to a string and calls
+     * {@link #createProperty(String, int, String)}.
+     *
+     * @param name         The property name.
+     * @param propertyType The type of the property.
+     * @param value        A <code>Long</code>, <code>Double</code>,
+     *                     <code>Boolean</code>, <code>Calendar</code> or
+     *                     <code>String</code> value.
+     * @throws RepositoryException If anything goes wrong.
+     * @since 0.5.0
+     */
+    default void createTypedProperty(String name, int propertyType, Object value) throws RepositoryException {
+        createProperty(name, propertyType, PropertyStrings.valueOf(value));
+    }
+
+    /**
+     * Create a new multi value property to the current node from typed
+     * values, sparing the conversion to strings and back. The default
+     * implementation converts the values to strings and calls
+     * {@link #createProperty(String, int, String[])}.
+     *
+     * @param name         The property name.
+     * @param propertyType The type of the property.
+     * @param values       The values, see
+     *                     {@link #createTypedProperty(String, int, Object)}.
+     *                     Boxed values are used rather than primitive arrays
+     *                     because JCR creates a <code>Value</code> object per
+     *                     element anyway, and the values of a property may
+     *                     also be dates.
+     * @throws RepositoryException If anything goes wrong.
+     * @since 0.5.0
+     */
+    default void createTypedProperty(String name, int propertyType, Object[] values) throws RepositoryException {
+        final String[] strings = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            strings[i] = PropertyStrings.valueOf(values[i]);
+        }
+        createProperty(name, propertyType, strings);
+    }
 }
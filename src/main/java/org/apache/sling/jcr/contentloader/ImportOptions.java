@@ -59,6 +59,18 @@ public abstract class ImportOptions {
     public boolean isPropertyMerge() {
         return false;
     }
+
+    /**
+     * Specifies whether overwriting existing nodes is done incrementally.
+     * NOTE: instead of deleting and recreating the existing nodes, only the
+     * added, removed and changed nodes and properties are applied. Only
+     * relevant if {@link #isOverwrite()} returns true.
+     * @return true to overwrite nodes incrementally, false otherwise
+     * @since 0.5.0
+     */
+    public boolean isIncremental() {
+        return false;
+    }
     
 	/**
 	 * Specifies whether versionable nodes is automatically checked in at the
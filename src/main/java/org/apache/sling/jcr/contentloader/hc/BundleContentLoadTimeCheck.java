@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.contentloader.hc;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.felix.hc.annotation.HealthCheckService;
+import org.apache.felix.hc.api.FormattingResultLog;
+import org.apache.felix.hc.api.HealthCheck;
+import org.apache.felix.hc.api.Result;
+import org.apache.sling.jcr.contentloader.internal.ContentLoaderMetrics;
+import org.apache.sling.jcr.contentloader.internal.ContentLoaderMetrics.BundleStatistics;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health check component that reports bundles whose last content
+ * installation took longer than the configured thresholds.
+ */
+@HealthCheckService(name = BundleContentLoadTimeCheck.HC_NAME)
+@Component(configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Designate(ocd = BundleContentLoadTimeCheck.Config.class, factory = true)
+public class BundleContentLoadTimeCheck implements HealthCheck {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BundleContentLoadTimeCheck.class);
+
+    public static final String HC_NAME = "Bundle Content Load Time";
+    public static final String HC_LABEL = "Health Check: " + HC_NAME;
+
+    @ObjectClassDefinition(name = HC_LABEL, description = "Checks the duration of the last content installation of the bundles against the given thresholds")
+    public @interface Config {
+        @AttributeDefinition(name = "Name", description = "Name of this health check")
+        String hc_name() default HC_NAME;
+
+        @AttributeDefinition(name = "Tags", description = "List of tags for this health check, used to select subsets of health checks for execution e.g. by a composite health check.")
+        String[] hc_tags() default {};
+
+        @AttributeDefinition(name = "Includes RegEx", description = "RegEx to select all relevant bundles for this check. The RegEx is matched against the symbolic name of the bundle.")
+        String includesRegex() default ".*";
+
+        @AttributeDefinition(name = "Excludes RegEx", description = "Optional RegEx to exclude bundles from this check (matched against symbolic name). Allows to exclude specific bundles from selected set as produced by 'Includes RegEx'.")
+        String excludesRegex() default "";
+
+        @AttributeDefinition(name = "WARN threshold", description = "Load duration in milliseconds from which a bundle produces a warning, 0 to disable")
+        long warnThresholdMillis() default 60000;
+
+        @AttributeDefinition(name = "CRITICAL threshold", description = "Load duration in milliseconds from which a bundle produces a CRITICAL result, 0 to disable")
+        long criticalThresholdMillis() default 0;
+
+        @AttributeDefinition
+        String webconsole_configurationFactory_nameHint() default "Bundle content load time includes: {includesRegex} excludes: {excludesRegex}";
+    }
+
+    private Pattern includesRegex;
+    private Pattern excludesRegex;
+    private long warnThresholdMillis;
+    private long criticalThresholdMillis;
+
+    @Reference
+    private ContentLoaderMetrics metrics;
+
+    @Activate
+    public void activate(Config config) {
+        this.includesRegex = Pattern.compile(config.includesRegex());
+        String excludesRegex2 = config.excludesRegex();
+        this.excludesRegex = (excludesRegex2 != null && !excludesRegex2.isEmpty()) ? Pattern.compile(excludesRegex2) : null;
+        this.warnThresholdMillis = config.warnThresholdMillis();
+        this.criticalThresholdMillis = config.criticalThresholdMillis();
+        LOG.debug("Activated bundle content load time HC for includesRegex={} excludesRegex={} warnThresholdMillis={} criticalThresholdMillis={}", includesRegex, excludesRegex, warnThresholdMillis, criticalThresholdMillis);
+    }
+
+    @Override
+    public Result execute() {
+        FormattingResultLog log = new FormattingResultLog();
+
+        int relevantBundlesCount = 0;
+        int slowBundlesCount = 0;
+        for (BundleStatistics stats : metrics.getBundleStatistics()) {
+            String bundleSymbolicName = stats.getSymbolicName();
+            if (!includesRegex.matcher(bundleSymbolicName).matches()
+                    || (excludesRegex != null && excludesRegex.matcher(bundleSymbolicName).matches())) {
+                continue;
+            }
+            relevantBundlesCount++;
+
+            long duration = stats.getDurationMillis();
+            String msg = "Loading content of bundle {} took {} ms ({} nodes, {} properties, {} bytes, {} retries), slowest path {}";
+            Object[] msgObjs = new Object[] {bundleSymbolicName, duration, stats.getNodes(), stats.getProperties(),
+                    stats.getBinaryBytes(), stats.getRetries(), getSlowestPathEntry(stats)};
+            if (criticalThresholdMillis > 0 && duration >= criticalThresholdMillis) {
+                slowBundlesCount++;
+                log.critical(msg, msgObjs);
+            } else if (warnThresholdMillis > 0 && duration >= warnThresholdMillis) {
+                slowBundlesCount++;
+                log.warn(msg, msgObjs);
+            } else {
+                log.debug(msg, msgObjs);
+            }
+        }
+
+        log.info("Times spent: parse {} ms, write {} ms, save {} ms, checkin {} ms, lock wait {} ms, {} retries",
+                metrics.getTimer(ContentLoaderMetrics.TIMER_PARSE).getTotalMillis(),
+                metrics.getTimer(ContentLoaderMetrics.TIMER_WRITE).getTotalMillis(),
+                metrics.getTimer(ContentLoaderMetrics.TIMER_SAVE).getTotalMillis(),
+                metrics.getTimer(ContentLoaderMetrics.TIMER_CHECKIN).getTotalMillis(),
+                metrics.getTimer(ContentLoaderMetrics.TIMER_LOCK_WAIT).getTotalMillis(),
+                metrics.getRetries());
+        if (slowBundlesCount > 0) {
+            log.info("Found {} slow content loads of {} loaded bundles", slowBundlesCount, relevantBundlesCount);
+        } else {
+            log.info("All {} loaded bundles are within the thresholds", relevantBundlesCount);
+        }
+
+        return new Result(log);
+    }
+
+    private static String getSlowestPathEntry(BundleStatistics stats) {
+        return stats.getPathEntryMillis().entrySet().stream().max(Map.Entry.comparingByValue())
+                .map(e -> e.getKey() + " (" + e.getValue() + " ms)").orElse("-");
+    }
+
+}
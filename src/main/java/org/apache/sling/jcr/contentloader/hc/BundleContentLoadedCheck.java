@@ -17,11 +17,12 @@
  */
 package org.apache.sling.jcr.contentloader.hc;
 
-import java.util.Calendar;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
@@ -30,8 +31,10 @@ import org.apache.felix.hc.api.FormattingResultLog;
 import org.apache.felix.hc.api.HealthCheck;
 import org.apache.felix.hc.api.Result;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.apache.sling.jcr.contentloader.internal.BundleHelper;
 import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener;
+import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderStatus;
+import org.apache.sling.jcr.contentloader.internal.BundleContentStatus;
+import org.apache.sling.jcr.contentloader.internal.DelayedBundleScheduler;
 import org.apache.sling.jcr.contentloader.internal.PathEntry;
 import org.apache.sling.serviceusermapping.ServiceUserMapped;
 import org.osgi.framework.Bundle;
@@ -40,6 +43,8 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -76,6 +81,9 @@ public class BundleContentLoadedCheck implements HealthCheck {
 
         @AttributeDefinition(name = "CRITICAL for not loaded bundles", description = "By default not loaded bundles produce warnings, if this is set to true not loaded bundles produce a CRITICAL result")
         boolean useCriticalForNotLoaded() default false;
+
+        @AttributeDefinition(name = "Wait for queued bundle events", description = "Maximum time in milliseconds to wait for queued bundle events to be processed if the content loader runs asynchronously. With 0 queued events are reported right away.")
+        long waitForQueuedEvents() default 0;
         
         @AttributeDefinition
         String webconsole_configurationFactory_nameHint() default "Bundle content loaded includes: {includesRegex} excludes: {excludesRegex}";
@@ -85,6 +93,7 @@ public class BundleContentLoadedCheck implements HealthCheck {
     private Pattern includesRegex;
     private Pattern excludesRegex;
     boolean useCriticalForNotLoaded;
+    private long waitForQueuedEvents;
 
     /**
      * SLING-10015 - To require a service user before becoming active
@@ -98,6 +107,12 @@ public class BundleContentLoadedCheck implements HealthCheck {
     @Reference
     private SlingRepository repository;
 
+    /**
+     * The status of the content loader, used to find out about queued bundle events
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile BundleContentLoaderStatus bundleContentLoaderStatus;
+
     @Activate
     public void activate(BundleContext bundleContext, Config config) {
         this.bundleContext = bundleContext;
@@ -105,7 +120,8 @@ public class BundleContentLoadedCheck implements HealthCheck {
         String excludesRegex2 = config.excludesRegex();
         this.excludesRegex = (excludesRegex2 != null && !excludesRegex2.isEmpty()) ? Pattern.compile(excludesRegex2) : null;
         this.useCriticalForNotLoaded = config.useCriticalForNotLoaded();
-        LOG.debug("Activated bundle content loaded HC for includesRegex={} excludesRegex={}% useCriticalForNotLoaded={}", includesRegex, excludesRegex, useCriticalForNotLoaded);
+        this.waitForQueuedEvents = config.waitForQueuedEvents();
+        LOG.debug("Activated bundle content loaded HC for includesRegex={} excludesRegex={}% useCriticalForNotLoaded={} waitForQueuedEvents={}", includesRegex, excludesRegex, useCriticalForNotLoaded, waitForQueuedEvents);
     }
 
     
@@ -113,6 +129,8 @@ public class BundleContentLoadedCheck implements HealthCheck {
     public Result execute() {
         FormattingResultLog log = new FormattingResultLog();
 
+        checkQueuedEvents(log);
+
         Bundle[] bundles = this.bundleContext.getBundles();
         log.debug("Framwork has {} bundles in total", bundles.length);
  
@@ -120,12 +138,9 @@ public class BundleContentLoadedCheck implements HealthCheck {
         int relevantBundlesCount = 0;
         int notLoadedCount = 0;
 
+        final BundleContentLoaderStatus loaderStatus = this.bundleContentLoaderStatus;
         Session metadataSession = null;
         try {
-            metadataSession = repository.loginService(null, null);
-            
-            BundleHelper bundleHelper = new BundleContentLoaderListener();
-            
             for (Bundle bundle : bundles) {
                 String bundleSymbolicName = bundle.getSymbolicName();
                 if (!includesRegex.matcher(bundleSymbolicName).matches()) {
@@ -146,44 +161,31 @@ public class BundleContentLoadedCheck implements HealthCheck {
                 } else {
                     relevantBundlesCount++;
 
-                    // check if the content has already been loaded
-                    final Map<String, Object> bundleContentInfo = bundleHelper.getBundleContentInfo(metadataSession, bundle, false);
+                    // use the status kept by the content loader, the bundle content node
+                    // is only read (without locking it) for bundles not handled yet
+                    final BundleContentStatus status = loaderStatus != null ? loaderStatus.getBundleContentStatus(bundleSymbolicName) : null;
+                    final boolean contentLoaded;
+                    if (status != null) {
+                        contentLoaded = status.isLoaded(bundle.getLastModified());
+                    } else {
+                        if (metadataSession == null) {
+                            metadataSession = repository.loginService(null, null);
+                        }
+                        contentLoaded = isContentLoaded(metadataSession, bundle);
+                    }
 
-                    // if we don't get an info, someone else is currently loading
-                    if (bundleContentInfo == null) {
+                    if (contentLoaded) {
+                        log.debug("Content of bundle is already loaded {} {}.", bundle.getBundleId(), bundleSymbolicName);
+                    } else {
                         notLoadedCount++;
-                        String msg = "Not loaded bundle {} {}";
-                        Object[] msgObjs = new Object[] {bundle.getBundleId(), bundleSymbolicName};
+                        String msg = "Not loaded bundle {} {} {}";
+                        Object[] msgObjs = new Object[] {bundle.getBundleId(), bundleSymbolicName, status != null ? status : ""};
                         LOG.debug(msg, msgObjs);
                         if (useCriticalForNotLoaded) {
                             log.critical(msg, msgObjs);
                         } else {
                             log.warn(msg, msgObjs);
                         }
-                    } else {
-                        try {
-                            final boolean contentAlreadyLoaded = ((Boolean) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED)).booleanValue();
-                            boolean isBundleUpdated = false;
-                            Calendar lastLoadedAt = (Calendar) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT);
-                            if (lastLoadedAt != null && lastLoadedAt.getTimeInMillis() < bundle.getLastModified()) {
-                                isBundleUpdated = true;
-                            }
-                            if (!isBundleUpdated && contentAlreadyLoaded) {
-                                log.debug("Content of bundle is already loaded {} {}.", bundle.getBundleId(), bundleSymbolicName);
-                            } else {
-                                notLoadedCount++;
-                                String msg = "Not loaded bundle {} {}";
-                                Object[] msgObjs = new Object[] {bundle.getBundleId(), bundleSymbolicName};
-                                LOG.debug(msg, msgObjs);
-                                if (useCriticalForNotLoaded) {
-                                    log.critical(msg, msgObjs);
-                                } else {
-                                    log.warn(msg, msgObjs);
-                                }
-                            }
-                        } finally {
-                            bundleHelper.unlockBundleContentInfo(metadataSession, bundle, false, null);
-                        }
                     }
                 }
             }
@@ -212,4 +214,51 @@ public class BundleContentLoadedCheck implements HealthCheck {
         return new Result(log);
     }
 
+    /**
+     * Read the content loading status from the bundle content node, which is
+     * neither created nor locked.
+     */
+    private static boolean isContentLoaded(Session session, Bundle bundle) throws RepositoryException {
+        final String path = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName();
+        if (!session.nodeExists(path)) {
+            return false;
+        }
+        final Node bcNode = session.getNode(path);
+        if (!bcNode.hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED)
+                || !bcNode.getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED).getBoolean()) {
+            return false;
+        }
+        return !bcNode.hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT)
+                || bcNode.getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT).getDate()
+                        .getTimeInMillis() >= bundle.getLastModified();
+    }
+
+    private void checkQueuedEvents(FormattingResultLog log) {
+        final BundleContentLoaderStatus loaderStatus = this.bundleContentLoaderStatus;
+        if (loaderStatus == null) {
+            return;
+        }
+        try {
+            if (waitForQueuedEvents > 0) {
+                loaderStatus.awaitPendingBundleEvents(waitForQueuedEvents, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        final int pending = loaderStatus.getPendingBundleEvents();
+        if (pending > 0) {
+            String msg = "{} bundle events are still queued for content loading";
+            LOG.debug(msg, pending);
+            if (useCriticalForNotLoaded) {
+                log.critical(msg, pending);
+            } else {
+                log.warn(msg, pending);
+            }
+        }
+        final Map<DelayedBundleScheduler.Reason, Integer> delayed = loaderStatus.getDelayedBundles();
+        if (!delayed.isEmpty()) {
+            log.info("Bundles waiting for a retry of their content loading: {}", delayed);
+        }
+    }
+
 }
\ No newline at end of file
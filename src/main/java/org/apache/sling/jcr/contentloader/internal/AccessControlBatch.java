@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.AccessControlPolicyIterator;
+import javax.jcr.security.Privilege;
+
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+
+/**
+ * The <code>AccessControlBatch</code> collects access control entries for
+ * several nodes and writes the access control list of each node once.
+ * <p>
+ * The entries are merged by
+ * {@link AccessControlUtil#replaceAccessControlEntry(Session, String, Principal, String[], String[], String[], String, Map, Map, Set)}
+ * on a view of the session whose access control manager fetches the list of a
+ * node only for the first entry and keeps the lists passed to
+ * <code>setPolicy</code>, until they are set once by {@link #apply(String)}.
+ */
+final class AccessControlBatch {
+
+    private final Session session;
+
+    private final AccessControlManager accessControlManager;
+
+    /** lists not yet written, by node path, in the order they were set */
+    private final Map<String, AccessControlPolicy> pending = new LinkedHashMap<>();
+
+    /** the session handed to <code>AccessControlUtil</code> */
+    private final Session batchSession;
+
+    AccessControlBatch(final Session session) throws RepositoryException {
+        this.session = session;
+        this.accessControlManager = AccessControlUtil.getAccessControlManager(session);
+        final AccessControlManager batchManager = new BatchAccessControlManager();
+        this.batchSession = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(),
+                new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                    if ("getAccessControlManager".equals(method.getName())) {
+                        return batchManager;
+                    }
+                    try {
+                        return method.invoke(session, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * @param session A session
+     * @return <code>true</code> if this batch collects entries for the session
+     */
+    boolean isFor(final Session session) {
+        return this.session == session;
+    }
+
+    /**
+     * Add or merge an access control entry into the collected list of a node.
+     *
+     * @param path The node path
+     * @param principal The principal of the entry
+     * @param grantedPrivilegeNames The granted privileges, may be <code>null</code>
+     * @param deniedPrivilegeNames The denied privileges, may be <code>null</code>
+     * @param order The position of the entry, may be <code>null</code>
+     * @param restrictions The single value restrictions, may be <code>null</code>
+     * @param mvRestrictions The multi value restrictions, may be <code>null</code>
+     * @param removedRestrictionNames The restrictions to remove from an existing
+     *            entry, may be <code>null</code>
+     * @throws RepositoryException If the list can't be read or changed
+     */
+    void addEntry(final String path, final Principal principal, final String[] grantedPrivilegeNames,
+            final String[] deniedPrivilegeNames, final String order, final Map<String, Value> restrictions,
+            final Map<String, Value[]> mvRestrictions, final Set<String> removedRestrictionNames)
+            throws RepositoryException {
+        AccessControlUtil.replaceAccessControlEntry(batchSession, path, principal, grantedPrivilegeNames,
+                deniedPrivilegeNames, null, order, restrictions, mvRestrictions, removedRestrictionNames);
+    }
+
+    /**
+     * Write the collected access control list of a node.
+     *
+     * @param path The node path
+     * @throws RepositoryException If the list can't be written
+     */
+    void apply(final String path) throws RepositoryException {
+        final AccessControlPolicy acl = pending.remove(path);
+        if (acl != null) {
+            accessControlManager.setPolicy(path, acl);
+        }
+    }
+
+    /**
+     * Write all collected access control lists.
+     *
+     * @throws RepositoryException If a list can't be written
+     */
+    void applyAll() throws RepositoryException {
+        final List<String> paths = new ArrayList<>(pending.keySet());
+        for (final String path : paths) {
+            apply(path);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there are no collected lists
+     */
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Returns the collected list of a node instead of fetching it again, and
+     * collects the lists which are set.
+     */
+    private final class BatchAccessControlManager implements AccessControlManager {
+
+        @Override
+        public AccessControlPolicy[] getPolicies(final String absPath) throws RepositoryException {
+            final AccessControlPolicy acl = pending.get(absPath);
+            if (acl != null) {
+                return new AccessControlPolicy[] { acl };
+            }
+            return accessControlManager.getPolicies(absPath);
+        }
+
+        @Override
+        public void setPolicy(final String absPath, final AccessControlPolicy policy) throws RepositoryException {
+            pending.put(absPath, policy);
+        }
+
+        @Override
+        public AccessControlPolicyIterator getApplicablePolicies(final String absPath) throws RepositoryException {
+            return accessControlManager.getApplicablePolicies(absPath);
+        }
+
+        @Override
+        public Privilege privilegeFromName(final String privilegeName) throws RepositoryException {
+            return accessControlManager.privilegeFromName(privilegeName);
+        }
+
+        @Override
+        public Privilege[] getSupportedPrivileges(final String absPath) throws RepositoryException {
+            return accessControlManager.getSupportedPrivileges(absPath);
+        }
+
+        @Override
+        public boolean hasPrivileges(final String absPath, final Privilege[] privileges) throws RepositoryException {
+            return accessControlManager.hasPrivileges(absPath, privileges);
+        }
+
+        @Override
+        public Privilege[] getPrivileges(final String absPath) throws RepositoryException {
+            return accessControlManager.getPrivileges(absPath);
+        }
+
+        @Override
+        public AccessControlPolicy[] getEffectivePolicies(final String absPath) throws RepositoryException {
+            return accessControlManager.getEffectivePolicies(absPath);
+        }
+
+        @Override
+        public void removePolicy(final String absPath, final AccessControlPolicy policy) throws RepositoryException {
+            pending.remove(absPath);
+            accessControlManager.removePolicy(absPath, policy);
+        }
+    }
+}
@@ -27,15 +27,19 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
@@ -46,7 +50,7 @@ import javax.jcr.NoSuchWorkspaceException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.version.VersionManager;
+import javax.jcr.Value;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.jcr.contentloader.ContentReader;
@@ -66,15 +70,42 @@ public class BundleContentLoader extends BaseImportLoader {
     private BundleHelper bundleHelper;
 
     // bundles whose registration failed and should be retried
-    private List<Bundle> delayedBundles;
+    private DelayedBundleScheduler delayedBundles;
 
     private final Predicate<String> pathFilter;
 
+    // thresholds for saving the initial content in batches, 0 if disabled
+    private final int saveBatchNodes;
+
+    private final long saveBatchBytes;
+
+    private final boolean savePerPathEntry;
+
+    // number of nodes removed in merge mode per save, 0 if disabled
+    private final int mergeRemovalBatchSize;
+
+    private final ContentLoaderMetrics metrics;
+
+    // content loading status of the handled bundles
+    private final BundleContentStatusRegistry statuses = new BundleContentStatusRegistry();
+
+    // checks in the versionable nodes once the content is saved
+    private final VersionCheckin versionCheckin;
+
+    // references of installed bundles whose target nodes do not exist yet
+    private final ReferenceIndex unresolvedReferences = new ReferenceIndex();
+
     public BundleContentLoader(BundleHelper bundleHelper, ContentReaderWhiteboard contentReaderWhiteboard,
             BundleContentLoaderConfiguration configuration) {
+        this(bundleHelper, contentReaderWhiteboard, configuration, new ContentLoaderMetrics());
+    }
+
+    public BundleContentLoader(BundleHelper bundleHelper, ContentReaderWhiteboard contentReaderWhiteboard,
+            BundleContentLoaderConfiguration configuration, ContentLoaderMetrics metrics) {
         super(contentReaderWhiteboard);
         this.bundleHelper = bundleHelper;
-        this.delayedBundles = new LinkedList<>();
+        this.metrics = metrics;
+        this.delayedBundles = new DelayedBundleScheduler();
 
         List<Pattern> includes = Arrays
                 .stream(Optional.ofNullable(configuration).map(BundleContentLoaderConfiguration::includedTargets)
@@ -93,6 +124,14 @@ public class BundleContentLoader extends BaseImportLoader {
             }
         };
         log.debug("Using includes: {} and excludes: {}", includes, excludes);
+
+        this.saveBatchNodes = configuration == null ? 0 : Math.max(0, configuration.saveBatchNodes());
+        this.saveBatchBytes = configuration == null ? 0 : Math.max(0, configuration.saveBatchBytes());
+        this.savePerPathEntry = configuration != null && configuration.savePerPathEntry();
+        this.mergeRemovalBatchSize = configuration == null ? 0 : Math.max(0, configuration.mergeRemovalBatchSize());
+        this.versionCheckin = configuration == null ? new VersionCheckin(VersionCheckin.DEFAULT_RETRIES, metrics)
+                : new VersionCheckin(bundleHelper, configuration.checkinThreads(), configuration.checkinRetries(),
+                        metrics);
     }
 
     public void dispose() {
@@ -100,6 +139,8 @@ public class BundleContentLoader extends BaseImportLoader {
             delayedBundles.clear();
             delayedBundles = null;
         }
+        statuses.clear();
+        versionCheckin.dispose();
         bundleHelper = null;
     }
 
@@ -111,40 +152,119 @@ public class BundleContentLoader extends BaseImportLoader {
      */
     public void registerBundle(final Session metadataSession, final Bundle bundle, final boolean isUpdate) {
 
-        // if this is an update, we have to uninstall the old content first
+        // if this is an update, we have to uninstall the old content first,
+        // but only the one of the path entries which have changed
+        final Map<String, String> knownDigests = new HashMap<>();
         if (isUpdate) {
-            this.unregisterBundle(metadataSession, bundle);
+            final List<PathEntry> pathEntries = getPathEntries(bundle);
+            final Set<String> changedEntries = getChangedPathEntries(metadataSession, bundle, pathEntries,
+                    knownDigests);
+            if (changedEntries == null) {
+                this.unregisterBundle(metadataSession, bundle);
+            } else if (!changedEntries.isEmpty()) {
+                uninstallChangedContent(metadataSession, bundle, pathEntries, changedEntries);
+            }
+        }
+
+        if (registerBundleWithoutRetry(metadataSession, bundle, isUpdate, knownDigests)) {
+            // handle delayed bundles, might help now
+            retryDelayedBundles(metadataSession);
         }
+    }
+
+    /**
+     * Register a bundle and install its content without retrying the delayed
+     * bundles afterwards. This is used when several bundles are registered
+     * concurrently, {@link #retryDelayedBundles(Session)} has to be called once
+     * all of them are done.
+     *
+     * @param metadataSession the JCR Session for reading/writing metadata
+     * @param bundle the bundle to install
+     * @param isUpdate whether the bundle has been updated
+     * @return <code>true</code> if the bundle content has been registered,
+     *         <code>false</code> if it has been delayed or failed
+     */
+    boolean registerBundleWithoutRetry(final Session metadataSession, final Bundle bundle, final boolean isUpdate) {
+        return registerBundleWithoutRetry(metadataSession, bundle, isUpdate, Collections.emptyMap());
+    }
 
+    private boolean registerBundleWithoutRetry(final Session metadataSession, final Bundle bundle,
+            final boolean isUpdate, final Map<String, String> knownDigests) {
         log.debug("Registering bundle {} for content loading.", bundle.getSymbolicName());
 
-        if (registerBundleInternal(metadataSession, bundle, false, isUpdate)) {
-            // handle delayed bundles, might help now
-            int currentSize = -1;
-            for (int i = delayedBundles.size(); i > 0 && currentSize != delayedBundles.size()
-                    && !delayedBundles.isEmpty(); i--) {
-                for (Iterator<Bundle> di = delayedBundles.iterator(); di.hasNext();) {
-                    Bundle delayed = di.next();
-                    if (registerBundleInternal(metadataSession, delayed, true, false)) {
-                        di.remove();
+        final DelayedBundleScheduler.Reason reason = registerBundleInternal(metadataSession, bundle, false, isUpdate,
+                knownDigests);
+        if (reason == null) {
+            delayedBundles.loaded(bundle);
+            return true;
+        } else if (!isUpdate) {
+            // add to delayed bundles - if this is not an update!
+            delayedBundles.delay(metadataSession, bundle, reason);
+        }
+        return false;
+    }
+
+    /**
+     * Retry the registration of the delayed bundles whose blocking condition
+     * may have changed, until no more progress is made.
+     *
+     * @param metadataSession the JCR Session for reading/writing metadata
+     */
+    void retryDelayedBundles(final Session metadataSession) {
+        synchronized (delayedBundles) {
+            boolean progress = true;
+            while (progress && !delayedBundles.isEmpty()) {
+                progress = false;
+                for (final Bundle delayed : delayedBundles.getRetryCandidates(metadataSession)) {
+                    metrics.recordRetry(delayed.getSymbolicName());
+                    final DelayedBundleScheduler.Reason reason = registerBundleInternal(metadataSession, delayed,
+                            true, false, Collections.emptyMap());
+                    if (reason == null) {
+                        delayedBundles.loaded(delayed);
+                        progress = true;
+                    } else {
+                        delayedBundles.delay(metadataSession, delayed, reason);
                     }
                 }
-                currentSize = delayedBundles.size();
             }
-        } else if (!isUpdate) {
-            // add to delayed bundles - if this is not an update!
-            delayedBundles.add(bundle);
         }
     }
 
-    private boolean registerBundleInternal(final Session metadataSession, final Bundle bundle, final boolean isRetry,
-            final boolean isUpdate) {
+    /**
+     * Return the number of bundles waiting to be retried per delay reason.
+     *
+     * @return The counts, reasons without delayed bundles are omitted
+     */
+    public Map<DelayedBundleScheduler.Reason, Integer> getDelayedBundleCounts() {
+        return delayedBundles.getCountByReason();
+    }
+
+    /**
+     * Return the content loading status of a bundle as seen by this loader,
+     * without accessing the repository.
+     *
+     * @param symbolicName The symbolic name of the bundle
+     * @return The status or <code>null</code> if the bundle has not been
+     *         handled yet
+     */
+    public BundleContentStatus getBundleContentStatus(final String symbolicName) {
+        return statuses.get(symbolicName);
+    }
+
+    /**
+     * Install the content of a bundle.
+     *
+     * @return <code>null</code> if the content has been installed (or there was
+     *         nothing to install), otherwise the reason why it failed
+     */
+    private DelayedBundleScheduler.Reason registerBundleInternal(final Session metadataSession, final Bundle bundle,
+            final boolean isRetry, final boolean isUpdate, final Map<String, String> knownDigests) {
 
         // check if bundle has initial content
         final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
         if (pathIter == null) {
             log.debug("Bundle {} has no initial content", bundle.getSymbolicName());
-            return true;
+            return null;
             // FIXME also cleanup old content here
         }
 
@@ -152,16 +272,19 @@ public class BundleContentLoader extends BaseImportLoader {
             bundleHelper.createRepositoryPath(metadataSession, BundleContentLoaderListener.BUNDLE_CONTENT_NODE);
 
             // check if the content has already been loaded
+            final long lockStart = System.nanoTime();
             final Map<String, Object> bundleContentInfo = bundleHelper.getBundleContentInfo(metadataSession, bundle,
                     true);
+            metrics.recordLockWait(System.nanoTime() - lockStart);
 
             // if we don't get an info, someone else is currently loading
             if (bundleContentInfo == null) {
-                return false;
+                return DelayedBundleScheduler.Reason.LOCKED;
             }
 
             boolean success = false;
             List<String> createdNodes = null;
+            Map<String, String> contentDigests = null;
             try {
                 final boolean contentAlreadyLoaded = ((Boolean) bundleContentInfo
                         .get(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED)).booleanValue();
@@ -174,8 +297,17 @@ public class BundleContentLoader extends BaseImportLoader {
                 if (!isUpdate && !isBundleUpdated && contentAlreadyLoaded) {
                     log.info("Content of bundle already loaded {}.", bundle.getSymbolicName());
                 } else {
+                    // digests are only valid as long as the content has not been uninstalled
+                    final Map<String, String> previousDigests = contentAlreadyLoaded
+                            ? ContentDigest.parse((String[]) bundleContentInfo
+                                    .get(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS))
+                            : Collections.emptyMap();
+                    contentDigests = new HashMap<>();
+                    // on update the digests tell which path entries have to be installed again
                     createdNodes = installContent(metadataSession, bundle, pathIter,
-                            contentAlreadyLoaded && !isBundleUpdated);
+                            contentAlreadyLoaded && !isBundleUpdated && !isUpdate, previousDigests,
+                            (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS),
+                            knownDigests, contentDigests);
                     if (isRetry) {
                         // log success of retry
                         log.info("Retrying to load initial content for bundle {} succeeded.", bundle.getSymbolicName());
@@ -184,12 +316,14 @@ public class BundleContentLoader extends BaseImportLoader {
                 cleanupBundle((String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS),
                     createdNodes, metadataSession, bundle);
                 success = true;
-                return true;
             } finally {
-                bundleHelper.unlockBundleContentInfo(metadataSession, bundle, success, createdNodes);
+                bundleHelper.unlockBundleContentInfo(metadataSession, bundle, success, createdNodes, contentDigests);
             }
+            statuses.loaded(bundle.getSymbolicName());
+            return null;
 
         } catch (RepositoryException re) {
+            metrics.recordFailedLoad();
             // if we are retrying we already logged this message once, so we
             // won't log it again
             if (!isRetry) {
@@ -197,8 +331,10 @@ public class BundleContentLoader extends BaseImportLoader {
                         "Cannot load initial content for bundle " + bundle.getSymbolicName() + " : " + re.getMessage(),
                         re);
             }
+            final DelayedBundleScheduler.Reason reason = DelayedBundleScheduler.getReason(re);
+            statuses.delayed(bundle.getSymbolicName(), reason);
+            return reason;
         }
-        return false;
     }
 
     /**
@@ -209,8 +345,8 @@ public class BundleContentLoader extends BaseImportLoader {
      */
     public void unregisterBundle(final Session session, final Bundle bundle) {
 
-        if (delayedBundles.contains(bundle)) {
-            delayedBundles.remove(bundle);
+        if (delayedBundles.remove(bundle)) {
+            statuses.remove(bundle.getSymbolicName());
         } else {
             try {
                 bundleHelper.createRepositoryPath(session, BundleContentLoaderListener.BUNDLE_CONTENT_NODE);
@@ -224,9 +360,14 @@ public class BundleContentLoader extends BaseImportLoader {
                 }
 
                 try {
+                    final long start = System.nanoTime();
                     uninstallContent(session, bundle,
                             (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS));
                     bundleHelper.contentIsUninstalled(session, bundle);
+                    statuses.unloaded(bundle.getSymbolicName());
+                    unresolvedReferences.removeAll(bundle.getSymbolicName());
+                    metrics.recordUnresolvedReferences(unresolvedReferences.size());
+                    metrics.recordUnload(bundle.getSymbolicName(), System.nanoTime() - start);
                 } finally {
                     bundleHelper.unlockBundleContentInfo(session, bundle, false, null);
                 }
@@ -240,18 +381,35 @@ public class BundleContentLoader extends BaseImportLoader {
     // ---------- internal -----------------------------------------------------
 
     /**
-     * Install the content from the bundle.
+     * Install the content from the bundle. Path entries whose content digest
+     * matches the previously stored one are skipped.
      *
+     * @param previousDigests The content digests of the last installation
+     * @param previousUninstallPaths The uninstall paths of the last installation
+     * @param knownDigests The content digests already computed for the current
+     *            content, which are not computed again
+     * @param contentDigests Map to store the content digests of this installation
      * @return If the content should be removed on uninstall, a list of top nodes
      */
     private List<String> installContent(final Session defaultSession, final Bundle bundle,
-            final Iterator<PathEntry> pathIter, final boolean contentAlreadyLoaded) throws RepositoryException {
+            final Iterator<PathEntry> pathIter, final boolean contentAlreadyLoaded,
+            final Map<String, String> previousDigests, final String[] previousUninstallPaths,
+            final Map<String, String> knownDigests, final Map<String, String> contentDigests)
+            throws RepositoryException {
 
         final List<String> createdNodes = new ArrayList<>();
         final Map<String, Session> createdSessions = new HashMap<>();
 
         log.debug("Installing initial content from bundle {}", bundle.getSymbolicName());
+        final long installStart = System.nanoTime();
+        final Map<String, Long> pathEntryNanos = new LinkedHashMap<>();
+        // the installed path entries by workspace:target
+        final Map<String, String> installedTargets = new LinkedHashMap<>();
         final DefaultContentCreator contentCreator = new DefaultContentCreator(this.bundleHelper);
+        contentCreator.setMergeRemovalBatchSize(mergeRemovalBatchSize);
+        contentCreator.startImport();
+        final SaveBatch saveBatch = new SaveBatch(bundle, defaultSession, createdSessions.values());
+        boolean success = false;
         try {
             while (pathIter.hasNext()) {
                 final PathEntry pathEntry = pathIter.next();
@@ -262,6 +420,25 @@ public class BundleContentLoader extends BaseImportLoader {
                 }
 
                 if (!contentAlreadyLoaded || pathEntry.isOverwrite()) {
+                    bundleHelper.checkBundleContentInfo(bundle);
+                    final long pathEntryStart = System.nanoTime();
+                    // enumerate the bundle entries of this path only once
+                    final BundleEntryIndex entryIndex = BundleEntryIndex.create(bundle, pathEntry.getPath());
+                    final String digest = knownDigests.containsKey(pathEntry.getPath())
+                            ? knownDigests.get(pathEntry.getPath())
+                            : computeDigest(entryIndex, pathEntry);
+                    if (digest != null) {
+                        contentDigests.put(pathEntry.getPath(), digest);
+                        if (digest.equals(previousDigests.get(pathEntry.getPath()))) {
+                            log.debug("Content of {} in bundle {} is unchanged", pathEntry.getPath(),
+                                    bundle.getSymbolicName());
+                            if (pathEntry.isUninstall()) {
+                                keepUninstallPaths(previousUninstallPaths, defaultSession, pathEntry, createdNodes);
+                            }
+                            continue;
+                        }
+                    }
+
                     String workspace = pathEntry.getWorkspace();
                     final Session targetSession;
                     if (workspace != null) {
@@ -275,31 +452,56 @@ public class BundleContentLoader extends BaseImportLoader {
                         targetSession = defaultSession;
                     }
 
+                    // background check-ins of earlier imports must not interfere
+                    final String target = pathEntry.getAbsoluteTarget();
+                    versionCheckin.awaitPending(targetSession.getWorkspace().getName(), target);
+                    installedTargets.put(targetSession.getWorkspace().getName() + ":" + target, pathEntry.getPath());
                     final Node targetNode = getTargetNode(targetSession, pathEntry.getTarget());
 
                     if (targetNode != null) {
-                        installFromPath(bundle, pathEntry.getPath(), pathEntry, targetNode,
-                                pathEntry.isUninstall() ? createdNodes : null, contentCreator);
+                        if (saveBatch.isEnabled()) {
+                            // track all new nodes to be able to remove already saved ones on failure
+                            final List<String> newNodes = saveBatch.getCreatedNodes();
+                            final int start = newNodes.size();
+                            installFromPath(entryIndex, pathEntry.getPath(), pathEntry, targetNode, newNodes,
+                                    contentCreator, saveBatch);
+                            contentCreator.finishIncremental();
+                            if (pathEntry.isUninstall()) {
+                                createdNodes.addAll(newNodes.subList(start, newNodes.size()));
+                            }
+                            if (savePerPathEntry) {
+                                saveBatch.save(contentCreator);
+                            } else {
+                                saveBatch.saveIfNecessary(contentCreator);
+                            }
+                        } else {
+                            installFromPath(entryIndex, pathEntry.getPath(), pathEntry, targetNode,
+                                    pathEntry.isUninstall() ? createdNodes : null, contentCreator, saveBatch);
+                            contentCreator.finishIncremental();
+                        }
                     }
+                    pathEntryNanos.put(pathEntry.getPath(), System.nanoTime() - pathEntryStart);
+                } else if (previousDigests.containsKey(pathEntry.getPath())) {
+                    contentDigests.put(pathEntry.getPath(), previousDigests.get(pathEntry.getPath()));
                 }
             }
 
             // now optimize created nodes list
-            Collections.sort(createdNodes);
-            if (createdNodes.size() > 1) {
-                final Iterator<String> i = createdNodes.iterator();
-                String previous = i.next() + '/';
-                while (i.hasNext()) {
-                    final String current = i.next();
-                    if (current.startsWith(previous)) {
-                        i.remove();
-                    } else {
-                        previous = current + '/';
-                    }
-                }
+            removeDescendants(createdNodes);
+
+            // resolve the references of this bundle to nodes imported by its
+            // other content files, only they are saved with its content
+            long resolvedReferences = 0;
+            final List<Session> sessions = new ArrayList<>();
+            sessions.add(defaultSession);
+            sessions.addAll(createdSessions.values());
+            for (final Session session : sessions) {
+                resolvedReferences += contentCreator.resolveReferences(session, contentCreator.getReferenceIndex());
             }
 
             // persist modifications now
+            bundleHelper.checkBundleContentInfo(bundle);
+            final long saveStart = System.nanoTime();
             defaultSession.refresh(true);
             defaultSession.save();
 
@@ -307,12 +509,28 @@ public class BundleContentLoader extends BaseImportLoader {
                 session.refresh(true);
                 session.save();
             }
-
-            // finally check in versionable nodes
-            for (final Node versionable : contentCreator.getVersionables()) {
-                VersionManager versionManager = versionable.getSession().getWorkspace().getVersionManager();
-                versionManager.checkin(versionable.getPath());
+            metrics.recordSave(System.nanoTime() - saveStart);
+            contentCreator.finishMerge();
+
+            // finally check in versionable nodes, possibly in the background
+            bundleHelper.checkBundleContentInfo(bundle);
+            versionCheckin.checkin(contentCreator.getVersionables(), null,
+                    (workspace, paths) -> contentNotCheckedIn(bundle, installedTargets, workspace, paths));
+            // then resolve the references of other bundles to nodes of this one separately
+            for (final Session session : sessions) {
+                resolvedReferences += resolveEarlierReferences(session, contentCreator);
+            }
+            unresolvedReferences.addAll(contentCreator.getReferenceIndex(), bundle.getSymbolicName());
+            if (!contentCreator.getReferenceIndex().isEmpty()) {
+                log.debug("{} references of bundle {} wait for their target nodes",
+                        contentCreator.getReferenceIndex().size(), bundle.getSymbolicName());
             }
+            metrics.recordResolvedReferences(resolvedReferences);
+            metrics.recordUnresolvedReferences(unresolvedReferences.size());
+            metrics.recordLoad(bundle.getSymbolicName(), System.nanoTime() - installStart,
+                    contentCreator.getCreatedNodeCount(), contentCreator.getPropertyCount(),
+                    contentCreator.getBinarySize(), pathEntryNanos);
+            success = true;
         } finally {
             try {
                 if (defaultSession.hasPendingChanges()) {
@@ -323,6 +541,9 @@ public class BundleContentLoader extends BaseImportLoader {
                         session.refresh(false);
                     }
                 }
+                if (!success && saveBatch.hasSaved()) {
+                    saveBatch.rollback(bundle);
+                }
             } catch (RepositoryException re) {
                 log.warn("Failure to rollback partial initial content for bundle {}", bundle.getSymbolicName(), re);
             }
@@ -336,27 +557,364 @@ public class BundleContentLoader extends BaseImportLoader {
         return createdNodes;
     }
 
+    /**
+     * Resolve the references left unresolved by earlier installations whose
+     * target nodes exist now, and save them separately from the content of the
+     * current bundle. If they can't be saved, they stay pending and are tried
+     * again with the next installation.
+     *
+     * @param session The session of a workspace the current bundle has been
+     *            installed to
+     * @return The number of references which are fully resolved now
+     */
+    private int resolveEarlierReferences(final Session session, final DefaultContentCreator contentCreator) {
+        final ReferenceIndex earlierReferences = unresolvedReferences.copy();
+        try {
+            final int resolved = contentCreator.resolveReferences(session, earlierReferences);
+            if (session.hasPendingChanges()) {
+                session.save();
+            }
+            unresolvedReferences.update(earlierReferences);
+            return resolved;
+        } catch (RepositoryException re) {
+            log.warn("Cannot resolve pending references in workspace {}", session.getWorkspace().getName(), re);
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                log.warn("Failure to discard pending references in workspace {}",
+                        session.getWorkspace().getName(), e);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Remove the stored digests of the path entries containing versionable
+     * nodes which could not be checked in in the background, so their content
+     * is not considered unchanged and is installed again on the next update.
+     *
+     * @param installedTargets The installed path entries by
+     *            <code>workspace:target</code>
+     */
+    private void contentNotCheckedIn(final Bundle bundle, final Map<String, String> installedTargets,
+            final String workspace, final List<String> paths) {
+        final Set<String> entryPaths = new HashSet<>();
+        for (final String path : paths) {
+            for (final Map.Entry<String, String> installed : installedTargets.entrySet()) {
+                if (!installed.getKey().startsWith(workspace + ":")) {
+                    continue;
+                }
+                final String target = installed.getKey().substring(workspace.length() + 1);
+                if ("/".equals(target) || path.equals(target) || path.startsWith(target + "/")) {
+                    entryPaths.add(installed.getValue());
+                }
+            }
+        }
+        log.warn("Versionable nodes {} of bundle {} are not checked in, discarding the content digests of {}",
+                paths, bundle.getSymbolicName(), entryPaths);
+        if (!entryPaths.isEmpty()) {
+            // the loader might be waiting for this check-in while holding the info
+            bundleHelper.discardContentDigests(bundle, entryPaths);
+        }
+    }
+
+    /**
+     * Return the path entries of a bundle which are not excluded by the
+     * configuration.
+     */
+    private List<PathEntry> getPathEntries(final Bundle bundle) {
+        final List<PathEntry> pathEntries = new ArrayList<>();
+        final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
+        while (pathIter != null && pathIter.hasNext()) {
+            final PathEntry pathEntry = pathIter.next();
+            if (pathFilter.test(pathEntry.getTarget())) {
+                pathEntries.add(pathEntry);
+            }
+        }
+        return pathEntries;
+    }
+
+    /**
+     * Compare the digest of each path entry of a bundle with the one stored
+     * when its content has been loaded.
+     *
+     * @param pathEntries The path entries of the bundle
+     * @param digests Map to store the digests computed for the current content
+     * @return The paths of the path entries whose content has changed or which
+     *         have been removed, or <code>null</code> if there are no stored
+     *         digests to compare with
+     */
+    private Set<String> getChangedPathEntries(final Session metadataSession, final Bundle bundle,
+            final List<PathEntry> pathEntries, final Map<String, String> digests) {
+        if (pathEntries.isEmpty()) {
+            return null;
+        }
+        try {
+            final String path = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName();
+            if (!metadataSession.nodeExists(path)) {
+                return null;
+            }
+            final Node bcNode = metadataSession.getNode(path);
+            if (!bcNode.hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED)
+                    || !bcNode.getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED).getBoolean()
+                    || !bcNode.hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS)) {
+                return null;
+            }
+            final Value[] values = bcNode.getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS).getValues();
+            final String[] stored = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                stored[i] = values[i].getString();
+            }
+            final Map<String, String> previousDigests = ContentDigest.parse(stored);
+            final Set<String> changedEntries = new LinkedHashSet<>();
+            for (final PathEntry pathEntry : pathEntries) {
+                final String digest = computeDigest(BundleEntryIndex.create(bundle, pathEntry.getPath()), pathEntry);
+                if (digest != null) {
+                    digests.put(pathEntry.getPath(), digest);
+                }
+                if (digest == null || !digest.equals(previousDigests.get(pathEntry.getPath()))) {
+                    changedEntries.add(pathEntry.getPath());
+                }
+            }
+            // path entries removed from the bundle
+            for (final String entryPath : previousDigests.keySet()) {
+                if (!digests.containsKey(entryPath) && !changedEntries.contains(entryPath)) {
+                    changedEntries.add(entryPath);
+                }
+            }
+            return changedEntries;
+        } catch (RepositoryException re) {
+            log.debug("Cannot read content digests of bundle {}", bundle.getSymbolicName(), re);
+            return null;
+        }
+    }
+
+    /**
+     * Uninstall the content of the changed path entries of an updated bundle
+     * and of the path entries which have been removed from it. The content of
+     * the unchanged path entries is kept, so it is skipped when the bundle is
+     * registered again.
+     *
+     * @param pathEntries The path entries of the bundle
+     * @param changedEntries The paths of the changed path entries
+     */
+    private void uninstallChangedContent(final Session session, final Bundle bundle,
+            final List<PathEntry> pathEntries, final Set<String> changedEntries) {
+        try {
+            final Map<String, Object> bundleContentInfo = bundleHelper.getBundleContentInfo(session, bundle, false);
+
+            // if we don't get an info, someone else is currently loading or unloading
+            if (bundleContentInfo == null) {
+                return;
+            }
+
+            try {
+                final String[] uninstallPaths = (String[]) bundleContentInfo
+                        .get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS);
+                final List<String> unchangedPaths = new ArrayList<>();
+                for (final PathEntry pathEntry : pathEntries) {
+                    if (changedEntries.contains(pathEntry.getPath())) {
+                        final String workspace = pathEntry.getWorkspace() != null ? pathEntry.getWorkspace()
+                                : session.getWorkspace().getName();
+                        unresolvedReferences.removeAll(bundle.getSymbolicName(), workspace,
+                                pathEntry.getAbsoluteTarget());
+                    } else {
+                        keepUninstallPaths(uninstallPaths, session, pathEntry, unchangedPaths);
+                    }
+                }
+                log.info("Content of {} in bundle {} has changed", changedEntries, bundle.getSymbolicName());
+                if (uninstallPaths != null) {
+                    uninstallContent(session, bundle, Arrays.stream(uninstallPaths)
+                            .filter(path -> !unchangedPaths.contains(path)).toArray(String[]::new));
+                }
+                metrics.recordUnresolvedReferences(unresolvedReferences.size());
+            } finally {
+                bundleHelper.unlockBundleContentInfo(session, bundle, false, null);
+            }
+        } catch (RepositoryException re) {
+            log.error("Cannot remove changed initial content for bundle " + bundle.getSymbolicName() + " : "
+                    + re.getMessage(), re);
+        }
+    }
+
+    /**
+     * Compute the digest of the content of a path entry.
+     *
+     * @return The digest or <code>null</code> if it could not be computed
+     */
+    private String computeDigest(final BundleEntryIndex entryIndex, final PathEntry pathEntry) {
+        try {
+            return ContentDigest.compute(entryIndex, pathEntry, getContentReaders().keySet());
+        } catch (IOException ioe) {
+            log.warn("Cannot compute content digest of {} in bundle {}", pathEntry.getPath(),
+                    entryIndex.getBundle().getSymbolicName(), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Add the previous uninstall paths below the target of a skipped path entry
+     * to the created nodes, so they are kept.
+     */
+    private void keepUninstallPaths(final String[] previousUninstallPaths, final Session defaultSession,
+            final PathEntry pathEntry, final List<String> createdNodes) {
+        if (previousUninstallPaths == null) {
+            return;
+        }
+        final String workspace = pathEntry.getWorkspace() != null ? pathEntry.getWorkspace()
+                : defaultSession.getWorkspace().getName();
+        final String prefix = workspace + ":" + pathEntry.getAbsoluteTarget();
+        final String parentPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        for (final String path : previousUninstallPaths) {
+            if ((path.equals(prefix) || path.startsWith(parentPrefix)) && !createdNodes.contains(path)) {
+                createdNodes.add(path);
+            }
+        }
+    }
+
+    /**
+     * Sort the given list of node paths and remove all paths whose ancestor is
+     * contained as well.
+     */
+    private static void removeDescendants(final List<String> paths) {
+        Collections.sort(paths);
+        if (paths.size() > 1) {
+            final Iterator<String> i = paths.iterator();
+            String previous = i.next() + '/';
+            while (i.hasNext()) {
+                final String current = i.next();
+                if (current.startsWith(previous)) {
+                    i.remove();
+                } else {
+                    previous = current + '/';
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the initial content of a bundle in batches, once the configured number
+     * of nodes or binary bytes has been created since the last save.
+     */
+    private final class SaveBatch {
+
+        private final Bundle bundle;
+
+        private final Session defaultSession;
+
+        private final Collection<Session> sessions;
+
+        // all nodes created so far, as workspace:path
+        private final List<String> createdNodes = new ArrayList<>();
+
+        private long savedNodeCount;
+
+        private long savedBinarySize;
+
+        private boolean saved;
+
+        SaveBatch(final Bundle bundle, final Session defaultSession, final Collection<Session> sessions) {
+            this.bundle = bundle;
+            this.defaultSession = defaultSession;
+            this.sessions = sessions;
+        }
+
+        boolean isEnabled() {
+            return saveBatchNodes > 0 || saveBatchBytes > 0 || savePerPathEntry;
+        }
+
+        boolean hasSaved() {
+            return saved;
+        }
+
+        List<String> getCreatedNodes() {
+            return createdNodes;
+        }
+
+        void saveIfNecessary(final DefaultContentCreator contentCreator) throws RepositoryException {
+            if ((saveBatchNodes > 0 && contentCreator.getCreatedNodeCount() - savedNodeCount >= saveBatchNodes)
+                    || (saveBatchBytes > 0 && contentCreator.getBinarySize() - savedBinarySize >= saveBatchBytes)) {
+                save(contentCreator);
+            }
+        }
+
+        void save(final DefaultContentCreator contentCreator) throws RepositoryException {
+            log.debug("Saving batch of {} nodes", contentCreator.getCreatedNodeCount() - savedNodeCount);
+            // the saved content must not outlive the right to load it
+            bundleHelper.checkBundleContentInfo(bundle);
+            final long start = System.nanoTime();
+            defaultSession.refresh(true);
+            defaultSession.save();
+            for (Session session : sessions) {
+                session.refresh(true);
+                session.save();
+            }
+            metrics.recordSave(System.nanoTime() - start);
+            contentCreator.finishMerge();
+            savedNodeCount = contentCreator.getCreatedNodeCount();
+            savedBinarySize = contentCreator.getBinarySize();
+            saved = true;
+        }
+
+        /**
+         * Remove the nodes created by the already saved batches. Modifications of
+         * existing nodes cannot be reverted.
+         */
+        void rollback(final Bundle bundle) throws RepositoryException {
+            log.warn("Removing already saved initial content of bundle {}, modified existing nodes are not reverted",
+                    bundle.getSymbolicName());
+            removeDescendants(createdNodes);
+            for (final String createdNode : createdNodes) {
+                final int pos = createdNode.indexOf(':');
+                final String workspace = createdNode.substring(0, pos);
+                final String path = createdNode.substring(pos + 1);
+                final Session session = getSession(workspace);
+                if (session != null && session.nodeExists(path)) {
+                    session.getNode(path).remove();
+                }
+            }
+            defaultSession.save();
+            for (Session session : sessions) {
+                session.save();
+            }
+        }
+
+        private Session getSession(final String workspace) {
+            if (defaultSession.getWorkspace().getName().equals(workspace)) {
+                return defaultSession;
+            }
+            for (Session session : sessions) {
+                if (session.getWorkspace().getName().equals(workspace)) {
+                    return session;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Handle content installation for a single path.
      *
-     * @param bundle        The bundle containing the content.
+     * @param entryIndex    The entries of the bundle containing the content.
      * @param path          The path
      * @param configuration
      * @param parent        The parent node.
      * @param createdNodes  An optional list to store all new nodes. This list is
      *                      used for an uninstall
+     * @param saveBatch     Saves the content in batches if enabled
      * @throws RepositoryException
      */
-    private void installFromPath(final Bundle bundle, final String path, final PathEntry configuration,
-            final Node parent, final List<String> createdNodes, final DefaultContentCreator contentCreator)
-            throws RepositoryException {
+    private void installFromPath(final BundleEntryIndex entryIndex, final String path,
+            final PathEntry configuration, final Node parent, final List<String> createdNodes,
+            final DefaultContentCreator contentCreator, final SaveBatch saveBatch) throws RepositoryException {
 
         // init content creator
         contentCreator.init(configuration, getContentReaders(), createdNodes, null);
 
         final Map<String, Node> processedEntries = new HashMap<>();
+        final Bundle bundle = entryIndex.getBundle();
 
-        Enumeration<String> entries = bundle.getEntryPaths(path);
+        final List<String> entries = entryIndex.getEntryPaths(path);
         if (entries == null) {
             // check for single content
             final URL u = bundle.getEntry(path);
@@ -364,38 +922,26 @@ public class BundleContentLoader extends BaseImportLoader {
                 log.info("install: No initial content entries at {} in bundle {}", path, bundle.getSymbolicName());
                 return;
             }
-            // we have a single file content, let's check if this has an content reader
-            // extension
-            for (String ext : contentCreator.getContentReaders().keySet()) {
-                if (path.endsWith(ext)) {
-
-                }
-            }
-            handleFile(path, bundle, processedEntries, configuration, parent, createdNodes, contentCreator);
+            handleFile(path, entryIndex, processedEntries, configuration, parent, createdNodes, contentCreator);
             return;
         }
 
         // potential parent node import/extension
-        URL parentNodeDescriptor = importParentNode(bundle, path, parent, contentCreator);
+        URL parentNodeDescriptor = importParentNode(entryIndex, path, configuration, parent, contentCreator);
         if (parentNodeDescriptor != null) {
             processedEntries.put(parentNodeDescriptor.toString(), parent);
         }
 
-        while (entries.hasMoreElements()) {
-            final String entry = entries.nextElement();
+        for (final String entry : entries) {
             log.debug("Processing initial content entry {} in bundle {}", entry, bundle.getSymbolicName());
+            // stop as soon as the right to load the content has been lost
+            bundleHelper.checkBundleContentInfo(bundle);
             if (entry.endsWith("/")) {
 
                 // dir, check for node descriptor, else create dir
                 final String base = entry.substring(0, entry.length() - 1);
 
-                URL nodeDescriptor = null;
-                for (String ext : contentCreator.getContentReaders().keySet()) {
-                    nodeDescriptor = bundle.getEntry(base + ext);
-                    if (nodeDescriptor != null) {
-                        break;
-                    }
-                }
+                final URL nodeDescriptor = findNodeDescriptor(entryIndex, base, configuration);
 
                 // if we have a descriptor, which has not been processed yet,
                 // otherwise call createFolder, which creates an nt:folder or
@@ -409,17 +955,22 @@ public class BundleContentLoader extends BaseImportLoader {
                         processedEntries.put(nodeDescriptor.toString(), node);
                     }
                 } else {
-                    node = createFolder(parent, name, configuration.isOverwrite());
+                    node = createFolder(parent, name, configuration.isOverwrite(), contentCreator);
                 }
 
                 // walk down the line
                 if (node != null) {
-                    installFromPath(bundle, entry, configuration, node, createdNodes, contentCreator);
+                    installFromPath(entryIndex, entry, configuration, node, createdNodes, contentCreator, saveBatch);
                 }
 
             } else {
                 // file => create file
-                handleFile(entry, bundle, processedEntries, configuration, parent, createdNodes, contentCreator);
+                handleFile(entry, entryIndex, processedEntries, configuration, parent, createdNodes, contentCreator);
+            }
+
+            // each entry is complete now, so this is a safe point to save a batch
+            if (saveBatch.isEnabled()) {
+                saveBatch.saveIfNecessary(contentCreator);
             }
         }
     }
@@ -435,11 +986,11 @@ public class BundleContentLoader extends BaseImportLoader {
      * @param createdNodes
      * @throws RepositoryException
      */
-    private void handleFile(final String entry, final Bundle bundle, final Map<String, Node> processedEntries,
-            final PathEntry configuration, final Node parent, final List<String> createdNodes,
-            final DefaultContentCreator contentCreator) throws RepositoryException {
+    private void handleFile(final String entry, final BundleEntryIndex entryIndex,
+            final Map<String, Node> processedEntries, final PathEntry configuration, final Node parent,
+            final List<String> createdNodes, final DefaultContentCreator contentCreator) throws RepositoryException {
 
-        final URL file = bundle.getEntry(entry);
+        final URL file = entryIndex.getBundle().getEntry(entry);
         final String name = getName(entry);
         try {
             if (processedEntries.containsKey(file.toString())) {
@@ -448,13 +999,7 @@ public class BundleContentLoader extends BaseImportLoader {
             }
 
             // check for node descriptor
-            URL nodeDescriptor = null;
-            for (String ext : contentCreator.getContentReaders().keySet()) {
-                nodeDescriptor = bundle.getEntry(entry + ext);
-                if (nodeDescriptor != null) {
-                    break;
-                }
-            }
+            final URL nodeDescriptor = findNodeDescriptor(entryIndex, entry, configuration);
 
             // install if it is a descriptor
             boolean foundReader = getContentReader(entry, configuration) != null;
@@ -531,7 +1076,7 @@ public class BundleContentLoader extends BaseImportLoader {
 
             final String contentReaderExtension = getContentReaderExtension(name);
             contentCreator.prepareParsing(parent, toPlainName(name, contentReaderExtension));
-            nodeReader.parse(resourceUrl, contentCreator);
+            parse(nodeReader, resourceUrl, contentCreator);
 
             return contentCreator.getCreatedRootNode();
         } catch (RepositoryException re) {
@@ -548,21 +1093,26 @@ public class BundleContentLoader extends BaseImportLoader {
      *
      * @param parent    The parent node.
      * @param name      The name of the folder
-     * @param overwrite If set to true, an existing folder is removed first.
+     * @param overwrite If set to true, an existing folder is removed first, unless
+     *                  the content is overwritten incrementally.
+     * @param contentCreator the content creator
      * @return The node pointing to the folder.
      * @throws RepositoryException
      */
-    private Node createFolder(Node parent, String name, final boolean overwrite) throws RepositoryException {
+    private Node createFolder(Node parent, String name, final boolean overwrite,
+            final DefaultContentCreator contentCreator) throws RepositoryException {
 
-        if (parent.hasNode(name)) {
-            if (overwrite) {
-                parent.getNode(name).remove();
-            } else {
-                return parent.getNode(name);
+        final Node folder;
+        if (parent.hasNode(name) && (!overwrite || contentCreator.isIncremental())) {
+            folder = parent.getNode(name);
+        } else {
+            if (parent.hasNode(name)) {
+                contentCreator.removeNode(parent.getNode(name));
             }
+            folder = parent.addNode(name, "sling:Folder");
         }
-
-        return parent.addNode(name, "sling:Folder");
+        contentCreator.addImportedNode(folder);
+        return folder;
     }
 
     /**
@@ -705,6 +1255,7 @@ public class BundleContentLoader extends BaseImportLoader {
                         targetSession = defaultSession;
                     }
 
+                    versionCheckin.awaitPending(targetSession.getWorkspace().getName(), path);
                     if (targetSession.itemExists(path)) {
                         targetSession.getItem(path).remove();
                         this.log.debug("Removed {}", path);
@@ -750,41 +1301,45 @@ public class BundleContentLoader extends BaseImportLoader {
 
     }
 
+    /**
+     * Return the node descriptor of an entry, which has the name of the entry
+     * plus the extension of a reader not ignored by the configuration.
+     */
+    private URL findNodeDescriptor(final BundleEntryIndex entryIndex, final String base,
+            final PathEntry configuration) {
+        final String ext = entryIndex.findDescriptorExtension(base, contentReaderWhiteboard.getSnapshot(),
+                e -> !configuration.isIgnoredImportProvider(e));
+        return ext == null ? null : entryIndex.getEntry(base + ext);
+    }
+
     /**
      * Return the parent node descriptor (ROOT).
      */
-    private Descriptor getParentNodeDescriptor(final Bundle bundle, final String path,
-            final DefaultContentCreator contentCreator) {
-
-        for (Map.Entry<String, ContentReader> entry : contentCreator.getContentReaders().entrySet()) {
-            if (entry.getValue() != null) {
-                final StringBuilder filePath = new StringBuilder(path);
-                if (!path.endsWith("/")) {
-                    filePath.append("/");
-                }
-                filePath.append(PARENT_DESCRIPTOR);
-                // add file extension, e.g. .jcr.xml, .xml, .zip (see BaseImportLoader)
-                filePath.append(entry.getKey());
-                URL url = bundle.getEntry(filePath.toString());
-                if (url != null) {
-                    final Descriptor descriptor = new Descriptor();
-                    descriptor.url = url;
-                    descriptor.contentReader = entry.getValue();
-                    return descriptor;
-                }
-            }
+    private Descriptor getParentNodeDescriptor(final BundleEntryIndex entryIndex, final String path,
+            final PathEntry configuration) {
+        final ContentReaderSnapshot snapshot = contentReaderWhiteboard.getSnapshot();
+        final Map<String, ContentReader> readers = snapshot.getReaders();
+        final String base = (path.endsWith("/") ? path : path + "/") + PARENT_DESCRIPTOR;
+        // add file extension, e.g. .xml, .zip (see BaseImportLoader)
+        final String ext = entryIndex.findDescriptorExtension(base, snapshot,
+                e -> readers.get(e) != null && !configuration.isIgnoredImportProvider(e));
+        if (ext == null) {
+            return null;
         }
-        return null;
+        final Descriptor descriptor = new Descriptor();
+        descriptor.url = entryIndex.getEntry(base + ext);
+        descriptor.contentReader = readers.get(ext);
+        return descriptor;
     }
 
     /**
      * Imports mixin nodes and properties (and optionally child nodes) of the parent
      * node.
      */
-    private URL importParentNode(Bundle bundle, String path, Node parent, final DefaultContentCreator contentCreator)
-            throws RepositoryException {
+    private URL importParentNode(BundleEntryIndex entryIndex, String path, PathEntry configuration, Node parent,
+            final DefaultContentCreator contentCreator) throws RepositoryException {
 
-        final Descriptor descriptor = getParentNodeDescriptor(bundle, path, contentCreator);
+        final Descriptor descriptor = getParentNodeDescriptor(entryIndex, path, configuration);
         // no parent descriptor (ROOT) found
         if (descriptor == null) {
             return null;
@@ -792,7 +1347,7 @@ public class BundleContentLoader extends BaseImportLoader {
 
         try {
             contentCreator.prepareParsing(parent, null);
-            descriptor.contentReader.parse(descriptor.url, contentCreator);
+            parse(descriptor.contentReader, descriptor.url, contentCreator);
             return descriptor.url;
         } catch (RepositoryException re) {
             throw re;
@@ -801,6 +1356,22 @@ public class BundleContentLoader extends BaseImportLoader {
         }
     }
 
+    /**
+     * Parse a resource, recording the time spent in the reader and in the content
+     * creator.
+     */
+    private void parse(final ContentReader contentReader, final URL url, final DefaultContentCreator contentCreator)
+            throws IOException, RepositoryException {
+        final TimedContentCreator timedCreator = new TimedContentCreator(contentCreator);
+        final long start = System.nanoTime();
+        try {
+            contentReader.parse(url, timedCreator);
+        } finally {
+            metrics.recordParse(contentReader.getClass().getSimpleName(), System.nanoTime() - start,
+                    timedCreator.getWriteNanos());
+        }
+    }
+
     private Session createSession(String workspace) throws RepositoryException {
         try {
             return bundleHelper.getSession(workspace);
@@ -29,4 +29,34 @@ public @interface BundleContentLoaderConfiguration {
 
     @AttributeDefinition(name = "%excludedTargets.name", description = "%excludedTargets.description")
     String[] excludedTargets() default {};
+
+    @AttributeDefinition(name = "%asyncLoading.name", description = "%asyncLoading.description")
+    boolean asyncLoading() default false;
+
+    @AttributeDefinition(name = "%asyncQueueCapacity.name", description = "%asyncQueueCapacity.description")
+    int asyncQueueCapacity() default 1024;
+
+    @AttributeDefinition(name = "%initialLoadThreads.name", description = "%initialLoadThreads.description")
+    int initialLoadThreads() default 1;
+
+    @AttributeDefinition(name = "%saveBatchNodes.name", description = "%saveBatchNodes.description")
+    int saveBatchNodes() default 0;
+
+    @AttributeDefinition(name = "%saveBatchBytes.name", description = "%saveBatchBytes.description")
+    long saveBatchBytes() default 0;
+
+    @AttributeDefinition(name = "%savePerPathEntry.name", description = "%savePerPathEntry.description")
+    boolean savePerPathEntry() default false;
+
+    @AttributeDefinition(name = "%mergeRemovalBatchSize.name", description = "%mergeRemovalBatchSize.description")
+    int mergeRemovalBatchSize() default 0;
+
+    @AttributeDefinition(name = "%checkinThreads.name", description = "%checkinThreads.description")
+    int checkinThreads() default 0;
+
+    @AttributeDefinition(name = "%checkinRetries.name", description = "%checkinRetries.description")
+    int checkinRetries() default VersionCheckin.DEFAULT_RETRIES;
+
+    @AttributeDefinition(name = "%leaseDuration.name", description = "%leaseDuration.description")
+    int leaseDuration() default 600;
 }
@@ -18,20 +18,35 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.lock.LockException;
-import javax.jcr.lock.LockManager;
 
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.jcr.api.SlingRepository;
@@ -47,6 +62,8 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,21 +76,31 @@ import org.slf4j.LoggerFactory;
  * </ul>
  *
  */
-@Component(service = {}, property = { Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
+@Component(service = BundleContentLoaderStatus.class, immediate = true, property = { Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
         Constants.SERVICE_DESCRIPTION
                 + "=Apache Sling Content Loader Implementation" }, configurationPolicy = ConfigurationPolicy.OPTIONAL)
 @Designate(ocd = BundleContentLoaderConfiguration.class, factory = false)
-public class BundleContentLoaderListener implements SynchronousBundleListener, BundleHelper {
+public class BundleContentLoaderListener implements SynchronousBundleListener, BundleHelper, BundleContentLoaderStatus {
 
     public static final String PROPERTY_CONTENT_LOADED = "content-loaded";
     public static final String PROPERTY_CONTENT_LOADED_AT = "content-load-time";
-    private static final String PROPERTY_CONTENT_LOADED_BY = "content-loaded-by";
-    private static final String PROPERTY_CONTENT_UNLOADED_AT = "content-unload-time";
-    private static final String PROPERTY_CONTENT_UNLOADED_BY = "content-unloaded-by";
+    static final String PROPERTY_CONTENT_LOADED_BY = "content-loaded-by";
+    static final String PROPERTY_CONTENT_UNLOADED_AT = "content-unload-time";
+    static final String PROPERTY_CONTENT_UNLOADED_BY = "content-unloaded-by";
     public static final String PROPERTY_UNINSTALL_PATHS = "uninstall-paths";
+    public static final String PROPERTY_CONTENT_DIGESTS = "content-digests";
 
     public static final String BUNDLE_CONTENT_NODE = "/var/sling/bundle-content";
 
+    /**
+     * Number of renewals per lease duration, the lease store only extends the
+     * lease once half of it has passed
+     */
+    private static final int RENEWALS_PER_LEASE = 4;
+
+    /** Time to wait for queued bundle events to be processed on deactivation */
+    private static final long ASYNC_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
     /** default log */
     final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -102,6 +129,12 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
     @Reference
     private ContentReaderWhiteboard contentReaderWhiteboard;
 
+    /**
+     * The metrics of the content loading.
+     */
+    @Reference
+    private ContentLoaderMetrics metrics;
+
     /**
      * The initial content loader which is called to load initial content up into
      * the repository when the providing bundle is installed.
@@ -122,6 +155,58 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
     @Reference
     protected SlingSettingsService settingsService;
 
+    /**
+     * The executor processing bundle events if asynchronous loading is enabled,
+     * <code>null</code> otherwise.
+     */
+    private volatile ThreadPoolExecutor asyncExecutor;
+
+    /**
+     * Number of bundle events queued but not yet processed. Guarded by
+     * {@link #pendingEventsLock}.
+     */
+    private int pendingEvents;
+
+    /**
+     * The events of bundles queued for the asynchronous worker, which has not
+     * started to process them yet. Further events of these bundles are added
+     * to the queued ones instead of taking another place in the queue. Guarded
+     * by {@link #pendingEventsLock}.
+     */
+    private final Map<Long, List<BundleEvent>> queuedEvents = new HashMap<>();
+
+    private final Object pendingEventsLock = new Object();
+
+    /**
+     * A registered store for the bundle content state, replacing the default one.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private BundleContentStateStore customStateStore;
+
+    /**
+     * The store used for the bundle content state.
+     */
+    private BundleContentStateStore stateStore;
+
+    /**
+     * Renews the acquired bundle content state while the content is loaded.
+     */
+    private BundleContentRenewal renewal;
+
+    /**
+     * Locks serializing the access to the bundle content state within this
+     * instance, one per bundle symbolic name, so the content of unrelated
+     * bundles is loaded without waiting for each other.
+     */
+    private final Map<String, ReentrantLock> bundleLocks = new ConcurrentHashMap<>();
+
+    /**
+     * The path entries whose content digests are still to be discarded, by
+     * bundle symbolic name. They are discarded by whoever holds the bundle
+     * content info once it is released.
+     */
+    private final Map<String, Set<String>> pendingDigestDiscards = new ConcurrentHashMap<>();
+
     // ---------- BundleListener -----------------------------------------------
 
     /**
@@ -133,11 +218,149 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
      *              change.
      */
     @Override
-    public synchronized void bundleChanged(BundleEvent event) {
+    public void bundleChanged(BundleEvent event) {
+        final ThreadPoolExecutor executor = this.asyncExecutor;
+        if (executor == null) {
+            handleBundleEvent(event);
+            return;
+        }
+
+        switch (event.getType()) {
+            case BundleEvent.RESOLVED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                // a single worker thread keeps the order of the events
+                final Long bundleId = event.getBundle().getBundleId();
+                if (!eventQueued(bundleId, event)) {
+                    break;
+                }
+                try {
+                    executor.execute(() -> handleBundleEvents(bundleId));
+                } catch (RejectedExecutionException ree) {
+                    eventsDiscarded(bundleId);
+                    log.warn("bundleChanged: Content loader is shutting down, ignoring event {} of bundle {} ({})",
+                            event.getType(), event.getBundle().getSymbolicName(), bundleId);
+                }
+                break;
+            default:
+        }
+    }
+
+    @Override
+    public int getPendingBundleEvents() {
+        synchronized (pendingEventsLock) {
+            return pendingEvents;
+        }
+    }
+
+    @Override
+    public Map<DelayedBundleScheduler.Reason, Integer> getDelayedBundles() {
+        final BundleContentLoader loader = this.bundleContentLoader;
+        if (loader == null) {
+            return Collections.emptyMap();
+        }
+        return loader.getDelayedBundleCounts();
+    }
+
+    @Override
+    public BundleContentStatus getBundleContentStatus(final String symbolicName) {
+        final BundleContentLoader loader = this.bundleContentLoader;
+        if (loader == null) {
+            return null;
+        }
+        return loader.getBundleContentStatus(symbolicName);
+    }
+
+    @Override
+    public boolean awaitPendingBundleEvents(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pendingEventsLock) {
+            while (pendingEvents > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(pendingEventsLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the bundle has no other events queued and a
+     *         task handling its events has to be queued
+     */
+    private boolean eventQueued(final Long bundleId, final BundleEvent event) {
+        synchronized (pendingEventsLock) {
+            pendingEvents++;
+            final List<BundleEvent> events = queuedEvents.get(bundleId);
+            if (events != null) {
+                events.add(event);
+                return false;
+            }
+            queuedEvents.put(bundleId, new ArrayList<>(Collections.singletonList(event)));
+            return true;
+        }
+    }
+
+    /**
+     * Handles the events of a bundle queued until now, called by the
+     * asynchronous worker.
+     */
+    private void handleBundleEvents(final Long bundleId) {
+        final List<BundleEvent> events;
+        synchronized (pendingEventsLock) {
+            events = queuedEvents.remove(bundleId);
+        }
+        if (events == null) {
+            // discarded while shutting down
+            return;
+        }
+        for (final BundleEvent event : events) {
+            try {
+                handleBundleEvent(event);
+            } finally {
+                eventProcessed();
+            }
+        }
+    }
+
+    /**
+     * Discards the queued events of a bundle whose task has been rejected.
+     */
+    private void eventsDiscarded(final Long bundleId) {
+        synchronized (pendingEventsLock) {
+            final List<BundleEvent> events = queuedEvents.remove(bundleId);
+            if (events != null) {
+                pendingEvents -= events.size();
+                if (pendingEvents <= 0) {
+                    pendingEvents = 0;
+                    pendingEventsLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void eventProcessed() {
+        synchronized (pendingEventsLock) {
+            pendingEvents--;
+            if (pendingEvents <= 0) {
+                pendingEvents = 0;
+                pendingEventsLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Loads or unloads the content for a single bundle event. Called directly
+     * from {@link #bundleChanged(BundleEvent)} or from the asynchronous worker.
+     */
+    private synchronized void handleBundleEvent(BundleEvent event) {
 
         //
         // NOTE:
-        // This is synchronous - take care to not block the system !!
+        // Unless asynchronous loading is enabled this is synchronous - take
+        // care to not block the system !!
         //
 
         if (this.bundleContentLoader == null) {
@@ -226,7 +449,22 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
     @Activate
     protected synchronized void activate(BundleContext bundleContext, BundleContentLoaderConfiguration configuration) {
         this.slingId = this.settingsService.getSlingId();
-        this.bundleContentLoader = new BundleContentLoader(this, contentReaderWhiteboard, configuration);
+        final long leaseMillis = TimeUnit.SECONDS.toMillis(Math.max(1, configuration.leaseDuration()));
+        this.stateStore = customStateStore != null ? customStateStore
+                : new LeaseBundleContentStateStore(this, slingId, leaseMillis);
+        this.renewal = new BundleContentRenewal(stateStore, leaseMillis / RENEWALS_PER_LEASE);
+        this.bundleContentLoader = new BundleContentLoader(this, contentReaderWhiteboard, configuration, metrics);
+
+        if (configuration.asyncLoading()) {
+            this.asyncExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, configuration.asyncQueueCapacity())), r -> {
+                        final Thread t = new Thread(r, "Apache Sling Content Loader");
+                        t.setDaemon(true);
+                        return t;
+                    }, new BlockingEnqueuePolicy());
+            log.info("Asynchronous content loading enabled with queue capacity {}",
+                    configuration.asyncQueueCapacity());
+        }
 
         bundleContext.addBundleListener(this);
 
@@ -239,11 +477,12 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
 
             int ignored = 0;
             Bundle[] bundles = bundleContext.getBundles();
+            final List<Bundle> toLoad = new ArrayList<>();
             for (Bundle bundle : bundles) {
                 if ((bundle.getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0) {
                     // load content for bundles which are neither INSTALLED nor
                     // UNINSTALLED
-                    loadBundle(bundle, session);
+                    toLoad.add(bundle);
                 } else {
                     ignored++;
                 }
@@ -253,6 +492,15 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
             log.debug("Out of {} bundles, {} were not in a suitable state for initial content loading", bundles.length,
                     ignored);
 
+            final int threads = configuration.initialLoadThreads();
+            if (threads > 1 && toLoad.size() > 1) {
+                loadBundlesInParallel(toLoad, threads, session);
+            } else {
+                for (Bundle bundle : toLoad) {
+                    loadBundle(bundle, session);
+                }
+            }
+
         } catch (Exception t) {
             log.error("activate: Problem while loading initial content and"
                     + " registering mappings for existing bundles", t);
@@ -274,14 +522,212 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
         }
     }
 
+    /**
+     * Loads the content of the given bundles using a pool of worker threads,
+     * each group of bundles with overlapping targets is loaded sequentially by
+     * one worker on its own session. Delayed bundles are retried on the given
+     * session once all groups are done.
+     */
+    private void loadBundlesInParallel(final List<Bundle> bundles, final int threads, final Session session)
+            throws InterruptedException {
+        final List<List<Bundle>> groups = groupByOverlappingTargets(bundles);
+        log.info("Loading initial content of {} bundles in {} groups using {} threads", bundles.size(),
+                groups.size(), threads);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, groups.size()), r -> {
+            final Thread t = new Thread(r, "Apache Sling Content Loader Activation #" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (final List<Bundle> group : groups) {
+                results.add(executor.submit(() -> loadBundleGroup(group)));
+            }
+            for (final Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ee) {
+                    log.error("activate: Problem while loading initial content", ee.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        bundleContentLoader.retryDelayedBundles(session);
+    }
+
+    private void loadBundleGroup(final List<Bundle> group) {
+        Session groupSession = null;
+        try {
+            groupSession = this.getSession();
+            for (final Bundle bundle : group) {
+                try {
+                    bundleContentLoader.registerBundleWithoutRetry(groupSession, bundle, false);
+                } catch (Exception t) {
+                    log.error("Problem loading initial content of bundle " + bundle.getSymbolicName() + " ("
+                            + bundle.getBundleId() + ")", t);
+                } finally {
+                    if (groupSession.hasPendingChanges()) {
+                        groupSession.refresh(false);
+                    }
+                }
+            }
+        } catch (RepositoryException re) {
+            log.error("activate: Unable to load initial content of bundles " + group, re);
+        } finally {
+            this.ungetSession(groupSession);
+        }
+    }
+
+    /**
+     * Splits the bundles into groups which can be loaded concurrently: bundles
+     * whose initial content targets overlap (one target is the same as or an
+     * ancestor of another one in the same workspace) end up in the same group,
+     * keeping their relative order. Bundles without initial content are put
+     * together into a single group. Larger groups come first.
+     */
+    static List<List<Bundle>> groupByOverlappingTargets(final List<Bundle> bundles) {
+        final int[] groupOf = new int[bundles.size()];
+        final List<String[]> targets = new ArrayList<>();
+        int withoutContent = -1;
+        for (int i = 0; i < bundles.size(); i++) {
+            groupOf[i] = i;
+            final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundles.get(i));
+            if (pathIter == null) {
+                if (withoutContent < 0) {
+                    withoutContent = i;
+                } else {
+                    groupOf[i] = withoutContent;
+                }
+                continue;
+            }
+            while (pathIter.hasNext()) {
+                final PathEntry entry = pathIter.next();
+                String target = entry.getAbsoluteTarget();
+                if (!target.endsWith("/")) {
+                    target = target + "/";
+                }
+                final String workspace = entry.getWorkspace() == null ? "" : entry.getWorkspace();
+                targets.add(new String[] { workspace + ":" + target, String.valueOf(i) });
+            }
+        }
+
+        // paths sharing a prefix are contiguous once sorted, so one sweep finds all overlaps
+        targets.sort((a, b) -> a[0].compareTo(b[0]));
+        String root = null;
+        int rootBundle = -1;
+        for (final String[] target : targets) {
+            final int bundle = Integer.parseInt(target[1]);
+            if (root != null && target[0].startsWith(root)) {
+                union(groupOf, rootBundle, bundle);
+            } else {
+                root = target[0];
+                rootBundle = bundle;
+            }
+        }
+
+        final Map<Integer, List<Bundle>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < bundles.size(); i++) {
+            groups.computeIfAbsent(find(groupOf, i), k -> new ArrayList<>()).add(bundles.get(i));
+        }
+        final List<List<Bundle>> result = new ArrayList<>(groups.values());
+        result.sort((a, b) -> b.size() - a.size());
+        return result;
+    }
+
+    private static int find(final int[] groupOf, int i) {
+        while (groupOf[i] != i) {
+            groupOf[i] = groupOf[groupOf[i]];
+            i = groupOf[i];
+        }
+        return i;
+    }
+
+    private static void union(final int[] groupOf, final int a, final int b) {
+        final int rootA = find(groupOf, a);
+        final int rootB = find(groupOf, b);
+        // keep the lower index as root so a group starts with its first bundle
+        if (rootA < rootB) {
+            groupOf[rootB] = rootA;
+        } else if (rootB < rootA) {
+            groupOf[rootA] = rootB;
+        }
+    }
+
     /** Deactivates this component, called by SCR to take out of service */
     @Deactivate
-    protected synchronized void deactivate(BundleContext bundleContext) {
+    protected void deactivate(BundleContext bundleContext) {
         bundleContext.removeBundleListener(this);
 
-        if (this.bundleContentLoader != null) {
-            this.bundleContentLoader.dispose();
-            this.bundleContentLoader = null;
+        // not synchronized, as the worker needs the lock to finish queued events
+        final ThreadPoolExecutor executor = this.asyncExecutor;
+        if (executor != null) {
+            this.asyncExecutor = null;
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(ASYNC_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("deactivate: Queued bundle events not processed within {} seconds, discarding them",
+                            ASYNC_SHUTDOWN_TIMEOUT_SECONDS);
+                    executor.shutdownNow();
+                    allEventsDiscarded();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                allEventsDiscarded();
+            }
+        }
+
+        synchronized (this) {
+            if (this.bundleContentLoader != null) {
+                this.bundleContentLoader.dispose();
+                this.bundleContentLoader = null;
+            }
+            if (this.renewal != null) {
+                this.renewal.dispose();
+                this.renewal = null;
+            }
+        }
+    }
+
+    /**
+     * Discards the events not handled after the worker has been stopped.
+     */
+    private void allEventsDiscarded() {
+        synchronized (pendingEventsLock) {
+            queuedEvents.clear();
+            pendingEvents = 0;
+            pendingEventsLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks the submitting thread while the event queue is full instead of
+     * rejecting the event, so that no bundle event gets lost and the order is
+     * preserved. As the events of a bundle already queued are added to its
+     * task, this only happens if more bundles than the queue capacity have
+     * events waiting.
+     */
+    private static final class BlockingEnqueuePolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Content loader executor has been shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while queueing bundle event", ie);
+            }
+            // shut down while waiting, the task would never run unless taken already
+            if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                throw new RejectedExecutionException("Content loader executor has been shut down");
+            }
         }
     }
 
@@ -322,7 +768,9 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
     }
 
     /**
-     * Return the bundle content info and make an exclusive lock.
+     * Return the bundle content info and acquire it exclusively, within this
+     * instance through a lock per bundle symbolic name and within the cluster
+     * through the {@link BundleContentStateStore}.
      * 
      * @param session
      * @param bundle
@@ -332,89 +780,126 @@ public class BundleContentLoaderListener implements SynchronousBundleListener, B
     @Override
     public Map<String, Object> getBundleContentInfo(final Session session, final Bundle bundle, boolean create)
             throws RepositoryException {
-        final String nodeName = bundle.getSymbolicName();
-        final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
-        if (!parentNode.hasNode(nodeName)) {
-            if (!create) {
-                return null;
+        final ReentrantLock lock = getBundleLock(bundle);
+        lock.lock();
+        Map<String, Object> info = null;
+        try {
+            info = stateStore.acquire(session, bundle, create);
+            if (info != null) {
+                renewal.start(bundle);
             }
-            try {
-                final Node bcNode = parentNode.addNode(nodeName, "nt:unstructured");
-                bcNode.addMixin("mix:lockable");
-                session.save();
-            } catch (RepositoryException re) {
-                // for concurrency issues (running in a cluster) we ignore exceptions
-                this.log.warn("Unable to create node " + nodeName, re);
-                session.refresh(true);
+            return info;
+        } finally {
+            if (info == null) {
+                lock.unlock();
             }
         }
-        final Node bcNode = parentNode.getNode(nodeName);
-        if (bcNode.isLocked()) {
-            return null;
-        }
+    }
+
+    @Override
+    public void unlockBundleContentInfo(final Session session, final Bundle bundle, final boolean contentLoaded,
+            final List<String> createdNodes, final Map<String, String> contentDigests) throws RepositoryException {
+        final ReentrantLock lock = getBundleLock(bundle);
         try {
-            LockManager lockManager = session.getWorkspace().getLockManager();
-            lockManager.lock(bcNode.getPath(), false, // isDeep
-                    true, // isSessionScoped
-                    Long.MAX_VALUE, // timeoutHint
-                    null); // ownerInfo
-        } catch (LockException le) {
-            return null;
-        }
-        final Map<String, Object> info = new HashMap<>();
-        if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED_AT)) {
-            info.put(PROPERTY_CONTENT_LOADED_AT, bcNode.getProperty(PROPERTY_CONTENT_LOADED_AT).getDate());
+            renewal.stop(bundle);
+            stateStore.release(session, bundle, contentLoaded, createdNodes, contentDigests);
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
         }
-        if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED)) {
-            info.put(PROPERTY_CONTENT_LOADED, bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
-        } else {
-            info.put(PROPERTY_CONTENT_LOADED, false);
+        // discarded while the info was held
+        discardPendingContentDigests(bundle);
+    }
+
+    /**
+     * Discard the content digests of the path entries, or leave that to the
+     * current holder of the bundle content info instead of waiting for it.
+     */
+    @Override
+    public void discardContentDigests(final Bundle bundle, final Set<String> entryPaths) {
+        pendingDigestDiscards.merge(bundle.getSymbolicName(), new HashSet<>(entryPaths), (a, b) -> {
+            final Set<String> merged = new HashSet<>(a);
+            merged.addAll(b);
+            return merged;
+        });
+        discardPendingContentDigests(bundle);
+    }
+
+    private void discardPendingContentDigests(final Bundle bundle) {
+        final String name = bundle.getSymbolicName();
+        final ReentrantLock lock = getBundleLock(bundle);
+        if (lock.isHeldByCurrentThread()) {
+            // still loading, discarded once released
+            return;
         }
-        if (bcNode.hasProperty(PROPERTY_UNINSTALL_PATHS)) {
-            final Value[] values = bcNode.getProperty(PROPERTY_UNINSTALL_PATHS).getValues();
-            final String[] s = new String[values.length];
-            for (int i = 0; i < values.length; i++) {
-                s[i] = values[i].getString();
+        while (pendingDigestDiscards.containsKey(name) && lock.tryLock()) {
+            try {
+                final Set<String> entryPaths = pendingDigestDiscards.remove(name);
+                if (entryPaths != null && !discardStoredContentDigests(bundle, entryPaths)) {
+                    // retried once this instance releases the info the next time
+                    pendingDigestDiscards.merge(name, entryPaths, (a, b) -> {
+                        final Set<String> merged = new HashSet<>(a);
+                        merged.addAll(b);
+                        return merged;
+                    });
+                    return;
+                }
+            } finally {
+                lock.unlock();
             }
-            info.put(PROPERTY_UNINSTALL_PATHS, s);
         }
-        return info;
     }
 
-    @Override
-    public void unlockBundleContentInfo(final Session session, final Bundle bundle, final boolean contentLoaded,
-            final List<String> createdNodes) throws RepositoryException {
-        final String nodeName = bundle.getSymbolicName();
-        final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
-        final Node bcNode = parentNode.getNode(nodeName);
-        if (contentLoaded) {
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED, contentLoaded);
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED_AT, Calendar.getInstance());
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED_BY, this.slingId);
-            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, (String) null);
-            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, (String) null);
-            if (createdNodes != null && !createdNodes.isEmpty()) {
-                bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, createdNodes.toArray(new String[createdNodes.size()]));
+    /**
+     * @return <code>false</code> if the bundle content info is held by another
+     *         instance or could not be updated
+     */
+    private boolean discardStoredContentDigests(final Bundle bundle, final Set<String> entryPaths) {
+        Session session = null;
+        try {
+            session = getSession();
+            final Map<String, Object> info = stateStore.acquire(session, bundle, false);
+            if (info == null) {
+                log.warn("Unable to discard the content digests of {} of bundle {} yet, it is held by another instance",
+                        entryPaths, bundle.getSymbolicName());
+                return false;
             }
-            session.save();
+            boolean contentLoaded = false;
+            List<String> uninstallPaths = null;
+            Map<String, String> contentDigests = null;
+            try {
+                contentLoaded = ((Boolean) info.get(PROPERTY_CONTENT_LOADED)).booleanValue();
+                final String[] previousUninstallPaths = (String[]) info.get(PROPERTY_UNINSTALL_PATHS);
+                uninstallPaths = previousUninstallPaths == null ? null : Arrays.asList(previousUninstallPaths);
+                contentDigests = ContentDigest.parse((String[]) info.get(PROPERTY_CONTENT_DIGESTS));
+                contentDigests.keySet().removeAll(entryPaths);
+            } finally {
+                stateStore.release(session, bundle, contentLoaded, uninstallPaths, contentDigests);
+            }
+            return true;
+        } catch (RepositoryException re) {
+            log.error("Unable to discard the content digests of " + entryPaths + " of bundle "
+                    + bundle.getSymbolicName(), re);
+            return false;
+        } finally {
+            ungetSession(session);
         }
-        LockManager lockManager = session.getWorkspace().getLockManager();
-        lockManager.unlock(bcNode.getPath());
+    }
+
+    private ReentrantLock getBundleLock(final Bundle bundle) {
+        return bundleLocks.computeIfAbsent(bundle.getSymbolicName(), name -> new ReentrantLock());
+    }
+
+    @Override
+    public void checkBundleContentInfo(final Bundle bundle) throws RepositoryException {
+        renewal.check(bundle);
     }
 
     @Override
     public void contentIsUninstalled(final Session session, final Bundle bundle) {
-        final String nodeName = bundle.getSymbolicName();
         try {
-            final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
-            if (parentNode.hasNode(nodeName)) {
-                final Node bcNode = parentNode.getNode(nodeName);
-                bcNode.setProperty(PROPERTY_CONTENT_LOADED, false);
-                bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, Calendar.getInstance());
-                bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, this.slingId);
-                bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, (String[]) null);
-                session.save();
-            }
+            stateStore.markUninstalled(session, bundle);
         } catch (RepositoryException re) {
             this.log.error("Unable to update bundle content info.", re);
         }
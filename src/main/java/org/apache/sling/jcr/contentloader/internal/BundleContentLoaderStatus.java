@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The <code>BundleContentLoaderStatus</code> provides the progress of the
+ * bundle content loading, as queried by the health checks. It is registered by
+ * the {@link BundleContentLoaderListener}.
+ */
+public interface BundleContentLoaderStatus {
+
+    /**
+     * Returns the number of bundle events which have been queued but not
+     * processed yet. This is always <code>0</code> unless asynchronous loading
+     * is enabled.
+     *
+     * @return The number of pending bundle events.
+     */
+    int getPendingBundleEvents();
+
+    /**
+     * Waits until all queued bundle events have been processed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of the <code>timeout</code> argument.
+     * @return <code>true</code> if no events are pending anymore,
+     *         <code>false</code> if the timeout elapsed before.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean awaitPendingBundleEvents(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Returns the number of bundles whose content could not be loaded yet and
+     * which are waiting for a retry, per delay reason.
+     *
+     * @return The counts, empty if no bundle is waiting
+     */
+    Map<DelayedBundleScheduler.Reason, Integer> getDelayedBundles();
+
+    /**
+     * Returns the content loading status of a bundle as last seen by this
+     * instance. The repository is not accessed.
+     *
+     * @param symbolicName The symbolic name of the bundle
+     * @return The status or <code>null</code> if the bundle has not been
+     *         handled yet
+     */
+    BundleContentStatus getBundleContentStatus(String symbolicName);
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>BundleContentRenewal</code> renews the state acquired from a
+ * {@link BundleContentStateStore} in the background for as long as the content
+ * of a bundle is loaded, independent of how long a single content file or path
+ * entry takes. A failed renewal is kept until the loader checks it, which then
+ * aborts the load before saving anything more.
+ */
+final class BundleContentRenewal {
+
+    private final Logger log = LoggerFactory.getLogger(BundleContentRenewal.class);
+
+    private final BundleContentStateStore stateStore;
+
+    private final long periodMillis;
+
+    private final ScheduledExecutorService executor;
+
+    /** the running renewals by bundle symbolic name */
+    private final Map<String, Renewal> renewals = new ConcurrentHashMap<>();
+
+    /**
+     * @param stateStore The store to renew the state with
+     * @param periodMillis The time between two renewals
+     */
+    BundleContentRenewal(final BundleContentStateStore stateStore, final long periodMillis) {
+        this.stateStore = stateStore;
+        this.periodMillis = Math.max(1, periodMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Apache Sling Content Loader Renewal");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start to renew the state of a bundle, which has just been acquired.
+     *
+     * @param bundle The bundle
+     */
+    void start(final Bundle bundle) {
+        final Renewal renewal = new Renewal(bundle);
+        final Renewal previous = renewals.put(bundle.getSymbolicName(), renewal);
+        if (previous != null) {
+            previous.stop();
+        }
+        renewal.schedule();
+    }
+
+    /**
+     * Stop to renew the state of a bundle before it is released, waiting for
+     * a renewal in progress.
+     *
+     * @param bundle The bundle
+     */
+    void stop(final Bundle bundle) {
+        final Renewal renewal = renewals.remove(bundle.getSymbolicName());
+        if (renewal != null) {
+            renewal.stop();
+        }
+    }
+
+    /**
+     * Fail if the state of a bundle could not be renewed.
+     *
+     * @param bundle The bundle
+     * @throws RepositoryException If the last renewal failed
+     */
+    void check(final Bundle bundle) throws RepositoryException {
+        final Renewal renewal = renewals.get(bundle.getSymbolicName());
+        final Exception failure = renewal == null ? null : renewal.failure;
+        if (failure != null) {
+            throw new RepositoryException("Lost the right to load the content of bundle "
+                    + bundle.getSymbolicName() + ": " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Stop all renewals.
+     */
+    void dispose() {
+        executor.shutdownNow();
+        renewals.clear();
+    }
+
+    private final class Renewal implements Runnable {
+
+        private final Bundle bundle;
+
+        private ScheduledFuture<?> future;
+
+        private boolean stopped;
+
+        private volatile Exception failure;
+
+        Renewal(final Bundle bundle) {
+            this.bundle = bundle;
+        }
+
+        synchronized void schedule() {
+            future = executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (stopped || failure != null) {
+                return;
+            }
+            try {
+                stateStore.renew(bundle);
+            } catch (RepositoryException | RuntimeException e) {
+                log.error("Unable to renew the bundle content info of {}, aborting its load",
+                        bundle.getSymbolicName(), e);
+                failure = e;
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>BundleContentStateStore</code> stores the content loading state of
+ * the bundles in the repository and coordinates the instances of a cluster, so
+ * that only one of them loads or unloads the content of a bundle at a time.
+ * The {@link BundleContentLoaderListener} uses a registered service of this
+ * type if available, otherwise the lease based default implementation.
+ */
+public interface BundleContentStateStore {
+
+    /**
+     * Acquire the right to load or unload the content of a bundle and read its
+     * state. The returned map contains the values of the
+     * <code>PROPERTY_*</code> constants of {@link BundleContentLoaderListener}.
+     *
+     * @param session The session to read and write the state
+     * @param bundle The bundle
+     * @param create Whether to create the state if it does not exist yet
+     * @return The state or <code>null</code> if it does not exist or is
+     *         currently held by someone else
+     * @throws RepositoryException If the state can't be read or written
+     */
+    Map<String, Object> acquire(Session session, Bundle bundle, boolean create) throws RepositoryException;
+
+    /**
+     * Renew the right acquired by {@link #acquire(Session, Bundle, boolean)},
+     * called periodically by a background thread while the content is loaded.
+     * The default implementation does nothing.
+     *
+     * @param bundle The bundle
+     * @throws RepositoryException If the right has been lost or can't be
+     *             renewed
+     */
+    default void renew(Bundle bundle) throws RepositoryException {
+        // nothing to renew
+    }
+
+    /**
+     * Release the state acquired by {@link #acquire(Session, Bundle, boolean)}.
+     *
+     * @param session The session to write the state
+     * @param bundle The bundle
+     * @param contentLoaded Whether the content has been loaded
+     * @param createdNodes The nodes to remove on uninstall, might be
+     *            <code>null</code>
+     * @param contentDigests The content digests per path entry, might be
+     *            <code>null</code>
+     * @throws RepositoryException If the state can't be written
+     */
+    void release(Session session, Bundle bundle, boolean contentLoaded, List<String> createdNodes,
+            Map<String, String> contentDigests) throws RepositoryException;
+
+    /**
+     * Mark the content of a bundle as uninstalled.
+     *
+     * @param session The session to write the state
+     * @param bundle The bundle
+     * @throws RepositoryException If the state can't be written
+     */
+    void markUninstalled(Session session, Bundle bundle) throws RepositoryException;
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+/**
+ * The immutable content loading status of a bundle, as last seen by the
+ * {@link BundleContentLoader} of this instance.
+ */
+public final class BundleContentStatus {
+
+    public enum State {
+        /** the content has been loaded */
+        LOADED,
+        /** loading the content failed, it will be retried */
+        DELAYED,
+        /** the content has been uninstalled */
+        UNLOADED
+    }
+
+    private final State state;
+
+    private final long timestamp;
+
+    private final DelayedBundleScheduler.Reason reason;
+
+    BundleContentStatus(final State state, final long timestamp, final DelayedBundleScheduler.Reason reason) {
+        this.state = state;
+        this.timestamp = timestamp;
+        this.reason = reason;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The time of the state change in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The reason why loading is delayed, <code>null</code> unless the
+     *         state is {@link State#DELAYED}
+     */
+    public DelayedBundleScheduler.Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Check whether the content of the bundle is loaded and not older than the
+     * bundle itself.
+     *
+     * @param bundleLastModified The last modification time of the bundle
+     * @return <code>true</code> if the content is loaded and up to date
+     */
+    public boolean isLoaded(final long bundleLastModified) {
+        return state == State.LOADED && timestamp >= bundleLastModified;
+    }
+
+    @Override
+    public String toString() {
+        return state + (reason != null ? " (" + reason + ")" : "");
+    }
+}
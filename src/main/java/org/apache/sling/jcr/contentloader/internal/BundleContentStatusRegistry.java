@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>BundleContentStatusRegistry</code> keeps the content loading status
+ * of all bundles handled by the {@link BundleContentLoader} in memory, so that
+ * it can be queried without reading or locking the bundle content nodes.
+ */
+final class BundleContentStatusRegistry {
+
+    private final Map<String, BundleContentStatus> statuses = new ConcurrentHashMap<>();
+
+    void loaded(final String symbolicName) {
+        statuses.put(symbolicName,
+                new BundleContentStatus(BundleContentStatus.State.LOADED, System.currentTimeMillis(), null));
+    }
+
+    void delayed(final String symbolicName, final DelayedBundleScheduler.Reason reason) {
+        statuses.put(symbolicName,
+                new BundleContentStatus(BundleContentStatus.State.DELAYED, System.currentTimeMillis(), reason));
+    }
+
+    void unloaded(final String symbolicName) {
+        statuses.put(symbolicName,
+                new BundleContentStatus(BundleContentStatus.State.UNLOADED, System.currentTimeMillis(), null));
+    }
+
+    void remove(final String symbolicName) {
+        statuses.remove(symbolicName);
+    }
+
+    /**
+     * @param symbolicName The symbolic name of the bundle
+     * @return The status or <code>null</code> if the bundle has not been
+     *         handled yet
+     */
+    BundleContentStatus get(final String symbolicName) {
+        return statuses.get(symbolicName);
+    }
+
+    void clear() {
+        statuses.clear();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>BundleEntryIndex</code> holds the paths of all bundle entries below
+ * a content path, so that node descriptors and <code>ROOT</code> files can be
+ * looked up in memory instead of probing the bundle for every reader extension.
+ * The bundle is only asked for the entry URLs of existing entries.
+ */
+final class BundleEntryIndex {
+
+    private final Bundle bundle;
+
+    /** all entry paths, without leading slash, folders with a trailing slash */
+    private final Set<String> entries = new HashSet<>();
+
+    /** child entries by folder, in the order provided by the bundle */
+    private final Map<String, List<String>> children = new HashMap<>();
+
+    /** the snapshot {@link #descriptors} have been built for */
+    private ContentReaderSnapshot descriptorSnapshot;
+
+    /** extensions of the possible node descriptors by entry path without extension */
+    private Map<String, List<String>> descriptors;
+
+    private BundleEntryIndex(final Bundle bundle) {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Enumerate all entries below the given path once.
+     *
+     * @param bundle The bundle
+     * @param path The content path
+     * @return The index
+     */
+    static BundleEntryIndex create(final Bundle bundle, final String path) {
+        final BundleEntryIndex index = new BundleEntryIndex(bundle);
+        index.collect(path);
+        return index;
+    }
+
+    private void collect(final String path) {
+        final Enumeration<String> paths = bundle.getEntryPaths(path);
+        if (paths == null) {
+            return;
+        }
+        final List<String> list = new ArrayList<>();
+        while (paths.hasMoreElements()) {
+            final String entry = normalize(paths.nextElement());
+            list.add(entry);
+            entries.add(entry);
+        }
+        children.put(toFolder(path), list);
+        for (final String entry : list) {
+            if (entry.endsWith("/")) {
+                collect(entry);
+            }
+        }
+    }
+
+    /**
+     * @return The bundle
+     */
+    Bundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Get the entries of a folder, like {@link Bundle#getEntryPaths(String)}.
+     *
+     * @param path The folder path
+     * @return The entries or <code>null</code> if the path is not a folder
+     */
+    List<String> getEntryPaths(final String path) {
+        return children.get(toFolder(path));
+    }
+
+    /**
+     * @return All entry paths, in no particular order
+     */
+    Collection<String> getEntries() {
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * Get the URL of an entry.
+     *
+     * @param path The entry path
+     * @return The URL or <code>null</code> if there is no such entry
+     */
+    URL getEntry(final String path) {
+        if (!entries.contains(normalize(path))) {
+            return null;
+        }
+        return bundle.getEntry(path);
+    }
+
+    /**
+     * Find the node descriptor of an entry, which is the entry named
+     * <code>base</code> plus the first accepted reader extension.
+     * <p>
+     * The extensions of all entries are matched once per snapshot, so finding
+     * a descriptor does not depend on the number of registered readers.
+     *
+     * @param base The entry path without extension
+     * @param snapshot The registered readers
+     * @param accepted Returns <code>true</code> for the extensions to consider
+     * @return The extension of the descriptor or <code>null</code> if there is
+     *         none
+     */
+    String findDescriptorExtension(final String base, final ContentReaderSnapshot snapshot,
+            final Predicate<String> accepted) {
+        if (snapshot != descriptorSnapshot) {
+            indexDescriptors(snapshot);
+        }
+        final List<String> extensions = descriptors.get(normalize(base));
+        if (extensions != null) {
+            for (final String ext : extensions) {
+                if (accepted.test(ext)) {
+                    return ext;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void indexDescriptors(final ContentReaderSnapshot snapshot) {
+        final Map<String, List<String>> map = new HashMap<>();
+        boolean severalPerBase = false;
+        for (final String entry : entries) {
+            if (entry.endsWith("/")) {
+                continue;
+            }
+            for (final String ext : snapshot.getExtensions(entry)) {
+                final String base = entry.substring(0, entry.length() - ext.length());
+                final List<String> extensions = map.computeIfAbsent(base, k -> new ArrayList<>(1));
+                extensions.add(ext);
+                severalPerBase |= extensions.size() > 1;
+            }
+        }
+        if (severalPerBase) {
+            // e.g. content.json next to content.xml, the entries are not ordered
+            final List<String> order = new ArrayList<>(snapshot.getReaders().keySet());
+            for (final List<String> extensions : map.values()) {
+                if (extensions.size() > 1) {
+                    extensions.sort(Comparator.comparingInt(order::indexOf));
+                }
+            }
+        }
+        this.descriptors = map;
+        this.descriptorSnapshot = snapshot;
+    }
+
+    private static String normalize(final String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static String toFolder(final String path) {
+        final String normalized = normalize(path);
+        return normalized.isEmpty() || normalized.endsWith("/") ? normalized : normalized + "/";
+    }
+}
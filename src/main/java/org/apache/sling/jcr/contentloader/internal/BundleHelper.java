@@ -20,6 +20,7 @@ package org.apache.sling.jcr.contentloader.internal;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -30,7 +31,29 @@ public interface BundleHelper extends ContentHelper {
 
     Map<String, Object> getBundleContentInfo(Session session, Bundle bundle, boolean create) throws RepositoryException;
 
-    void unlockBundleContentInfo(Session session, Bundle bundle, boolean contentLoaded, List<String> createdNodes)throws RepositoryException;
+    default void unlockBundleContentInfo(Session session, Bundle bundle, boolean contentLoaded,
+            List<String> createdNodes) throws RepositoryException {
+        unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, null);
+    }
+
+    void unlockBundleContentInfo(Session session, Bundle bundle, boolean contentLoaded, List<String> createdNodes,
+            Map<String, String> contentDigests) throws RepositoryException;
+
+    /**
+     * Fail if the bundle content info acquired by
+     * {@link #getBundleContentInfo(Session, Bundle, boolean)} could not be
+     * renewed, so the content must not be loaded any further.
+     */
+    default void checkBundleContentInfo(Bundle bundle) throws RepositoryException {
+        // nothing to check
+    }
+
+    /**
+     * Discard the stored content digests of some path entries of a bundle, so
+     * their content is installed again on the next update. This does not wait
+     * if the bundle content info is currently held.
+     */
+    void discardContentDigests(Bundle bundle, Set<String> entryPaths);
 
     void contentIsUninstalled(Session session, Bundle bundle);
 
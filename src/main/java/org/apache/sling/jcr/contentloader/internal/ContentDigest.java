@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The <code>ContentDigest</code> computes a digest over the initial content of
+ * a {@link PathEntry}: the paths of all bundle entries below it, their sizes
+ * and the hashes of their content, as well as the import options and the
+ * available content readers, which all influence the imported content.
+ */
+final class ContentDigest {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentDigest() {
+        // static methods only
+    }
+
+    /**
+     * Compute the digest of the content of the given path entry.
+     *
+     * @param entryIndex The entries of the bundle containing the content
+     * @param pathEntry The path entry
+     * @param contentReaderExtensions The extensions of the available content
+     *            readers
+     * @return The digest as a hex string
+     * @throws IOException If the content can't be read
+     */
+    static String compute(final BundleEntryIndex entryIndex, final PathEntry pathEntry,
+            final Collection<String> contentReaderExtensions) throws IOException {
+        final MessageDigest digest = newDigest();
+        final MessageDigest entryDigest = newDigest();
+
+        update(digest, pathEntry.getPath());
+        update(digest, pathEntry.getTarget());
+        update(digest, pathEntry.getWorkspace());
+        update(digest, pathEntry.isOverwrite() + "," + pathEntry.isPropertyOverwrite() + ","
+                + pathEntry.isUninstall() + "," + pathEntry.isCheckin() + "," + pathEntry.isAutoCheckout() + ","
+                + pathEntry.isMerge() + "," + pathEntry.isPropertyMerge() + "," + pathEntry.isIncremental());
+        for (final String extension : new TreeSet<>(contentReaderExtensions)) {
+            if (!pathEntry.isIgnoredImportProvider(extension)) {
+                update(digest, extension);
+            }
+        }
+
+        final List<String> entries = new ArrayList<>(entryIndex.getEntries());
+        if (entries.isEmpty()) {
+            // single file content
+            entries.add(pathEntry.getPath());
+        }
+        Collections.sort(entries);
+        final byte[] buffer = new byte[8192];
+        for (final String entry : entries) {
+            update(digest, entry);
+            final URL url = entryIndex.getBundle().getEntry(entry);
+            if (url == null || entry.endsWith("/")) {
+                continue;
+            }
+            long size = 0;
+            try (InputStream in = url.openStream()) {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    entryDigest.update(buffer, 0, len);
+                    size += len;
+                }
+            }
+            update(digest, Long.toString(size));
+            digest.update(entryDigest.digest());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Parse the stored digests, each value having the format
+     * <code>path=digest</code>.
+     *
+     * @param values The stored values, might be <code>null</code>
+     * @return The digests by path entry path
+     */
+    static Map<String, String> parse(final String[] values) {
+        final Map<String, String> digests = new HashMap<>();
+        if (values != null) {
+            for (final String value : values) {
+                final int pos = value.lastIndexOf('=');
+                if (pos > 0) {
+                    digests.put(value.substring(0, pos), value.substring(pos + 1));
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Format the digests for storing them.
+     *
+     * @param digests The digests by path entry path
+     * @return The values in the format <code>path=digest</code>
+     */
+    static String[] format(final Map<String, String> digests) {
+        return digests.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).sorted()
+                .toArray(String[]::new);
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
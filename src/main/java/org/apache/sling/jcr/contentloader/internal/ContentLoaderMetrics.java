@@ -0,0 +1,515 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * The <code>ContentLoaderMetrics</code> collects timings and counters of the
+ * initial content loading and of the content imports. All methods are thread
+ * safe, the metrics are exposed as an MBean and checked by the
+ * {@link org.apache.sling.jcr.contentloader.hc.BundleContentLoadTimeCheck}.
+ */
+@Component(service = { ContentLoaderMetrics.class, ContentLoaderMetricsMBean.class },
+    property = {
+        "jmx.objectname=org.apache.sling.jcr.contentloader:type=ContentLoader,name=Metrics",
+        Constants.SERVICE_VENDOR + "=The Apache Software Foundation"
+    })
+public class ContentLoaderMetrics implements ContentLoaderMetricsMBean {
+
+    public static final String TIMER_PARSE = "parse";
+
+    public static final String TIMER_WRITE = "write";
+
+    public static final String TIMER_SAVE = "save";
+
+    public static final String TIMER_CHECKIN = "checkin";
+
+    public static final String TIMER_LOCK_WAIT = "lockWait";
+
+    public static final String TIMER_LOAD = "load";
+
+    public static final String TIMER_UNLOAD = "unload";
+
+    public static final String TIMER_IMPORT = "import";
+
+    private static final String[] TIMER_ITEMS = { "name", "count", "totalMillis", "maxMillis" };
+
+    private static final String[] BUNDLE_ITEMS = { "bundle", "loadedAt", "durationMillis", "nodes", "properties",
+            "binaryBytes", "retries" };
+
+    private static final String[] PATH_ENTRY_ITEMS = { "bundle", "path", "durationMillis" };
+
+    private static final CompositeType TIMER_TYPE;
+
+    private static final TabularType TIMERS_TYPE;
+
+    private static final CompositeType BUNDLE_TYPE;
+
+    private static final TabularType BUNDLES_TYPE;
+
+    private static final CompositeType PATH_ENTRY_TYPE;
+
+    private static final TabularType PATH_ENTRIES_TYPE;
+
+    static {
+        try {
+            TIMER_TYPE = new CompositeType("Timer", "Timer", TIMER_ITEMS, TIMER_ITEMS,
+                    new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+            TIMERS_TYPE = new TabularType("Timers", "Timers", TIMER_TYPE, new String[] { "name" });
+
+            BUNDLE_TYPE = new CompositeType("Bundle", "Content installation of a bundle", BUNDLE_ITEMS, BUNDLE_ITEMS,
+                    new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                            SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+            BUNDLES_TYPE = new TabularType("Bundles", "Bundles", BUNDLE_TYPE, new String[] { "bundle" });
+
+            PATH_ENTRY_TYPE = new CompositeType("PathEntry", "Content installation of a path entry",
+                    PATH_ENTRY_ITEMS, PATH_ENTRY_ITEMS,
+                    new OpenType<?>[] { SimpleType.STRING, SimpleType.STRING, SimpleType.LONG });
+            PATH_ENTRIES_TYPE = new TabularType("PathEntries", "Path entries", PATH_ENTRY_TYPE,
+                    new String[] { "bundle", "path" });
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Count, total and maximum duration of a timed operation.
+     */
+    public static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(final long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+        }
+
+        public long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+    }
+
+    /**
+     * The statistics of the last content installation of a bundle.
+     */
+    public static final class BundleStatistics {
+
+        private final String symbolicName;
+
+        private final long loadedAt;
+
+        private final long durationMillis;
+
+        private final long nodes;
+
+        private final long properties;
+
+        private final long binaryBytes;
+
+        private final long retries;
+
+        private final Map<String, Long> pathEntryMillis;
+
+        BundleStatistics(final String symbolicName, final long durationNanos, final long nodes,
+                final long properties, final long binaryBytes, final long retries,
+                final Map<String, Long> pathEntryNanos) {
+            this.symbolicName = symbolicName;
+            this.loadedAt = System.currentTimeMillis();
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            this.nodes = nodes;
+            this.properties = properties;
+            this.binaryBytes = binaryBytes;
+            this.retries = retries;
+            final Map<String, Long> millis = new LinkedHashMap<>();
+            pathEntryNanos.forEach((path, nanos) -> millis.put(path, TimeUnit.NANOSECONDS.toMillis(nanos)));
+            this.pathEntryMillis = Collections.unmodifiableMap(millis);
+        }
+
+        public String getSymbolicName() {
+            return symbolicName;
+        }
+
+        /**
+         * @return The time of the installation in milliseconds since the epoch
+         */
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getProperties() {
+            return properties;
+        }
+
+        public long getBinaryBytes() {
+            return binaryBytes;
+        }
+
+        /**
+         * @return The number of retries before the installation succeeded
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return The duration of the installation per path entry, in the
+         *         order of installation
+         */
+        public Map<String, Long> getPathEntryMillis() {
+            return pathEntryMillis;
+        }
+    }
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<String, Timer> readers = new ConcurrentHashMap<>();
+
+    private final Map<String, BundleStatistics> bundles = new ConcurrentHashMap<>();
+
+    /** retries per bundle since its last successful installation */
+    private final Map<String, LongAdder> pendingRetries = new ConcurrentHashMap<>();
+
+    private final LongAdder loadedBundles = new LongAdder();
+
+    private final LongAdder unloadedBundles = new LongAdder();
+
+    private final LongAdder failedLoads = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder imports = new LongAdder();
+
+    private final LongAdder nodes = new LongAdder();
+
+    private final LongAdder properties = new LongAdder();
+
+    private final LongAdder binaryBytes = new LongAdder();
+
+    private final LongAdder resolvedReferences = new LongAdder();
+
+    private volatile long unresolvedReferences;
+
+    private final LongAdder checkedInNodes = new LongAdder();
+
+    private final LongAdder failedCheckins = new LongAdder();
+
+    private final AtomicLong pendingCheckins = new AtomicLong();
+
+    // ---------- recording ----------------------------------------------------
+
+    /**
+     * Record a call of a content reader.
+     *
+     * @param reader The name of the content reader
+     * @param totalNanos The duration of the parse call
+     * @param writeNanos The part of the duration spent in the content creator
+     */
+    void recordParse(final String reader, final long totalNanos, final long writeNanos) {
+        getTimer(TIMER_PARSE).record(Math.max(0, totalNanos - writeNanos));
+        getTimer(TIMER_WRITE).record(writeNanos);
+        readers.computeIfAbsent(reader, k -> new Timer()).record(totalNanos);
+    }
+
+    void recordSave(final long nanos) {
+        getTimer(TIMER_SAVE).record(nanos);
+    }
+
+    void recordCheckin(final long nanos) {
+        getTimer(TIMER_CHECKIN).record(nanos);
+    }
+
+    void recordLockWait(final long nanos) {
+        getTimer(TIMER_LOCK_WAIT).record(nanos);
+    }
+
+    void recordRetry(final String symbolicName) {
+        retries.increment();
+        pendingRetries.computeIfAbsent(symbolicName, k -> new LongAdder()).increment();
+    }
+
+    void recordFailedLoad() {
+        failedLoads.increment();
+    }
+
+    void recordLoad(final String symbolicName, final long nanos, final long nodeCount, final long propertyCount,
+            final long bytes, final Map<String, Long> pathEntryNanos) {
+        getTimer(TIMER_LOAD).record(nanos);
+        loadedBundles.increment();
+        addContent(nodeCount, propertyCount, bytes);
+        final LongAdder bundleRetries = pendingRetries.remove(symbolicName);
+        bundles.put(symbolicName, new BundleStatistics(symbolicName, nanos, nodeCount, propertyCount, bytes,
+                bundleRetries == null ? 0 : bundleRetries.sum(), pathEntryNanos));
+    }
+
+    void recordUnload(final String symbolicName, final long nanos) {
+        getTimer(TIMER_UNLOAD).record(nanos);
+        unloadedBundles.increment();
+        pendingRetries.remove(symbolicName);
+    }
+
+    void recordImport(final long nanos, final long nodeCount, final long propertyCount, final long bytes) {
+        getTimer(TIMER_IMPORT).record(nanos);
+        imports.increment();
+        addContent(nodeCount, propertyCount, bytes);
+    }
+
+    /**
+     * Record references resolved after the content of their target nodes has
+     * been imported.
+     *
+     * @param count The number of resolved references
+     */
+    void recordResolvedReferences(final long count) {
+        resolvedReferences.add(count);
+    }
+
+    /**
+     * Record the references still waiting for their target nodes.
+     *
+     * @param count The number of unresolved references
+     */
+    void recordUnresolvedReferences(final long count) {
+        unresolvedReferences = count;
+    }
+
+    void recordCheckedInNodes(final long count) {
+        checkedInNodes.add(count);
+    }
+
+    void recordFailedCheckins(final long count) {
+        failedCheckins.add(count);
+    }
+
+    /**
+     * Record a change of the number of check-ins waiting in the background.
+     *
+     * @param delta The number of added check-ins, negative for finished ones
+     */
+    void recordPendingCheckins(final long delta) {
+        pendingCheckins.addAndGet(delta);
+    }
+
+    private void addContent(final long nodeCount, final long propertyCount, final long bytes) {
+        nodes.add(nodeCount);
+        properties.add(propertyCount);
+        binaryBytes.add(bytes);
+    }
+
+    // ---------- access -------------------------------------------------------
+
+    /**
+     * Get a timer, which is created if it does not exist yet.
+     *
+     * @param name The name, one of the <code>TIMER_*</code> constants
+     * @return The timer
+     */
+    public Timer getTimer(final String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * @return The statistics of the last content installation of all bundles
+     */
+    public Collection<BundleStatistics> getBundleStatistics() {
+        return Collections.unmodifiableCollection(bundles.values());
+    }
+
+    /**
+     * @param symbolicName The symbolic name of the bundle
+     * @return The statistics of the last content installation of the bundle or
+     *         <code>null</code>
+     */
+    public BundleStatistics getBundleStatistics(final String symbolicName) {
+        return bundles.get(symbolicName);
+    }
+
+    @Override
+    public long getLoadedBundles() {
+        return loadedBundles.sum();
+    }
+
+    @Override
+    public long getUnloadedBundles() {
+        return unloadedBundles.sum();
+    }
+
+    @Override
+    public long getFailedLoads() {
+        return failedLoads.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getImports() {
+        return imports.sum();
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    @Override
+    public long getProperties() {
+        return properties.sum();
+    }
+
+    @Override
+    public long getBinaryBytes() {
+        return binaryBytes.sum();
+    }
+
+    @Override
+    public long getResolvedReferences() {
+        return resolvedReferences.sum();
+    }
+
+    @Override
+    public long getUnresolvedReferences() {
+        return unresolvedReferences;
+    }
+
+    @Override
+    public long getCheckedInNodes() {
+        return checkedInNodes.sum();
+    }
+
+    @Override
+    public long getFailedCheckins() {
+        return failedCheckins.sum();
+    }
+
+    @Override
+    public long getPendingCheckins() {
+        return pendingCheckins.get();
+    }
+
+    @Override
+    public TabularData getTimers() {
+        return toTabularData(timers);
+    }
+
+    @Override
+    public TabularData getReaders() {
+        return toTabularData(readers);
+    }
+
+    @Override
+    public TabularData getBundles() {
+        final TabularDataSupport data = new TabularDataSupport(BUNDLES_TYPE);
+        for (final BundleStatistics stats : bundles.values()) {
+            data.put(newCompositeData(BUNDLE_TYPE, BUNDLE_ITEMS, stats.getSymbolicName(), stats.getLoadedAt(),
+                    stats.getDurationMillis(), stats.getNodes(), stats.getProperties(), stats.getBinaryBytes(),
+                    stats.getRetries()));
+        }
+        return data;
+    }
+
+    @Override
+    public TabularData getPathEntries() {
+        final TabularDataSupport data = new TabularDataSupport(PATH_ENTRIES_TYPE);
+        for (final BundleStatistics stats : bundles.values()) {
+            stats.getPathEntryMillis().forEach((path, millis) -> data
+                    .put(newCompositeData(PATH_ENTRY_TYPE, PATH_ENTRY_ITEMS, stats.getSymbolicName(), path, millis)));
+        }
+        return data;
+    }
+
+    @Override
+    public void reset() {
+        timers.clear();
+        readers.clear();
+        bundles.clear();
+        pendingRetries.clear();
+        loadedBundles.reset();
+        unloadedBundles.reset();
+        failedLoads.reset();
+        retries.reset();
+        imports.reset();
+        nodes.reset();
+        properties.reset();
+        binaryBytes.reset();
+        resolvedReferences.reset();
+        checkedInNodes.reset();
+        failedCheckins.reset();
+    }
+
+    private static TabularData toTabularData(final Map<String, Timer> timers) {
+        final TabularDataSupport data = new TabularDataSupport(TIMERS_TYPE);
+        timers.forEach((name, timer) -> data.put(newCompositeData(TIMER_TYPE, TIMER_ITEMS, name, timer.getCount(),
+                timer.getTotalMillis(), timer.getMaxMillis())));
+        return data;
+    }
+
+    private static CompositeDataSupport newCompositeData(final CompositeType type, final String[] items,
+            final Object... values) {
+        try {
+            return new CompositeDataSupport(type, items, values);
+        } catch (OpenDataException e) {
+            // the values always match the static types
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Management interface of the {@link ContentLoaderMetrics}. All durations are
+ * in milliseconds.
+ */
+public interface ContentLoaderMetricsMBean {
+
+    /**
+     * @return The number of bundles whose initial content has been installed
+     */
+    long getLoadedBundles();
+
+    /**
+     * @return The number of bundles whose initial content has been uninstalled
+     */
+    long getUnloadedBundles();
+
+    /**
+     * @return The number of failed attempts to install initial content
+     */
+    long getFailedLoads();
+
+    /**
+     * @return The number of retries of delayed bundles
+     */
+    long getRetries();
+
+    /**
+     * @return The number of content imports through the content importer
+     */
+    long getImports();
+
+    /**
+     * @return The number of nodes created by initial content and imports
+     */
+    long getNodes();
+
+    /**
+     * @return The number of properties written by initial content and imports
+     */
+    long getProperties();
+
+    /**
+     * @return The size of the binaries written by initial content and imports
+     */
+    long getBinaryBytes();
+
+    /**
+     * @return The number of references resolved after the content of their
+     *         target nodes has been imported
+     */
+    long getResolvedReferences();
+
+    /**
+     * @return The number of references of installed bundles whose target
+     *         nodes do not exist
+     */
+    long getUnresolvedReferences();
+
+    /**
+     * @return The number of versionable nodes checked in after an import
+     */
+    long getCheckedInNodes();
+
+    /**
+     * @return The number of versionable nodes which could not be checked in
+     */
+    long getFailedCheckins();
+
+    /**
+     * @return The number of check-ins waiting to be done in the background
+     */
+    long getPendingCheckins();
+
+    /**
+     * @return Count, total and maximum duration of the parse, write, save,
+     *         checkin, lock wait, load, unload and import phases
+     */
+    TabularData getTimers();
+
+    /**
+     * @return Count, total and maximum duration of the parse calls per content
+     *         reader
+     */
+    TabularData getReaders();
+
+    /**
+     * @return The statistics of the last content installation per bundle
+     */
+    TabularData getBundles();
+
+    /**
+     * @return The duration of the last installation per bundle and path entry
+     */
+    TabularData getPathEntries();
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+}
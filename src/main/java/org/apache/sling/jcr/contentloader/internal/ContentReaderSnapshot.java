@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.sling.jcr.contentloader.ContentReader;
+
+/**
+ * The <code>ContentReaderSnapshot</code> is an immutable view of the content
+ * readers registered at a given time, mapped by their file extension (including
+ * the leading dot). The system view extension {@link BaseImportLoader#EXT_JCR_XML}
+ * always comes first and is mapped to <code>null</code>.
+ * <p>
+ * File names are matched against the extensions using a trie of the reversed
+ * extensions, so the lookup cost only depends on the length of the matching
+ * extensions and not on the number of registered readers. Like the former
+ * linear scan, the first registered extension wins if several match.
+ */
+public final class ContentReaderSnapshot {
+
+    private final long version;
+
+    private final Map<String, ContentReader> readers;
+
+    private final String[] extensions;
+
+    private final ContentReader[] contentReaders;
+
+    private final SuffixNode root = new SuffixNode();
+
+    private static final class SuffixNode {
+
+        private final Map<Character, SuffixNode> children = new HashMap<>();
+
+        /** index of the extension ending at this node, -1 if none */
+        private int index = -1;
+    }
+
+    /**
+     * Create a new snapshot.
+     *
+     * @param version The version of this snapshot
+     * @param readersByExtension The readers by extension (without leading dot),
+     *            in registration order
+     */
+    ContentReaderSnapshot(final long version, final Map<String, ContentReader> readersByExtension) {
+        this.version = version;
+        final Map<String, ContentReader> map = new LinkedHashMap<>();
+        map.put(BaseImportLoader.EXT_JCR_XML, null);
+        for (final Map.Entry<String, ContentReader> e : readersByExtension.entrySet()) {
+            map.put('.' + e.getKey(), e.getValue());
+        }
+        this.readers = Collections.unmodifiableMap(map);
+        this.extensions = map.keySet().toArray(new String[map.size()]);
+        this.contentReaders = map.values().toArray(new ContentReader[map.size()]);
+        for (int i = 0; i < extensions.length; i++) {
+            SuffixNode node = root;
+            for (int c = extensions[i].length() - 1; c >= 0; c--) {
+                node = node.children.computeIfAbsent(extensions[i].charAt(c), k -> new SuffixNode());
+            }
+            if (node.index < 0) {
+                node.index = i;
+            }
+        }
+    }
+
+    /**
+     * @return The version of this snapshot, increased for every change of the
+     *         registered readers.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The unmodifiable map of readers by extension, in matching order
+     */
+    public Map<String, ContentReader> getReaders() {
+        return readers;
+    }
+
+    /**
+     * Get the extension of the file name a reader is registered for.
+     *
+     * @param name The file name.
+     * @return The extension - or <code>null</code>
+     */
+    public String getExtension(final String name) {
+        final int index = find(name, null);
+        return index < 0 ? null : extensions[index];
+    }
+
+    /**
+     * Get the reader for the file name.
+     *
+     * @param name The file name.
+     * @param ignored Returns <code>true</code> for extensions whose reader should
+     *            be ignored
+     * @return The reader - or <code>null</code>
+     */
+    public ContentReader getReader(final String name, final Predicate<String> ignored) {
+        final int index = find(name, ignored);
+        return index < 0 ? null : contentReaders[index];
+    }
+
+    /**
+     * Get all extensions the file name ends with, e.g. <code>.jcr.xml</code>
+     * and <code>.xml</code> for <code>content.jcr.xml</code>.
+     *
+     * @param name The file name.
+     * @return The extensions in matching order, empty if there are none
+     */
+    public List<String> getExtensions(final String name) {
+        // usually there is at most one, so no collection is built up front
+        int first = -1;
+        List<Integer> more = null;
+        SuffixNode node = root;
+        for (int c = name.length() - 1; c >= 0 && node != null; c--) {
+            node = node.children.get(name.charAt(c));
+            if (node != null && node.index >= 0) {
+                if (first < 0) {
+                    first = node.index;
+                } else {
+                    if (more == null) {
+                        more = new ArrayList<>();
+                        more.add(first);
+                    }
+                    more.add(node.index);
+                }
+            }
+        }
+        if (first < 0) {
+            return Collections.emptyList();
+        }
+        if (more == null) {
+            return Collections.singletonList(extensions[first]);
+        }
+        Collections.sort(more);
+        final List<String> found = new ArrayList<>(more.size());
+        for (final int index : more) {
+            found.add(extensions[index]);
+        }
+        return found;
+    }
+
+    private int find(final String name, final Predicate<String> ignored) {
+        int found = -1;
+        SuffixNode node = root;
+        for (int c = name.length() - 1; c >= 0 && node != null; c--) {
+            node = node.children.get(name.charAt(c));
+            if (node != null && node.index >= 0 && (found < 0 || node.index < found)
+                    && (ignored == null || !ignored.test(extensions[node.index]))) {
+                found = node.index;
+            }
+        }
+        return found;
+    }
+}
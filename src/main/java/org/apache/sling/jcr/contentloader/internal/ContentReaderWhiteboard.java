@@ -34,10 +34,22 @@ public class ContentReaderWhiteboard {
 
     private Map<String, ContentReader> readersByType = new LinkedHashMap<>();
 
+    // rebuilt whenever the readers by extension change
+    private volatile ContentReaderSnapshot snapshot = new ContentReaderSnapshot(0, readersByExtension);
+
     public Map<String, ContentReader> getReadersByExtension() {
         return readersByExtension;
     }
 
+    /**
+     * Get an immutable snapshot of the currently registered readers by extension.
+     *
+     * @return The snapshot
+     */
+    public ContentReaderSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public Map<String, ContentReader> getReadersByType() {
         return readersByType;
     }
@@ -52,6 +64,7 @@ public class ContentReaderWhiteboard {
                 for (final String extension : extensions) {
                     readersByExtension.put(extension, operation);
                 }
+                snapshot = new ContentReaderSnapshot(snapshot.getVersion() + 1, readersByExtension);
             }
         }
         if (types != null) {
@@ -71,6 +84,7 @@ public class ContentReaderWhiteboard {
                 for (final String extension : extensions) {
                     readersByExtension.remove(extension);
                 }
+                snapshot = new ContentReaderSnapshot(snapshot.getVersion() + 1, readersByExtension);
             }
         }
         if (types != null) {
@@ -18,6 +18,7 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
@@ -25,12 +26,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -39,7 +43,6 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.StreamSupport;
 
 import javax.jcr.Binary;
 import javax.jcr.Item;
@@ -53,8 +56,10 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
+import javax.jcr.nodetype.NodeDefinition;
 import javax.jcr.version.VersionManager;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
@@ -90,11 +95,10 @@ public class DefaultContentCreator implements ContentCreator {
     private final List<Node> versionables = new ArrayList<>();
 
     /**
-     * Delayed references during content loading for the reference property.
+     * References to nodes which did not exist yet when the reference property
+     * was imported.
      */
-    private final Map<String, List<String>> delayedReferences = new HashMap<>();
-
-    private final Map<String, String[]> delayedMultipleReferences = new HashMap<>();
+    private final ReferenceIndex referenceIndex = new ReferenceIndex();
 
     private String defaultName;
 
@@ -117,6 +121,12 @@ public class DefaultContentCreator implements ContentCreator {
      */
     private Map<String, ContentReader> contentReaders;
 
+    /**
+     * The readers {@link #contentReaders} have been filtered from, kept
+     * together with the options of the filter
+     */
+    private Map<String, ContentReader> unfilteredContentReaders;
+
     /**
      * Optional list of created nodes (for uninstall)
      */
@@ -131,6 +141,83 @@ public class DefaultContentCreator implements ContentCreator {
 
     private Set<String> importedNodes = new LinkedHashSet<>();
 
+    /**
+     * Nodes created by the current content file in merge mode, which have no
+     * other children than the ones imported by this file
+     */
+    private final Set<String> createdByFile = new HashSet<>();
+
+    /**
+     * Nodes not imported in merge mode by session, removed by
+     * {@link #finishMerge()} once the imported content has been saved
+     */
+    private final Map<Session, Set<String>> nodesNotImported = new LinkedHashMap<>();
+
+    /**
+     * Number of nodes removed in merge mode per save, 0 to save once
+     */
+    private int mergeRemovalBatchSize;
+
+    /**
+     * Nodes visited in incremental mode, whose children and properties which
+     * have not been imported are removed by {@link #finishIncremental()}
+     */
+    private final Map<String, Node> incrementalNodes = new LinkedHashMap<>();
+
+    /**
+     * Properties imported in incremental mode, by node path
+     */
+    private final Map<String, Set<String>> incrementalProperties = new HashMap<>();
+
+    /**
+     * Access control lists collected by {@link #createAce}, written when the
+     * node is finished
+     */
+    private AccessControlBatch accessControlBatch;
+
+    /**
+     * The structure built during the current import
+     */
+    private final ImportedNodeCache nodeCache = new ImportedNodeCache();
+
+    /**
+     * Versionable ancestors of the nodes on the parent node stack, by node
+     * instance, <code>null</code> if a node has none
+     */
+    private final Map<Node, Node> versionableAncestors = new IdentityHashMap<>();
+
+    /**
+     * Versionable nodes known to be checked out in this import, by
+     * <code>workspace:path</code>
+     */
+    private final Set<String> checkedOutPaths = new HashSet<>();
+
+    /**
+     * Principals resolved by {@link #createAce} during the current import, by id
+     */
+    private final Map<String, Principal> principals = new HashMap<>();
+
+    /**
+     * Users and groups collected between {@link #startPrincipalBatch()} and
+     * {@link #finishPrincipalBatch()}, <code>null</code> outside of a batch
+     */
+    private List<PendingPrincipal> principalBatch;
+
+    /**
+     * Number of nodes created so far
+     */
+    private long createdNodeCount;
+
+    /**
+     * Number of properties written so far
+     */
+    private long propertyCount;
+
+    /**
+     * Total size of the binaries created so far
+     */
+    private long binarySize;
+
     /**
      * A one time use seed to randomize the user location.
      */
@@ -153,7 +240,8 @@ public class DefaultContentCreator implements ContentCreator {
     }
 
     /**
-     * Initialize this component.
+     * Initialize this component for the content of a file or folder. The
+     * state kept for a whole import is reset by {@link #startImport()}.
      *
      * @param options
      *            The configuration for this import.
@@ -164,18 +252,36 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void init(final ImportOptions options, final Map<String, ContentReader> defaultContentReaders,
             final List<String> createdNodes, final ContentImportListener importListener) {
+        // create list of allowed content readers, unless it has already been
+        // created for the same readers and options, e.g. for a previous file
+        if (defaultContentReaders != this.unfilteredContentReaders || options != this.configuration) {
+            final Map<String, ContentReader> allowed = new LinkedHashMap<>();
+            defaultContentReaders.forEach((key, value) -> {
+                if (!options.isIgnoredImportProvider(key)) {
+                    allowed.put(key, value);
+                }
+            });
+            this.contentReaders = Collections.unmodifiableMap(allowed);
+            this.unfilteredContentReaders = defaultContentReaders;
+        }
         this.configuration = options;
-        // create list of allowed content readers
-        this.contentReaders = new HashMap<>();
-        defaultContentReaders.forEach((key,value)->{
-            if (!configuration.isIgnoredImportProvider(key)) {
-                contentReaders.put(key, value);
-            }
-        });
         this.createdNodes = createdNodes;
         this.importListener = importListener;
     }
 
+    /**
+     * Start an import, which may consist of several files and folders, each
+     * of them {@link #init initialized} on its own. This forgets the node
+     * structure, the checked out nodes and the principals remembered during a
+     * previous import.
+     */
+    public void startImport() {
+        this.principals.clear();
+        this.nodeCache.clear();
+        this.checkedOutPaths.clear();
+        this.nodesNotImported.clear();
+    }
+
     /**
      * If the defaultName is null, we are in PARENT_NODE import mode.
      *
@@ -184,6 +290,7 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void prepareParsing(final Node parentNode, final String defaultName) {
         this.parentNodeStack.clear();
+        this.versionableAncestors.clear();
         this.parentNodeStack.push(parentNode);
         this.defaultName = defaultName;
         isParentNodeImport = defaultName == null;
@@ -197,11 +304,34 @@ public class DefaultContentCreator implements ContentCreator {
         return this.versionables;
     }
 
+    /**
+     * Get the number of nodes created by this content creator.
+     */
+    public long getCreatedNodeCount() {
+        return this.createdNodeCount;
+    }
+
+    /**
+     * Get the number of properties written by this content creator.
+     */
+    public long getPropertyCount() {
+        return this.propertyCount;
+    }
+
+    /**
+     * Get the total size of the binaries created by this content creator.
+     */
+    public long getBinarySize() {
+        return this.binarySize;
+    }
+
     /**
      * Clear the content loader.
      */
     public void clear() {
         this.versionables.clear();
+        this.principalBatch = null;
+        this.nodesNotImported.clear();
     }
 
     /**
@@ -213,6 +343,17 @@ public class DefaultContentCreator implements ContentCreator {
         this.ignoreOverwriteFlag = flag;
     }
 
+    /**
+     * Set the number of nodes removed in merge mode after which the session
+     * is saved.
+     *
+     * @param batchSize The number of nodes, 0 to save once after all nodes
+     *            have been removed
+     */
+    public void setMergeRemovalBatchSize(final int batchSize) {
+        this.mergeRemovalBatchSize = Math.max(0, batchSize);
+    }
+
     /**
      * Get the created root node.
      */
@@ -223,7 +364,7 @@ public class DefaultContentCreator implements ContentCreator {
     /**
      * Get all active content readers.
      *
-     * @return A map of readers
+     * @return An unmodifiable map of readers, in matching order
      */
     public Map<String, ContentReader> getContentReaders() {
         return this.contentReaders;
@@ -247,36 +388,54 @@ public class DefaultContentCreator implements ContentCreator {
         // node!
         if (!isParentImport || this.parentNodeStack.size() > 1) {
             // if node already exists but should be overwritten, delete it
-            if (!this.ignoreOverwriteFlag && this.configuration.isOverwrite() && parentNode.hasNode(name)) {
+            Node existing = getChildNode(parentNode, name);
+            if (!this.ignoreOverwriteFlag && this.configuration.isOverwrite() && !isIncremental()
+                    && existing != null) {
                 checkoutIfNecessary(parentNode);
-                parentNode.getNode(name).remove();
+                final String existingPath = this.nodeCache.getPath(existing);
+                existing.remove();
+                this.nodeCache.removed(existingPath);
+                existing = null;
             }
 
             // ensure repository node
             Node node;
-            if (parentNode.hasNode(name)) {
+            final String path;
+            if (existing != null) {
                 // use existing node
-                node = parentNode.getNode(name);
+                node = existing;
+                path = this.nodeCache.getPath(node);
+                if (isIncremental() && !this.ignoreOverwriteFlag && primaryNodeType != null
+                        && !node.getPrimaryNodeType().getName().equals(primaryNodeType)) {
+                    checkoutIfNecessary(node);
+                    node.setPrimaryType(primaryNodeType);
+                    if (this.importListener != null) {
+                        this.importListener.onModify(path + "/jcr:primaryType");
+                    }
+                }
                 try {
                     parentNode.orderBefore(name, null);
                 } catch (RepositoryException ex) {
                     // Ignore this
                 }
-            } else if (primaryNodeType == null) {
-                // no explicit node type, use repository default
-                checkoutIfNecessary(parentNode);
-                node = parentNode.addNode(name);
-                addNodeToCreatedList(node);
-                if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
-                }
             } else {
-                // explicit primary node type
                 checkoutIfNecessary(parentNode);
-                node = parentNode.addNode(name, primaryNodeType);
-                addNodeToCreatedList(node);
+                if (primaryNodeType == null) {
+                    // no explicit node type, use repository default
+                    node = parentNode.addNode(name);
+                } else {
+                    // explicit primary node type
+                    node = parentNode.addNode(name, primaryNodeType);
+                }
+                path = ImportedNodeCache.isPlainName(name) ? this.nodeCache.getChildPath(parentNode, name)
+                        : node.getPath();
+                this.nodeCache.created(node, path);
+                addNodeToCreatedList(node, path);
+                if (this.configuration.isMerge()) {
+                    createdByFile.add(path);
+                }
                 if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
+                    this.importListener.onCreate(path);
                 }
             }
 
@@ -285,17 +444,31 @@ public class DefaultContentCreator implements ContentCreator {
                 for (final String mixin : mixinNodeTypes) {
                     if (!node.isNodeType(mixin)) {
                         node.addMixin(mixin);
+                        if (this.importListener != null && isIncremental()) {
+                            this.importListener.onModify(path + "/jcr:mixinTypes");
+                        }
                     }
                 }
             }
             
-            importedNodes.add(node.getPath());
+            importedNodes.add(path);
+            if (!nodesNotImported.isEmpty()) {
+                keepImportedNode(node.getSession(), path);
+            }
+            if (isIncremental()) {
+                incrementalNodes.put(path, node);
+            }
             
             // check if node is versionable
-            final boolean addToVersionables = this.configuration.isCheckin() && node.isNodeType("mix:versionable");
-            if (addToVersionables) {
+            final boolean versionable = (this.configuration.isCheckin() || this.configuration.isAutoCheckout())
+                    && node.isNodeType("mix:versionable");
+            if (versionable && this.configuration.isCheckin()) {
                 this.versionables.add(node);
             }
+            if (this.configuration.isAutoCheckout()) {
+                // the parent is on the stack, so its ancestor is known
+                this.versionableAncestors.put(node, versionable ? node : findVersionableAncestor(parentNode));
+            }
 
             this.parentNodeStack.push(node);
             if (this.createdRootNode == null) {
@@ -312,22 +485,32 @@ public class DefaultContentCreator implements ContentCreator {
     public void createProperty(String name, int propertyType, String value) throws RepositoryException {
         propertyAdded(name);
         final Node node = this.parentNodeStack.peek();
+        final boolean exists = node.hasProperty(name);
         // check if the property already exists and isPropertyOverwrite() is false,
         // don't overwrite it in this case
-        if (node.hasProperty(name) && !this.configuration.isPropertyOverwrite() && !node.getProperty(name).isNew()) {
+        if (exists && !this.configuration.isPropertyOverwrite() && !isNewProperty(node, name)
+                && !isIncremental()) {
+            return;
+        }
+        // in incremental mode unchanged properties are left alone
+        if (exists && isIncremental() && propertyType != PropertyType.REFERENCE
+                && hasValues(node.getProperty(name), propertyType, new String[] { value }, false)) {
             return;
         }
 
         if (propertyType == PropertyType.REFERENCE) {
             // need to resolve the reference
-            String propPath = node.getPath() + "/" + name;
-            String uuid = getUUID(node.getSession(), propPath, getAbsPath(node, value));
-            if (uuid != null) {
+            final String referencePath = getAbsPath(node, value);
+            String uuid = getUUID(node.getSession(), referencePath);
+            if (uuid == null) {
+                // not existing yet, keep for delayed setting
+                this.referenceIndex.put(new ReferenceIndex.PendingReference(getWorkspaceName(node),
+                        this.nodeCache.getPath(node), name, false, new String[] { referencePath }));
+            } else if (!(exists && isIncremental()
+                    && hasValues(node.getProperty(name), propertyType, new String[] { uuid }, false))) {
                 checkoutIfNecessary(node);
                 node.setProperty(name, uuid, propertyType);
-                if (this.importListener != null) {
-                    this.importListener.onCreate(node.getProperty(name).getPath());
-                }
+                propertySet(node, name, exists);
             }
         } else if ("jcr:isCheckedOut".equals(name)) {
             // don't try to write the property but record its state
@@ -339,9 +522,7 @@ public class DefaultContentCreator implements ContentCreator {
         } else if (propertyType == PropertyType.DATE) {
             checkoutIfNecessary(node);
             node.setProperty(name, ISO8601.parse(value));
-            if (this.importListener != null) {
-                this.importListener.onCreate(node.getProperty(name).getPath());
-            }
+            propertySet(node, name, exists);
         } else {
             checkoutIfNecessary(node);
             if (propertyType == PropertyType.UNDEFINED) {
@@ -349,9 +530,7 @@ public class DefaultContentCreator implements ContentCreator {
             } else {
                 node.setProperty(name, value, propertyType);
             }
-            if (this.importListener != null) {
-                this.importListener.onCreate(node.getProperty(name).getPath());
-            }
+            propertySet(node, name, exists);
         }
     }
 
@@ -363,29 +542,39 @@ public class DefaultContentCreator implements ContentCreator {
     public void createProperty(String name, int propertyType, String[] values) throws RepositoryException {
         propertyAdded(name);
         final Node node = this.parentNodeStack.peek();
+        final boolean exists = node.hasProperty(name);
         // check if the property already exists and isPropertyOverwrite() is false,
         // don't overwrite it in this case
-        if (node.hasProperty(name) && !this.configuration.isPropertyOverwrite() && !node.getProperty(name).isNew()) {
+        if (exists && !this.configuration.isPropertyOverwrite() && !isNewProperty(node, name)
+                && !isIncremental()) {
+            return;
+        }
+        // in incremental mode unchanged properties are left alone
+        if (exists && isIncremental() && propertyType != PropertyType.REFERENCE
+                && hasValues(node.getProperty(name), propertyType, values, true)) {
             return;
         }
         if (propertyType == PropertyType.REFERENCE) {
-            String propPath = node.getPath() + "/" + name;
             boolean hasAll = true;
             String[] uuids = new String[values.length];
             String[] uuidOrPaths = new String[values.length];
             for (int i = 0; i < values.length; i++) {
-                uuids[i] = getUUID(node.getSession(), propPath, getAbsPath(node, values[i]));
-                uuidOrPaths[i] = uuids[i] != null ? uuids[i] : getAbsPath(node, values[i]);
+                final String referencePath = getAbsPath(node, values[i]);
+                uuids[i] = getUUID(node.getSession(), referencePath);
+                uuidOrPaths[i] = uuids[i] != null ? uuids[i] : referencePath;
                 if (uuids[i] == null)
                     hasAll = false;
             }
-            checkoutIfNecessary(node);
-            node.setProperty(name, uuids, propertyType);
-            if (this.importListener != null) {
-                this.importListener.onCreate(node.getProperty(name).getPath());
+            if (!(exists && isIncremental() && hasAll
+                    && hasValues(node.getProperty(name), propertyType, uuids, true))) {
+                checkoutIfNecessary(node);
+                node.setProperty(name, uuids, propertyType);
+                propertySet(node, name, exists);
             }
             if (!hasAll) {
-                delayedMultipleReferences.put(propPath, uuidOrPaths);
+                // not all existing yet, keep for delayed setting
+                this.referenceIndex.put(new ReferenceIndex.PendingReference(getWorkspaceName(node),
+                        this.nodeCache.getPath(node), name, true, uuidOrPaths));
             }
         } else if (propertyType == PropertyType.DATE) {
             checkoutIfNecessary(node);
@@ -400,9 +589,7 @@ public class DefaultContentCreator implements ContentCreator {
 
             node.setProperty(name, jcrValues, propertyType);
 
-            if (this.importListener != null) {
-                this.importListener.onCreate(node.getProperty(name).getPath());
-            }
+            propertySet(node, name, exists);
         } else {
             checkoutIfNecessary(node);
             if (propertyType == PropertyType.UNDEFINED) {
@@ -410,12 +597,77 @@ public class DefaultContentCreator implements ContentCreator {
             } else {
                 node.setProperty(name, values, propertyType);
             }
-            if (this.importListener != null) {
-                this.importListener.onCreate(node.getProperty(name).getPath());
-            }
+            propertySet(node, name, exists);
         }
     }
 
+    /**
+     * @see org.apache.sling.jcr.contentloader.ContentCreator#createTypedProperty(java.lang.String,
+     *      int, java.lang.Object)
+     */
+    @Override
+    public void createTypedProperty(String name, int propertyType, Object value) throws RepositoryException {
+        if (!isTypedValue(value) || propertyType == PropertyType.REFERENCE || "jcr:isCheckedOut".equals(name)) {
+            ContentCreator.super.createTypedProperty(name, propertyType, value);
+            return;
+        }
+        setTypedProperty(name, propertyType, new Object[] { value }, false);
+    }
+
+    /**
+     * @see org.apache.sling.jcr.contentloader.ContentCreator#createTypedProperty(java.lang.String,
+     *      int, java.lang.Object[])
+     */
+    @Override
+    public void createTypedProperty(String name, int propertyType, Object[] values) throws RepositoryException {
+        if (values.length == 0 || propertyType == PropertyType.REFERENCE
+                || !Arrays.stream(values).allMatch(DefaultContentCreator::isTypedValue)) {
+            ContentCreator.super.createTypedProperty(name, propertyType, values);
+            return;
+        }
+        setTypedProperty(name, propertyType, values, true);
+    }
+
+    private static boolean isTypedValue(final Object value) {
+        return value instanceof Long || value instanceof Double || value instanceof Boolean
+                || value instanceof Calendar;
+    }
+
+    /**
+     * Set a property from typed values, with the same rules as
+     * {@link #createProperty(String, int, String[])}.
+     */
+    private void setTypedProperty(final String name, final int propertyType, final Object[] values,
+            final boolean multiple) throws RepositoryException {
+        propertyAdded(name);
+        final Node node = this.parentNodeStack.peek();
+        final boolean exists = node.hasProperty(name);
+        // check if the property already exists and isPropertyOverwrite() is false,
+        // don't overwrite it in this case
+        if (exists && !this.configuration.isPropertyOverwrite() && !isNewProperty(node, name)
+                && !isIncremental()) {
+            return;
+        }
+        final ValueFactory valueFactory = node.getSession().getValueFactory();
+        final Value[] jcrValues = new Value[values.length];
+        for (int i = 0; i < values.length; i++) {
+            jcrValues[i] = createValue(valueFactory, values[i]);
+        }
+        // in incremental mode unchanged properties are left alone
+        if (exists && isIncremental() && hasValues(node.getProperty(name), jcrValues, multiple)) {
+            return;
+        }
+        // converted by the repository if the values have another type
+        final int type = propertyType == PropertyType.UNDEFINED ? jcrValues[0].getType() : propertyType;
+        checkoutIfNecessary(node);
+        if (multiple) {
+            node.setProperty(name, jcrValues, type);
+        } else {
+            node.setProperty(name, jcrValues[0], type);
+        }
+        propertySet(node, name, exists);
+    }
+
     protected Value createValue(final ValueFactory factory, Object value) throws RepositoryException {
         if (value == null) {
             return null;
@@ -434,12 +686,84 @@ public class DefaultContentCreator implements ContentCreator {
             return factory.createValue((Boolean) value);
         } else if (value instanceof InputStream) {
             Binary binary = factory.createBinary((InputStream) value);
+            binarySize += binary.getSize();
             return factory.createValue(binary);
         } else {
             return factory.createValue(value.toString());
         }
     }
 
+    /**
+     * Whether overwriting existing nodes is done incrementally.
+     */
+    public boolean isIncremental() {
+        return this.configuration.isOverwrite() && this.configuration.isIncremental();
+    }
+
+    /**
+     * Notify the listener about a property which has been set.
+     */
+    private void propertySet(final Node node, final String name, final boolean existed) throws RepositoryException {
+        if (this.importListener != null) {
+            if (existed && isIncremental()) {
+                this.importListener.onModify(node.getProperty(name).getPath());
+            } else {
+                this.importListener.onCreate(node.getProperty(name).getPath());
+            }
+        }
+    }
+
+    /**
+     * Check whether an existing property already has the given values.
+     */
+    private boolean hasValues(final Property property, final int propertyType, final String[] values,
+            final boolean multiple) throws RepositoryException {
+        if (property.isMultiple() != multiple
+                || (propertyType != PropertyType.UNDEFINED && property.getType() != propertyType)) {
+            return false;
+        }
+        final Value[] existing = multiple ? property.getValues() : new Value[] { property.getValue() };
+        if (existing.length != values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                return false;
+            }
+            if (propertyType == PropertyType.DATE) {
+                final Calendar date = ISO8601.parse(values[i]);
+                if (date == null || existing[i].getDate().getTimeInMillis() != date.getTimeInMillis()) {
+                    return false;
+                }
+            } else if (!values[i].equals(existing[i].getString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an existing property already has the given values.
+     */
+    private boolean hasValues(final Property property, final Value[] values, final boolean multiple)
+            throws RepositoryException {
+        if (property.isMultiple() != multiple) {
+            return false;
+        }
+        final Value[] existing = multiple ? property.getValues() : new Value[] { property.getValue() };
+        if (existing.length != values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null || values[i].getType() == PropertyType.BINARY
+                    || existing[i].getType() != values[i].getType()
+                    || !existing[i].getString().equals(values[i].getString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentCreator#createProperty(java.lang.String,
      *      java.lang.Object)
@@ -461,6 +785,11 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void finishNode() throws RepositoryException {
         final Node node = this.parentNodeStack.pop();
+        this.versionableAncestors.remove(node);
+        if (this.accessControlBatch != null) {
+            // write the entries collected for this node at once
+            this.accessControlBatch.apply(this.nodeCache.getPath(node));
+        }
         cleanUpNode(node);
         // resolve REFERENCE property values pointing to this node
         resolveReferences(node);
@@ -468,7 +797,8 @@ public class DefaultContentCreator implements ContentCreator {
 
     private void cleanUpNode(Node node) throws RepositoryException {
         if (configuration.isPropertyMerge()) {
-            Set<String> properties = this.addedProperties.getOrDefault(node.getPath(), Collections.emptySet());
+            final String path = this.nodeCache.getPath(node);
+            Set<String> properties = this.addedProperties.getOrDefault(path, Collections.emptySet());
             PropertyIterator it = node.getProperties();
             while (it.hasNext()) {
                 Property prop = it.nextProperty();
@@ -488,16 +818,38 @@ public class DefaultContentCreator implements ContentCreator {
                 prop.remove();
                 this.log.trace("Removed old property {}", propertyName);
             }
-            this.addedProperties.remove(node.getPath());
+            this.addedProperties.remove(path);
         }
     }
 
-    private void addNodeToCreatedList(Node node) throws RepositoryException {
+    private void addNodeToCreatedList(Node node, String path) throws RepositoryException {
+        this.createdNodeCount++;
         if (this.createdNodes != null) {
-            this.createdNodes.add(node.getSession().getWorkspace().getName() + ":" + node.getPath());
+            this.createdNodes.add(node.getSession().getWorkspace().getName() + ":" + path);
         }
     }
 
+    /**
+     * Whether an existing property has not been saved yet. All properties of
+     * nodes added during this import count as new.
+     */
+    private boolean isNewProperty(Node node, String name) throws RepositoryException {
+        return this.nodeCache.isCreated(node) || node.getProperty(name).isNew();
+    }
+
+    /**
+     * Get a child node, without asking the repository for nodes added during
+     * this import.
+     *
+     * @return The child node or <code>null</code> if it does not exist
+     */
+    private Node getChildNode(Node parentNode, String name) throws RepositoryException {
+        if (this.nodeCache.knowsChild(parentNode, name)) {
+            return this.nodeCache.getCreatedChild(parentNode, name);
+        }
+        return parentNode.hasNode(name) ? parentNode.getNode(name) : null;
+    }
+
     private String getAbsPath(Node node, String path) throws RepositoryException {
         if (path.startsWith("/")) {
             return path;
@@ -512,10 +864,10 @@ public class DefaultContentCreator implements ContentCreator {
             path = path.substring(2);
         }
 
-        return node.getPath() + "/" + path;
+        return this.nodeCache.getPath(node) + "/" + path;
     }
 
-    private String getUUID(Session session, String propPath, String referencePath) throws RepositoryException {
+    private String getUUID(Session session, String referencePath) throws RepositoryException {
         if (session.itemExists(referencePath)) {
             Item item = session.getItem(referencePath);
             if (item.isNode()) {
@@ -524,126 +876,132 @@ public class DefaultContentCreator implements ContentCreator {
                     return refNode.getIdentifier();
                 }
             }
-        } else {
-            // not existing yet, keep for delayed setting
-            List<String> current = delayedReferences.computeIfAbsent(referencePath, k -> new ArrayList<>());
-            current.add(propPath);
         }
         // no UUID found
         return null;
     }
 
+    private String getWorkspaceName(Node node) throws RepositoryException {
+        return node.getSession().getWorkspace().getName();
+    }
+
     private void resolveReferences(Node node) throws RepositoryException {
-        List<String> props = delayedReferences.remove(node.getPath());
-        if (props == null || props.isEmpty()) {
+        if (this.referenceIndex.isEmpty()) {
             return;
         }
-
-        // check whether we can set at all
-        if (!node.isNodeType("mix:referenceable")) {
-            return;
+        final List<ReferenceIndex.PendingReference> references = this.referenceIndex
+                .get(getWorkspaceName(node), this.nodeCache.getPath(node));
+        if (!references.isEmpty()) {
+            resolveReferences(this.referenceIndex, references, node, this.nodeCache.getPath(node));
         }
+    }
 
-        Session session = node.getSession();
-        String uuid = node.getIdentifier();
-
-        for (String property : props) {
-            String name = getName(property);
-            Node parentNode = getParentNode(session, property);
-            if (parentNode != null) {
-                checkoutIfNecessary(parentNode);
-                if (parentNode.hasProperty(name) && parentNode.getProperty(name).getDefinition().isMultiple()) {
-                    boolean hasAll = true;
-                    String[] uuidOrPaths = delayedMultipleReferences.get(property);
-                    String[] uuids = new String[uuidOrPaths.length];
-                    for (int i = 0; i < uuidOrPaths.length; i++) {
-                        // is the reference still a path
-                        if (uuidOrPaths[i].startsWith("/")) {
-                            if (uuidOrPaths[i].equals(node.getPath())) {
-                                uuidOrPaths[i] = uuid;
-                                uuids[i] = uuid;
-                            } else {
-                                uuids[i] = null;
-                                hasAll = false;
-                            }
-                        } else {
-                            uuids[i] = uuidOrPaths[i];
-                        }
-                    }
-                    parentNode.setProperty(name, uuids, PropertyType.REFERENCE);
-                    if (this.importListener != null) {
-                        this.importListener.onCreate(parentNode.getProperty(name).getPath());
-                    }
-                    if (hasAll) {
-                        delayedMultipleReferences.remove(property);
-                    }
+    /**
+     * Resolve the pending references of an index whose target nodes exist now,
+     * like nodes imported by another content file or bundle.
+     *
+     * @param session The session
+     * @param index The index, this creator's own one or one kept across imports
+     * @return The number of references which are fully resolved now
+     * @throws RepositoryException If a reference can't be written
+     */
+    public int resolveReferences(Session session, ReferenceIndex index) throws RepositoryException {
+        if (index.isEmpty()) {
+            return 0;
+        }
+        final String workspace = session.getWorkspace().getName();
+        int resolved = 0;
+        for (final String targetPath : index.getTargetPaths(workspace)) {
+            if (session.nodeExists(targetPath)) {
+                final Node target = session.getNode(targetPath);
+                final List<ReferenceIndex.PendingReference> references = index.get(workspace, targetPath);
+                if (target.isNodeType("mix:referenceable")) {
+                    resolved += resolveReferences(index, references, target, targetPath);
                 } else {
-                    parentNode.setProperty(name, uuid, PropertyType.REFERENCE);
-                    if (this.importListener != null) {
-                        this.importListener.onCreate(parentNode.getProperty(name).getPath());
+                    // will never be resolved
+                    for (final ReferenceIndex.PendingReference reference : references) {
+                        log.warn("Cannot set reference {} to node {} which is not referenceable",
+                                reference.getPropertyPath(), targetPath);
+                        index.remove(reference);
                     }
                 }
             }
         }
+        return resolved;
     }
 
     /**
-     * Gets the name part of the <code>path</code>. The name is the part of the path
-     * after the last slash (or the complete path if no slash is contained).
-     *
-     * @param path
-     *            The path from which to extract the name part.
-     * @return The name part.
+     * @return The references to nodes which did not exist yet when they were
+     *         imported
      */
-    private String getName(String path) {
-        int lastSlash = path.lastIndexOf('/');
-        return lastSlash < 0 ? path : path.substring(lastSlash + 1);
+    public ReferenceIndex getReferenceIndex() {
+        return this.referenceIndex;
     }
 
-    private Node getParentNode(Session session, String path) throws RepositoryException {
-        int lastSlash = path.lastIndexOf('/');
-
-        // not an absolute path, cannot find parent
-        if (lastSlash < 0) {
-            return null;
-        }
-
-        // node below root
-        if (lastSlash == 0) {
-            return session.getRootNode();
+    private int resolveReferences(final ReferenceIndex index, final List<ReferenceIndex.PendingReference> references,
+            final Node target, final String targetPath) throws RepositoryException {
+        // check whether we can set at all
+        if (!target.isNodeType("mix:referenceable")) {
+            return 0;
         }
-
-        // item in the hierarchy
-        path = path.substring(0, lastSlash);
-        if (!session.itemExists(path)) {
-            return null;
+        final Session session = target.getSession();
+        final String uuid = target.getIdentifier();
+        int resolved = 0;
+        for (final ReferenceIndex.PendingReference reference : references) {
+            final boolean complete = index.resolve(reference, targetPath, uuid);
+            if (complete) {
+                resolved++;
+            }
+            if (!session.nodeExists(reference.nodePath)) {
+                // the referencing node is gone
+                index.remove(reference);
+                continue;
+            }
+            final Node node = session.getNode(reference.nodePath);
+            checkoutIfNecessary(node);
+            if (reference.multiple) {
+                node.setProperty(reference.name, reference.getIdentifiers(), PropertyType.REFERENCE);
+            } else {
+                node.setProperty(reference.name, uuid, PropertyType.REFERENCE);
+            }
+            if (this.importListener != null) {
+                this.importListener.onCreate(reference.getPropertyPath());
+            }
         }
-
-        Item item = session.getItem(path);
-        return (item.isNode()) ? (Node) item : null;
+        return resolved;
     }
 
     private void createProperty(String name, Object value, boolean overwriteExisting) throws RepositoryException {
         final Node node = this.parentNodeStack.peek();
+        final boolean exists = node.hasProperty(name);
         // check if the property already exists, don't overwrite it in this case
-        if (node.hasProperty(name) && !node.getProperty(name).isNew() && !overwriteExisting) {
+        if (exists && !isNewProperty(node, name) && !overwriteExisting && !isIncremental()) {
             return;
         }
         if (value == null) {
             if (node.hasProperty(name)) {
                 checkoutIfNecessary(node);
-                String propPath = node.getProperty(name).getPath();
+                String propPath = this.nodeCache.getPath(node) + "/" + name;
                 node.getProperty(name).remove();
                 if (this.importListener != null) {
                     this.importListener.onDelete(propPath);
                 }
             }
         } else {
-            checkoutIfNecessary(node);
             final Value jcrValue = this.createValue(node.getSession().getValueFactory(), value);
+            if (exists && isIncremental() && hasValues(node.getProperty(name), new Value[] { jcrValue }, false)) {
+                // unchanged
+                propertyAdded(name);
+                return;
+            }
+            checkoutIfNecessary(node);
             node.setProperty(name, jcrValue);
             if (this.importListener != null) {
-                this.importListener.onModify(node.getProperty(name).getPath());
+                if (!exists && isIncremental()) {
+                    this.importListener.onCreate(node.getProperty(name).getPath());
+                } else {
+                    this.importListener.onModify(node.getProperty(name).getPath());
+                }
             }
         }
         propertyAdded(name);
@@ -651,28 +1009,38 @@ public class DefaultContentCreator implements ContentCreator {
 
     private void createProperty(String name, Object[] values, boolean overwriteExisting) throws RepositoryException {
         final Node node = this.parentNodeStack.peek();
+        final boolean exists = node.hasProperty(name);
         // check if the property already exists, don't overwrite it in this case
-        if (node.hasProperty(name) && !node.getProperty(name).isNew() && !overwriteExisting) {
+        if (exists && !isNewProperty(node, name) && !overwriteExisting && !isIncremental()) {
             return;
         }
         if (values == null || values.length == 0) {
             if (node.hasProperty(name)) {
                 checkoutIfNecessary(node);
-                String propPath = node.getProperty(name).getPath();
+                String propPath = this.nodeCache.getPath(node) + "/" + name;
                 node.getProperty(name).remove();
                 if (this.importListener != null) {
                     this.importListener.onDelete(propPath);
                 }
             }
         } else {
-            checkoutIfNecessary(node);
             final Value[] jcrValues = new Value[values.length];
             for (int i = 0; i < values.length; i++) {
                 jcrValues[i] = this.createValue(node.getSession().getValueFactory(), values[i]);
             }
+            if (exists && isIncremental() && hasValues(node.getProperty(name), jcrValues, true)) {
+                // unchanged
+                propertyAdded(name);
+                return;
+            }
+            checkoutIfNecessary(node);
             node.setProperty(name, jcrValues);
             if (this.importListener != null) {
-                this.importListener.onModify(node.getProperty(name).getPath());
+                if (!exists && isIncremental()) {
+                    this.importListener.onCreate(node.getProperty(name).getPath());
+                } else {
+                    this.importListener.onModify(node.getProperty(name).getPath());
+                }
             }
         }
         propertyAdded(name);
@@ -689,10 +1057,13 @@ public class DefaultContentCreator implements ContentCreator {
         final Node parentNode = this.parentNodeStack.peek();
 
         // if node already exists but should be overwritten, delete it
-        if (parentNode.hasNode(name)) {
-            this.parentNodeStack.push(parentNode.getNode(name));
-            Node contentNode = parentNode.getNode(name).getNode("jcr:content");
+        final Node fileNode = getChildNode(parentNode, name);
+        if (fileNode != null) {
+            this.parentNodeStack.push(fileNode);
+            Node contentNode = fileNode.getNode("jcr:content");
             this.parentNodeStack.push(contentNode);
+            addImportedNode(fileNode);
+            addImportedNode(contentNode);
             long nodeLastModified = 0L;
             if (contentNode.hasProperty(JCR_LAST_MODIFIED)) {
                 nodeLastModified = contentNode.getProperty(JCR_LAST_MODIFIED).getDate().getTimeInMillis();
@@ -700,7 +1071,7 @@ public class DefaultContentCreator implements ContentCreator {
             if (!this.configuration.isOverwrite() && nodeLastModified >= lastModified) {
                 return;
             }
-            log.debug("Updating {} lastModified:{} New Content LastModified:{}", parentNode.getNode(name).getPath(),
+            log.debug("Updating {} lastModified:{} New Content LastModified:{}", this.nodeCache.getPath(fileNode),
                     new Date(nodeLastModified), new Date(lastModified));
         } else {
             this.createNode(name, "nt:file", null);
@@ -721,10 +1092,42 @@ public class DefaultContentCreator implements ContentCreator {
             lastModified = System.currentTimeMillis();
         }
         this.createProperty("jcr:mimeType", mimeType, true);
+
+        // in incremental mode, the file is only updated if its content changed
+        final Node contentNode = this.parentNodeStack.peek();
+        if (isIncremental() && contentNode.hasProperty("jcr:data") && !contentNode.getProperty("jcr:data").isNew()) {
+            final Binary binary = contentNode.getSession().getValueFactory().createBinary(data);
+            binarySize += binary.getSize();
+            if (isSameBinary(contentNode.getProperty("jcr:data").getBinary(), binary)) {
+                binary.dispose();
+                propertyAdded(JCR_LAST_MODIFIED);
+                propertyAdded("jcr:data");
+                return;
+            }
+            this.createProperty(JCR_LAST_MODIFIED, lastModified, true);
+            checkoutIfNecessary(contentNode);
+            contentNode.setProperty("jcr:data", binary);
+            if (this.importListener != null) {
+                this.importListener.onModify(contentNode.getProperty("jcr:data").getPath());
+            }
+            propertyAdded("jcr:data");
+            return;
+        }
         this.createProperty(JCR_LAST_MODIFIED, lastModified, true);
         this.createProperty("jcr:data", data, true);
     }
 
+    private boolean isSameBinary(final Binary existing, final Binary binary) throws RepositoryException {
+        if (existing.getSize() != binary.getSize()) {
+            return false;
+        }
+        try (InputStream a = existing.getStream(); InputStream b = binary.getStream()) {
+            return IOUtils.contentEquals(a, b);
+        } catch (IOException e) {
+            throw new RepositoryException("Unable to compare binaries", e);
+        }
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentCreator#switchCurrentNode(java.lang.String,
      *      java.lang.String)
@@ -737,18 +1140,22 @@ public class DefaultContentCreator implements ContentCreator {
         Node node = this.parentNodeStack.peek();
         while (st.hasMoreTokens()) {
             final String token = st.nextToken();
-            if (!node.hasNode(token)) {
+            Node child = getChildNode(node, token);
+            if (child == null) {
                 if (newNodeType == null) {
                     return false;
                 }
                 checkoutIfNecessary(node);
-                final Node n = node.addNode(token, newNodeType);
-                addNodeToCreatedList(n);
+                child = node.addNode(token, newNodeType);
+                final String path = ImportedNodeCache.isPlainName(token) ? this.nodeCache.getChildPath(node, token)
+                        : child.getPath();
+                this.nodeCache.created(child, path);
+                addNodeToCreatedList(child, path);
                 if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
+                    this.importListener.onCreate(this.nodeCache.getPath(node));
                 }
             }
-            node = node.getNode(token);
+            node = child;
         }
         this.parentNodeStack.push(node);
         return true;
@@ -762,7 +1169,10 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void createGroup(final String name, String[] members, Map<String, Object> extraProperties)
             throws RepositoryException {
-
+        if (this.principalBatch != null) {
+            this.principalBatch.add(new PendingPrincipal(name, null, members, extraProperties, true));
+            return;
+        }
         final Node parentNode = this.parentNodeStack.peek();
         Session session = parentNode.getSession();
 
@@ -789,14 +1199,7 @@ public class DefaultContentCreator implements ContentCreator {
                 }
             }
         }
-        if (extraProperties != null) {
-            ValueFactory valueFactory = session.getValueFactory();
-            Set<Entry<String, Object>> entrySet = extraProperties.entrySet();
-            for (Entry<String, Object> entry : entrySet) {
-                Value value = createValue(valueFactory, entry.getValue());
-                authorizable.setProperty(entry.getKey(), value);
-            }
-        }
+        setExtraProperties(session.getValueFactory(), authorizable, extraProperties);
     }
 
     /*
@@ -807,6 +1210,10 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void createUser(final String name, String password, Map<String, Object> extraProperties)
             throws RepositoryException {
+        if (this.principalBatch != null) {
+            this.principalBatch.add(new PendingPrincipal(name, password, null, extraProperties, false));
+            return;
+        }
         final Node parentNode = this.parentNodeStack.peek();
         Session session = parentNode.getSession();
 
@@ -823,8 +1230,86 @@ public class DefaultContentCreator implements ContentCreator {
             }
             // user already exists so just update it below
         }
+        setExtraProperties(session.getValueFactory(), authorizable, extraProperties);
+    }
+
+    /**
+     * @see org.apache.sling.jcr.contentloader.ContentCreator#startPrincipalBatch()
+     */
+    @Override
+    public void startPrincipalBatch() {
+        if (this.principalBatch == null) {
+            this.principalBatch = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Create the users and groups collected since {@link #startPrincipalBatch()}.
+     * Every authorizable is looked up once, all missing ones are created, and
+     * the members of a group are added with a single call after all principals
+     * of the batch exist, so a group may list members declared after it.
+     *
+     * @see org.apache.sling.jcr.contentloader.ContentCreator#finishPrincipalBatch()
+     */
+    @Override
+    public void finishPrincipalBatch() throws RepositoryException {
+        final List<PendingPrincipal> batch = this.principalBatch;
+        this.principalBatch = null;
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        final Session session = this.parentNodeStack.peek().getSession();
+        final UserManager userManager = AccessControlUtil.getUserManager(session);
+        final ValueFactory valueFactory = session.getValueFactory();
+
+        // resolve or create all principals first
+        final Map<String, Authorizable> authorizables = new HashMap<>();
+        for (final PendingPrincipal principal : batch) {
+            Authorizable authorizable = authorizables.get(principal.name);
+            if (authorizable == null) {
+                authorizable = userManager.getAuthorizable(principal.name);
+            }
+            if (authorizable == null) {
+                // principal does not exist yet, so create it
+                if (principal.isGroup) {
+                    authorizable = userManager.createGroup(() -> principal.name, hashPath(principal.name));
+                } else {
+                    authorizable = userManager.createUser(principal.name, principal.password,
+                            () -> principal.name, hashPath(principal.name));
+                }
+            } else if (authorizable.isGroup() != principal.isGroup) {
+                // principal already exists, check to make sure it is the expected type
+                throw new RepositoryException((principal.isGroup ? "A user" : "A group")
+                        + " already exists with the requested name: " + principal.name);
+            }
+            authorizables.put(principal.name, authorizable);
+            setExtraProperties(valueFactory, authorizable, principal.extraProperties);
+        }
+
+        // then update the group members, skipping unknown members
+        for (final PendingPrincipal principal : batch) {
+            if (!principal.isGroup || principal.members == null || principal.members.length == 0) {
+                continue;
+            }
+            final List<String> memberIds = new ArrayList<>(principal.members.length);
+            for (final String member : principal.members) {
+                if (authorizables.containsKey(member) || userManager.getAuthorizable(member) != null) {
+                    memberIds.add(member);
+                }
+            }
+            if (!memberIds.isEmpty()) {
+                final Set<String> failed = ((Group) authorizables.get(principal.name))
+                        .addMembers(memberIds.toArray(new String[memberIds.size()]));
+                if (!failed.isEmpty()) {
+                    log.debug("Members {} not added to group {}", failed, principal.name);
+                }
+            }
+        }
+    }
+
+    private void setExtraProperties(final ValueFactory valueFactory, final Authorizable authorizable,
+            final Map<String, Object> extraProperties) throws RepositoryException {
         if (extraProperties != null) {
-            ValueFactory valueFactory = session.getValueFactory();
             Set<Entry<String, Object>> entrySet = extraProperties.entrySet();
             for (Entry<String, Object> entry : entrySet) {
                 Value value = createValue(valueFactory, entry.getValue());
@@ -875,8 +1360,36 @@ public class DefaultContentCreator implements ContentCreator {
         final Node parentNode = this.parentNodeStack.peek();
         Session session = parentNode.getSession();
 
+        Principal principal = getPrincipal(session, principalId);
+        if (principal == null) {
+            throw new RepositoryException("No principal found for id: " + principalId);
+        }
+        String resourcePath = this.nodeCache.getPath(parentNode);
+
+        if ((grantedPrivilegeNames != null) || (deniedPrivilegeNames != null)) {
+            if (this.accessControlBatch == null || !this.accessControlBatch.isFor(session)) {
+                if (this.accessControlBatch != null) {
+                    this.accessControlBatch.applyAll();
+                }
+                this.accessControlBatch = new AccessControlBatch(session);
+            }
+            this.accessControlBatch.addEntry(resourcePath, principal, grantedPrivilegeNames, deniedPrivilegeNames,
+                    order, restrictions, mvRestrictions, removedRestrictionNames);
+        }
+    }
+
+    /**
+     * Resolve a principal, remembering it for the rest of the import.
+     *
+     * @return The principal or <code>null</code> if there is none
+     */
+    private Principal getPrincipal(final Session session, final String principalId) throws RepositoryException {
+        Principal principal = this.principals.get(principalId);
+        if (principal != null) {
+            return principal;
+        }
         PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
-        Principal principal = principalManager.getPrincipal(principalId);
+        principal = principalManager.getPrincipal(principalId);
         if (principal == null) {
             // SLING-7268 - as pointed out in OAK-5496, we cannot successfully use
             // PrincipalManager#getPrincipal in oak
@@ -890,16 +1403,10 @@ public class DefaultContentCreator implements ContentCreator {
                 principal = authorizable.getPrincipal();
             }
         }
-
-        if (principal == null) {
-            throw new RepositoryException("No principal found for id: " + principalId);
-        }
-        String resourcePath = parentNode.getPath();
-
-        if ((grantedPrivilegeNames != null) || (deniedPrivilegeNames != null)) {
-            AccessControlUtil.replaceAccessControlEntry(session, resourcePath, principal, grantedPrivilegeNames, deniedPrivilegeNames, null, order, 
-            		restrictions, mvRestrictions, removedRestrictionNames);
+        if (principal != null) {
+            this.principals.put(principalId, principal);
         }
+        return principal;
     }
 
     /*
@@ -949,15 +1456,24 @@ public class DefaultContentCreator implements ContentCreator {
         if (node == null) {
             return null;
         }
+        if (this.versionableAncestors.containsKey(node)) {
+            return this.versionableAncestors.get(node);
+        }
+        Node ancestor;
         if (node.isNodeType("mix:versionable")) {
-            return node;
-        } 
-        try {
-            return findVersionableAncestor(node.getParent());
-        } catch (ItemNotFoundException e) {
-            // top-level
-            return null;
+            ancestor = node;
+        } else {
+            try {
+                ancestor = findVersionableAncestor(node.getParent());
+            } catch (ItemNotFoundException e) {
+                // top-level
+                ancestor = null;
+            }
         }
+        if (this.parentNodeStack.contains(node)) {
+            this.versionableAncestors.put(node, ancestor);
+        }
+        return ancestor;
     }
 
     /**
@@ -966,11 +1482,16 @@ public class DefaultContentCreator implements ContentCreator {
     protected void checkoutIfNecessary(Node node) throws RepositoryException {
         if (this.configuration.isAutoCheckout()) {
             Node versionableNode = findVersionableAncestor(node);
-            if (versionableNode != null && !versionableNode.isCheckedOut()) {
+            if (versionableNode == null) {
+                return;
+            }
+            final String path = this.nodeCache.getPath(versionableNode);
+            if (this.checkedOutPaths.add(getWorkspaceName(versionableNode) + ":" + path)
+                    && !versionableNode.isCheckedOut()) {
                 VersionManager versionManager = versionableNode.getSession().getWorkspace().getVersionManager();
-                versionManager.checkout(versionableNode.getPath());
+                versionManager.checkout(path);
                 if (this.importListener != null) {
-                    this.importListener.onCheckout(versionableNode.getPath());
+                    this.importListener.onCheckout(path);
                 }
             }
         }
@@ -978,17 +1499,220 @@ public class DefaultContentCreator implements ContentCreator {
 
     @Override
     public void finish() throws RepositoryException {
+        if (this.accessControlBatch != null) {
+            this.accessControlBatch.applyAll();
+            this.accessControlBatch = null;
+        }
         if (this.configuration.isMerge()) {
-            Session session = this.createdRootNode.getSession();
-            this.importedNodes.stream().flatMap(n -> {
-                Set<String> iterable = getChildren(n, session);
-                return StreamSupport.stream(iterable.spliterator(), false);
-            }).filter(path -> !this.importedNodes.contains(path)).forEach(path -> removeNode(path, session));
+            collectNodesNotImported(this.createdRootNode.getSession());
         }
         this.importedNodes.clear();
+        this.createdByFile.clear();
         this.addedProperties.clear();
     }
 
+    /**
+     * Finish a merge import: remove the children of the imported nodes which
+     * have not been imported themselves. This must be called once the imported
+     * content has been saved, so that reverting a removal which can't be saved
+     * does not revert the import.
+     */
+    public void finishMerge() {
+        for (final Map.Entry<Session, Set<String>> entry : this.nodesNotImported.entrySet()) {
+            removeNodesNotImported(entry.getValue(), entry.getKey());
+        }
+        this.nodesNotImported.clear();
+    }
+
+    /**
+     * Register a node which has been imported without this content creator, so
+     * that it is taken into account in incremental mode.
+     *
+     * @param node The imported node
+     */
+    public void addImportedNode(final Node node) throws RepositoryException {
+        if (isIncremental()) {
+            incrementalNodes.put(this.nodeCache.getPath(node), node);
+        }
+    }
+
+    /**
+     * Remove a node without this content creator, keeping the structure known
+     * for the rest of the import up to date.
+     *
+     * @param node The node to remove
+     */
+    public void removeNode(final Node node) throws RepositoryException {
+        final String path = this.nodeCache.getPath(node);
+        node.remove();
+        this.nodeCache.removed(path);
+    }
+
+    /**
+     * Finish an incremental import: remove the child nodes and properties of
+     * all imported nodes which have not been imported themselves. This must be
+     * called once all content below a path has been imported, as nodes might be
+     * imported by several content files.
+     */
+    public void finishIncremental() throws RepositoryException {
+        for (final Map.Entry<String, Node> entry : this.incrementalNodes.entrySet()) {
+            final Node node = entry.getValue();
+            final String path = entry.getKey();
+            if (!node.getSession().nodeExists(path)) {
+                // removed in the meantime
+                continue;
+            }
+            final Set<String> properties = this.incrementalProperties.getOrDefault(path, Collections.emptySet());
+            final PropertyIterator pi = node.getProperties();
+            while (pi.hasNext()) {
+                final Property prop = pi.nextProperty();
+                if (properties.contains(prop.getName()) || prop.getDefinition().isProtected()
+                        || prop.getDefinition().isAutoCreated() || prop.getDefinition().isMandatory()) {
+                    continue;
+                }
+                final String propPath = prop.getPath();
+                checkoutIfNecessary(node);
+                prop.remove();
+                if (this.importListener != null) {
+                    this.importListener.onDelete(propPath);
+                }
+            }
+            final NodeIterator ni = node.getNodes();
+            while (ni.hasNext()) {
+                final Node child = ni.nextNode();
+                if (this.incrementalNodes.containsKey(child.getPath()) || child.getDefinition().isProtected()) {
+                    continue;
+                }
+                final String childPath = child.getPath();
+                checkoutIfNecessary(node);
+                child.remove();
+                this.nodeCache.removed(childPath);
+                if (this.importListener != null) {
+                    this.importListener.onDelete(childPath);
+                }
+            }
+        }
+        this.incrementalNodes.clear();
+        this.incrementalProperties.clear();
+    }
+
+    /**
+     * Collect the children of the imported nodes which have not been imported
+     * themselves, to be removed by {@link #finishMerge()}.
+     */
+    private void collectNodesNotImported(final Session session) throws RepositoryException {
+        Set<String> toRemove = this.nodesNotImported.get(session);
+        for (final String path : this.importedNodes) {
+            if (this.createdByFile.contains(path) && this.nodeCache.knowsChildren(path, session)) {
+                // added by this file, so there are no other children
+                continue;
+            }
+            for (final String child : getChildren(path, session)) {
+                if (!this.importedNodes.contains(child)) {
+                    if (toRemove == null) {
+                        toRemove = new LinkedHashSet<>();
+                        this.nodesNotImported.put(session, toRemove);
+                    }
+                    toRemove.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * A node imported by a later content file is kept, including its ancestors.
+     */
+    private void keepImportedNode(final Session session, final String path) {
+        final Set<String> toRemove = this.nodesNotImported.get(session);
+        if (toRemove == null) {
+            return;
+        }
+        for (String p = path; p.length() > 1; p = p.substring(0, Math.max(1, p.lastIndexOf('/')))) {
+            toRemove.remove(p);
+        }
+    }
+
+    /**
+     * Remove the nodes not imported. The nodes are removed in one pass and
+     * saved once, or once per {@link #setMergeRemovalBatchSize(int) batch}. If
+     * saving a batch fails, its nodes are removed and saved one by one, so a
+     * node which can't be removed does not prevent the removal of the others.
+     */
+    private void removeNodesNotImported(final Set<String> toRemove, final Session session) {
+        final List<String> batch = new ArrayList<>();
+        for (final String path : toRemove) {
+            try {
+                if (!session.nodeExists(path)) {
+                    // removed together with an ancestor
+                    continue;
+                }
+                final Node node = session.getNode(path);
+                final NodeDefinition definition = node.getDefinition();
+                if (definition.isProtected() || definition.isMandatory()) {
+                    this.log.warn("unable to remove node {}", path);
+                    continue;
+                }
+                this.log.debug("removing {}", path);
+                node.remove();
+                this.nodeCache.removed(path);
+                batch.add(path);
+            } catch (RepositoryException e) {
+                this.log.warn("unable to remove node {}", path);
+                continue;
+            }
+            if (batch.size() == this.mergeRemovalBatchSize) {
+                saveRemovals(batch, session);
+            }
+        }
+        if (!batch.isEmpty()) {
+            saveRemovals(batch, session);
+        }
+    }
+
+    /**
+     * Save the removal of a batch of nodes. If this fails, remove and save them
+     * one by one. The listener is informed about the saved removals only.
+     */
+    private void saveRemovals(final List<String> batch, final Session session) {
+        try {
+            session.save();
+            for (final String path : batch) {
+                nodeDeleted(path);
+            }
+        } catch (RepositoryException e) {
+            this.log.debug("unable to save the removal of {} nodes, removing them one by one: {}", batch.size(),
+                    e.getMessage());
+            refresh(session);
+            for (final String path : batch) {
+                try {
+                    if (session.nodeExists(path)) {
+                        session.getNode(path).remove();
+                        session.save();
+                        nodeDeleted(path);
+                    }
+                } catch (RepositoryException re) {
+                    this.log.warn("unable to remove node {}", path);
+                    refresh(session);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    private void nodeDeleted(final String path) {
+        if (this.importListener != null) {
+            this.importListener.onDelete(path);
+        }
+    }
+
+    private void refresh(final Session session) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            this.log.warn("Failed to revert the pending changes of the session", e);
+        }
+    }
+
     private Set<String> getChildren(String path, Session session) {
         try {
             log.debug("finding children for {}", path);
@@ -1004,36 +1728,50 @@ public class DefaultContentCreator implements ContentCreator {
         }
     }
 
-    private void removeNode(String item, Session session)
+    private void propertyAdded(String name)
     {
-        try {
-            Item toRemove = session.getItem(item);
+        this.propertyCount++;
+        if (isIncremental()) {
             try {
-                if (this.importListener != null) {
-                    this.importListener.onDelete(item);
-                }
-                session.save();
-                this.log.debug("removing {}", item);
-                session.removeItem(item);
-                session.save();
+                this.incrementalProperties.computeIfAbsent(this.nodeCache.getPath(this.parentNodeStack.peek()), k -> new HashSet<>())
+                        .add(name);
             } catch (RepositoryException e) {
-                this.log.warn("unable to remove node {}", item);
-                toRemove.refresh(false);
+                // Should not happen
+                this.log.warn("Failed to access {}", this.parentNodeStack.peek());
             }
-        } catch (RepositoryException e1) {
-            this.log.warn("Failed to access {}", item);
         }
-    }
-
-    private void propertyAdded(String name)
-    {
         if (this.configuration.isPropertyMerge()) {
             try {
-                this.addedProperties.computeIfAbsent(this.parentNodeStack.peek().getPath(), k -> new HashSet<>()).add(name);
+                this.addedProperties.computeIfAbsent(this.nodeCache.getPath(this.parentNodeStack.peek()), k -> new HashSet<>()).add(name);
             } catch (RepositoryException e) {
                 // Should not happen
                 this.log.warn("Failed to access {}", this.parentNodeStack.peek());
             }
         }
     }
+
+    /**
+     * A user or group collected in a principal batch.
+     */
+    private static final class PendingPrincipal {
+
+        final String name;
+
+        final String password;
+
+        final String[] members;
+
+        final Map<String, Object> extraProperties;
+
+        final boolean isGroup;
+
+        PendingPrincipal(final String name, final String password, final String[] members,
+                final Map<String, Object> extraProperties, final boolean isGroup) {
+            this.name = name;
+            this.password = password;
+            this.members = members;
+            this.extraProperties = extraProperties;
+            this.isGroup = isGroup;
+        }
+    }
 }
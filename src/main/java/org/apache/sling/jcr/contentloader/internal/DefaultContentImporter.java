@@ -26,7 +26,6 @@ import java.util.List;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.version.VersionManager;
 
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.jcr.contentloader.ContentImportListener;
@@ -61,6 +60,12 @@ public class DefaultContentImporter extends BaseImportLoader implements ContentH
     @Reference
     private MimeTypeService mimeTypeService;
 
+    /**
+     * The metrics of the content imports.
+     */
+    @Reference
+    private ContentLoaderMetrics metrics;
+
     private final Logger logger = LoggerFactory.getLogger(DefaultContentImporter.class);
 
     @Reference(name="contentReaderWhiteboard",
@@ -117,23 +122,37 @@ public class DefaultContentImporter extends BaseImportLoader implements ContentH
 
     private void importContent(final DefaultContentCreator contentCreator, final ContentReader contentReader, final Node parent, final String name, final InputStream contentStream, final ImportOptions importOptions, final ContentImportListener importListener) throws RepositoryException, IOException {
         logger.debug("initiate import of {}",name);
+        final long start = System.nanoTime();
         List<String> createdPaths = new ArrayList<>();
+        contentCreator.startImport();
         contentCreator.init(importOptions, getContentReaders(), createdPaths, importListener);
         contentCreator.prepareParsing(parent, name);
-        contentReader.parse(contentStream, contentCreator);
+        final TimedContentCreator timedCreator = new TimedContentCreator(contentCreator);
+        final long parseStart = System.nanoTime();
+        try {
+            contentReader.parse(contentStream, timedCreator);
+        } finally {
+            metrics.recordParse(contentReader.getClass().getSimpleName(), System.nanoTime() - parseStart,
+                    timedCreator.getWriteNanos());
+        }
+        contentCreator.finishIncremental();
 
-        // save changes
+        // resolve references to nodes created after the referencing property
         Session session = parent.getSession();
-        session.save();
+        metrics.recordResolvedReferences(
+                contentCreator.resolveReferences(session, contentCreator.getReferenceIndex()));
 
-        // finally checkin versionable nodes
-        for (final Node versionable : contentCreator.getVersionables()) {
-        	VersionManager versionManager = versionable.getSession().getWorkspace().getVersionManager();
-        	versionManager.checkin(versionable.getPath());
-            if (importListener != null) {
-                importListener.onCheckin(versionable.getPath());
-            }
-        }
+        // save changes
+        final long saveStart = System.nanoTime();
+        session.save();
+        metrics.recordSave(System.nanoTime() - saveStart);
+        contentCreator.finishMerge();
+
+        // finally checkin versionable nodes, the caller expects them to be checked in
+        new VersionCheckin(VersionCheckin.DEFAULT_RETRIES, metrics).checkin(contentCreator.getVersionables(),
+                importListener);
+        metrics.recordImport(System.nanoTime() - start, contentCreator.getCreatedNodeCount(),
+                contentCreator.getPropertyCount(), contentCreator.getBinarySize());
     }
 
     private void importJcrXml(final Node parent, final String name, final InputStream contentStream, final ImportOptions importOptions, final ContentImportListener importListener) throws IOException, RepositoryException {
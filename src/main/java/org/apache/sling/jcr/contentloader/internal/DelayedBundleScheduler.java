@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.NodeTypeIterator;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>DelayedBundleScheduler</code> keeps track of the bundles whose
+ * content could not be loaded yet, together with the reason, and decides which
+ * of them are worth a retry: a bundle is only retried once the condition which
+ * blocked it may have changed.
+ */
+public class DelayedBundleScheduler {
+
+    /**
+     * Why the content of a bundle could not be loaded.
+     */
+    public enum Reason {
+        /** The bundle content info is locked or leased, usually by another cluster node */
+        LOCKED,
+        /** A node type used by the content is not registered */
+        MISSING_NODE_TYPE,
+        /** A reference target does not exist */
+        MISSING_REFERENCE,
+        /** Any other failure */
+        OTHER
+    }
+
+    private final Logger log = LoggerFactory.getLogger(DelayedBundleScheduler.class);
+
+    private final Map<Bundle, DelayedBundle> delayed = new LinkedHashMap<>();
+
+    /** Incremented for every bundle whose content has been loaded */
+    private long loadedGeneration;
+
+    private static final class DelayedBundle {
+
+        private final Bundle bundle;
+
+        private final Reason reason;
+
+        private final long loadedGeneration;
+
+        private final int nodeTypeCount;
+
+        private DelayedBundle(Bundle bundle, Reason reason, long loadedGeneration, int nodeTypeCount) {
+            this.bundle = bundle;
+            this.reason = reason;
+            this.loadedGeneration = loadedGeneration;
+            this.nodeTypeCount = nodeTypeCount;
+        }
+    }
+
+    /**
+     * Determine the delay reason for a failed content installation.
+     *
+     * @param re The exception
+     * @return The reason
+     */
+    public static Reason getReason(final RepositoryException re) {
+        for (Throwable t = re; t != null; t = t.getCause()) {
+            if (t instanceof NoSuchNodeTypeException) {
+                return Reason.MISSING_NODE_TYPE;
+            } else if (t instanceof ReferentialIntegrityException) {
+                return Reason.MISSING_REFERENCE;
+            } else if (t instanceof LockException) {
+                return Reason.LOCKED;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return Reason.OTHER;
+    }
+
+    /**
+     * Add a bundle to the delayed bundles.
+     *
+     * @param session The session used to load the bundle content
+     * @param bundle The bundle
+     * @param reason Why the bundle has been delayed
+     */
+    public synchronized void delay(final Session session, final Bundle bundle, final Reason reason) {
+        final int nodeTypeCount = reason == Reason.MISSING_NODE_TYPE ? countNodeTypes(session) : -1;
+        delayed.put(bundle, new DelayedBundle(bundle, reason, loadedGeneration, nodeTypeCount));
+        log.debug("Delaying content loading of bundle {} because of {}", bundle.getSymbolicName(), reason);
+    }
+
+    /**
+     * Record that the content of a bundle has been loaded, which might unblock
+     * delayed bundles.
+     *
+     * @param bundle The bundle
+     */
+    public synchronized void loaded(final Bundle bundle) {
+        delayed.remove(bundle);
+        loadedGeneration++;
+    }
+
+    /**
+     * Remove a bundle from the delayed bundles.
+     *
+     * @param bundle The bundle
+     * @return <code>true</code> if the bundle was delayed
+     */
+    public synchronized boolean remove(final Bundle bundle) {
+        return delayed.remove(bundle) != null;
+    }
+
+    /**
+     * Return the delayed bundles whose blocking condition may have changed since
+     * they have been delayed.
+     *
+     * @param session The session to check the repository state with
+     * @return The bundles to retry, in the order they have been delayed
+     */
+    public synchronized List<Bundle> getRetryCandidates(final Session session) {
+        final List<Bundle> candidates = new ArrayList<>();
+        Integer nodeTypeCount = null;
+        for (final DelayedBundle d : delayed.values()) {
+            final boolean retry;
+            switch (d.reason) {
+                case LOCKED:
+                    retry = !isLocked(session, d.bundle);
+                    break;
+                case MISSING_NODE_TYPE:
+                    if (nodeTypeCount == null) {
+                        nodeTypeCount = countNodeTypes(session);
+                    }
+                    // if the node types could not be counted, better retry
+                    retry = nodeTypeCount < 0 || d.nodeTypeCount < 0 || nodeTypeCount != d.nodeTypeCount;
+                    break;
+                default:
+                    retry = loadedGeneration != d.loadedGeneration;
+            }
+            if (retry) {
+                candidates.add(d.bundle);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return <code>true</code> if no bundle is delayed
+     */
+    public synchronized boolean isEmpty() {
+        return delayed.isEmpty();
+    }
+
+    /**
+     * @return The number of delayed bundles
+     */
+    public synchronized int size() {
+        return delayed.size();
+    }
+
+    /**
+     * @return The number of delayed bundles per reason
+     */
+    public synchronized Map<Reason, Integer> getCountByReason() {
+        final Map<Reason, Integer> counts = new EnumMap<>(Reason.class);
+        for (final DelayedBundle d : delayed.values()) {
+            counts.merge(d.reason, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Remove all delayed bundles.
+     */
+    public synchronized void clear() {
+        delayed.clear();
+    }
+
+    private boolean isLocked(final Session session, final Bundle bundle) {
+        try {
+            final String path = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName();
+            session.refresh(true);
+            if (!session.nodeExists(path)) {
+                return false;
+            }
+            final Node bcNode = session.getNode(path);
+            return bcNode.isLocked() || isLeased(bcNode);
+        } catch (RepositoryException re) {
+            log.debug("Unable to check the lock of bundle {}", bundle.getSymbolicName(), re);
+            return false;
+        }
+    }
+
+    private static boolean isLeased(final Node bcNode) throws RepositoryException {
+        return bcNode.hasProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER)
+                && bcNode.hasProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES)
+                && bcNode.getProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES).getLong() > System
+                        .currentTimeMillis();
+    }
+
+    private int countNodeTypes(final Session session) {
+        try {
+            int count = 0;
+            final NodeTypeIterator it = session.getWorkspace().getNodeTypeManager().getAllNodeTypes();
+            while (it.hasNext()) {
+                it.nextNodeType();
+                count++;
+            }
+            return count;
+        } catch (RepositoryException re) {
+            log.debug("Unable to count the registered node types", re);
+            return -1;
+        }
+    }
+}
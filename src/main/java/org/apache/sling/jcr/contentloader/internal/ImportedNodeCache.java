@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * The <code>ImportedNodeCache</code> remembers the structure the
+ * {@link DefaultContentCreator} built during one import, so that the creator
+ * does not have to ask the repository again. An import may span several
+ * workspaces, so a node added during the import is only used for nodes of the
+ * same session.
+ * <p>
+ * The paths of the nodes handled by the creator are kept by node instance.
+ * Nodes added during the import are kept by path: as long as the node types of
+ * such a node have no auto-created child nodes, its children are exactly those
+ * the creator added, so their existence is answered without a lookup.
+ */
+final class ImportedNodeCache {
+
+    /** the paths of the nodes handled during the import */
+    private final Map<Node, String> paths = new IdentityHashMap<>();
+
+    /** nodes added during the import, by path */
+    private final Map<String, CreatedNode> created = new HashMap<>();
+
+    /** whether the node types have auto-created child nodes, by type name */
+    private final Map<String, Boolean> autoCreatedChildren = new HashMap<>();
+
+    /**
+     * Get the path of a node.
+     *
+     * @param node The node
+     * @return The path
+     * @throws RepositoryException If the path can't be read
+     */
+    String getPath(final Node node) throws RepositoryException {
+        String path = paths.get(node);
+        if (path == null) {
+            path = node.getPath();
+            paths.put(node, path);
+        }
+        return path;
+    }
+
+    /**
+     * @param name A node name
+     * @return <code>true</code> if the path of a child node with this name is
+     *         the path of the parent plus the name
+     */
+    static boolean isPlainName(final String name) {
+        return name.indexOf('[') < 0 && name.indexOf('{') < 0;
+    }
+
+    /**
+     * Get the path of a child node with a {@link #isPlainName(String) plain
+     * name} without asking the repository.
+     *
+     * @param parent The parent node
+     * @param name The name of the child node
+     * @return The path
+     * @throws RepositoryException If the path of the parent can't be read
+     */
+    String getChildPath(final Node parent, final String name) throws RepositoryException {
+        final String parentPath = getPath(parent);
+        return "/".equals(parentPath) ? "/" + name : parentPath + "/" + name;
+    }
+
+    /**
+     * Remember a node added during the import.
+     *
+     * @param node The node
+     * @param path The path of the node
+     */
+    void created(final Node node, final String path) throws RepositoryException {
+        paths.put(node, path);
+        created.put(path, new CreatedNode(node));
+    }
+
+    /**
+     * @param node The node
+     * @return <code>true</code> if the node has been added during the import
+     */
+    boolean isCreated(final Node node) throws RepositoryException {
+        return getCreated(node) != null;
+    }
+
+    /**
+     * Whether the existence of a child node is known without asking the
+     * repository, which is the case for children of nodes added during the
+     * import without auto-created child nodes.
+     *
+     * @param parent The parent node
+     * @param name The name of the child node
+     * @return <code>true</code> if {@link #getCreatedChild(Node, String)}
+     *         answers for this child
+     * @throws RepositoryException If the node type can't be read
+     */
+    boolean knowsChild(final Node parent, final String name) throws RepositoryException {
+        if (!isPlainName(name)) {
+            return false;
+        }
+        return knowsChildren(getCreated(parent));
+    }
+
+    /**
+     * Whether the node has been added during the import and all its children
+     * have been added by the creator, as its node types have no auto-created
+     * child nodes.
+     *
+     * @param path The path of the node
+     * @param session The session of the node
+     * @return <code>true</code> if the children are known
+     * @throws RepositoryException If the node type can't be read
+     */
+    boolean knowsChildren(final String path, final Session session) throws RepositoryException {
+        final CreatedNode createdNode = created.get(path);
+        return createdNode != null && createdNode.session == session && knowsChildren(createdNode);
+    }
+
+    private boolean knowsChildren(final CreatedNode createdNode) throws RepositoryException {
+        if (createdNode == null) {
+            return false;
+        }
+        if (createdNode.knowsChildren == null) {
+            boolean knowsChildren = !hasAutoCreatedChildren(createdNode.node.getPrimaryNodeType());
+            for (final NodeType mixin : createdNode.node.getMixinNodeTypes()) {
+                knowsChildren &= !hasAutoCreatedChildren(mixin);
+            }
+            createdNode.knowsChildren = knowsChildren;
+        }
+        return createdNode.knowsChildren;
+    }
+
+    /**
+     * Get a child node added during the import.
+     *
+     * @param parent The parent node
+     * @param name The name of the child node
+     * @return The child node or <code>null</code>
+     * @throws RepositoryException If the path of the parent can't be read
+     */
+    Node getCreatedChild(final Node parent, final String name) throws RepositoryException {
+        final CreatedNode child = created.get(getChildPath(parent, name));
+        return child == null || child.session != parent.getSession() ? null : child.node;
+    }
+
+    /**
+     * Forget a removed node and its descendants.
+     *
+     * @param path The path of the removed node
+     */
+    void removed(final String path) {
+        final String prefix = path + "/";
+        created.keySet().removeIf(p -> p.equals(path) || p.startsWith(prefix));
+        final Iterator<String> it = paths.values().iterator();
+        while (it.hasNext()) {
+            final String p = it.next();
+            if (p.equals(path) || p.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    void clear() {
+        paths.clear();
+        created.clear();
+    }
+
+    private CreatedNode getCreated(final Node node) throws RepositoryException {
+        // nodes added during the import are always known by instance
+        final String path = paths.get(node);
+        final CreatedNode createdNode = path == null ? null : created.get(path);
+        return createdNode == null || createdNode.session != node.getSession() ? null : createdNode;
+    }
+
+    private boolean hasAutoCreatedChildren(final NodeType type) {
+        return autoCreatedChildren.computeIfAbsent(type.getName(), name -> {
+            for (final NodeDefinition definition : type.getChildNodeDefinitions()) {
+                if (definition.isAutoCreated()) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private static final class CreatedNode {
+
+        final Node node;
+
+        final Session session;
+
+        /** whether all children are known, computed on first use */
+        Boolean knowsChildren;
+
+        CreatedNode(final Node node) throws RepositoryException {
+            this.node = node;
+            this.session = node.getSession();
+        }
+    }
+}
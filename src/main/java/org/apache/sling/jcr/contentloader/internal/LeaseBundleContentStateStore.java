@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.BUNDLE_CONTENT_NODE;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_BY;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_UNLOADED_AT;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_UNLOADED_BY;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default {@link BundleContentStateStore}. Instead of JCR locks, the
+ * bundle content node holds a lease: its owner and expiry time, which are only
+ * changed together with a revision counter. An update based on an outdated
+ * revision fails with a conflict when saved, so of several instances trying to
+ * acquire the lease only one succeeds. The lease of a crashed instance expires
+ * and can then be taken over, so the holder renews it in the background while
+ * loading the content.
+ * <p>
+ * The lease is read and written with a session of its own, a conflict must not
+ * discard the transient changes of the caller's session.
+ * <p>
+ * Instances still using JCR locks are respected by not acquiring a locked node.
+ * As they in turn ignore the lease, the node remains lockable for them, but
+ * only one of both kinds of instances should load content while a cluster is
+ * upgraded.
+ */
+final class LeaseBundleContentStateStore implements BundleContentStateStore {
+
+    static final String PROPERTY_REVISION = "content-revision";
+
+    static final String PROPERTY_LEASE_OWNER = "content-lease-owner";
+
+    static final String PROPERTY_LEASE_EXPIRES = "content-lease-expires";
+
+    /**
+     * The mixin allowing instances still using JCR locks to lock the bundle
+     * content node, which is kept until all instances use leases.
+     */
+    private static final String MIX_LOCKABLE = "mix:lockable";
+
+    private final Logger log = LoggerFactory.getLogger(LeaseBundleContentStateStore.class);
+
+    private final BundleHelper bundleHelper;
+
+    private final String ownerId;
+
+    private final long leaseMillis;
+
+    /** the leases held by this instance, by bundle symbolic name */
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * @param bundleHelper Provides the sessions to update the leases
+     * @param ownerId The id of this instance, used as lease owner
+     * @param leaseMillis The duration of a lease
+     */
+    LeaseBundleContentStateStore(final BundleHelper bundleHelper, final String ownerId, final long leaseMillis) {
+        this.bundleHelper = bundleHelper;
+        this.ownerId = ownerId;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    public Map<String, Object> acquire(final Session session, final Bundle bundle, final boolean create)
+            throws RepositoryException {
+        final String nodeName = bundle.getSymbolicName();
+        final Session leaseSession = bundleHelper.getSession();
+        try {
+            final Node parentNode = leaseSession.getNode(BUNDLE_CONTENT_NODE);
+            if (!parentNode.hasNode(nodeName)) {
+                if (!create) {
+                    return null;
+                }
+                try {
+                    parentNode.addNode(nodeName, "nt:unstructured").addMixin(MIX_LOCKABLE);
+                    leaseSession.save();
+                } catch (RepositoryException re) {
+                    // for concurrency issues (running in a cluster) we ignore exceptions
+                    log.warn("Unable to create node " + nodeName, re);
+                    leaseSession.refresh(false);
+                }
+            }
+            final Node bcNode = parentNode.getNode(nodeName);
+            if (bcNode.isLocked()) {
+                // held by an instance still using JCR locks
+                return null;
+            }
+            if (!bcNode.isNodeType(MIX_LOCKABLE)) {
+                // saved together with the lease below
+                bcNode.addMixin(MIX_LOCKABLE);
+            }
+            final String owner = getString(bcNode, PROPERTY_LEASE_OWNER);
+            final long now = System.currentTimeMillis();
+            if (owner != null && !owner.equals(ownerId) && getLong(bcNode, PROPERTY_LEASE_EXPIRES) > now) {
+                log.debug("Bundle content info of {} is leased by {}", nodeName, owner);
+                return null;
+            }
+            if (owner != null && !owner.equals(ownerId)) {
+                log.info("Taking over expired lease of {} on bundle content info of {}", owner, nodeName);
+            }
+            if (!updateLease(leaseSession, bcNode, ownerId, now + leaseMillis)) {
+                return null;
+            }
+            leases.put(nodeName, new Lease(getLong(bcNode, PROPERTY_REVISION), now + leaseMillis));
+
+            final Map<String, Object> info = new HashMap<>();
+            if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED_AT)) {
+                info.put(PROPERTY_CONTENT_LOADED_AT, bcNode.getProperty(PROPERTY_CONTENT_LOADED_AT).getDate());
+            }
+            if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED)) {
+                info.put(PROPERTY_CONTENT_LOADED, bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
+            } else {
+                info.put(PROPERTY_CONTENT_LOADED, false);
+            }
+            if (bcNode.hasProperty(PROPERTY_UNINSTALL_PATHS)) {
+                info.put(PROPERTY_UNINSTALL_PATHS, getStrings(bcNode, PROPERTY_UNINSTALL_PATHS));
+            }
+            if (bcNode.hasProperty(PROPERTY_CONTENT_DIGESTS)) {
+                info.put(PROPERTY_CONTENT_DIGESTS, getStrings(bcNode, PROPERTY_CONTENT_DIGESTS));
+            }
+            return info;
+        } finally {
+            leaseSession.logout();
+            // see the lease, keeping the caller's changes
+            session.refresh(true);
+        }
+    }
+
+    /**
+     * Extend the lease once half of it has passed.
+     */
+    @Override
+    public void renew(final Bundle bundle) throws RepositoryException {
+        final String nodeName = bundle.getSymbolicName();
+        final Lease lease = leases.get(nodeName);
+        final long now = System.currentTimeMillis();
+        if (lease == null || lease.expires - now > leaseMillis / 2) {
+            return;
+        }
+        final Session leaseSession = bundleHelper.getSession();
+        try {
+            final Node bcNode = leaseSession.getNode(BUNDLE_CONTENT_NODE + "/" + nodeName);
+            checkLease(bcNode, lease);
+            if (!updateLease(leaseSession, bcNode, ownerId, now + leaseMillis)) {
+                throw new RepositoryException("Concurrent update of bundle content info of " + nodeName);
+            }
+            leases.put(nodeName, new Lease(getLong(bcNode, PROPERTY_REVISION), now + leaseMillis));
+            log.debug("Renewed lease on bundle content info of {}", nodeName);
+        } finally {
+            leaseSession.logout();
+        }
+    }
+
+    @Override
+    public void release(final Session session, final Bundle bundle, final boolean contentLoaded,
+            final List<String> createdNodes, final Map<String, String> contentDigests) throws RepositoryException {
+        final String nodeName = bundle.getSymbolicName();
+        final Lease lease = leases.remove(nodeName);
+        final Session leaseSession = bundleHelper.getSession();
+        try {
+            final Node bcNode = leaseSession.getNode(BUNDLE_CONTENT_NODE + "/" + nodeName);
+            checkLease(bcNode, lease);
+            if (contentLoaded) {
+                bcNode.setProperty(PROPERTY_CONTENT_LOADED, contentLoaded);
+                bcNode.setProperty(PROPERTY_CONTENT_LOADED_AT, Calendar.getInstance());
+                bcNode.setProperty(PROPERTY_CONTENT_LOADED_BY, ownerId);
+                bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, (String) null);
+                bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, (String) null);
+                if (createdNodes != null && !createdNodes.isEmpty()) {
+                    bcNode.setProperty(PROPERTY_UNINSTALL_PATHS,
+                            createdNodes.toArray(new String[createdNodes.size()]));
+                }
+                if (contentDigests != null) {
+                    bcNode.setProperty(PROPERTY_CONTENT_DIGESTS,
+                            contentDigests.isEmpty() ? null : ContentDigest.format(contentDigests));
+                }
+            }
+            if (!updateLease(leaseSession, bcNode, null, 0)) {
+                throw new RepositoryException("Concurrent update of bundle content info of " + nodeName);
+            }
+        } finally {
+            leaseSession.logout();
+            session.refresh(true);
+        }
+    }
+
+    @Override
+    public void markUninstalled(final Session session, final Bundle bundle) throws RepositoryException {
+        final String nodeName = bundle.getSymbolicName();
+        final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
+        if (parentNode.hasNode(nodeName)) {
+            final Node bcNode = parentNode.getNode(nodeName);
+            bcNode.setProperty(PROPERTY_CONTENT_LOADED, false);
+            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, Calendar.getInstance());
+            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, ownerId);
+            bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, (String[]) null);
+            bcNode.setProperty(PROPERTY_CONTENT_DIGESTS, (String[]) null);
+            session.save();
+        }
+    }
+
+    /**
+     * Fail if the lease is not held by this instance anymore, either because
+     * it has been taken over or because its revision changed since this
+     * instance wrote it.
+     */
+    private void checkLease(final Node bcNode, final Lease lease) throws RepositoryException {
+        final String owner = getString(bcNode, PROPERTY_LEASE_OWNER);
+        if ((owner != null && !owner.equals(ownerId))
+                || (lease != null && getLong(bcNode, PROPERTY_REVISION) != lease.revision)) {
+            throw new RepositoryException("Lease on bundle content info of " + bcNode.getName()
+                    + " has been taken over by " + owner);
+        }
+    }
+
+    /**
+     * Set the lease together with the next revision and save, which fails if
+     * another instance saved a revision in the meantime.
+     *
+     * @param leaseSession The session used for the lease only, never the one of
+     *            the caller as its changes are discarded on a conflict
+     * @param owner The new owner, <code>null</code> to release the lease
+     * @return <code>true</code> if the lease has been updated
+     */
+    private boolean updateLease(final Session leaseSession, final Node bcNode, final String owner,
+            final long expires) throws RepositoryException {
+        bcNode.setProperty(PROPERTY_REVISION, getLong(bcNode, PROPERTY_REVISION) + 1);
+        bcNode.setProperty(PROPERTY_LEASE_OWNER, owner);
+        if (owner != null) {
+            bcNode.setProperty(PROPERTY_LEASE_EXPIRES, expires);
+        } else {
+            bcNode.setProperty(PROPERTY_LEASE_EXPIRES, (String) null);
+        }
+        try {
+            leaseSession.save();
+            return true;
+        } catch (InvalidItemStateException e) {
+            log.debug("Conflicting update of {}: {}", bcNode.getPath(), e.getMessage());
+            leaseSession.refresh(false);
+            return false;
+        }
+    }
+
+    private static String getString(final Node node, final String name) throws RepositoryException {
+        return node.hasProperty(name) ? node.getProperty(name).getString() : null;
+    }
+
+    private static long getLong(final Node node, final String name) throws RepositoryException {
+        return node.hasProperty(name) ? node.getProperty(name).getLong() : 0;
+    }
+
+    private static String[] getStrings(final Node node, final String name) throws RepositoryException {
+        final Value[] values = node.getProperty(name).getValues();
+        final String[] s = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            s[i] = values[i].getString();
+        }
+        return s;
+    }
+
+    /**
+     * A lease held by this instance.
+     */
+    private static final class Lease {
+
+        private final long revision;
+
+        private final long expires;
+
+        Lease(final long revision, final long expires) {
+            this.revision = revision;
+            this.expires = expires;
+        }
+    }
+}
@@ -59,6 +59,12 @@ public class PathEntry extends ImportOptions {
      */
     public static final String MERGE_NODES_DIRECTIVE = "merge";
 
+    /**
+     * The incremental directive specifying if overwritten content should only
+     * be updated where it differs instead of being recreated.
+     */
+    public static final String INCREMENTAL_DIRECTIVE = "incremental";
+
     /** The uninstall directive specifying if content should be uninstalled. */
     public static final String UNINSTALL_DIRECTIVE = "uninstall";
 
@@ -97,6 +103,8 @@ public class PathEntry extends ImportOptions {
     
     private final boolean nodeMerge;
 
+    private final boolean incremental;
+
     /** The path for the initial content. */
     private final String path;
 
@@ -181,6 +189,14 @@ public class PathEntry extends ImportOptions {
             this.overwrite = false;
         }
 
+        // incremental directive
+        final String incrementalValue = entry.getDirectiveValue(INCREMENTAL_DIRECTIVE);
+        if (incrementalValue != null) {
+            this.incremental = Boolean.valueOf(incrementalValue);
+        } else {
+            this.incremental = false;
+        }
+
         // overwriteProperties directive
         final String overwritePropertiesValue = entry.getDirectiveValue(OVERWRITE_PROPERTIES_DIRECTIVE);
         if (overwritePropertiesValue != null) {
@@ -297,6 +313,22 @@ public class PathEntry extends ImportOptions {
         return target;
     }
 
+    /**
+     * Returns the target as an absolute path, which is the root node if no
+     * target is set. A relative target is resolved against the root node, as
+     * done when looking up the target node.
+     */
+    public String getAbsoluteTarget() {
+        if (target == null || target.isEmpty() || "/".equals(target)) {
+            return "/";
+        }
+        String path = target.startsWith("/") ? target : "/" + target;
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
     public String getWorkspace() {
         return workspace;
     }
@@ -310,4 +342,8 @@ public class PathEntry extends ImportOptions {
     public boolean isMerge() {
         return this.nodeMerge;
     }
+
+    public boolean isIncremental() {
+        return this.incremental;
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+
+import org.apache.sling.jcr.contentloader.ContentCreator;
+
+/**
+ * Converts typed property values to the strings expected by
+ * {@link ContentCreator#createProperty(String, int, String)}.
+ */
+public final class PropertyStrings {
+
+    /** the ISO 8601 format used by JCR */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private PropertyStrings() {
+        // static methods only
+    }
+
+    /**
+     * @param value A typed value
+     * @return The string, dates in the ISO 8601 format used by JCR
+     */
+    public static String valueOf(final Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Calendar) {
+            final Calendar calendar = (Calendar) value;
+            return DATE_FORMAT.format(ZonedDateTime.ofInstant(calendar.toInstant(), calendar.getTimeZone().toZoneId()));
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The <code>ReferenceIndex</code> holds the <code>REFERENCE</code> properties
+ * whose target nodes did not exist when the property was imported, indexed by
+ * the paths of the missing targets.
+ * <p>
+ * The {@link DefaultContentCreator} keeps one index per import, and the
+ * {@link BundleContentLoader} keeps the references left unresolved by all
+ * bundle installations, so that they are resolved once the content of
+ * another bundle provides the target nodes. The index is thread-safe.
+ */
+final class ReferenceIndex {
+
+    /** pending references by workspace and property path */
+    private final Map<String, PendingReference> references = new LinkedHashMap<>();
+
+    /** keys of pending references by workspace and target path */
+    private final Map<String, Set<String>> targets = new HashMap<>();
+
+    /** the keys of the index this one has been copied from */
+    private final Set<String> copiedKeys;
+
+    /** the copied keys whose references have been changed in this copy */
+    private final Set<String> changedKeys = new HashSet<>();
+
+    ReferenceIndex() {
+        this.copiedKeys = Collections.emptySet();
+    }
+
+    private ReferenceIndex(final ReferenceIndex index) {
+        for (final PendingReference reference : index.references.values()) {
+            add(new PendingReference(reference));
+        }
+        this.copiedKeys = new HashSet<>(references.keySet());
+    }
+
+    /**
+     * Add a reference, replacing a pending reference for the same property.
+     *
+     * @param reference The reference
+     */
+    synchronized void put(final PendingReference reference) {
+        remove(reference);
+        add(reference);
+        if (copiedKeys.contains(reference.key())) {
+            changedKeys.add(reference.key());
+        }
+    }
+
+    private void add(final PendingReference reference) {
+        references.put(reference.key(), reference);
+        for (final String value : reference.values) {
+            if (PendingReference.isPath(value)) {
+                targets.computeIfAbsent(key(reference.workspace, value), k -> new LinkedHashSet<>())
+                        .add(reference.key());
+            }
+        }
+    }
+
+    /**
+     * Remove a reference.
+     *
+     * @param reference The reference
+     */
+    synchronized void remove(final PendingReference reference) {
+        final PendingReference removed = references.remove(reference.key());
+        if (removed != null) {
+            for (final String value : removed.values) {
+                final String targetKey = key(removed.workspace, value);
+                final Set<String> keys = targets.get(targetKey);
+                if (keys != null) {
+                    keys.remove(removed.key());
+                    if (keys.isEmpty()) {
+                        targets.remove(targetKey);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the path of a target node of a reference by its identifier. The
+     * reference is removed once all its targets are resolved.
+     *
+     * @param reference The reference
+     * @param targetPath The path of the target node
+     * @param identifier The identifier of the target node
+     * @return <code>true</code> if all targets of the reference are resolved
+     */
+    synchronized boolean resolve(final PendingReference reference, final String targetPath,
+            final String identifier) {
+        remove(reference);
+        final boolean resolved = reference.resolve(targetPath, identifier);
+        if (!resolved) {
+            put(reference);
+        }
+        return resolved;
+    }
+
+    /**
+     * @param workspace The workspace name
+     * @param targetPath The path of a target node
+     * @return The references waiting for the target node
+     */
+    synchronized List<PendingReference> get(final String workspace, final String targetPath) {
+        final Set<String> keys = targets.get(key(workspace, targetPath));
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        final List<PendingReference> result = new ArrayList<>(keys.size());
+        for (final String key : keys) {
+            result.add(references.get(key));
+        }
+        return result;
+    }
+
+    /**
+     * @param workspace The workspace name
+     * @return The paths of all missing target nodes in the workspace
+     */
+    synchronized List<String> getTargetPaths(final String workspace) {
+        final String prefix = workspace + ":";
+        final List<String> result = new ArrayList<>();
+        for (final String key : targets.keySet()) {
+            if (key.startsWith(prefix)) {
+                result.add(key.substring(prefix.length()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return <code>true</code> if there are no pending references
+     */
+    synchronized boolean isEmpty() {
+        return references.isEmpty();
+    }
+
+    /**
+     * @return The number of pending references
+     */
+    synchronized int size() {
+        return references.size();
+    }
+
+    /**
+     * @return A copy of this index, to be resolved and then
+     *         {@link #update(ReferenceIndex) written back}
+     */
+    synchronized ReferenceIndex copy() {
+        return new ReferenceIndex(this);
+    }
+
+    /**
+     * Take over the changes of a {@link #copy()} of this index: references
+     * resolved in the copy are removed, partially resolved and added ones are
+     * updated. As other copies might have been taken over in the meantime,
+     * unchanged references of the copy are left alone, and changed ones are
+     * only updated if they are still pending here.
+     *
+     * @param copy The changed copy
+     */
+    synchronized void update(final ReferenceIndex copy) {
+        for (final String key : copy.copiedKeys) {
+            final PendingReference reference = references.get(key);
+            if (reference != null && !copy.references.containsKey(key)) {
+                remove(reference);
+            }
+        }
+        for (final Map.Entry<String, PendingReference> entry : copy.references.entrySet()) {
+            final String key = entry.getKey();
+            if (!copy.copiedKeys.contains(key)
+                    || (copy.changedKeys.contains(key) && references.containsKey(key))) {
+                put(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Add all references of another index.
+     *
+     * @param index The other index
+     * @param owner The owner of the added references
+     */
+    synchronized void addAll(final ReferenceIndex index, final String owner) {
+        for (final PendingReference reference : index.references.values()) {
+            final PendingReference added = new PendingReference(reference);
+            added.owner = owner;
+            put(added);
+        }
+    }
+
+    /**
+     * Remove all references of an owner.
+     *
+     * @param owner The owner
+     */
+    synchronized void removeAll(final String owner) {
+        final Collection<PendingReference> owned = new ArrayList<>();
+        for (final PendingReference reference : references.values()) {
+            if (owner.equals(reference.owner)) {
+                owned.add(reference);
+            }
+        }
+        owned.forEach(this::remove);
+    }
+
+    /**
+     * Remove all references of an owner whose properties are at or below a
+     * path.
+     *
+     * @param owner The owner
+     * @param workspace The workspace name
+     * @param path The path
+     */
+    synchronized void removeAll(final String owner, final String workspace, final String path) {
+        final String prefix = "/".equals(path) ? "/" : path + "/";
+        final Collection<PendingReference> owned = new ArrayList<>();
+        for (final PendingReference reference : references.values()) {
+            if (owner.equals(reference.owner) && workspace.equals(reference.workspace)
+                    && (reference.nodePath.equals(path) || reference.nodePath.startsWith(prefix))) {
+                owned.add(reference);
+            }
+        }
+        owned.forEach(this::remove);
+    }
+
+    private static String key(final String workspace, final String path) {
+        return workspace + ":" + path;
+    }
+
+    /**
+     * A <code>REFERENCE</code> property waiting for target nodes.
+     */
+    static final class PendingReference {
+
+        final String workspace;
+
+        final String nodePath;
+
+        final String name;
+
+        final boolean multiple;
+
+        /** the identifiers of found and the paths of missing target nodes */
+        final String[] values;
+
+        /** the bundle which imported the property, if any */
+        String owner;
+
+        PendingReference(final String workspace, final String nodePath, final String name, final boolean multiple,
+                final String[] values) {
+            this.workspace = workspace;
+            this.nodePath = nodePath;
+            this.name = name;
+            this.multiple = multiple;
+            this.values = values.clone();
+        }
+
+        private PendingReference(final PendingReference reference) {
+            this(reference.workspace, reference.nodePath, reference.name, reference.multiple, reference.values);
+            this.owner = reference.owner;
+        }
+
+        /**
+         * Replace the path of a target node by its identifier.
+         *
+         * @param targetPath The path of the target node
+         * @param identifier The identifier of the target node
+         * @return <code>true</code> if all targets are resolved now
+         */
+        boolean resolve(final String targetPath, final String identifier) {
+            boolean resolved = true;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(targetPath)) {
+                    values[i] = identifier;
+                } else if (isPath(values[i])) {
+                    resolved = false;
+                }
+            }
+            return resolved;
+        }
+
+        /**
+         * @return The identifiers of the resolved target nodes
+         */
+        String[] getIdentifiers() {
+            return Arrays.stream(values).filter(v -> !isPath(v)).toArray(String[]::new);
+        }
+
+        String getPropertyPath() {
+            return "/".equals(nodePath) ? "/" + name : nodePath + "/" + name;
+        }
+
+        String key() {
+            return ReferenceIndex.key(workspace, getPropertyPath());
+        }
+
+        static boolean isPath(final String value) {
+            // identifiers never start with a slash
+            return value.startsWith("/");
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.sling.jcr.contentloader.ContentCreator;
+
+/**
+ * The <code>TimedContentCreator</code> delegates to another content creator and
+ * measures the time spent in it, which is the time a content reader spends on
+ * transient repository writes rather than on parsing.
+ */
+final class TimedContentCreator implements ContentCreator {
+
+    private final ContentCreator delegate;
+
+    private long writeNanos;
+
+    TimedContentCreator(final ContentCreator delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return The time spent in the delegate so far
+     */
+    long getWriteNanos() {
+        return writeNanos;
+    }
+
+    @Override
+    public void createNode(final String name, final String primaryNodeType, final String[] mixinNodeTypes)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createNode(name, primaryNodeType, mixinNodeTypes);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void finishNode() throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.finishNode();
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void finish() throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.finish();
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createProperty(final String name, final int propertyType, final String value)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createProperty(name, propertyType, value);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createProperty(final String name, final int propertyType, final String[] values)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createProperty(name, propertyType, values);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createTypedProperty(final String name, final int propertyType, final Object value)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createTypedProperty(name, propertyType, value);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createTypedProperty(final String name, final int propertyType, final Object[] values)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createTypedProperty(name, propertyType, values);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createProperty(final String name, final Object value) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createProperty(name, value);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createProperty(final String name, final Object[] values) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createProperty(name, values);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createFileAndResourceNode(final String name, final InputStream data, final String mimeType,
+            final long lastModified) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createFileAndResourceNode(name, data, mimeType, lastModified);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public boolean switchCurrentNode(final String subPath, final String newNodeType) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            return delegate.switchCurrentNode(subPath, newNodeType);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createUser(final String name, final String password, final Map<String, Object> extraProperties)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createUser(name, password, extraProperties);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createGroup(final String name, final String[] members, final Map<String, Object> extraProperties)
+            throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createGroup(name, members, extraProperties);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void startPrincipalBatch() throws RepositoryException {
+        delegate.startPrincipalBatch();
+    }
+
+    @Override
+    public void finishPrincipalBatch() throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.finishPrincipalBatch();
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createAce(final String principal, final String[] grantedPrivileges, final String[] deniedPrivileges,
+            final String order) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createAce(principal, grantedPrivileges, deniedPrivileges, order);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void createAce(final String principal, final String[] grantedPrivileges, final String[] deniedPrivileges,
+            final String order, final Map<String, Value> restrictions, final Map<String, Value[]> mvRestrictions,
+            final Set<String> removedRestrictionNames) throws RepositoryException {
+        final long start = System.nanoTime();
+        try {
+            delegate.createAce(principal, grantedPrivileges, deniedPrivileges, order, restrictions, mvRestrictions,
+                    removedRestrictionNames);
+        } finally {
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public Node getParent() {
+        return delegate.getParent();
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.VersionManager;
+
+import org.apache.sling.jcr.contentloader.ContentImportListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>VersionCheckin</code> checks in the versionable nodes of an import
+ * once its content has been saved. Every check-in is a commit of its own, so
+ * with threads configured the check-ins are spread across a pool of sessions
+ * and run in the background. Failed check-ins are retried. Imports touching
+ * nodes with pending check-ins have to wait for them with
+ * {@link #awaitPending(String, String)}, which fails if they take too long.
+ * Nodes which could not be checked in in the background are reported to a
+ * {@link FailureHandler}.
+ */
+final class VersionCheckin {
+
+    /**
+     * Informed about versionable nodes which have not been checked in in the
+     * background, because the check-in failed or was dropped on shutdown.
+     */
+    @FunctionalInterface
+    interface FailureHandler {
+
+        /**
+         * @param workspace The workspace of the nodes
+         * @param paths The paths of the nodes
+         */
+        void notCheckedIn(String workspace, List<String> paths);
+    }
+
+    static final int DEFAULT_RETRIES = 2;
+
+    private static final long AWAIT_TIMEOUT_SECONDS = 60;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final Logger log = LoggerFactory.getLogger(VersionCheckin.class);
+
+    private final BundleHelper bundleHelper;
+
+    private final int threads;
+
+    private final int retries;
+
+    private final ContentLoaderMetrics metrics;
+
+    /** the executor for background check-ins, <code>null</code> if synchronous */
+    private final ExecutorService executor;
+
+    /** number of pending check-ins by <code>workspace:path</code>, guarded by this */
+    private final Map<String, Integer> pending = new HashMap<>();
+
+    /**
+     * Create a synchronous check-in, running on the caller's thread and
+     * session.
+     */
+    VersionCheckin(final int retries, final ContentLoaderMetrics metrics) {
+        this(null, 0, retries, metrics);
+    }
+
+    /**
+     * @param bundleHelper Provides the sessions of the background check-ins
+     * @param threads The number of background threads, 0 to check in
+     *            synchronously
+     * @param retries The number of retries of a failed check-in
+     * @param metrics The metrics
+     */
+    VersionCheckin(final BundleHelper bundleHelper, final int threads, final int retries,
+            final ContentLoaderMetrics metrics) {
+        this.bundleHelper = bundleHelper;
+        this.threads = bundleHelper == null ? 0 : Math.max(0, threads);
+        this.retries = Math.max(0, retries);
+        this.metrics = metrics;
+        if (this.threads > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+                final Thread t = new Thread(r, "Apache Sling Content Loader Checkin #" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Check in the versionable nodes.
+     *
+     * @param versionables The saved versionable nodes
+     * @param listener The listener to inform about the check-ins, might be
+     *            <code>null</code>
+     * @throws RepositoryException If a synchronous check-in fails
+     * @see #checkin(Collection, ContentImportListener, FailureHandler)
+     */
+    void checkin(final Collection<Node> versionables, final ContentImportListener listener)
+            throws RepositoryException {
+        checkin(versionables, listener, null);
+    }
+
+    /**
+     * Check in the versionable nodes. Synchronous check-ins fail with the first
+     * node which can't be checked in, background check-ins log failures and
+     * report the nodes to the failure handler.
+     *
+     * @param versionables The saved versionable nodes
+     * @param listener The listener to inform about the check-ins, might be
+     *            <code>null</code>
+     * @param failureHandler The handler of failed background check-ins, might
+     *            be <code>null</code>
+     * @throws RepositoryException If a synchronous check-in fails
+     */
+    void checkin(final Collection<Node> versionables, final ContentImportListener listener,
+            final FailureHandler failureHandler) throws RepositoryException {
+        if (versionables.isEmpty()) {
+            return;
+        }
+        if (executor == null) {
+            final long start = System.nanoTime();
+            try {
+                for (final Node versionable : versionables) {
+                    checkin(versionable.getSession(), versionable.getPath(), listener);
+                }
+            } finally {
+                metrics.recordCheckin(System.nanoTime() - start);
+            }
+            return;
+        }
+
+        final Map<String, List<String>> pathsByWorkspace = new LinkedHashMap<>();
+        for (final Node versionable : versionables) {
+            pathsByWorkspace.computeIfAbsent(versionable.getSession().getWorkspace().getName(),
+                    k -> new ArrayList<>()).add(versionable.getPath());
+        }
+        pathsByWorkspace.forEach((workspace, paths) -> {
+            // stripe the paths, so siblings are checked in concurrently
+            final int chunks = Math.min(threads, paths.size());
+            for (int i = 0; i < chunks; i++) {
+                final List<String> chunk = new ArrayList<>();
+                for (int j = i; j < paths.size(); j += chunks) {
+                    chunk.add(paths.get(j));
+                }
+                submit(new CheckinTask(workspace, chunk, listener, failureHandler));
+            }
+        });
+    }
+
+    private void submit(final CheckinTask task) {
+        added(task.workspace, task.paths);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            log.warn("Content loader is shutting down, versionable nodes {} are not checked in", task.paths);
+            drop(task);
+        }
+    }
+
+    private void checkinInBackground(final CheckinTask task) {
+        final String workspace = task.workspace;
+        final List<String> paths = task.paths;
+        final List<String> failed = new ArrayList<>();
+        final long start = System.nanoTime();
+        int done = 0;
+        Session session = null;
+        try {
+            session = bundleHelper.getSession(workspace);
+            for (final String path : paths) {
+                try {
+                    checkin(session, path, task.listener);
+                } catch (RepositoryException re) {
+                    log.error("Cannot check in versionable node " + workspace + ":" + path, re);
+                    failed.add(path);
+                }
+                done(workspace, paths.subList(done, done + 1));
+                done++;
+            }
+        } catch (RepositoryException re) {
+            log.error("Cannot check in versionable nodes " + paths + " of workspace " + workspace, re);
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+            if (done < paths.size()) {
+                failed.addAll(paths.subList(done, paths.size()));
+                metrics.recordFailedCheckins(paths.size() - done);
+                done(workspace, paths.subList(done, paths.size()));
+            }
+            metrics.recordCheckin(System.nanoTime() - start);
+        }
+        if (!failed.isEmpty()) {
+            notCheckedIn(task.failureHandler, workspace, failed);
+        }
+    }
+
+    /**
+     * Drop a check-in which has not been started.
+     */
+    private void drop(final CheckinTask task) {
+        metrics.recordFailedCheckins(task.paths.size());
+        done(task.workspace, task.paths);
+        notCheckedIn(task.failureHandler, task.workspace, task.paths);
+    }
+
+    /**
+     * Inform the failure handler. As it might wait for an import, which in turn
+     * waits for its check-ins, it runs after the check-ins queued so far.
+     */
+    private void notCheckedIn(final FailureHandler failureHandler, final String workspace,
+            final List<String> paths) {
+        if (failureHandler == null) {
+            return;
+        }
+        final Runnable notification = () -> {
+            try {
+                failureHandler.notCheckedIn(workspace, paths);
+            } catch (RuntimeException e) {
+                log.error("Failure handling the versionable nodes " + paths + " which are not checked in", e);
+            }
+        };
+        try {
+            executor.execute(notification);
+        } catch (RejectedExecutionException ree) {
+            notification.run();
+        }
+    }
+
+    /**
+     * Check in a node, retrying with refreshed session state if it fails.
+     */
+    private void checkin(final Session session, final String path, final ContentImportListener listener)
+            throws RepositoryException {
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        for (int attempt = 0;; attempt++) {
+            try {
+                versionManager.checkin(path);
+                break;
+            } catch (PathNotFoundException pnfe) {
+                // removed in the meantime, nothing to retry
+                metrics.recordFailedCheckins(1);
+                throw pnfe;
+            } catch (RepositoryException re) {
+                if (attempt >= retries) {
+                    metrics.recordFailedCheckins(1);
+                    throw re;
+                }
+                log.debug("Retrying check-in of {} after failure: {}", path, re.getMessage());
+                session.refresh(true);
+            }
+        }
+        metrics.recordCheckedInNodes(1);
+        if (listener != null) {
+            listener.onCheckin(path);
+        }
+    }
+
+    /**
+     * Wait until no check-in of the given node, its ancestors or its
+     * descendants is pending anymore.
+     *
+     * @param workspace The workspace name
+     * @param path The path of the node
+     * @throws RepositoryException If the check-ins are not done in time or the
+     *             thread is interrupted while waiting
+     */
+    synchronized void awaitPending(final String workspace, final String path) throws RepositoryException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(AWAIT_TIMEOUT_SECONDS);
+        try {
+            while (isPending(workspace, path)) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new RepositoryException("Pending check-ins below " + workspace + ":" + path
+                            + " not done within " + AWAIT_TIMEOUT_SECONDS + " seconds");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for pending check-ins below " + workspace
+                    + ":" + path, ie);
+        }
+    }
+
+    /**
+     * @return The number of pending check-ins
+     */
+    synchronized int getPendingCount() {
+        return pending.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Stop the background check-ins, waiting for the pending ones.
+     */
+    void dispose() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Pending check-ins not done within {} seconds, discarding them", SHUTDOWN_TIMEOUT_SECONDS);
+                dropQueued();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            dropQueued();
+        }
+    }
+
+    /**
+     * Stop the running check-ins and report the queued ones as not checked in.
+     */
+    private void dropQueued() {
+        for (final Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof CheckinTask) {
+                drop((CheckinTask) queued);
+            } else {
+                // a failure notification
+                queued.run();
+            }
+        }
+    }
+
+    private boolean isPending(final String workspace, final String path) {
+        final String key = workspace + ":" + (path.endsWith("/") ? path : path + "/");
+        for (final String pendingKey : pending.keySet()) {
+            final String other = pendingKey + "/";
+            if (other.startsWith(key) || key.startsWith(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void added(final String workspace, final List<String> paths) {
+        for (final String path : paths) {
+            pending.merge(workspace + ":" + path, 1, Integer::sum);
+        }
+        metrics.recordPendingCheckins(paths.size());
+    }
+
+    private synchronized void done(final String workspace, final List<String> paths) {
+        for (final String path : paths) {
+            pending.computeIfPresent(workspace + ":" + path, (k, count) -> count > 1 ? count - 1 : null);
+        }
+        metrics.recordPendingCheckins(-paths.size());
+        notifyAll();
+    }
+
+    /**
+     * The check-in of some nodes of a workspace in the background.
+     */
+    private final class CheckinTask implements Runnable {
+
+        private final String workspace;
+
+        private final List<String> paths;
+
+        private final ContentImportListener listener;
+
+        private final FailureHandler failureHandler;
+
+        CheckinTask(final String workspace, final List<String> paths, final ContentImportListener listener,
+                final FailureHandler failureHandler) {
+            this.workspace = workspace;
+            this.paths = paths;
+            this.listener = listener;
+            this.failureHandler = failureHandler;
+        }
+
+        @Override
+        public void run() {
+            checkinInBackground(this);
+        }
+    }
+}
@@ -18,19 +18,25 @@
  */
 package org.apache.sling.jcr.contentloader.internal.readers;
 
-import static org.apache.sling.jcr.contentparser.impl.JsonTicksConverter.tickToDoubleQuote;
-
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.PropertyType;
@@ -40,13 +46,22 @@ import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
 import javax.json.JsonException;
 import javax.json.JsonNumber;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonString;
 import javax.json.JsonValue;
 import javax.json.JsonValue.ValueType;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParserFactory;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionDefinition;
 import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionProvider;
 import org.apache.sling.jcr.contentloader.ContentCreator;
@@ -106,13 +121,22 @@ import org.osgi.service.component.annotations.Component;
  *   }
  *
  * </pre>
+ *
+ * The document is streamed: nodes and properties are passed to the
+ * {@link ContentCreator} while the document is parsed, so only the properties
+ * of a node are held in memory until its first child node is reached. Nodes
+ * declaring <code>jcr:primaryType</code> or <code>jcr:mixinTypes</code> after
+ * their child nodes are read completely before they are created. To find them,
+ * the document is scanned beforehand for type keys following a nested object,
+ * which only looks at the characters and is much cheaper than parsing. Only if
+ * there are such keys, the document is parsed twice to find the nodes. A
+ * document read from a stream, which can only be read once, is kept in memory
+ * while it is read if it is small, otherwise in a temporary file.
  */
 @Component(service = ContentReader.class, property = { Constants.SERVICE_VENDOR + "=The Apache Software Foundation",
         ContentReader.PROPERTY_EXTENSIONS + "=json", ContentReader.PROPERTY_TYPES + "=application/json" })
 public class JsonReader implements ContentReader {
 
-    private static final Pattern jsonDate = Pattern.compile(
-            "^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}\\.[0-9]{3}[-+]{1}[0-9]{2}[:]{0,1}[0-9]{2}$");
     private static final String REFERENCE = "jcr:reference:";
     private static final String PATH = "jcr:path:";
     private static final String NAME = "jcr:name:";
@@ -141,43 +165,411 @@ public class JsonReader implements ContentReader {
     private static final String SECURITY_PRINCIPLES = "security:principals";
     private static final String SECURITY_ACL = "security:acl";
 
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+    private static final String MIXIN_TYPES = "jcr:mixinTypes";
+
+    /** the size up to which a streamed document is kept in memory */
+    private static final int MAX_IN_MEMORY_SIZE = 256 * 1024;
+
+    private final JsonParserFactory parserFactory;
+
+    /** looking up the provider for each object read is expensive */
+    private final JsonBuilderFactory builderFactory;
+
+    public JsonReader() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("org.apache.johnzon.supports-comments", true);
+        this.parserFactory = Json.createParserFactory(config);
+        this.builderFactory = Json.createBuilderFactory(Collections.<String, Object>emptyMap());
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentReader#parse(java.net.URL,
      *      org.apache.sling.jcr.contentloader.ContentCreator)
      */
     @Override
     public void parse(java.net.URL url, ContentCreator contentCreator) throws IOException, RepositoryException {
-        InputStream ins = null;
-        try {
-            ins = url.openStream();
+        // the URL is only read once, the pre-passes read the spooled copy
+        try (InputStream ins = url.openStream()) {
             parse(ins, contentCreator);
-        } finally {
-            if (ins != null) {
-                try {
-                    ins.close();
-                } catch (IOException ignore) {
-                }
-            }
         }
     }
 
     @Override
     public void parse(InputStream ins, ContentCreator contentCreator) throws IOException, RepositoryException {
-        String jsonString = toString(ins).trim();
-        if (!jsonString.startsWith("{")) {
-            jsonString = "{" + jsonString + "}";
+        if (!isStreamed()) {
+            parse(ins, Collections.<String>emptySet(), contentCreator);
+            return;
         }
-        Map<String, Object> config = new HashMap<>();
-        config.put("org.apache.johnzon.supports-comments", true);
-        try (javax.json.JsonReader reader = Json.createReaderFactory(config).createReader(new StringReader(tickToDoubleQuote(jsonString)))) {
-            JsonObject json = reader.readObject();
-            this.createNode(null, json, contentCreator);
+        // the stream can only be read once, but the nodes to buffer are found beforehand
+        final DeferredFileOutputStream content = new DeferredFileOutputStream(MAX_IN_MEMORY_SIZE, "jsonreader",
+                ".json", null);
+        try {
+            try {
+                IOUtils.copy(ins, content);
+            } finally {
+                content.close();
+            }
+            boolean typesAfterChildNodes;
+            try (InputStream copy = open(content)) {
+                typesAfterChildNodes = mayDeclareTypesAfterChildNodes(copy);
+            }
+            Set<String> bufferedNodes = Collections.emptySet();
+            if (typesAfterChildNodes) {
+                try (InputStream copy = open(content)) {
+                    bufferedNodes = findBufferedNodes(copy);
+                }
+            }
+            try (InputStream copy = open(content)) {
+                parse(copy, bufferedNodes, contentCreator);
+            }
+        } finally {
+            if (!content.isInMemory()) {
+                FileUtils.deleteQuietly(content.getFile());
+            }
+        }
+    }
+
+    private static InputStream open(DeferredFileOutputStream content) throws IOException {
+        return content.isInMemory() ? new ByteArrayInputStream(content.getData())
+                : new FileInputStream(content.getFile());
+    }
+
+    private void parse(InputStream ins, Set<String> bufferedNodes, ContentCreator contentCreator)
+            throws IOException, RepositoryException {
+        try (JsonParser parser = this.parserFactory.createParser(toReader(ins))) {
+            if (parser.next() != Event.START_OBJECT) {
+                throw new JsonException("JSON content must be an object");
+            }
+            this.parse(parser, bufferedNodes, contentCreator);
             contentCreator.finish();
         } catch (JsonException je) {
             throw (IOException) new IOException(je.getMessage()).initCause(je);
         }
     }
 
+    /**
+     * @return <code>true</code> if the document is streamed, which requires
+     *         finding the nodes to buffer beforehand
+     */
+    protected boolean isStreamed() {
+        return true;
+    }
+
+    /**
+     * Scan the characters of a document for <code>jcr:primaryType</code> or
+     * <code>jcr:mixinTypes</code> keys following a nested object within the same
+     * object. This does not parse the document and might report keys which
+     * are not node types, in which case {@link #findBufferedNodes(InputStream)}
+     * finds no nodes.
+     *
+     * @return <code>false</code> if all types are declared before child nodes
+     */
+    private boolean mayDeclareTypesAfterChildNodes(InputStream ins) throws IOException {
+        // whether the object at a depth contains a nested object
+        final BitSet hasChildNodes = new BitSet();
+        // the start of the current string, at most as long as the type keys
+        final char[] key = new char[PRIMARY_TYPE.length() + 1];
+        int keyLength = 0;
+        int depth = 0;
+        // the quote of the current string, 0 if not in a string
+        char quote = 0;
+        boolean escaped = false;
+        boolean lineComment = false;
+        boolean blockComment = false;
+        char previous = 0;
+        // the ticks and braces added by JsonTicksReader do not matter here
+        try (Reader reader = toDecodedReader(ins)) {
+            final char[] buffer = new char[8192];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                for (int i = 0; i < read; i++) {
+                    final char c = buffer[i];
+                    if (quote != 0) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == quote) {
+                            quote = 0;
+                            if (hasChildNodes.get(depth) && isTypeKey(key, keyLength)) {
+                                return true;
+                            }
+                        } else if (keyLength < key.length) {
+                            key[keyLength++] = c;
+                        }
+                    } else if (lineComment) {
+                        lineComment = c != '\n' && c != '\r';
+                    } else if (blockComment) {
+                        if (previous == '*' && c == '/') {
+                            blockComment = false;
+                            previous = 0;
+                            continue;
+                        }
+                    } else if (previous == '/' && (c == '/' || c == '*')) {
+                        lineComment = c == '/';
+                        blockComment = c == '*';
+                        previous = 0;
+                        continue;
+                    } else if (c == '"' || c == '\'') {
+                        quote = c;
+                        keyLength = 0;
+                    } else if (c == '{') {
+                        hasChildNodes.set(depth);
+                        hasChildNodes.clear(++depth);
+                    } else if (c == '}') {
+                        depth = Math.max(0, depth - 1);
+                    }
+                    previous = c;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTypeKey(char[] key, int length) {
+        return length == PRIMARY_TYPE.length() && PRIMARY_TYPE.contentEquals(CharBuffer.wrap(key, 0, length))
+                || length == MIXIN_TYPES.length() && MIXIN_TYPES.contentEquals(CharBuffer.wrap(key, 0, length));
+    }
+
+    /**
+     * Find the nodes declaring their types after child nodes, which have to be
+     * read completely before they can be created.
+     *
+     * @return The paths of the nodes relative to the root node, which has the
+     *         empty path
+     */
+    private Set<String> findBufferedNodes(InputStream ins) throws IOException {
+        final Set<String> paths = new HashSet<>();
+        try (JsonParser parser = this.parserFactory.createParser(toReader(ins))) {
+            if (parser.next() != Event.START_OBJECT) {
+                throw new JsonException("JSON content must be an object");
+            }
+            findBufferedNodes(parser, "", paths);
+        } catch (JsonException je) {
+            throw (IOException) new IOException(je.getMessage()).initCause(je);
+        }
+        return paths;
+    }
+
+    private void findBufferedNodes(JsonParser parser, String path, Set<String> paths) {
+        boolean hasChildNodes = false;
+        for (Event event = parser.next(); event != Event.END_OBJECT; event = parser.next()) {
+            final String n = parser.getString();
+            event = parser.next();
+            if (PRIMARY_TYPE.equals(n) || MIXIN_TYPES.equals(n)) {
+                if (hasChildNodes) {
+                    paths.add(path);
+                }
+                skipValue(parser, event);
+            } else if (event == Event.START_OBJECT && !ignoredNames.contains(n) && !SECURITY_PRINCIPLES.equals(n)
+                    && !SECURITY_ACL.equals(n)) {
+                hasChildNodes = true;
+                findBufferedNodes(parser, path + "/" + n, paths);
+            } else {
+                skipValue(parser, event);
+            }
+        }
+    }
+
+    private static void skipValue(JsonParser parser, Event event) {
+        if (event != Event.START_OBJECT && event != Event.START_ARRAY) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            final Event e = parser.next();
+            if (e == Event.START_OBJECT || e == Event.START_ARRAY) {
+                depth++;
+            } else if (e == Event.END_OBJECT || e == Event.END_ARRAY) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Create the content of the document, the start of the root object has
+     * already been read from the parser.
+     *
+     * @param bufferedNodes The paths of the nodes to read completely before
+     *            creating them, relative to the root node
+     */
+    protected void parse(JsonParser parser, Set<String> bufferedNodes, ContentCreator contentCreator)
+            throws RepositoryException {
+        this.createNode("", null, parser, bufferedNodes, contentCreator);
+    }
+
+    /**
+     * Create a node from the parser positioned after the start of its object.
+     * Properties are kept until the node types are known, which is at the first
+     * child node or the end of the object. Nodes declaring their types after
+     * child nodes are read completely instead.
+     */
+    protected void createNode(String path, String name, JsonParser parser, Set<String> bufferedNodes,
+            ContentCreator contentCreator) throws RepositoryException {
+        if (bufferedNodes.contains(path)) {
+            this.createNode(name, readObject(parser), contentCreator);
+            return;
+        }
+        String primaryType = null;
+        String[] mixinTypes = null;
+        List<Map.Entry<String, Object>> pending = new ArrayList<>();
+        boolean created = false;
+
+        for (Event event = parser.next(); event != Event.END_OBJECT; event = parser.next()) {
+            final String n = parser.getString();
+            event = parser.next();
+            if (PRIMARY_TYPE.equals(n) || MIXIN_TYPES.equals(n)) {
+                if (created) {
+                    throw new JsonException(
+                            n + " of node " + name + " must be declared before its child nodes");
+                }
+                final Object value = readValue(parser, event);
+                if (PRIMARY_TYPE.equals(n)) {
+                    primaryType = value instanceof String ? (String) value : null;
+                } else if (value instanceof JsonArray) {
+                    JsonArray mixins = (JsonArray) value;
+                    mixinTypes = new String[mixins.size()];
+                    for (int i = 0; i < mixinTypes.length; i++) {
+                        mixinTypes[i] = mixins.getString(i);
+                    }
+                }
+            } else if (ignoredNames.contains(n)) {
+                // skip well known objects
+                readValue(parser, event);
+            } else if (event == Event.START_OBJECT && !SECURITY_PRINCIPLES.equals(n) && !SECURITY_ACL.equals(n)) {
+                if (!created) {
+                    created = true;
+                    startNode(name, primaryType, mixinTypes, pending, contentCreator);
+                }
+                this.createNode(path + "/" + n, n, parser, bufferedNodes, contentCreator);
+            } else {
+                final Object value = readValue(parser, event);
+                if (created) {
+                    writeChild(n, value, contentCreator);
+                } else {
+                    pending.add(new AbstractMap.SimpleImmutableEntry<>(n, value));
+                }
+            }
+        }
+
+        if (!created) {
+            startNode(name, primaryType, mixinTypes, pending, contentCreator);
+        }
+        contentCreator.finishNode();
+    }
+
+    private void startNode(String name, String primaryType, String[] mixinTypes,
+            List<Map.Entry<String, Object>> pending, ContentCreator contentCreator) throws RepositoryException {
+        contentCreator.createNode(name, primaryType, mixinTypes);
+        for (Map.Entry<String, Object> entry : pending) {
+            writeChild(entry.getKey(), entry.getValue(), contentCreator);
+        }
+    }
+
+    private void writeChild(String n, Object o, ContentCreator contentCreator) throws RepositoryException {
+        if (!handleSecurity(n, o, contentCreator)) {
+            if (o instanceof JsonObject) {
+                this.createNode(n, (JsonObject) o, contentCreator);
+            } else {
+                this.createProperty(n, o, contentCreator);
+            }
+        }
+    }
+
+    /**
+     * Read the value of the current event. Objects and arrays are read
+     * completely, other values are returned as unboxed Java objects.
+     */
+    protected Object readValue(JsonParser parser, Event event) {
+        switch (event) {
+        case START_OBJECT:
+            return readObject(parser);
+        case START_ARRAY:
+            return readArray(parser);
+        case VALUE_STRING:
+            return parser.getString();
+        case VALUE_NUMBER:
+            if (parser.isIntegralNumber()) {
+                return Long.valueOf(parser.getLong());
+            }
+            return Double.valueOf(parser.getBigDecimal().doubleValue());
+        case VALUE_TRUE:
+            return true;
+        case VALUE_FALSE:
+            return false;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw new JsonException("Unexpected JSON event " + event);
+        }
+    }
+
+    /**
+     * Read an object from the parser positioned after its start.
+     */
+    protected JsonObject readObject(JsonParser parser) {
+        JsonObjectBuilder object = this.builderFactory.createObjectBuilder();
+        for (Event e = parser.next(); e != Event.END_OBJECT; e = parser.next()) {
+            final String key = parser.getString();
+            final Event event = parser.next();
+            switch (event) {
+            case START_OBJECT:
+                object.add(key, readObject(parser));
+                break;
+            case START_ARRAY:
+                object.add(key, readArray(parser));
+                break;
+            case VALUE_STRING:
+                object.add(key, parser.getString());
+                break;
+            case VALUE_NUMBER:
+                object.add(key, parser.getBigDecimal());
+                break;
+            case VALUE_TRUE:
+                object.add(key, JsonValue.TRUE);
+                break;
+            case VALUE_FALSE:
+                object.add(key, JsonValue.FALSE);
+                break;
+            default:
+                object.addNull(key);
+            }
+        }
+        return object.build();
+    }
+
+    /**
+     * Read an array from the parser positioned after its start.
+     */
+    protected JsonArray readArray(JsonParser parser) {
+        JsonArrayBuilder array = this.builderFactory.createArrayBuilder();
+        for (Event e = parser.next(); e != Event.END_ARRAY; e = parser.next()) {
+            switch (e) {
+            case START_OBJECT:
+                array.add(readObject(parser));
+                break;
+            case START_ARRAY:
+                array.add(readArray(parser));
+                break;
+            case VALUE_STRING:
+                array.add(parser.getString());
+                break;
+            case VALUE_NUMBER:
+                array.add(parser.getBigDecimal());
+                break;
+            case VALUE_TRUE:
+                array.add(JsonValue.TRUE);
+                break;
+            case VALUE_FALSE:
+                array.add(JsonValue.FALSE);
+                break;
+            default:
+                array.addNull();
+            }
+        }
+        return array.build();
+    }
+
     protected boolean handleSecurity(String n, Object o, ContentCreator contentCreator) throws RepositoryException {
         if (SECURITY_PRINCIPLES.equals(n)) {
             this.createPrincipals(o, contentCreator);
@@ -210,6 +602,15 @@ public class JsonReader implements ContentReader {
     protected void createNode(String name, JsonObject obj, ContentCreator contentCreator) throws RepositoryException {
         String primaryType = obj.getString("jcr:primaryType", null);
 
+        contentCreator.createNode(name, primaryType, getMixinTypes(obj));
+        writeChildren(obj, contentCreator);
+        contentCreator.finishNode();
+    }
+
+    /**
+     * @return The mixin node types declared by the object or <code>null</code>
+     */
+    protected String[] getMixinTypes(JsonObject obj) {
         String[] mixinTypes = null;
         Object mixinsObject = obj.get("jcr:mixinTypes");
         if (mixinsObject instanceof JsonArray) {
@@ -219,10 +620,7 @@ public class JsonReader implements ContentReader {
                 mixinTypes[i] = mixins.getString(i);
             }
         }
-
-        contentCreator.createNode(name, primaryType, mixinTypes);
-        writeChildren(obj, contentCreator);
-        contentCreator.finishNode();
+        return mixinTypes;
     }
 
     protected void createProperty(String name, Object value, ContentCreator contentCreator) throws RepositoryException {
@@ -231,19 +629,32 @@ public class JsonReader implements ContentReader {
             // multivalue
             final JsonArray array = (JsonArray) value;
             if (!array.isEmpty()) {
-                final String values[] = new String[array.size()];
+                final Object values[] = new Object[array.size()];
+                // numbers and booleans of one kind are passed on without converting them to strings
+                boolean typed = true;
                 for (int i = 0; i < values.length; i++) {
-                    values[i] = unbox(array.get(i)).toString();
+                    values[i] = unbox(array.get(i));
+                    typed &= isTypedValue(values[i]) && values[i].getClass() == values[0].getClass();
+                }
+                final int propertyType = getType(name, values[0]);
+                if (typed) {
+                    contentCreator.createTypedProperty(getName(name), propertyType, values);
+                } else {
+                    final String strings[] = new String[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        strings[i] = values[i].toString();
+                    }
+                    contentCreator.createProperty(getName(name), propertyType, strings);
                 }
-                final int propertyType = getType(name, unbox(array.get(0)));
-                contentCreator.createProperty(getName(name), propertyType, values);
             } else {
                 contentCreator.createProperty(getName(name), PropertyType.STRING, new String[0]);
             }
-        } else if (value instanceof JsonValue) {
+        } else {
             // single value
             value = unbox(value);
-            if (value != null) {
+            if (isTypedValue(value)) {
+                contentCreator.createTypedProperty(getName(name), getType(name, value), value);
+            } else if (value != null) {
                 contentCreator.createProperty(getName(name), getType(name, value), value.toString());
             }
         }
@@ -273,6 +684,10 @@ public class JsonReader implements ContentReader {
         return o;
     }
 
+    private static boolean isTypedValue(Object value) {
+        return value instanceof Long || value instanceof Double || value instanceof Boolean;
+    }
+
     private int getType(String name, Object object) {
         if (object == null) {
             return PropertyType.STRING;
@@ -292,7 +707,7 @@ public class JsonReader implements ContentReader {
                 return PropertyType.NAME;
             if (name.startsWith(URI))
                 return PropertyType.URI;
-            if (jsonDate.matcher((String) object).matches())
+            if (TypedValues.isDate((String) object))
                 return PropertyType.DATE;
         }
 
@@ -312,7 +727,24 @@ public class JsonReader implements ContentReader {
         return name;
     }
 
-    private String toString(InputStream ins) throws IOException {
+    /**
+     * Create a reader for the JSON content, honoring an optional
+     * <code>#encoding</code> header, converting ticks to double quotes and
+     * adding enclosing braces if missing.
+     */
+    private Reader toReader(InputStream ins) throws IOException {
+        BufferedReader reader = toDecodedReader(ins);
+        // skip leading whitespace to check for the enclosing braces
+        reader.mark(1);
+        int c;
+        for (c = reader.read(); c != -1 && Character.isWhitespace((char) c); c = reader.read()) {
+            reader.mark(1);
+        }
+        reader.reset();
+        return new JsonTicksReader(reader, c != '{');
+    }
+
+    private BufferedReader toDecodedReader(InputStream ins) throws IOException {
         if (!ins.markSupported()) {
             ins = new BufferedInputStream(ins);
         }
@@ -322,8 +754,8 @@ public class JsonReader implements ContentReader {
         int c = ins.read();
         if (c == '#') {
             // character encoding following
-            StringBuffer buf = new StringBuffer();
-            for (c = ins.read(); !Character.isWhitespace((char) c); c = ins.read()) {
+            StringBuilder buf = new StringBuilder();
+            for (c = ins.read(); c != -1 && !Character.isWhitespace((char) c); c = ins.read()) {
                 buf.append((char) c);
             }
             encoding = buf.toString();
@@ -332,15 +764,7 @@ public class JsonReader implements ContentReader {
             encoding = "UTF-8";
         }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-        int rd;
-        while ((rd = ins.read(buf)) >= 0) {
-            bos.write(buf, 0, rd);
-        }
-        bos.close(); // just to comply with the contract
-
-        return new String(bos.toByteArray(), encoding);
+        return new BufferedReader(new InputStreamReader(ins, encoding));
     }
 
     /**
@@ -369,8 +793,9 @@ public class JsonReader implements ContentReader {
             // single principal
             createPrincipal((JsonObject) obj, contentCreator);
         } else if (obj instanceof JsonArray) {
-            // array of principals
+            // array of principals, created together
             JsonArray jsonArray = (JsonArray) obj;
+            contentCreator.startPrincipalBatch();
             for (int i = 0; i < jsonArray.size(); i++) {
                 Object object = jsonArray.get(i);
                 if (object instanceof JsonObject) {
@@ -379,6 +804,7 @@ public class JsonReader implements ContentReader {
                     throw new JsonException("Unexpected data type in principals array: " + object.getClass().getName());
                 }
             }
+            contentCreator.finishPrincipalBatch();
         }
     }
 
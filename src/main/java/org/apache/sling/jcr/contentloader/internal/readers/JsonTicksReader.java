@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The <code>JsonTicksReader</code> converts JSON with single quotes (ticks)
+ * to valid JSON while it is read, like
+ * <code>JsonTicksConverter.tickToDoubleQuote</code> does for a complete
+ * string. Optionally the content is enclosed in curly braces.
+ */
+final class JsonTicksReader extends Reader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    /** character to return before converting further input, -1 if none */
+    private int pending;
+
+    /** whether a closing brace has to be added at the end of the input */
+    private boolean closingBrace;
+
+    private boolean inDoubleQuotes;
+
+    private boolean inSingleQuotes;
+
+    private boolean escaped;
+
+    private boolean inComment;
+
+    private char previous = ' ';
+
+    /**
+     * @param in The reader to convert
+     * @param braces <code>true</code> to enclose the content in curly braces
+     */
+    JsonTicksReader(final Reader in, final boolean braces) {
+        this.in = in;
+        this.pending = braces ? '{' : -1;
+        this.closingBrace = braces;
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < len) {
+            if (pending >= 0) {
+                cbuf[off + count++] = (char) pending;
+                pending = -1;
+                continue;
+            }
+            if (position == limit) {
+                if (count > 0) {
+                    break;
+                }
+                final int read = in.read(buffer, 0, BUFFER_SIZE);
+                if (read < 0) {
+                    if (closingBrace) {
+                        closingBrace = false;
+                        pending = '}';
+                        continue;
+                    }
+                    return -1;
+                }
+                position = 0;
+                limit = read;
+                continue;
+            }
+            final int c = convert(buffer[position++]);
+            if (c >= 0) {
+                if (pending >= 0) {
+                    // an escape character has to be written first
+                    cbuf[off + count++] = (char) pending;
+                    pending = c;
+                } else {
+                    cbuf[off + count++] = (char) c;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert the next character. An escape character to be written before the
+     * returned character is set as {@link #pending}.
+     *
+     * @return The converted character or -1 if nothing is written
+     */
+    private int convert(char c) {
+        if (inDoubleQuotes || inSingleQuotes) {
+            if (escaped) {
+                if (c != '\'') {
+                    pending = '\\';
+                }
+                escaped = false;
+                if (c == '\\') {
+                    return c;
+                }
+            } else if (c == '"') {
+                if (inDoubleQuotes) {
+                    inDoubleQuotes = false;
+                } else {
+                    pending = '\\';
+                }
+            } else if (c == '\'') {
+                if (inSingleQuotes) {
+                    c = '"';
+                    inSingleQuotes = false;
+                }
+            } else if (c == '\\') {
+                escaped = true;
+                return -1;
+            }
+        } else if (inComment) {
+            if (previous == '*' && c == '/') {
+                inComment = false;
+            }
+        } else if (previous == '/' && c == '*') {
+            inComment = true;
+        } else if (c == '\'') {
+            c = '"';
+            inSingleQuotes = true;
+        } else if (c == '"') {
+            inDoubleQuotes = true;
+        }
+        if (c == '\\') {
+            return -1;
+        }
+        previous = c;
+        return c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
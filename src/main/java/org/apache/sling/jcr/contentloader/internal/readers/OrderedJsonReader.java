@@ -19,14 +19,14 @@
 package org.apache.sling.jcr.contentloader.internal.readers;
 
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
-import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonException;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
 
 import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.apache.sling.jcr.contentloader.ContentReader;
@@ -39,6 +39,7 @@ import org.osgi.service.component.annotations.Component;
  * type of structure that will force import of an orderable node with first and second
  * children, in that order.
  * Note that this is the reponsability of the json file to set appropriate node type / mixins.
+ * As the ordered children need to be known up front, the document is not streamed.
  */
 @Component(service = ContentReader.class,
 property = {
@@ -51,10 +52,61 @@ public class OrderedJsonReader extends JsonReader {
     private static final String PN_ORDEREDCHILDREN = "SLING:ordered";
     private static final String PN_ORDEREDCHILDNAME = "SLING:name";
 
+    @Override
+    protected boolean isStreamed() {
+        return false;
+    }
+
+    @Override
+    protected void parse(JsonParser parser, Set<String> bufferedNodes, ContentCreator contentCreator)
+            throws RepositoryException {
+        this.createNode(null, readObject(parser), contentCreator);
+    }
+
     @Override
     protected void writeChildren(JsonObject obj, ContentCreator contentCreator) throws RepositoryException {
-        if (! obj.containsKey(PN_ORDEREDCHILDREN)) {
-            super.writeChildren(obj, contentCreator);
+        writeChildren(obj, false, contentCreator);
+    }
+
+    /**
+     * Create an ordered child node and its children. The name of the child is
+     * skipped while iterating instead of copying the object without it.
+     *
+     * @param name The name of the child node
+     * @param obj The child object, including its name
+     * @param contentCreator The content creator
+     * @throws RepositoryException If the node can't be created
+     */
+    protected void createOrderedNode(String name, JsonObject obj, ContentCreator contentCreator)
+            throws RepositoryException {
+        String primaryType = obj.getString("jcr:primaryType", null);
+
+        contentCreator.createNode(name, primaryType, getMixinTypes(obj));
+        writeChildren(obj, true, contentCreator);
+        contentCreator.finishNode();
+    }
+
+    private void writeChildren(JsonObject obj, boolean orderedChild, ContentCreator contentCreator)
+            throws RepositoryException {
+        if (!obj.containsKey(PN_ORDEREDCHILDREN)) {
+            if (!orderedChild) {
+                super.writeChildren(obj, contentCreator);
+                return;
+            }
+            for (Map.Entry<String, JsonValue> entry : obj.entrySet()) {
+                final String n = entry.getKey();
+                // skip well known objects and the name of the ordered child
+                if (!ignoredNames.contains(n) && !PN_ORDEREDCHILDNAME.equals(n)) {
+                    Object o = entry.getValue();
+                    if (!handleSecurity(n, o, contentCreator)) {
+                        if (o instanceof JsonObject) {
+                            this.createNode(n, (JsonObject) o, contentCreator);
+                        } else {
+                            this.createProperty(n, o, contentCreator);
+                        }
+                    }
+                }
+            }
         } else {
             for (Map.Entry<String, JsonValue> entry : obj.entrySet()) {
                 final String n = entry.getKey();
@@ -63,35 +115,7 @@ public class OrderedJsonReader extends JsonReader {
                     Object o = entry.getValue();
                     if (!handleSecurity(n, o, contentCreator)) {
                         if (n.equals(PN_ORDEREDCHILDREN)) {
-                            if (o instanceof JsonArray) {
-                                JsonArray children = (JsonArray) o;
-                                for (int childIndex = 0; childIndex < children.size(); childIndex++) {
-                                    Object oc = children.get(childIndex);
-                                    if (oc instanceof JsonObject) {
-                                        JsonObject child = (JsonObject) oc;
-                                        String childName = child.getString(PN_ORDEREDCHILDNAME, null);
-                                        if (childName != null && !childName.isEmpty() ) {
-                                            JsonObjectBuilder builder = Json.createObjectBuilder();
-                                            for (Map.Entry<String, JsonValue> e : child.entrySet())
-                                            {
-                                                if (!PN_ORDEREDCHILDNAME.equals(e.getKey()))
-                                                {
-                                                    builder.add(e.getKey(), e.getValue());
-                                                }
-                                            }
-                                            child = builder.build();
-                                            this.createNode(childName, child, contentCreator);
-                                        } else {
-                                            throw new JsonException(PN_ORDEREDCHILDREN + " children must have a name whose key is " + PN_ORDEREDCHILDNAME);
-                                        }
-                                    } else {
-                                        throw new JsonException(PN_ORDEREDCHILDREN + " array must only have JSONObject items");
-                                    }
-
-                                }
-                            } else {
-                                throw new JsonException(PN_ORDEREDCHILDREN + " value must be a JSON array");
-                            }
+                            writeOrderedChildren(o, contentCreator);
                         }
                     } else {
                         this.createProperty(n, o, contentCreator);
@@ -100,4 +124,21 @@ public class OrderedJsonReader extends JsonReader {
             }
         }
     }
+
+    private void writeOrderedChildren(Object o, ContentCreator contentCreator) throws RepositoryException {
+        if (!(o instanceof JsonArray)) {
+            throw new JsonException(PN_ORDEREDCHILDREN + " value must be a JSON array");
+        }
+        for (JsonValue oc : (JsonArray) o) {
+            if (!(oc instanceof JsonObject)) {
+                throw new JsonException(PN_ORDEREDCHILDREN + " array must only have JSONObject items");
+            }
+            JsonObject child = (JsonObject) oc;
+            String childName = child.getString(PN_ORDEREDCHILDNAME, null);
+            if (childName == null || childName.isEmpty()) {
+                throw new JsonException(PN_ORDEREDCHILDREN + " children must have a name whose key is " + PN_ORDEREDCHILDNAME);
+            }
+            this.createOrderedNode(childName, child, contentCreator);
+        }
+    }
 }
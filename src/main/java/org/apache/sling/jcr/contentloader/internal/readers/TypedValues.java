@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.util.ISO8601;
+
+/**
+ * Helpers for the content readers to hand typed values to
+ * {@link org.apache.sling.jcr.contentloader.ContentCreator#createTypedProperty(String, int, Object)}.
+ */
+final class TypedValues {
+
+    /** length of <code>yyyy-MM-ddTHH:mm:ss.SSS</code> */
+    private static final int LOCAL_DATE_TIME_LENGTH = 23;
+
+    private TypedValues() {
+        // static methods only
+    }
+
+    /**
+     * Check whether a string is a date like
+     * <code>2009-09-24T16:32:57.948-07:00</code>, the time zone offset with or
+     * without colon. This is the format JSON content uses for dates.
+     *
+     * @param value The string
+     * @return <code>true</code> if it is a date
+     */
+    static boolean isDate(final String value) {
+        final int length = value.length();
+        if (length != LOCAL_DATE_TIME_LENGTH + 5 && length != LOCAL_DATE_TIME_LENGTH + 6) {
+            return false;
+        }
+        for (int i = 0; i < LOCAL_DATE_TIME_LENGTH; i++) {
+            final char c = value.charAt(i);
+            switch (i) {
+            case 4:
+            case 7:
+                if (c != '-') {
+                    return false;
+                }
+                break;
+            case 10:
+                if (c != 'T') {
+                    return false;
+                }
+                break;
+            case 13:
+            case 16:
+                if (c != ':') {
+                    return false;
+                }
+                break;
+            case 19:
+                if (c != '.') {
+                    return false;
+                }
+                break;
+            default:
+                if (!isDigit(c)) {
+                    return false;
+                }
+            }
+        }
+        final char sign = value.charAt(LOCAL_DATE_TIME_LENGTH);
+        if (sign != '+' && sign != '-') {
+            return false;
+        }
+        int pos = LOCAL_DATE_TIME_LENGTH + 1;
+        if (!isDigit(value.charAt(pos++)) || !isDigit(value.charAt(pos++))) {
+            return false;
+        }
+        if (length == LOCAL_DATE_TIME_LENGTH + 6 && value.charAt(pos++) != ':') {
+            return false;
+        }
+        return isDigit(value.charAt(pos++)) && isDigit(value.charAt(pos));
+    }
+
+    /**
+     * Parse a string to a value of the given property type.
+     *
+     * @param type The property type
+     * @param value The string
+     * @return A <code>Long</code>, <code>Double</code>, <code>Boolean</code>
+     *         or <code>Calendar</code>, or <code>null</code> if the type has no
+     *         typed value or the string can't be parsed, in which case it has
+     *         to be passed on as string
+     */
+    static Object parse(final int type, final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            switch (type) {
+            case PropertyType.LONG:
+                return Long.valueOf(value);
+            case PropertyType.DOUBLE:
+                return Double.valueOf(value);
+            case PropertyType.BOOLEAN:
+                // anything but true is false, like for the repository
+                return Boolean.valueOf(value);
+            case PropertyType.DATE:
+                return isDate(value) ? ISO8601.parse(value) : null;
+            default:
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            // let the repository report the invalid value
+            return null;
+        }
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -26,16 +26,22 @@ import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,8 +59,8 @@ import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.kxml2.io.KXmlParser;
 import org.osgi.framework.Constants;
-import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
@@ -137,19 +143,48 @@ public class XmlReader implements ContentReader {
     private static final String ELEM_FILE_NAMESPACE = "http://www.jcp.org/jcr/nt/1.0";
     private static final String ELEM_FILE_NAME = "file";
 
-    private KXmlParser xmlParser;
+    /** number of compiled stylesheets to keep */
+    private static final int TEMPLATES_CACHE_SIZE = 64;
 
-    @Activate
-    protected void activate() {
-        this.xmlParser = new KXmlParser();
-        try {
-            // Make namespace-aware
-            this.xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-        } catch (XmlPullParserException e) {
-            throw new RuntimeException(e);
+    /** buffer between the XSL transformer and the parser */
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    /** compiled stylesheets by url and last modification, in LRU order */
+    final Map<String, Templates> templatesCache = new LinkedHashMap<String, Templates>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Templates> eldest) {
+            return size() > TEMPLATES_CACHE_SIZE;
+        }
+    };
+
+    /** runs the XSL transformations piping into the parser */
+    private final ExecutorService transformerExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "XslTransformerThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Deactivate
+    protected void deactivate() {
+        this.transformerExecutor.shutdownNow();
+        synchronized (templatesCache) {
+            templatesCache.clear();
         }
     }
 
+    /**
+     * Create a new parser, each parse invocation uses its own parser so that
+     * several documents can be parsed concurrently.
+     */
+    private static KXmlParser newParser() throws XmlPullParserException {
+        final KXmlParser xmlParser = new KXmlParser();
+        // Make namespace-aware
+        xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return xmlParser;
+    }
+
     // ---------- XML content access -------------------------------------------
 
     /**
@@ -157,13 +192,13 @@ public class XmlReader implements ContentReader {
      *      org.apache.sling.jcr.contentloader.ContentCreator)
      */
     @Override
-    public synchronized void parse(final URL url, final ContentCreator creator)
+    public void parse(final URL url, final ContentCreator creator)
             throws IOException, RepositoryException {
         
         try (BufferedInputStream bufferedInput = new BufferedInputStream(url.openStream())) {
             // We need to buffer input, so that we can reset the stream if we encounter an
             // XSL stylesheet reference
-            parseInternal(bufferedInput, creator, url);
+            parseInternal(newParser(), bufferedInput, creator, url);
             creator.finish();
         } catch (XmlPullParserException xppe) {
             throw (IOException) new IOException(xppe.getMessage()).initCause(xppe);
@@ -185,7 +220,7 @@ public class XmlReader implements ContentReader {
             // XSL stylesheet reference
             bufferedInput = new BufferedInputStream(ins);
             URL xmlLocation = null;
-            parseInternal(bufferedInput, creator, xmlLocation);
+            parseInternal(newParser(), bufferedInput, creator, xmlLocation);
             creator.finish();
         } catch (XmlPullParserException xppe) {
             throw (IOException) new IOException(xppe.getMessage()).initCause(xppe);
@@ -194,7 +229,8 @@ public class XmlReader implements ContentReader {
         }
     }
 
-    private void parseInternal(final InputStream bufferedInput, final ContentCreator creator, final URL xmlLocation)
+    private void parseInternal(final KXmlParser xmlParser, final InputStream bufferedInput,
+            final ContentCreator creator, final URL xmlLocation)
             throws XmlPullParserException, IOException, RepositoryException {
         final StringBuilder contentBuffer = new StringBuilder();
         // Mark the beginning of the stream. We assume that if there's an XSL processing
@@ -205,69 +241,71 @@ public class XmlReader implements ContentReader {
         bufferedInput.mark(bufferedInput.available());
         // set the parser input, use null encoding to force detection with
         // <?xml?>
-        this.xmlParser.setInput(bufferedInput, null);
+        xmlParser.setInput(bufferedInput, null);
 
-        NodeDescription.SHARED.clear();
-        PropertyDescription.SHARED.clear();
-        FileDescription.SHARED.clear();
+        // descriptions are reused for all elements of this document
+        final NodeDescription nodeDescription = new NodeDescription();
+        final PropertyDescription propertyDescription = new PropertyDescription();
+        final FileDescription fileDescription = new FileDescription();
+        final AttributeMap attributes = new AttributeMap();
 
         NodeDescription currentNode = null;
         PropertyDescription currentProperty = null;
         String currentElement;
 
-        int eventType = this.xmlParser.getEventType();
+        int eventType = xmlParser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.PROCESSING_INSTRUCTION) {
-                ProcessingInstruction pi = new ProcessingInstruction(this.xmlParser.getText());
+                ProcessingInstruction pi = new ProcessingInstruction(xmlParser.getText());
                 // Look for a reference to an XSL stylesheet
                 if (pi.getName().equals(XML_STYLESHEET_PROCESSING_INSTRUCTION) && xmlLocation != null) {
                     // Rewind the input stream to the beginning, so that it can be transformed with
                     // XSL
                     bufferedInput.reset();
                     // Pipe the XML input through the XSL transformer
-                    XslTransformerStream transformerStream = new XslTransformerStream(bufferedInput,
-                            pi.getAttribute(HREF_ATTRIBUTE), xmlLocation);
-                    // Start the transformer thread
-                    transformerStream.startTransform();
-                    // Re-run the XML parser, now with the transformed XML
-                    parseInternal(transformerStream, creator, xmlLocation);
-                    transformerStream.close();
+                    final Templates templates = getTemplates(new URL(xmlLocation, pi.getAttribute(HREF_ATTRIBUTE)));
+                    try (XslTransformerStream transformerStream = new XslTransformerStream(bufferedInput,
+                            templates)) {
+                        // Start the transformer
+                        transformerStream.startTransform(transformerExecutor);
+                        // Re-run the XML parser, now with the transformed XML
+                        parseInternal(xmlParser, transformerStream, creator, xmlLocation);
+                    }
                     return;
 
                 }
             }
             if (eventType == XmlPullParser.START_TAG) {
 
-                currentElement = this.xmlParser.getName();
+                currentElement = xmlParser.getName();
 
                 if (ELEM_PROPERTY.equals(currentElement)) {
                     currentNode = NodeDescription.create(currentNode, creator);
-                    currentProperty = PropertyDescription.SHARED;
+                    currentProperty = propertyDescription;
                 } else if (ELEM_NODE.equals(currentElement)) {
                     currentNode = NodeDescription.create(currentNode, creator);
-                    currentNode = NodeDescription.SHARED;
+                    currentNode = nodeDescription;
                 } else if (ELEM_FILE_NAME.equals(currentElement)
-                        && ELEM_FILE_NAMESPACE.equals(this.xmlParser.getNamespace())) {
+                        && ELEM_FILE_NAMESPACE.equals(xmlParser.getNamespace())) {
                     if (xmlLocation != null) {
-                        int attributeCount = this.xmlParser.getAttributeCount();
+                        int attributeCount = xmlParser.getAttributeCount();
                         if (attributeCount < 2 || attributeCount > 3) {
                             throw new IOException(
                                     "File element must have these attributes: url, mimeType and lastModified: "
                                             + xmlLocation);
                         }
                         try {
-                            AttributeMap attributes = AttributeMap.getInstance();
                             attributes.setValues(xmlParser);
-                            FileDescription.SHARED.setBaseLocation(xmlLocation);
-                            FileDescription.SHARED.setValues(attributes);
+                            fileDescription.setBaseLocation(xmlLocation);
+                            fileDescription.setValues(attributes);
                             attributes.clear();
                         } catch (ParseException e) {
                             IOException ioe = new IOException("Error parsing file description: " + xmlLocation);
                             ioe.initCause(e);
                             throw ioe;
                         }
-                        FileDescription.SHARED.create(creator);
-                        FileDescription.SHARED.clear();
+                        fileDescription.create(creator);
+                        fileDescription.clear();
                     } else {
                         logger.warn("file element encountered when xml location isn't known. skipping.");
                     }
@@ -275,7 +313,7 @@ public class XmlReader implements ContentReader {
 
             } else if (eventType == XmlPullParser.END_TAG) {
 
-                String qName = this.xmlParser.getName();
+                String qName = xmlParser.getName();
                 String content = contentBuffer.toString().trim();
                 contentBuffer.delete(0, contentBuffer.length());
 
@@ -329,10 +367,66 @@ public class XmlReader implements ContentReader {
                     currentNode.addMixinType(content);
                 }
             } else if (eventType == XmlPullParser.TEXT || eventType == XmlPullParser.CDSECT) {
-                contentBuffer.append(this.xmlParser.getText());
+                contentBuffer.append(xmlParser.getText());
             }
 
-            eventType = this.xmlParser.nextToken();
+            eventType = xmlParser.nextToken();
+        }
+    }
+
+    /**
+     * Get the compiled stylesheet, compiling it only if it is not cached or
+     * has been modified since.
+     *
+     * @param xslResource The stylesheet
+     * @return The compiled stylesheet
+     * @throws IOException If the stylesheet can't be compiled
+     */
+    Templates getTemplates(final URL xslResource) throws IOException {
+        final long lastModified = getLastModified(xslResource);
+        final String key = xslResource.toExternalForm() + '@' + lastModified;
+        synchronized (templatesCache) {
+            final Templates templates = templatesCache.get(key);
+            if (templates != null) {
+                return templates;
+            }
+        }
+        final Templates templates;
+        try {
+            // factories are not thread safe, so each compilation uses its own
+            templates = TransformerFactory.newInstance()
+                    .newTemplates(new StreamSource(xslResource.toExternalForm()));
+        } catch (TransformerConfigurationException e) {
+            throw new IOException("Error compiling XSL stylesheet " + xslResource, e);
+        }
+        synchronized (templatesCache) {
+            templatesCache.put(key, templates);
+        }
+        return templates;
+    }
+
+    /**
+     * Get the modification time of a stylesheet. Getting it from a connection
+     * opens the stream of most connections, including those of bundle entries,
+     * so the stream is closed afterwards.
+     */
+    static long getLastModified(final URL xslResource) throws IOException {
+        if ("file".equals(xslResource.getProtocol())) {
+            try {
+                return new File(xslResource.toURI()).lastModified();
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a plain file path, ask the connection
+            }
+        }
+        final URLConnection connection = xslResource.openConnection();
+        try {
+            return connection.getLastModified();
+        } finally {
+            try {
+                connection.getInputStream().close();
+            } catch (IOException ignore) {
+                // not connected or nothing to close
+            }
         }
     }
 
@@ -343,64 +437,43 @@ public class XmlReader implements ContentReader {
      */
     private static class XslTransformerStream extends PipedInputStream {
         private InputStream inputXml;
-        private String xslHref;
-        private Thread transformerThread;
+        private Templates templates;
         private PipedOutputStream pipedOut;
-        private URL xmlLocation;
 
         /**
          * Instantiate the XslTransformerStream.
          * 
          * @param inputXml
          *            XML to be transformed.
-         * @param xslHref
-         *            Path to an XSL stylesheet
-         * @param xmlLocation
+         * @param templates
+         *            The compiled XSL stylesheet
          * @throws IOException
          */
-        public XslTransformerStream(InputStream inputXml, String xslHref, URL xmlLocation) throws IOException {
-            super();
+        public XslTransformerStream(InputStream inputXml, Templates templates) throws IOException {
+            super(PIPE_BUFFER_SIZE);
             this.inputXml = inputXml;
-            this.xslHref = xslHref;
-            this.transformerThread = null;
+            this.templates = templates;
             this.pipedOut = new PipedOutputStream(this);
-            this.xmlLocation = xmlLocation;
         }
 
         /**
-         * Starts the XSL transformer in a new thread, so that it can pipe its output to
-         * our <code>PipedInputStream</code>.
+         * Starts the XSL transformer in the executor, so that it can pipe its output
+         * to our <code>PipedInputStream</code>.
          * 
-         * @throws IOException
+         * @param executor
+         *            The executor running the transformation
          */
-        public void startTransform() throws IOException {
-            final URL xslResource = new URL(xmlLocation, this.xslHref);
-
-            /*
-             * if (xslResource == null) { throw new IOException("Could not find " +
-             * xslHref); }
-             */
-
-            transformerThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Source xml = new StreamSource(inputXml);
-                        Source xsl = new StreamSource(xslResource.toExternalForm());
-                        final StreamResult streamResult;
-                        final Templates templates = TransformerFactory.newInstance().newTemplates(xsl);
-                        streamResult = new StreamResult(pipedOut);
-                        templates.newTransformer().transform(xml, streamResult);
-                    } catch (TransformerConfigurationException e) {
-                        throw new RuntimeException("Error initializing XSL transformer", e);
-                    } catch (TransformerException e) {
-                        throw new RuntimeException("Error transforming", e);
-                    } finally {
-                        closeStream(pipedOut);
-                    }
+        public void startTransform(Executor executor) {
+            executor.execute(() -> {
+                try {
+                    Source xml = new StreamSource(inputXml);
+                    templates.newTransformer().transform(xml, new StreamResult(pipedOut));
+                } catch (TransformerException e) {
+                    logger.error("Error transforming XML content", e);
+                } finally {
+                    closeStream(pipedOut);
                 }
-            }, "XslTransformerThread");
-            transformerThread.start();
+            });
         }
 
     }
@@ -422,8 +495,6 @@ public class XmlReader implements ContentReader {
 
     protected static final class NodeDescription {
 
-        public static NodeDescription SHARED = new NodeDescription();
-
         public String name;
         public String primaryNodeType;
         public List<String> mixinTypes;
@@ -461,24 +532,51 @@ public class XmlReader implements ContentReader {
 
     protected static final class PropertyDescription {
 
-        public static PropertyDescription SHARED = new PropertyDescription();
-
         public static PropertyDescription create(PropertyDescription desc, ContentCreator creator)
                 throws RepositoryException {
             int type = (desc.type == null ? PropertyType.STRING : PropertyType.valueFromName(desc.type));
             if (desc.isMultiValue) {
-                creator.createProperty(desc.name, type, desc.getPropertyValues());
+                final String[] values = desc.getPropertyValues();
+                final Object[] typedValues = parse(type, values);
+                if (typedValues != null) {
+                    creator.createTypedProperty(desc.name, type, typedValues);
+                } else {
+                    creator.createProperty(desc.name, type, values);
+                }
             } else {
                 String value = null;
                 if (desc.values != null && desc.values.size() == 1) {
                     value = desc.values.get(0);
                 }
-                creator.createProperty(desc.name, type, value);
+                final Object typedValue = TypedValues.parse(type, value);
+                if (typedValue != null) {
+                    creator.createTypedProperty(desc.name, type, typedValue);
+                } else {
+                    creator.createProperty(desc.name, type, value);
+                }
             }
             desc.clear();
             return null;
         }
 
+        /**
+         * @return The typed values or <code>null</code> if not all values can
+         *         be parsed to the type
+         */
+        private static Object[] parse(final int type, final String[] values) {
+            if (values == null) {
+                return null;
+            }
+            final Object[] typedValues = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                typedValues[i] = TypedValues.parse(type, values[i]);
+                if (typedValues[i] == null) {
+                    return null;
+                }
+            }
+            return typedValues;
+        }
+
         public String name;
         public String type;
         public List<String> values;
@@ -569,14 +667,21 @@ public class XmlReader implements ContentReader {
         private URL baseLocation;
         private Long lastModified;
 
-        public static FileDescription SHARED = new FileDescription();
         private static final String SRC_ATTRIBUTE = "src";
         private static final String MIME_TYPE_ATTRIBUTE = "mimeType";
         private static final String LAST_MODIFIED_ATTRIBUTE = "lastModified";
-        public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        public static final DateFormat DATE_FORMAT = newDateFormat();
+
+        /**
+         * Date formats are not thread safe, so each file description parses
+         * with its own instance.
+         */
+        private final DateFormat dateFormat = newDateFormat();
 
-        static {
-            DATE_FORMAT.setLenient(true);
+        private static DateFormat newDateFormat() {
+            final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+            format.setLenient(true);
+            return format;
         }
 
         public void setValues(AttributeMap attributes) throws MalformedURLException, ParseException {
@@ -588,7 +693,7 @@ public class XmlReader implements ContentReader {
                 } else if (name.equals(MIME_TYPE_ATTRIBUTE)) {
                     mimeType = value;
                 } else if (name.equals(LAST_MODIFIED_ATTRIBUTE)) {
-                    lastModified = DATE_FORMAT.parse(value).getTime();
+                    lastModified = dateFormat.parse(value).getTime();
                 }
             }
         }
@@ -641,11 +746,6 @@ public class XmlReader implements ContentReader {
     protected static class AttributeMap extends HashMap<String, String> {
 
         private static final long serialVersionUID = -6304058237706001104L;
-        private static final AttributeMap instance = new AttributeMap();
-
-        public static AttributeMap getInstance() {
-            return instance;
-        }
 
         /**
          * Puts values in an <code>AttributeMap</code> by extracting attributes from the
@@ -18,22 +18,59 @@
  */
 package org.apache.sling.jcr.contentloader.internal.readers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import javax.jcr.RepositoryException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 
 /**
- * The <code>ZipReader</code> TODO
+ * The <code>ZipReader</code> imports the files of a zip or jar archive as
+ * <code>nt:file</code> nodes below <code>nt:folder</code> nodes.
+ * <p>
+ * If configured with a parallelism above 1 and the archive can be accessed
+ * randomly, the folders are created first and the entries are then inflated by
+ * several threads ahead of the repository writes, which still happen in archive
+ * order on the calling thread.
  *
  * @since 2.0.4
  */
@@ -45,17 +82,94 @@ import org.osgi.service.component.annotations.Component;
         ContentReader.PROPERTY_TYPES + "=application/zip",
         ContentReader.PROPERTY_TYPES + "=application/java-archive"
 })
+@Designate(ocd = ZipReader.Config.class)
 public class ZipReader implements ContentReader {
 
+    @ObjectClassDefinition(name = "%zipreader.config.name", description = "%zipreader.config.description", localization = "OSGI-INF/l10n/bundle")
+    public @interface Config {
+
+        @AttributeDefinition(name = "%zipreader.parallelism.name", description = "%zipreader.parallelism.description")
+        int parallelism() default 1;
+    }
+
     private static final String NT_FOLDER = "nt:folder";
 
+    /**
+     * archives without a file of their own, e.g. bundle entries, are only
+     * copied to a temporary file to get random access from this size on
+     */
+    private static final long MIN_COPIED_ARCHIVE_SIZE = 4 * 1024 * 1024;
+
+    /** entries up to this size are inflated into memory, larger ones into a temporary file */
+    private static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+    /** number of entries inflated ahead of the repository writes per thread */
+    private static final int PREFETCH_PER_THREAD = 2;
+
+    private int parallelism;
+
+    /** inflates the entries, <code>null</code> if disabled */
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate(final Config config) {
+        this.parallelism = config.parallelism();
+        if (parallelism > 1) {
+            this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+                final Thread t = new Thread(r, "ZipReaderThread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            // entries already submitted are still inflated for running imports,
+            // which continue sequentially
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentReader#parse(java.net.URL, org.apache.sling.jcr.contentloader.ContentCreator)
      */
     @Override
-    public void parse(java.net.URL url, ContentCreator creator)
+    public void parse(URL url, ContentCreator creator)
     		throws IOException, RepositoryException {
-    	parse(url.openStream(), creator);
+        final ExecutorService exec = this.executor;
+        if (exec == null) {
+            parse(url.openStream(), creator);
+            return;
+        }
+        final File file = toFile(url);
+        if (file != null) {
+            try (ZipFile zipFile = new ZipFile(file)) {
+                parse(zipFile, creator, exec);
+            }
+            return;
+        }
+        // e.g. bundle entries, copy the archive to get random access unless
+        // it is small or of unknown size, then it is read sequentially
+        final URLConnection connection = url.openConnection();
+        final long size = connection.getContentLengthLong();
+        if (size < MIN_COPIED_ARCHIVE_SIZE) {
+            parse(connection.getInputStream(), creator);
+            return;
+        }
+        final Path tmp = Files.createTempFile("contentloader", ".zip");
+        try {
+            try (InputStream in = connection.getInputStream()) {
+                Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (ZipFile zipFile = new ZipFile(tmp.toFile())) {
+                parse(zipFile, creator, exec);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
     }
 
 	/**
@@ -71,17 +185,7 @@ public class ZipReader implements ContentReader {
                 entry = zis.getNextEntry();
                 if ( entry != null ) {
                     if ( !entry.isDirectory() ) {
-                        String name = entry.getName();
-                        int pos = name.lastIndexOf('/');
-                        if ( pos != -1 ) {
-                            creator.switchCurrentNode(name.substring(0, pos), NT_FOLDER);
-                        }
-                        creator.createFileAndResourceNode(name, new CloseShieldInputStream(zis), null, entry.getTime());
-                        creator.finishNode();
-                        creator.finishNode();
-                        if ( pos != -1 ) {
-                            creator.finishNode();
-                        }
+                        createFile(creator, entry, new CloseShieldInputStream(zis));
                     }
                     zis.closeEntry();
                 }
@@ -91,4 +195,229 @@ public class ZipReader implements ContentReader {
         }
 	}
 
+    /**
+     * Import an archive with random access: create the folders of all files in
+     * archive order, then write the files in archive order while the following
+     * entries are already inflated in parallel.
+     */
+    private void parse(final ZipFile zipFile, final ContentCreator creator, final ExecutorService exec)
+            throws IOException, RepositoryException {
+        creator.createNode(null, NT_FOLDER, null);
+
+        final Set<String> folders = new LinkedHashSet<>();
+        for (final Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+            final ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                addFolders(folders, entry.getName());
+            }
+        }
+        for (final String folder : folders) {
+            creator.switchCurrentNode(folder, NT_FOLDER);
+            creator.finishNode();
+        }
+
+        final Deque<Future<InflatedEntry>> pending = new ArrayDeque<>();
+        final InflatedEntries inflatedEntries = new InflatedEntries();
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        ZipEntry rejected = null;
+        try {
+            while ((rejected == null && entries.hasMoreElements()) || !pending.isEmpty()) {
+                while (rejected == null && entries.hasMoreElements()
+                        && pending.size() < parallelism * PREFETCH_PER_THREAD) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        try {
+                            pending.add(exec.submit(() -> inflatedEntries.inflate(zipFile, entry)));
+                        } catch (RejectedExecutionException e) {
+                            // deactivated, the remaining entries are read on this thread
+                            rejected = entry;
+                        }
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    try (InflatedEntry inflated = inflatedEntries.consume(get(pending.poll()))) {
+                        try (InputStream data = inflated.openStream()) {
+                            createFile(creator, inflated.entry, data);
+                        }
+                    }
+                }
+            }
+        } finally {
+            // remove the temporary files of entries inflated but not written,
+            // including those still being inflated
+            inflatedEntries.close();
+            for (final Future<InflatedEntry> future : pending) {
+                future.cancel(true);
+            }
+        }
+        if (rejected != null) {
+            createFile(creator, zipFile, rejected);
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    createFile(creator, zipFile, entry);
+                }
+            }
+        }
+        creator.finishNode();
+    }
+
+    private static void createFile(final ContentCreator creator, final ZipFile zipFile, final ZipEntry entry)
+            throws IOException, RepositoryException {
+        try (InputStream data = zipFile.getInputStream(entry)) {
+            createFile(creator, entry, data);
+        }
+    }
+
+    private static void createFile(final ContentCreator creator, final ZipEntry entry, final InputStream data)
+            throws RepositoryException {
+        String name = entry.getName();
+        int pos = name.lastIndexOf('/');
+        if ( pos != -1 ) {
+            creator.switchCurrentNode(name.substring(0, pos), NT_FOLDER);
+        }
+        creator.createFileAndResourceNode(name, data, null, entry.getTime());
+        creator.finishNode();
+        creator.finishNode();
+        if ( pos != -1 ) {
+            creator.finishNode();
+        }
+    }
+
+    private static void addFolders(final Set<String> folders, final String name) {
+        int pos = name.indexOf('/');
+        while (pos != -1) {
+            folders.add(name.substring(0, pos));
+            pos = name.indexOf('/', pos + 1);
+        }
+    }
+
+    private static InflatedEntry get(final Future<InflatedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inflating zip entries", e);
+        } catch (CancellationException e) {
+            throw new IOException("Inflating zip entries has been cancelled", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static File toFile(final URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The entries of an import which have been inflated but not consumed yet.
+     * Entries inflated after the import ended are closed right away.
+     */
+    private static final class InflatedEntries {
+
+        private final Set<InflatedEntry> entries = new HashSet<>();
+
+        private boolean closed;
+
+        InflatedEntry inflate(final ZipFile zipFile, final ZipEntry entry) throws IOException {
+            final InflatedEntry inflated = InflatedEntry.inflate(zipFile, entry);
+            synchronized (this) {
+                if (!closed) {
+                    entries.add(inflated);
+                    return inflated;
+                }
+            }
+            inflated.close();
+            return inflated;
+        }
+
+        synchronized InflatedEntry consume(final InflatedEntry inflated) {
+            entries.remove(inflated);
+            return inflated;
+        }
+
+        void close() {
+            final List<InflatedEntry> unconsumed;
+            synchronized (this) {
+                closed = true;
+                unconsumed = new ArrayList<>(entries);
+                entries.clear();
+            }
+            for (final InflatedEntry inflated : unconsumed) {
+                try {
+                    inflated.close();
+                } catch (IOException ignore) {
+                    // the import already failed
+                }
+            }
+        }
+    }
+
+    /**
+     * The content of an entry, in memory or in a temporary file.
+     */
+    private static final class InflatedEntry implements AutoCloseable {
+
+        private final ZipEntry entry;
+
+        private final byte[] data;
+
+        private final Path file;
+
+        private InflatedEntry(final ZipEntry entry, final byte[] data, final Path file) {
+            this.entry = entry;
+            this.data = data;
+            this.file = file;
+        }
+
+        static InflatedEntry inflate(final ZipFile zipFile, final ZipEntry entry) throws IOException {
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                        entry.getSize() >= 0 && entry.getSize() <= MEMORY_THRESHOLD ? (int) entry.getSize() : 8192);
+                final byte[] chunk = new byte[8192];
+                int len;
+                while ((len = in.read(chunk)) != -1) {
+                    buffer.write(chunk, 0, len);
+                    if (buffer.size() > MEMORY_THRESHOLD) {
+                        return spool(entry, buffer, in);
+                    }
+                }
+                return new InflatedEntry(entry, buffer.toByteArray(), null);
+            }
+        }
+
+        private static InflatedEntry spool(final ZipEntry entry, final ByteArrayOutputStream buffer,
+                final InputStream in) throws IOException {
+            final Path file = Files.createTempFile("contentloader", ".entry");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                buffer.writeTo(out);
+                IOUtils.copy(in, out);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return new InflatedEntry(entry, null, file);
+        }
+
+        InputStream openStream() throws IOException {
+            return file != null ? Files.newInputStream(file) : new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
 }
@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.AccessControlList;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlEntry;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Every case applies the same entries with an {@link AccessControlBatch} to one
+ * node and with {@link AccessControlUtil#replaceAccessControlEntry} to another,
+ * and expects the same access control lists.
+ */
+public class AccessControlBatchTest {
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
+
+    private Session session;
+
+    private Node parentNode;
+
+    private Principal user1;
+
+    private Principal user2;
+
+    private Principal user3;
+
+    private Principal user4;
+
+    @Before
+    public void setup() throws Exception {
+        session = context.resourceResolver().adaptTo(Session.class);
+        parentNode = session.getRootNode().addNode(getClass().getSimpleName()).addNode(uniqueId());
+        user1 = createUser();
+        user2 = createUser();
+        user3 = createUser();
+        user4 = createUser();
+    }
+
+    @Test
+    public void orderFirstAndLast() throws RepositoryException {
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Arrays.asList(ace(user1).grant("jcr:read"), ace(user2).grant("jcr:read"),
+                        ace(user3).grant("jcr:read")),
+                Arrays.asList(ace(user3).grant("jcr:write").order("first"),
+                        ace(user1).grant("jcr:write").order("last")));
+        assertPrincipals(entries, user3, user2, user1);
+    }
+
+    @Test
+    public void orderBeforeAndAfter() throws RepositoryException {
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Arrays.asList(ace(user1).grant("jcr:read"), ace(user2).grant("jcr:read"),
+                        ace(user3).grant("jcr:read")),
+                Arrays.asList(ace(user3).grant("jcr:write").order("before " + user2.getName()),
+                        ace(user1).grant("jcr:write").order("after " + user2.getName()),
+                        ace(user4).grant("jcr:read").order("after " + user3.getName())));
+        assertPrincipals(entries, user3, user4, user2, user1);
+    }
+
+    @Test
+    public void orderAfterPrincipalOfLastEntry() throws RepositoryException {
+        final List<Ace> existing = Arrays.asList(ace(user1).grant("jcr:read"), ace(user2).grant("jcr:read"));
+        final List<Ace> added = Collections.singletonList(ace(user1).grant("jcr:write").order("after " + user2.getName()));
+        // user1 is moved to the end first, so user2 is not last when ordering
+        assertSameAsAccessControlUtil(existing, added);
+
+        final List<Ace> afterLast = Collections.singletonList(ace(user3).grant("jcr:read").order("after " + user3.getName()));
+        assertSameFailure(existing, afterLast);
+    }
+
+    @Test
+    public void orderByIndex() throws RepositoryException {
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Arrays.asList(ace(user1).grant("jcr:read").deny("jcr:write"), ace(user2).grant("jcr:read"),
+                        ace(user3).grant("jcr:read")),
+                // the index counts principals, not entries
+                Arrays.asList(ace(user4).grant("jcr:read").order("1"), ace(user3).grant("jcr:write").order("0")));
+        assertPrincipals(entries, user3, user1, user1, user4, user2);
+
+        assertSameFailure(Collections.singletonList(ace(user1).grant("jcr:read")),
+                Collections.singletonList(ace(user2).grant("jcr:read").order("5")));
+        assertSameFailure(Collections.singletonList(ace(user1).grant("jcr:read")),
+                Collections.singletonList(ace(user2).grant("jcr:read").order("middle")));
+        assertSameFailure(Collections.singletonList(ace(user1).grant("jcr:read")),
+                Collections.singletonList(ace(user2).grant("jcr:read").order("before " + user3.getName())));
+    }
+
+    @Test
+    public void keepPositionOfReplacedEntry() throws RepositoryException {
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Arrays.asList(ace(user1).grant("jcr:read"), ace(user2).grant("jcr:read"),
+                        ace(user3).grant("jcr:read")),
+                Collections.singletonList(ace(user2).grant("jcr:write")));
+        assertPrincipals(entries, user1, user2, user3);
+    }
+
+    @Test
+    public void replacePartOfExistingPrivileges() throws RepositoryException {
+        assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:read", "jcr:write")),
+                Collections.singletonList(ace(user1).deny("jcr:removeNode")));
+        assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:modifyProperties", "jcr:read")),
+                Collections.singletonList(ace(user1).deny("jcr:write")));
+        assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:all")),
+                Collections.singletonList(ace(user1).deny("jcr:write").grant("jcr:read")));
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:read").deny("jcr:write")),
+                Collections.singletonList(ace(user1).grant("jcr:addChildNodes")));
+        assertEquals(2, entries.size());
+    }
+
+    @Test
+    public void mergeRestrictions() throws RepositoryException {
+        assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:read").restriction("rep:glob", "/a*")
+                        .mvRestriction("rep:ntNames", "nt:folder")),
+                Arrays.asList(ace(user1).grant("jcr:write"),
+                        ace(user2).grant("jcr:read").restriction("rep:glob", "/b*"),
+                        ace(user2).deny("jcr:write").mvRestriction("rep:ntNames", "nt:file", "nt:folder")));
+    }
+
+    @Test
+    public void replaceRestrictions() throws RepositoryException {
+        final List<String> entries = assertSameAsAccessControlUtil(
+                Collections.singletonList(ace(user1).grant("jcr:read").restriction("rep:glob", "/a*")
+                        .mvRestriction("rep:ntNames", "nt:folder")),
+                Collections.singletonList(ace(user1).grant("jcr:read").restriction("rep:glob", "/b*")
+                        .mvRestriction("rep:ntNames", "nt:file", "nt:unstructured")));
+        assertEquals(1, entries.size());
+    }
+
+    @Test
+    public void removeRestrictions() throws RepositoryException {
+        final List<Ace> existing = Collections.singletonList(ace(user1).grant("jcr:read")
+                .restriction("rep:glob", "/a*").mvRestriction("rep:ntNames", "nt:folder"));
+        assertSameAsAccessControlUtil(existing,
+                Collections.singletonList(ace(user1).grant("jcr:read").remove("rep:glob", "rep:ntNames")));
+        // restrictions given again are kept
+        assertSameAsAccessControlUtil(existing, Collections.singletonList(
+                ace(user1).grant("jcr:read").restriction("rep:glob", "/b*").remove("rep:glob", "rep:ntNames")));
+        assertSameAsAccessControlUtil(existing, Collections.singletonList(
+                ace(user1).grant("jcr:read").mvRestriction("rep:ntNames", "nt:file").remove("rep:ntNames")));
+    }
+
+    @Test
+    public void addSeveralEntriesPerNode() throws RepositoryException {
+        assertSameAsAccessControlUtil(Collections.<Ace>emptyList(),
+                Arrays.asList(ace(user1).grant("jcr:read"), ace(user2).grant("jcr:read").deny("jcr:write"),
+                        ace(user1).grant("jcr:write").order("first"), ace(user3).deny("jcr:all").order("1"),
+                        ace(user2).grant("jcr:write").restriction("rep:glob", "*/c").order("last")));
+    }
+
+    /**
+     * Apply the existing entries to two nodes with AccessControlUtil, then the
+     * added entries with a batch to the first and with AccessControlUtil to the
+     * second node.
+     *
+     * @return The entries of the node written by the batch
+     */
+    private List<String> assertSameAsAccessControlUtil(final List<Ace> existing, final List<Ace> added)
+            throws RepositoryException {
+        final String batchPath = parentNode.addNode(uniqueId()).getPath();
+        final String utilPath = parentNode.addNode(uniqueId()).getPath();
+        for (final Ace ace : existing) {
+            ace.replace(batchPath);
+            ace.replace(utilPath);
+        }
+
+        final List<String> existingEntries = getEntries(batchPath);
+        final AccessControlBatch batch = new AccessControlBatch(session);
+        for (final Ace ace : added) {
+            ace.add(batch, batchPath);
+            ace.replace(utilPath);
+        }
+        // the list is only written once the batch is applied
+        assertEquals(existingEntries, getEntries(batchPath));
+        batch.apply(batchPath);
+
+        final List<String> entries = getEntries(batchPath);
+        assertEquals(getEntries(utilPath), entries);
+        return entries;
+    }
+
+    /**
+     * Expect the added entries to fail in the same way with a batch and with
+     * AccessControlUtil.
+     */
+    private void assertSameFailure(final List<Ace> existing, final List<Ace> added) throws RepositoryException {
+        final String batchPath = parentNode.addNode(uniqueId()).getPath();
+        final String utilPath = parentNode.addNode(uniqueId()).getPath();
+        for (final Ace ace : existing) {
+            ace.replace(batchPath);
+            ace.replace(utilPath);
+        }
+        Class<?> expected = null;
+        try {
+            for (final Ace ace : added) {
+                ace.replace(utilPath);
+            }
+            fail("AccessControlUtil accepted the entries");
+        } catch (RuntimeException | RepositoryException e) {
+            expected = e.getClass();
+        }
+        final AccessControlBatch batch = new AccessControlBatch(session);
+        try {
+            for (final Ace ace : added) {
+                ace.add(batch, batchPath);
+            }
+            fail("The batch accepted the entries");
+        } catch (RuntimeException | RepositoryException e) {
+            assertEquals(expected, e.getClass());
+        }
+    }
+
+    private List<String> getEntries(final String path) throws RepositoryException {
+        final List<String> entries = new ArrayList<>();
+        for (final AccessControlPolicy policy : session.getAccessControlManager().getPolicies(path)) {
+            if (!(policy instanceof AccessControlList)) {
+                continue;
+            }
+            for (final AccessControlEntry ace : ((AccessControlList) policy).getAccessControlEntries()) {
+                final Set<String> privileges = new TreeSet<>();
+                for (final Privilege privilege : ace.getPrivileges()) {
+                    privileges.add(privilege.getName());
+                }
+                final Map<String, List<String>> restrictions = new TreeMap<>();
+                final JackrabbitAccessControlEntry jace = (JackrabbitAccessControlEntry) ace;
+                for (final String name : jace.getRestrictionNames()) {
+                    final List<String> values = new ArrayList<>();
+                    for (final Value value : jace.getRestrictions(name)) {
+                        values.add(value.getString());
+                    }
+                    Collections.sort(values);
+                    restrictions.put(name, values);
+                }
+                entries.add(ace.getPrincipal().getName() + " " + (AccessControlUtil.isAllow(ace) ? "allow" : "deny")
+                        + " " + privileges + " " + restrictions);
+            }
+        }
+        return entries;
+    }
+
+    private static void assertPrincipals(final List<String> entries, final Principal... principals) {
+        final List<String> names = new ArrayList<>();
+        for (final String entry : entries) {
+            names.add(entry.substring(0, entry.indexOf(' ')));
+        }
+        final List<String> expected = new ArrayList<>();
+        for (final Principal principal : principals) {
+            expected.add(principal.getName());
+        }
+        assertEquals(expected, names);
+    }
+
+    private Principal createUser() throws RepositoryException {
+        return AccessControlUtil.getUserManager(session).createUser(uniqueId(), "pwd").getPrincipal();
+    }
+
+    private Ace ace(final Principal principal) {
+        return new Ace(principal);
+    }
+
+    private static String uniqueId() {
+        return UUID.randomUUID().toString();
+    }
+
+    private final class Ace {
+
+        private final Principal principal;
+
+        private String[] granted;
+
+        private String[] denied;
+
+        private String order;
+
+        private final Map<String, Value> restrictions = new HashMap<>();
+
+        private final Map<String, Value[]> mvRestrictions = new HashMap<>();
+
+        private final Set<String> removedRestrictionNames = new HashSet<>();
+
+        Ace(final Principal principal) {
+            this.principal = principal;
+        }
+
+        Ace grant(final String... privilegeNames) {
+            this.granted = privilegeNames;
+            return this;
+        }
+
+        Ace deny(final String... privilegeNames) {
+            this.denied = privilegeNames;
+            return this;
+        }
+
+        Ace order(final String order) {
+            this.order = order;
+            return this;
+        }
+
+        Ace restriction(final String name, final String value) throws RepositoryException {
+            restrictions.put(name, session.getValueFactory().createValue(value));
+            return this;
+        }
+
+        Ace mvRestriction(final String name, final String... values) throws RepositoryException {
+            final Value[] nameValues = new Value[values.length];
+            for (int i = 0; i < values.length; i++) {
+                nameValues[i] = session.getValueFactory().createValue(values[i], PropertyType.NAME);
+            }
+            mvRestrictions.put(name, nameValues);
+            return this;
+        }
+
+        Ace remove(final String... names) {
+            removedRestrictionNames.addAll(Arrays.asList(names));
+            return this;
+        }
+
+        void add(final AccessControlBatch batch, final String path) throws RepositoryException {
+            batch.addEntry(path, principal, granted, denied, order, new HashMap<>(restrictions),
+                    new HashMap<>(mvRestrictions), new HashSet<>(removedRestrictionNames));
+        }
+
+        void replace(final String path) throws RepositoryException {
+            AccessControlUtil.replaceAccessControlEntry(session, path, principal, granted, denied, null, order,
+                    new HashMap<>(restrictions), new HashMap<>(mvRestrictions),
+                    new HashSet<>(removedRestrictionNames));
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.sling.jcr.contentloader.internal;
 
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.BUNDLE_CONTENT_NODE;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS;
@@ -29,18 +30,29 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.lock.LockManager;
 
+import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
 import org.apache.sling.testing.mock.osgi.MockBundle;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
@@ -70,6 +82,9 @@ public class BundleContentLoaderListenerTest {
         // whiteboard which holds readers
         context.registerInjectActivateService(new ContentReaderWhiteboard());
 
+        // metrics of the content loading
+        context.registerInjectActivateService(new ContentLoaderMetrics());
+
         session = context.resourceResolver().adaptTo(Session.class);
 
         // register the content loader service
@@ -84,8 +99,7 @@ public class BundleContentLoaderListenerTest {
     @Test
     public void testBundleResolvedBundleChanged() throws NoSuchFieldException, RepositoryException {
         final Bundle bundle = createNewBundle();
-        @SuppressWarnings("unchecked")
-		final List<Bundle> delayedBundles = (List<Bundle>) PrivateAccessor.getField(contentLoader, "delayedBundles");
+		final DelayedBundleScheduler delayedBundles = (DelayedBundleScheduler) PrivateAccessor.getField(contentLoader, "delayedBundles");
         @SuppressWarnings("unchecked")
 		final Set<String> updatedBundles = (Set<String>) PrivateAccessor.getField(underTest, "updatedBundles");
 
@@ -103,8 +117,125 @@ public class BundleContentLoaderListenerTest {
         underTest.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
     }
 
+    @Test
+    public void testAsyncBundleChanged() throws Exception {
+        context.registerInjectActivateService(new XmlReader());
+        final BundleContentLoaderListener asyncListener = context.registerInjectActivateService(
+                new BundleContentLoaderListener(), Collections.<String, Object>singletonMap("asyncLoading", true));
+        final Bundle bundle = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/libs/app;path:=/libs/app");
+
+        asyncListener.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, bundle));
+
+        assertTrue("Queued bundle events not processed",
+                asyncListener.awaitPendingBundleEvents(30, TimeUnit.SECONDS));
+        assertEquals(0, asyncListener.getPendingBundleEvents());
+        session.refresh(false);
+        assertTrue("Content was not loaded", session.nodeExists("/libs/app"));
+    }
+
+    @Test
+    public void testAsyncEventsOfQueuedBundleDoNotBlock() throws Exception {
+        context.registerInjectActivateService(new XmlReader());
+        final Map<String, Object> config = new HashMap<>();
+        config.put("asyncLoading", true);
+        config.put("asyncQueueCapacity", 1);
+        final BundleContentLoaderListener asyncListener = context.registerInjectActivateService(
+                new BundleContentLoaderListener(), config);
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) PrivateAccessor.getField(asyncListener,
+                "asyncExecutor");
+        final Bundle busy = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/libs/app;path:=/libs/app");
+        final Bundle queued = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/libs/app;path:=/content/app");
+
+        final ExecutorService framework = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> events;
+            // the worker waits for the listener while handling the first event
+            synchronized (asyncListener) {
+                asyncListener.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, busy));
+                while (!executor.getQueue().isEmpty()) {
+                    Thread.sleep(10);
+                }
+                events = framework.submit(() -> {
+                    asyncListener.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, queued));
+                    asyncListener.bundleChanged(new BundleEvent(BundleEvent.UPDATED, queued));
+                    asyncListener.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, queued));
+                });
+                events.get(10, TimeUnit.SECONDS);
+                assertEquals(4, asyncListener.getPendingBundleEvents());
+            }
+        } finally {
+            framework.shutdownNow();
+        }
+
+        assertTrue("Queued bundle events not processed",
+                asyncListener.awaitPendingBundleEvents(30, TimeUnit.SECONDS));
+        assertEquals(0, asyncListener.getPendingBundleEvents());
+        session.refresh(false);
+        assertTrue("Content was not loaded", session.nodeExists("/libs/app"));
+        assertTrue("Content was not loaded", session.nodeExists("/content/app"));
+    }
+
     //-------BundleContentLoaderListener#bundleChanged(BundleEvent)-------//
 
+    @Test
+    public void testGroupByOverlappingTargets() {
+        final Bundle libs = BundleContentLoaderTest.newBundleWithInitialContent(context, "SLING-INF/libs;path:=/libs");
+        final Bundle app = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/libs/app;path:=/libs/app");
+        final Bundle appBar = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/content/app;path:=/content/app-bar");
+        final Bundle appFoo = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/content/app;path:=/content/app/foo");
+        final Bundle content = BundleContentLoaderTest.newBundleWithInitialContent(context,
+                "SLING-INF/content/app;path:=/content/app");
+        final Bundle noContent = createNewBundle();
+
+        final List<List<Bundle>> groups = BundleContentLoaderListener
+                .groupByOverlappingTargets(Arrays.asList(libs, appFoo, noContent, app, appBar, content));
+
+        assertEquals(4, groups.size());
+        assertTrue(groups.contains(Arrays.asList(libs, app)));
+        assertTrue(groups.contains(Arrays.asList(appFoo, content)));
+        assertTrue(groups.contains(Arrays.asList(appBar)));
+        assertTrue(groups.contains(Arrays.asList(noContent)));
+    }
+
+    @Test
+    public void testDelayedBundleScheduler() throws RepositoryException {
+        final Bundle locked = createNewBundle();
+        final Bundle waiting = createNewBundle();
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE).addNode(locked.getSymbolicName());
+        bcNode.addMixin("mix:lockable");
+        session.save();
+        final LockManager lockManager = session.getWorkspace().getLockManager();
+        lockManager.lock(bcNode.getPath(), false, true, Long.MAX_VALUE, null);
+
+        final DelayedBundleScheduler scheduler = new DelayedBundleScheduler();
+        scheduler.delay(session, locked, DelayedBundleScheduler.Reason.LOCKED);
+        scheduler.delay(session, waiting, DelayedBundleScheduler.getReason(new RepositoryException("failed")));
+        assertEquals(2, scheduler.size());
+        assertEquals(Integer.valueOf(1), scheduler.getCountByReason().get(DelayedBundleScheduler.Reason.LOCKED));
+        assertEquals(Integer.valueOf(1), scheduler.getCountByReason().get(DelayedBundleScheduler.Reason.OTHER));
+
+        // nothing changed yet, so no bundle is worth a retry
+        assertTrue(scheduler.getRetryCandidates(session).isEmpty());
+
+        // another bundle got loaded, which might unblock the waiting bundle
+        scheduler.loaded(createNewBundle());
+        assertEquals(Collections.singletonList(waiting), scheduler.getRetryCandidates(session));
+
+        lockManager.unlock(bcNode.getPath());
+        assertEquals(Arrays.asList(locked, waiting), scheduler.getRetryCandidates(session));
+
+        assertTrue(scheduler.remove(locked));
+        assertFalse(scheduler.remove(locked));
+        scheduler.loaded(waiting);
+        assertTrue(scheduler.isEmpty());
+    }
+
     @Test
     public void getContentInfoFromLockedNode() throws RepositoryException {
         final Bundle bundle = createNewBundle();
@@ -128,7 +259,215 @@ public class BundleContentLoaderListenerTest {
         bcNode.addNode(bundle.getSymbolicName()); //Node without lockable mixin
         session.save();
 
+        // leases do not require the lockable mixin, but instances still using locks do
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, false));
+        session.refresh(false);
+        assertTrue(bcNode.getNode(bundle.getSymbolicName()).isNodeType("mix:lockable"));
+    }
+
+    @Test
+    public void getContentInfoFromLeasedNode() throws RepositoryException {
+        final Bundle bundle = createNewBundle();
+        final Node bundleContent = session.getNode(BUNDLE_CONTENT_NODE).addNode(bundle.getSymbolicName());
+        bundleContent.setProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER, "other-instance");
+        bundleContent.setProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES,
+                System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+        session.save();
+
         assertNull(underTest.getBundleContentInfo(session, bundle, false));
+
+        // the lease of a crashed instance expires
+        bundleContent.setProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES,
+                System.currentTimeMillis() - 1);
+        session.save();
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, false));
+        assertNull(new LeaseBundleContentStateStore(underTest, "other-instance", TimeUnit.HOURS.toMillis(1)).acquire(session,
+                bundle, false));
+    }
+
+    @Test
+    public void releaseContentInfo() throws RepositoryException {
+        final Bundle bundle = createNewBundle();
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+        final Node bundleContent = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        assertTrue(bundleContent.hasProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER));
+        final long revision = bundleContent.getProperty(LeaseBundleContentStateStore.PROPERTY_REVISION).getLong();
+
+        underTest.unlockBundleContentInfo(session, bundle, true, null);
+
+        assertFalse(bundleContent.hasProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER));
+        assertEquals(revision + 1,
+                bundleContent.getProperty(LeaseBundleContentStateStore.PROPERTY_REVISION).getLong());
+        assertTrue(bundleContent.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
+        assertFalse(session.hasPendingChanges());
+    }
+
+    @Test
+    public void renewLease() throws Exception {
+        final Bundle bundle = createNewBundle();
+        final LeaseBundleContentStateStore store = new LeaseBundleContentStateStore(underTest, "this-instance",
+                1000);
+
+        assertNotNull(store.acquire(session, bundle, true));
+        final Node bundleContent = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        final long expires = bundleContent.getProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES).getLong();
+
+        // not renewed before half of the lease has passed
+        store.renew(bundle);
+        session.refresh(false);
+        assertEquals(expires,
+                bundleContent.getProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES).getLong());
+
+        Thread.sleep(600);
+        store.renew(bundle);
+        session.refresh(false);
+        assertTrue(bundleContent.getProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_EXPIRES)
+                .getLong() > expires);
+
+        // still held after the initial lease expired
+        Thread.sleep(500);
+        assertNull(new LeaseBundleContentStateStore(underTest, "other-instance", 1000).acquire(session, bundle,
+                false));
+        store.release(session, bundle, true, null, null);
+        session.refresh(false);
+        assertTrue(bundleContent.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
+    }
+
+    @Test
+    public void renewLeaseInBackground() throws Exception {
+        final Bundle bundle = createNewBundle();
+        final LeaseBundleContentStateStore store = new LeaseBundleContentStateStore(underTest, "this-instance",
+                400);
+        final BundleContentRenewal renewal = new BundleContentRenewal(store, 100);
+        try {
+            assertNotNull(store.acquire(session, bundle, true));
+            renewal.start(bundle);
+
+            // still held long after the initial lease expired
+            Thread.sleep(1000);
+            renewal.check(bundle);
+            assertNull(new LeaseBundleContentStateStore(underTest, "other-instance", 400).acquire(session, bundle,
+                    false));
+
+            // taken over, e.g. after a long garbage collection pause
+            final Node bundleContent = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+            bundleContent.setProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER, "other-instance");
+            session.save();
+            final long timeout = System.currentTimeMillis() + 5000;
+            RepositoryException failure = null;
+            while (failure == null && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+                try {
+                    renewal.check(bundle);
+                } catch (RepositoryException e) {
+                    failure = e;
+                }
+            }
+            assertNotNull("Lost lease not reported", failure);
+
+            renewal.stop(bundle);
+            renewal.check(bundle);
+        } finally {
+            renewal.dispose();
+        }
+    }
+
+    @Test
+    public void leaseTakenOver() throws Exception {
+        final Bundle bundle = createNewBundle();
+        final LeaseBundleContentStateStore store = new LeaseBundleContentStateStore(underTest, "this-instance", 10);
+
+        assertNotNull(store.acquire(session, bundle, true));
+        Thread.sleep(20);
+        assertNotNull(new LeaseBundleContentStateStore(underTest, "other-instance", TimeUnit.HOURS.toMillis(1))
+                .acquire(session, bundle, false));
+
+        try {
+            store.renew(bundle);
+            fail("Lease has been taken over");
+        } catch (RepositoryException expected) {
+            // expected
+        }
+        try {
+            store.release(session, bundle, true, null, null);
+            fail("Lease has been taken over");
+        } catch (RepositoryException expected) {
+            // expected
+        }
+        session.refresh(false);
+        assertFalse(session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName())
+                .hasProperty(PROPERTY_CONTENT_LOADED));
+    }
+
+    @Test
+    public void acquireKeepsTransientChanges() throws RepositoryException {
+        final Bundle bundle = createNewBundle();
+        session.getNode(BUNDLE_CONTENT_NODE).addNode(bundle.getSymbolicName());
+        session.save();
+        final String transientName = uniqueId();
+        session.getRootNode().addNode(transientName);
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, false));
+        underTest.unlockBundleContentInfo(session, bundle, false, null);
+
+        assertTrue(session.hasPendingChanges());
+        assertTrue(session.nodeExists("/" + transientName));
+    }
+
+    @Test
+    public void createKeepsTransientChanges() throws RepositoryException {
+        final Bundle bundle = createNewBundle();
+        final String transientName = uniqueId();
+        session.getRootNode().addNode(transientName);
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+        underTest.unlockBundleContentInfo(session, bundle, false, null);
+
+        assertTrue(session.hasPendingChanges());
+        assertTrue(session.nodeExists("/" + transientName));
+        assertTrue(session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName()).isNodeType("mix:lockable"));
+    }
+
+    @Test
+    public void bundleLocksDoNotBlockOtherBundles() throws Exception {
+        final Bundle bundle = createNewBundle();
+        final Bundle other = createNewBundle();
+        final Map<String, Object> info = underTest.getBundleContentInfo(session, bundle, true);
+        assertNotNull(info);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // another bundle is not serialized with the held one
+            assertTrue(executor.submit(() -> {
+                final Session otherSession = underTest.getSession();
+                try {
+                    final boolean acquired = underTest.getBundleContentInfo(otherSession, other, true) != null;
+                    underTest.unlockBundleContentInfo(otherSession, other, false, null);
+                    return acquired;
+                } finally {
+                    otherSession.logout();
+                }
+            }).get(10, TimeUnit.SECONDS));
+
+            // a failed check-in does not wait for the held bundle, its holder discards the digests
+            executor.submit(() -> underTest.discardContentDigests(bundle, Collections.singleton("SLING-INF/a")))
+                    .get(10, TimeUnit.SECONDS);
+            final Map<String, String> digests = new HashMap<>();
+            digests.put("SLING-INF/a", "digest-a");
+            digests.put("SLING-INF/b", "digest-b");
+            underTest.unlockBundleContentInfo(session, bundle, true, null, digests);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        session.refresh(false);
+        final Node bundleContent = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        final Value[] storedDigests = bundleContent.getProperty(PROPERTY_CONTENT_DIGESTS).getValues();
+        assertEquals(1, storedDigests.length);
+        assertEquals("SLING-INF/b=digest-b", storedDigests[0].getString());
+        assertFalse(bundleContent.hasProperty(LeaseBundleContentStateStore.PROPERTY_LEASE_OWNER));
     }
 
     @Test
@@ -22,11 +22,19 @@ import static java.util.Collections.singletonMap;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 
 import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
@@ -60,6 +68,9 @@ public class BundleContentLoaderTest {
         // whiteboard which holds readers
         context.registerInjectActivateService(new ContentReaderWhiteboard());
 
+        // metrics of the content loading
+        context.registerInjectActivateService(new ContentLoaderMetrics());
+
         // register the content loader service
         bundleHelper = context.registerInjectActivateService(new BundleContentLoaderListener());
 
@@ -102,6 +113,56 @@ public class BundleContentLoaderTest {
                         return new String[] { "^/libs.*$" };
                     }
 
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return false;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+
                 });
 
         Bundle mockBundle = newBundleWithInitialContent(context, 
@@ -133,6 +194,56 @@ public class BundleContentLoaderTest {
                         return null;
                     }
 
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return false;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+
                 });
 
         Bundle mockBundle = newBundleWithInitialContent(context,
@@ -164,6 +275,56 @@ public class BundleContentLoaderTest {
                         return new String[] { "^/app.*$" };
                     }
 
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return false;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+
                 });
 
         Bundle mockBundle = newBundleWithInitialContent(context, 
@@ -189,6 +350,451 @@ public class BundleContentLoaderTest {
         assertThat("sling:resourceType was not properly set", imported.getResourceType(), equalTo("sling:Folder"));
     }
 
+    @Test
+    public void loadContentWithSaveBatches() throws Exception {
+
+        BundleContentLoader contentLoader = new BundleContentLoader(bundleHelper, whiteboard,
+                new BundleContentLoaderConfiguration() {
+                    @Override
+                    public Class<? extends Annotation> annotationType() {
+                        return null;
+                    }
+
+                    @Override
+                    public String[] includedTargets() {
+                        return new String[] { "^/.*$" };
+                    }
+
+                    @Override
+                    public String[] excludedTargets() {
+                        return new String[0];
+                    }
+
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 1;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return true;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+                });
+
+        Bundle mockBundle = newBundleWithInitialContent(context, "SLING-INF/;uninstall:=true");
+
+        final Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        Resource imported = context.resourceResolver().getResource("/libs/app");
+
+        assertThat("Resource was not imported", imported, notNullValue());
+        assertThat("sling:resourceType was not properly set", imported.getResourceType(), equalTo("sling:Folder"));
+        assertFalse("Content was not saved", session.hasPendingChanges());
+        assertThat("Uninstall paths were not recorded", bundleHelper.getBundleContentInfo(session, mockBundle, false)
+                .get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS), notNullValue());
+    }
+
+    @Test
+    public void skipUnchangedContentOnUpdate() throws Exception {
+
+        BundleContentLoader contentLoader = new BundleContentLoader(bundleHelper, whiteboard, null);
+
+        Bundle mockBundle = newBundleWithInitialContent(context, "SLING-INF/libs;path:=/libs;overwrite:=true");
+
+        final Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        assertThat("Content digests were not stored",
+                session.getNode(BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + mockBundle.getSymbolicName())
+                        .getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS).getValues().length,
+                equalTo(1));
+
+        session.getNode("/libs/app").setProperty("marker", true);
+        session.save();
+
+        // the content did not change, so it must not be overwritten
+        contentLoader.registerBundle(session, mockBundle, true);
+
+        assertThat("Unchanged content was reinstalled", session.propertyExists("/libs/app/marker"), equalTo(true));
+    }
+
+    @Test
+    public void reinstallOnlyChangedContentOnUpdate() throws Exception {
+
+        BundleContentLoader contentLoader = new BundleContentLoader(bundleHelper, whiteboard, null);
+
+        Bundle mockBundle = newBundleWithInitialContent(context, "SLING-INF/libs;path:=/libs;overwrite:=true,"
+                + "SLING-INF/versioned;path:=/content/versioned;overwrite:=true");
+
+        final Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        final String bundleContentPath = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/"
+                + mockBundle.getSymbolicName();
+        final Map<String, String> digests = ContentDigest.parse(getDigests(session, bundleContentPath));
+        assertThat("Content digests were not stored", digests.size(), equalTo(2));
+
+        session.getNode("/libs/app").setProperty("marker", true);
+        session.getNode("/content/versioned/page").setProperty("marker", true);
+        session.save();
+
+        // only the second path entry changes
+        ((MockBundle) mockBundle).setHeaders(singletonMap("Sling-Initial-Content",
+                "SLING-INF/libs;path:=/libs;overwrite:=true,"
+                        + "SLING-INF/versioned;path:=/content/versioned;overwrite:=true;ignoreImportProviders:=zip"));
+        contentLoader.registerBundle(session, mockBundle, true);
+
+        assertThat("Unchanged content was reinstalled", session.propertyExists("/libs/app/marker"), equalTo(true));
+        assertThat("Changed content was not reinstalled", session.propertyExists("/content/versioned/page/marker"),
+                equalTo(false));
+        assertThat("Changed content was not imported", session.nodeExists("/content/versioned/page/child"),
+                equalTo(true));
+        final Map<String, String> updatedDigests = ContentDigest.parse(getDigests(session, bundleContentPath));
+        assertThat("Digest of the unchanged content was not kept", updatedDigests.get("SLING-INF/libs"),
+                equalTo(digests.get("SLING-INF/libs")));
+        assertThat("Digest of the changed content was not updated",
+                updatedDigests.get("SLING-INF/versioned").equals(digests.get("SLING-INF/versioned")),
+                equalTo(false));
+    }
+
+    private static String[] getDigests(Session session, String bundleContentPath) throws RepositoryException {
+        final Value[] values = session.getNode(bundleContentPath)
+                .getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS).getValues();
+        final String[] digests = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            digests[i] = values[i].getString();
+        }
+        return digests;
+    }
+
+    @Test
+    public void recordMetrics() throws Exception {
+
+        ContentLoaderMetrics metrics = context.getService(ContentLoaderMetrics.class);
+        BundleContentLoader contentLoader = new BundleContentLoader(bundleHelper, whiteboard, null, metrics);
+
+        Bundle mockBundle = newBundleWithInitialContent(context, "SLING-INF/libs;path:=/libs");
+
+        contentLoader.registerBundle(context.resourceResolver().adaptTo(Session.class), mockBundle, false);
+
+        ContentLoaderMetrics.BundleStatistics stats = metrics.getBundleStatistics(mockBundle.getSymbolicName());
+        assertThat("Bundle load was not recorded", stats, notNullValue());
+        assertThat("Created nodes were not counted", stats.getNodes() > 0, equalTo(true));
+        assertThat("Path entry was not recorded", stats.getPathEntryMillis().containsKey("SLING-INF/libs"),
+                equalTo(true));
+        assertThat(metrics.getLoadedBundles(), equalTo(1L));
+        assertThat(metrics.getTimer(ContentLoaderMetrics.TIMER_PARSE).getCount() > 0, equalTo(true));
+        assertThat(metrics.getTimer(ContentLoaderMetrics.TIMER_SAVE).getCount(), equalTo(1L));
+        assertThat(metrics.getBundles().size(), equalTo(1));
+        assertThat(metrics.getPathEntries().size(), equalTo(1));
+        assertThat(metrics.getReaders().isEmpty(), equalTo(false));
+
+        metrics.reset();
+        assertThat(metrics.getBundleStatistics().isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void checkinVersionableNodesInBackground() throws Exception {
+
+        ContentLoaderMetrics metrics = context.getService(ContentLoaderMetrics.class);
+        BundleContentLoader contentLoader = new BundleContentLoader(bundleHelper, whiteboard,
+                new BundleContentLoaderConfiguration() {
+                    @Override
+                    public Class<? extends Annotation> annotationType() {
+                        return null;
+                    }
+
+                    @Override
+                    public String[] includedTargets() {
+                        return new String[] { "^/.*$" };
+                    }
+
+                    @Override
+                    public String[] excludedTargets() {
+                        return new String[0];
+                    }
+
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return false;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 2;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+
+                }, metrics);
+
+        Bundle mockBundle = newBundleWithInitialContent(context,
+                "SLING-INF/versioned;path:=/content/versioned;checkin:=true");
+
+        final Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+        // waits for the background check-ins
+        contentLoader.dispose();
+
+        session.refresh(false);
+        assertThat("Page was not checked in", session.getNode("/content/versioned/page").isCheckedOut(),
+                equalTo(false));
+        assertThat("Child was not checked in", session.getNode("/content/versioned/page/child").isCheckedOut(),
+                equalTo(false));
+        assertThat(metrics.getCheckedInNodes(), equalTo(2L));
+        assertThat(metrics.getFailedCheckins(), equalTo(0L));
+        assertThat(metrics.getPendingCheckins(), equalTo(0L));
+    }
+
+    @Test
+    public void discardDigestOfContentNotCheckedIn() throws Exception {
+        assertDigestDiscardedWhenNotCheckedIn("SLING-INF/versioned;path:=/content/versioned;checkin:=true");
+    }
+
+    @Test
+    public void discardDigestOfContentNotCheckedInWithRelativeTarget() throws Exception {
+        assertDigestDiscardedWhenNotCheckedIn("SLING-INF/versioned;path:=content/versioned;checkin:=true");
+    }
+
+    private void assertDigestDiscardedWhenNotCheckedIn(String initialContentHeader) throws Exception {
+
+        ContentLoaderMetrics metrics = context.getService(ContentLoaderMetrics.class);
+        // background check-ins fail as they get no session
+        BundleHelper failingCheckins = new BundleHelper() {
+            @Override
+            public String getMimeType(String name) {
+                return bundleHelper.getMimeType(name);
+            }
+
+            @Override
+            public Map<String, Object> getBundleContentInfo(Session session, Bundle bundle, boolean create)
+                    throws RepositoryException {
+                return bundleHelper.getBundleContentInfo(session, bundle, create);
+            }
+
+            @Override
+            public void unlockBundleContentInfo(Session session, Bundle bundle, boolean contentLoaded,
+                    List<String> createdNodes, Map<String, String> contentDigests) throws RepositoryException {
+                bundleHelper.unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, contentDigests);
+            }
+
+            @Override
+            public void contentIsUninstalled(Session session, Bundle bundle) {
+                bundleHelper.contentIsUninstalled(session, bundle);
+            }
+
+            @Override
+            public void discardContentDigests(Bundle bundle, Set<String> entryPaths) {
+                bundleHelper.discardContentDigests(bundle, entryPaths);
+            }
+
+            @Override
+            public void createRepositoryPath(Session session, String path) throws RepositoryException {
+                bundleHelper.createRepositoryPath(session, path);
+            }
+
+            @Override
+            public Session getSession() throws RepositoryException {
+                return bundleHelper.getSession();
+            }
+
+            @Override
+            public Session getSession(String workspace) throws RepositoryException {
+                throw new RepositoryException("No session for " + workspace);
+            }
+        };
+        BundleContentLoader contentLoader = new BundleContentLoader(failingCheckins, whiteboard,
+                new BundleContentLoaderConfiguration() {
+                    @Override
+                    public Class<? extends Annotation> annotationType() {
+                        return null;
+                    }
+
+                    @Override
+                    public String[] includedTargets() {
+                        // relative targets are filtered as they are written
+                        return new String[] { "^.*$" };
+                    }
+
+                    @Override
+                    public String[] excludedTargets() {
+                        return new String[0];
+                    }
+
+                    @Override
+                    public boolean asyncLoading() {
+                        return false;
+                    }
+
+                    @Override
+                    public int asyncQueueCapacity() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int initialLoadThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int saveBatchNodes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long saveBatchBytes() {
+                        return 0;
+                    }
+
+                    @Override
+                    public boolean savePerPathEntry() {
+                        return false;
+                    }
+
+                    @Override
+                    public int mergeRemovalBatchSize() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int checkinThreads() {
+                        return 1;
+                    }
+
+                    @Override
+                    public int checkinRetries() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int leaseDuration() {
+                        return 600;
+                    }
+
+                }, metrics);
+
+        Bundle mockBundle = newBundleWithInitialContent(context, initialContentHeader);
+
+        final Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+        // waits for the background check-ins and the failure handling
+        contentLoader.dispose();
+
+        session.refresh(false);
+        assertThat("Page was checked in", session.getNode("/content/versioned/page").isCheckedOut(),
+                equalTo(true));
+        assertThat(metrics.getFailedCheckins(), equalTo(2L));
+        assertThat(metrics.getPendingCheckins(), equalTo(0L));
+        final Node bundleContent = session.getNode(
+                BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + mockBundle.getSymbolicName());
+        assertThat(bundleContent.getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED).getBoolean(),
+                equalTo(true));
+        assertFalse("Digest of the content not checked in was kept",
+                bundleContent.hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGESTS));
+    }
+
+    @Test
+    public void bundleEntryIndex() throws Exception {
+
+        Bundle mockBundle = newBundleWithInitialContent(context, "SLING-INF/libs;path:=/libs");
+
+        BundleEntryIndex index = BundleEntryIndex.create(mockBundle, "SLING-INF/libs");
+
+        assertThat("Folder entries were not indexed", index.getEntryPaths("SLING-INF/libs/"), notNullValue());
+        assertThat("Folder entries were not indexed", index.getEntryPaths("/SLING-INF/libs"), notNullValue());
+        assertThat("File has entries", index.getEntryPaths("SLING-INF/libs/app.xml"), nullValue());
+        ContentReaderSnapshot snapshot = whiteboard.getSnapshot();
+        assertThat("Node descriptor was not found",
+                index.findDescriptorExtension("SLING-INF/libs/app", snapshot, ext -> true), equalTo(".xml"));
+        assertThat("Node descriptor was not found",
+                index.findDescriptorExtension("/SLING-INF/libs/app", snapshot, ext -> true), equalTo(".xml"));
+        assertThat("Ignored node descriptor was found",
+                index.findDescriptorExtension("SLING-INF/libs/app", snapshot, ext -> !".xml".equals(ext)),
+                nullValue());
+        assertThat("Descriptor of a file was found",
+                index.findDescriptorExtension("SLING-INF/libs/app.xml", snapshot, ext -> true), nullValue());
+        assertThat("Unknown entry was found", index.getEntry("SLING-INF/libs/missing.json"), nullValue());
+    }
+
     @Test
     @Ignore("TODO - unregister or somehow ignore the XmlReader component for this test")
     public void loadXmlAsIs() throws Exception {
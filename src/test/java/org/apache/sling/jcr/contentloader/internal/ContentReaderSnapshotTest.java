@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
+import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
+import org.apache.sling.jcr.contentloader.internal.readers.ZipReader;
+import org.junit.Test;
+
+public class ContentReaderSnapshotTest {
+
+    private final ContentReader xml = new XmlReader();
+
+    private final ContentReader json = new JsonReader();
+
+    private final ContentReader zip = new ZipReader();
+
+    private ContentReaderSnapshot newSnapshot() {
+        final Map<String, ContentReader> readers = new LinkedHashMap<>();
+        readers.put("xml", xml);
+        readers.put("json", json);
+        readers.put("zip", zip);
+        readers.put("jar", zip);
+        return new ContentReaderSnapshot(1, readers);
+    }
+
+    @Test
+    public void testReadersInMatchingOrder() {
+        assertEquals(Arrays.asList(".jcr.xml", ".xml", ".json", ".zip", ".jar"),
+                Arrays.asList(newSnapshot().getReaders().keySet().toArray()));
+    }
+
+    @Test
+    public void testGetExtension() {
+        final ContentReaderSnapshot snapshot = newSnapshot();
+        assertEquals(".jcr.xml", snapshot.getExtension("content.jcr.xml"));
+        assertEquals(".xml", snapshot.getExtension("content.xml"));
+        assertEquals(".json", snapshot.getExtension("/apps/content.json"));
+        assertEquals(".jar", snapshot.getExtension("lib.jar"));
+        assertNull(snapshot.getExtension("image.png"));
+        assertNull(snapshot.getExtension("json"));
+        assertNull(snapshot.getExtension(""));
+    }
+
+    @Test
+    public void testGetExtensions() {
+        final ContentReaderSnapshot snapshot = newSnapshot();
+        assertEquals(Arrays.asList(".jcr.xml", ".xml"), snapshot.getExtensions("content.jcr.xml"));
+        assertEquals(Arrays.asList(".json"), snapshot.getExtensions("/apps/content.json"));
+        assertEquals(Collections.emptyList(), snapshot.getExtensions("image.png"));
+    }
+
+    @Test
+    public void testGetReader() {
+        final ContentReaderSnapshot snapshot = newSnapshot();
+        assertNull(snapshot.getReader("content.jcr.xml", ext -> false));
+        assertSame(xml, snapshot.getReader("content.jcr.xml", ".jcr.xml"::equals));
+        assertSame(xml, snapshot.getReader("content.xml", ext -> false));
+        assertSame(json, snapshot.getReader("content.json", ext -> false));
+        assertNull(snapshot.getReader("content.json", ".json"::equals));
+        assertSame(zip, snapshot.getReader("content.jar", ext -> false));
+    }
+}
@@ -18,13 +18,16 @@ package org.apache.sling.jcr.contentloader.internal;
 
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.AUTO_CHECKOUT;
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.CHECK_IN;
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.INCREMENTAL;
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.NO_OPTIONS;
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.OVERWRITE_NODE;
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.OVERWRITE_PROPERTIES;
+import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.SYNCH_NODES;
 import static org.apache.sling.jcr.contentloader.internal.ImportOptionsFactory.createImportOptions;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.text.ParseException;
@@ -42,7 +45,14 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.nodetype.NodeType;
-
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.AccessControlList;
+import javax.jcr.security.AccessControlManager;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.contentloader.ContentImportListener;
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
@@ -150,7 +160,7 @@ public class DefaultContentCreatorTest {
             oneOf(session).itemExists(with(any(String.class))); will(returnValue(true));
             oneOf(session).getItem(with(any(String.class))); will(returnValue(parentNode));
 
-            exactly(2).of(parentNode).getPath(); will(returnValue("/" + rootNodeName));
+            oneOf(parentNode).getPath(); will(returnValue("/" + rootNodeName));
             oneOf(parentNode).isNode(); will(returnValue(true));
             oneOf(parentNode).isNodeType("mix:referenceable"); will(returnValue(true));
             oneOf(parentNode).getIdentifier(); will(returnValue(uuid));
@@ -378,9 +388,6 @@ public class DefaultContentCreatorTest {
         final String propName = uniqueId();
         final String[] propValues = {uniqueId(), uniqueId()};
         final ContentImportListener listener = mockery.mock(ContentImportListener.class);
-        @SuppressWarnings("unchecked")
-		final Map<String, String[]> delayedMultipleReferences =
-                (Map<String, String[]>)PrivateAccessor.getField(contentCreator, "delayedMultipleReferences");
         this.mockery.checking(new Expectations(){{
             oneOf(listener).onCreate(with(any(String.class)));
         }});
@@ -393,10 +400,11 @@ public class DefaultContentCreatorTest {
         assertTrue(parentNode.hasProperty(propName));
         assertTrue(parentNode.getProperty(propName).isNew());
 
-        String referencesKey = parentNode.getPath() + "/" + propName;
-        String[] uuidsOrPaths = delayedMultipleReferences.get(referencesKey);
-        assertNotNull(uuidsOrPaths);
-        assertEquals(propValues.length, uuidsOrPaths.length);
+        List<ReferenceIndex.PendingReference> references = contentCreator.getReferenceIndex()
+                .get(session.getWorkspace().getName(), parentNode.getPath() + "/" + propValues[0]);
+        assertEquals(1, references.size());
+        assertEquals(parentNode.getPath() + "/" + propName, references.get(0).getPropertyPath());
+        assertEquals(propValues.length, references.get(0).values.length);
         mockery.assertIsSatisfied();
     }
 
@@ -458,15 +466,80 @@ public class DefaultContentCreatorTest {
         assertTrue(parentNode.hasProperty(propName));
     }
 
+    @Test
+    public void createTypedProperties() throws RepositoryException {
+        contentCreator.init(createImportOptions(NO_OPTIONS),
+                new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+
+        contentCreator.createTypedProperty("long", PropertyType.LONG, 42L);
+        contentCreator.createTypedProperty("double", PropertyType.UNDEFINED, 1.5d);
+        contentCreator.createTypedProperty("booleans", PropertyType.BOOLEAN, new Object[] { true, false });
+        contentCreator.createTypedProperty("string", PropertyType.STRING, (Object) "foo");
+
+        assertEquals(PropertyType.LONG, parentNode.getProperty("long").getType());
+        assertEquals(42L, parentNode.getProperty("long").getLong());
+        assertEquals(PropertyType.DOUBLE, parentNode.getProperty("double").getType());
+        assertEquals(1.5d, parentNode.getProperty("double").getDouble(), 0d);
+        assertTrue(parentNode.getProperty("booleans").isMultiple());
+        assertFalse(parentNode.getProperty("booleans").getValues()[1].getBoolean());
+        assertEquals("foo", parentNode.getProperty("string").getString());
+    }
+
+    @Test
+    public void incrementalOverwrite() throws RepositoryException {
+        final Node existing = parentNode.addNode("node");
+        existing.setProperty("unchanged", "1");
+        existing.setProperty("changed", "2");
+        existing.setProperty("removed", "3");
+        existing.addNode("kept");
+        existing.addNode("removed");
+        session.save();
+        final String path = existing.getPath();
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+
+        this.mockery.checking(new Expectations(){{
+            oneOf(listener).onModify(path + "/changed");
+            oneOf(listener).onCreate(path + "/added");
+            oneOf(listener).onDelete(path + "/removed");
+            oneOf(listener).onDelete(path + "/removed");
+            oneOf(listener).onCreate(path + "/added-node");
+        }});
+
+        contentCreator.init(createImportOptions(OVERWRITE_NODE|INCREMENTAL|AUTO_CHECKOUT),
+                new HashMap<String, ContentReader>(), null, listener);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode("node", null, null);
+        contentCreator.createProperty("unchanged", PropertyType.STRING, "1");
+        contentCreator.createProperty("changed", PropertyType.STRING, "4");
+        contentCreator.createProperty("added", PropertyType.STRING, "5");
+        contentCreator.createNode("kept", null, null);
+        contentCreator.finishNode();
+        contentCreator.createNode("added-node", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishIncremental();
+
+        final Node node = session.getNode(path);
+        assertFalse("Existing node was recreated", node.isNew());
+        assertEquals("1", node.getProperty("unchanged").getString());
+        assertEquals("4", node.getProperty("changed").getString());
+        assertEquals("5", node.getProperty("added").getString());
+        assertFalse(node.hasProperty("removed"));
+        assertTrue(node.hasNode("kept"));
+        assertFalse(node.getNode("kept").isNew());
+        assertTrue(node.hasNode("added-node"));
+        assertFalse(node.hasNode("removed"));
+        mockery.assertIsSatisfied();
+    }
+
     //------DefaultContentCreator#finishNode()------//
 
     @Test
     public void finishNodeWithMultipleProperty() throws RepositoryException, NoSuchFieldException {
         final String propName = uniqueId();
         final String underTestNodeName = uniqueId();
-        @SuppressWarnings("unchecked")
-		final Map<String, List<String>> delayedMultipleReferences =
-                (Map<String, List<String>>) PrivateAccessor.getField(contentCreator, "delayedMultipleReferences");
+        final ReferenceIndex references = contentCreator.getReferenceIndex();
         final ContentImportListener listener = mockery.mock(ContentImportListener.class);
 
         this.mockery.checking(new Expectations(){{
@@ -479,13 +552,13 @@ public class DefaultContentCreatorTest {
 
         contentCreator.createProperty(propName, PropertyType.REFERENCE, new String[]{underTestNodeName});
         contentCreator.createNode(underTestNodeName, null, null);
-        assertEquals(1, delayedMultipleReferences.size());
+        assertEquals(1, references.size());
 
         Node underTest = parentNode.getNode(underTestNodeName);
         underTest.addMixin("mix:referenceable");
 
         contentCreator.finishNode();
-        assertEquals(0, delayedMultipleReferences.size());
+        assertEquals(0, references.size());
         mockery.assertIsSatisfied();
     }
 
@@ -514,6 +587,31 @@ public class DefaultContentCreatorTest {
         mockery.assertIsSatisfied();
     }
 
+    @Test
+    public void resolveReferencesToNodesCreatedLater() throws RepositoryException {
+        final String propName = uniqueId();
+        final String targetName = uniqueId();
+
+        contentCreator.init(createImportOptions(NO_OPTIONS),
+                new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createProperty(propName, PropertyType.REFERENCE, new String[] { targetName });
+        assertEquals(0, contentCreator.resolveReferences(session, contentCreator.getReferenceIndex()));
+
+        // the target is created by someone else, like another bundle
+        final ReferenceIndex shared = new ReferenceIndex();
+        shared.addAll(contentCreator.getReferenceIndex(), "bundle");
+        final ReferenceIndex copy = shared.copy();
+        final Node target = parentNode.addNode(targetName);
+        target.addMixin("mix:referenceable");
+
+        assertEquals(1, contentCreator.resolveReferences(session, copy));
+        assertEquals(target.getIdentifier(), parentNode.getProperty(propName).getValues()[0].getString());
+        assertEquals(1, shared.size());
+        shared.update(copy);
+        assertTrue(shared.isEmpty());
+    }
+
     @Test
     public void finishNodeWithoutProperties() throws RepositoryException, NoSuchFieldException {
         final String propName = uniqueId();
@@ -547,6 +645,330 @@ public class DefaultContentCreatorTest {
         assertFalse(parentNode.hasProperty(propName));
     }
 
+    @Test
+    public void createPrincipalsInBatch() throws RepositoryException {
+        final String user = uniqueId();
+        final String group = uniqueId();
+        final Map<String, Object> props = new HashMap<>();
+        props.put("foo", "bar");
+
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.startPrincipalBatch();
+        // the group lists a member declared after it and an unknown one
+        contentCreator.createGroup(group, new String[] { user, "unknown" }, null);
+        contentCreator.createUser(user, "pwd", props);
+        final UserManager userManager = AccessControlUtil.getUserManager(session);
+        assertNull(userManager.getAuthorizable(group));
+        contentCreator.finishPrincipalBatch();
+
+        final Group created = (Group) userManager.getAuthorizable(group);
+        assertNotNull(created);
+        final Authorizable member = userManager.getAuthorizable(user);
+        assertFalse(member.isGroup());
+        assertEquals("bar", member.getProperty("foo")[0].getString());
+        assertTrue(created.isDeclaredMember(member));
+    }
+
+    @Test
+    public void createPrincipalsInBatchWithTypeConflict() throws RepositoryException {
+        final String name = uniqueId();
+
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createUser(name, "pwd", null);
+        contentCreator.startPrincipalBatch();
+        contentCreator.createGroup(name, null, null);
+
+        thrown.expect(RepositoryException.class);
+        thrown.expectMessage("A user already exists with the requested name: " + name);
+        contentCreator.finishPrincipalBatch();
+    }
+
+    @Test
+    public void createAcesWrittenOnFinishNode() throws RepositoryException {
+        final String user = uniqueId();
+        final String group = uniqueId();
+        final String nodeName = uniqueId();
+
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createUser(user, "pwd", null);
+        contentCreator.createGroup(group, null, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createAce(user, new String[] { "jcr:read" }, null, null);
+        contentCreator.createAce(group, new String[] { "jcr:read" }, new String[] { "jcr:write" }, null);
+        // merged with the existing entry of the user and moved to the top
+        contentCreator.createAce(user, new String[] { "jcr:write" }, null, "first");
+
+        final String path = parentNode.getPath() + "/" + nodeName;
+        final AccessControlManager accessControlManager = session.getAccessControlManager();
+        assertEquals(0, accessControlManager.getPolicies(path).length);
+
+        contentCreator.finishNode();
+        final AccessControlEntry[] entries = ((AccessControlList) accessControlManager.getPolicies(path)[0])
+                .getAccessControlEntries();
+        assertEquals(3, entries.length);
+        assertEquals(user, entries[0].getPrincipal().getName());
+        assertEquals(2, entries[0].getPrivileges().length);
+        assertEquals(group, entries[1].getPrincipal().getName());
+        assertEquals(group, entries[2].getPrincipal().getName());
+    }
+
+    @Test
+    public void recreateNodeCreatedInSameImport() throws RepositoryException {
+        final String nodeName = uniqueId();
+
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("child", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        // overwritten, as the node exists now
+        contentCreator.createNode(nodeName, "nt:folder", null);
+        contentCreator.createNode("other", "nt:folder", null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+
+        final Node node = parentNode.getNode(nodeName);
+        assertEquals("nt:folder", node.getPrimaryNodeType().getName());
+        assertFalse(node.hasNode("child"));
+        assertTrue(node.hasNode("other"));
+        assertEquals(4, contentCreator.getCreatedNodeCount());
+    }
+
+    @Test
+    public void checkoutVersionableAncestorOnce() throws RepositoryException {
+        final Node versionable = parentNode.addNode(uniqueId());
+        versionable.addMixin("mix:versionable");
+        session.save();
+        session.getWorkspace().getVersionManager().checkin(versionable.getPath());
+        final String path = versionable.getPath();
+
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        this.mockery.checking(new Expectations() {{
+            oneOf(listener).onCheckout(path);
+            allowing(listener).onCreate(with(any(String.class)));
+            allowing(listener).onModify(with(any(String.class)));
+        }});
+        contentCreator.init(createImportOptions(AUTO_CHECKOUT), new HashMap<String, ContentReader>(), null,
+                listener);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.switchCurrentNode(versionable.getName(), null);
+        contentCreator.createProperty("foo", PropertyType.STRING, "bar");
+        contentCreator.createNode("child", null, null);
+        contentCreator.createProperty("foo", PropertyType.STRING, "bar");
+        contentCreator.createNode("grandchild", null, null);
+        contentCreator.createProperty("foo", PropertyType.STRING, "bar");
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.createProperty("bar", PropertyType.STRING, "foo");
+        contentCreator.finishNode();
+
+        assertTrue(versionable.isCheckedOut());
+        assertTrue(versionable.hasNode("child/grandchild"));
+        assertEquals("bar", versionable.getProperty("child/grandchild/foo").getString());
+    }
+
+    @Test
+    public void keepImportStateAcrossFiles() throws RepositoryException {
+        final Node versionable = parentNode.addNode(uniqueId());
+        versionable.addMixin("mix:versionable");
+        session.save();
+        session.getWorkspace().getVersionManager().checkin(versionable.getPath());
+        final String path = versionable.getPath();
+        final String nodeName = uniqueId();
+
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        this.mockery.checking(new Expectations() {{
+            oneOf(listener).onCheckout(path);
+            allowing(listener).onCreate(with(any(String.class)));
+            allowing(listener).onModify(with(any(String.class)));
+        }});
+        contentCreator.startImport();
+        contentCreator.init(createImportOptions(AUTO_CHECKOUT), new HashMap<String, ContentReader>(), null,
+                listener);
+        contentCreator.prepareParsing(versionable, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.finishNode();
+
+        // the next file of the same import
+        contentCreator.init(createImportOptions(AUTO_CHECKOUT), new HashMap<String, ContentReader>(), null,
+                listener);
+        contentCreator.prepareParsing(versionable, null);
+        contentCreator.createNode("other", null, null);
+        contentCreator.finishNode();
+        final ImportedNodeCache nodeCache = getNodeCache();
+        assertTrue("Node structure was not kept", nodeCache.knowsChildren(path + "/" + nodeName, session));
+
+        contentCreator.startImport();
+        assertFalse("Node structure was kept", nodeCache.knowsChildren(path + "/" + nodeName, session));
+    }
+
+    @Test
+    public void removeNodeForgetsStructure() throws RepositoryException {
+        final String nodeName = uniqueId();
+        contentCreator.startImport();
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("child", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+
+        final String path = parentNode.getPath() + "/" + nodeName;
+        contentCreator.removeNode(parentNode.getNode(nodeName));
+        parentNode.addNode(nodeName);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.switchCurrentNode(nodeName, null);
+        contentCreator.finishNode();
+
+        assertFalse(getNodeCache().knowsChildren(path, session));
+        assertFalse(parentNode.hasNode(nodeName + "/child"));
+    }
+
+    private ImportedNodeCache getNodeCache() {
+        try {
+            return (ImportedNodeCache) PrivateAccessor.getField(contentCreator, "nodeCache");
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void mergeRemovesNodesNotImported() throws RepositoryException {
+        final String nodeName = uniqueId();
+        final Node existing = parentNode.addNode(nodeName);
+        existing.addNode("a");
+        existing.addNode("b");
+        existing.addNode("c");
+        session.save();
+
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        this.mockery.checking(new Expectations() {{
+            oneOf(listener).onDelete(existing.getPath() + "/b");
+            oneOf(listener).onDelete(existing.getPath() + "/c");
+            allowing(listener).onCreate(with(any(String.class)));
+        }});
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, listener);
+        contentCreator.setMergeRemovalBatchSize(1);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("a", null, null);
+        contentCreator.finishNode();
+        contentCreator.createNode("d", null, null);
+        contentCreator.createNode("e", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+
+        // nothing is removed or saved before the import is saved
+        assertTrue(existing.hasNode("b"));
+        assertTrue(session.hasPendingChanges());
+        session.save();
+        contentCreator.finishMerge();
+
+        assertTrue(existing.hasNode("a"));
+        assertFalse(existing.hasNode("b"));
+        assertFalse(existing.hasNode("c"));
+        assertTrue(existing.hasNode("d/e"));
+        assertFalse(session.hasPendingChanges());
+    }
+
+    @Test
+    public void mergeRemovesNodesCreatedByEarlierFile() throws RepositoryException {
+        final String nodeName = uniqueId();
+        contentCreator.startImport();
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("a", null, null);
+        contentCreator.finishNode();
+        contentCreator.createNode("b", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+
+        // a later file of the same import only contains b
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("b", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+        session.save();
+        contentCreator.finishMerge();
+
+        final Node merged = parentNode.getNode(nodeName);
+        assertFalse(merged.hasNode("a"));
+        assertTrue(merged.hasNode("b"));
+    }
+
+    @Test
+    public void mergeKeepsNodesImportedByLaterFile() throws RepositoryException {
+        final String nodeName = uniqueId();
+        final Node existing = parentNode.addNode(nodeName);
+        existing.addNode("a").addNode("b");
+        session.save();
+
+        contentCreator.startImport();
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+
+        // a is removed by the first file, but imported again by the second one
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(existing, null);
+        contentCreator.createNode("a", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+        session.save();
+        contentCreator.finishMerge();
+
+        assertTrue(existing.hasNode("a"));
+        assertFalse(existing.hasNode("a/b"));
+    }
+
+    @Test
+    public void mergeRemovesNodesWhenOneCannotBeRemoved() throws RepositoryException {
+        final String nodeName = uniqueId();
+        final Node existing = parentNode.addNode(nodeName);
+        existing.addNode("a");
+        final Node referenced = existing.addNode("b");
+        referenced.addMixin("mix:referenceable");
+        existing.addNode("c");
+        final Node referrer = parentNode.addNode(uniqueId());
+        session.save();
+        referrer.setProperty("ref", referenced);
+        session.save();
+
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        this.mockery.checking(new Expectations() {{
+            // b is still referenced, only the removal of c is saved
+            oneOf(listener).onDelete(existing.getPath() + "/c");
+            allowing(listener).onCreate(with(any(String.class)));
+        }});
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, listener);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode(nodeName, null, null);
+        contentCreator.createNode("a", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+        session.save();
+        contentCreator.finishMerge();
+
+        assertTrue(existing.hasNode("a"));
+        assertTrue(existing.hasNode("b"));
+        assertFalse(existing.hasNode("c"));
+        assertFalse(session.hasPendingChanges());
+    }
+
     private final String uniqueId() {
         return getClass().getSimpleName() + UUID.randomUUID();
     }
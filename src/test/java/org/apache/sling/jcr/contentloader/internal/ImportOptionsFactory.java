@@ -35,6 +35,8 @@ public final class ImportOptionsFactory {
     public static final int IGNORE_IMPORT_PROVIDER = 0x1 << 5;
     
     public static final int CHECK_IN = 0x1 << 6;
+
+    public static final int INCREMENTAL = 0x1 << 7;
     
     
     public static ImportOptions createImportOptions(int options){
@@ -73,6 +75,11 @@ public final class ImportOptionsFactory {
             public boolean isMerge() {
                 return (options & SYNCH_NODES) > NO_OPTIONS;
             }
+
+            @Override
+            public boolean isIncremental() {
+                return (options & INCREMENTAL) > NO_OPTIONS;
+            }
         };
     }
 }
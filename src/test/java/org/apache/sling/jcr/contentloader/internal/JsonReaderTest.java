@@ -16,11 +16,19 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -237,6 +245,27 @@ public class JsonReaderTest {
         this.parse(json);
     }
 
+    @org.junit.Test
+    public void testPropertiesDateValueWithoutOffsetColon() throws Exception {
+        String json = "{ \"p1\": \"2009-09-24T16:32:57.948-0700\", \"p2\": \"2009-09-24T16:32:57.948-07:0x\"}";
+
+        this.mockery.checking(new Expectations() {
+            {
+                allowing(creator).createNode(null, null, null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p1", PropertyType.DATE, "2009-09-24T16:32:57.948-0700");
+                inSequence(mySequence);
+                allowing(creator).createProperty("p2", PropertyType.UNDEFINED, "2009-09-24T16:32:57.948-07:0x");
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
     @org.junit.Test
     public void testPropertiesTwoSingleValue() throws Exception {
         String json = "{ \"p1\": \"v1\", \"p2\": \"v2\"}";
@@ -434,8 +463,10 @@ public class JsonReaderTest {
                 allowing(creator).createNode(null, null, null);
                 allowing(creator).createUser("username1", "pwd1", map);
                 allowing(creator).createUser("username2", "pwd2", new LinkedHashMap<String, Object>());
+                oneOf(creator).startPrincipalBatch();
                 allowing(creator).createGroup("group1", new String[] { "username1", "username2" },
                         new LinkedHashMap<String, Object>());
+                oneOf(creator).finishPrincipalBatch();
 
                 allowing(creator).finishNode();
                 inSequence(mySequence);
@@ -474,6 +505,155 @@ public class JsonReaderTest {
         this.parse(json);
     }
 
+    @org.junit.Test
+    public void testPropertiesAroundChild() throws Exception {
+        String json = "{ \"jcr:primaryType\" : \"nt:folder\", \"p1\" : 1, \"c1\" : { \"c1p1\" : 1.5 }, \"p2\" : true }";
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, "nt:folder", null);
+                inSequence(mySequence);
+                oneOf(creator).createTypedProperty("p1", PropertyType.LONG, (Object) 1L);
+                inSequence(mySequence);
+                oneOf(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                oneOf(creator).createTypedProperty("c1p1", PropertyType.DOUBLE, (Object) 1.5d);
+                inSequence(mySequence);
+                oneOf(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).createTypedProperty("p2", PropertyType.BOOLEAN, (Object) Boolean.TRUE);
+                inSequence(mySequence);
+                oneOf(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
+    @org.junit.Test
+    public void testPrimaryTypeAfterChild() throws Exception {
+        String json = "{ \"c1\" : {}, \"jcr:primaryType\" : \"nt:folder\" }";
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, "nt:folder", null);
+                inSequence(mySequence);
+                oneOf(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                exactly(2).of(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
+    @org.junit.Test
+    public void testPrimaryTypeAfterChildFromUrlOpensUrlOnce() throws Exception {
+        final byte[] json = "{ \"c1\" : {}, \"jcr:primaryType\" : \"nt:folder\" }"
+                .getBytes(StandardCharsets.UTF_8);
+        final AtomicInteger opened = new AtomicInteger();
+        final URL url = new URL("test", null, -1, "/content.json", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {
+                        // nothing to connect to
+                    }
+
+                    @Override
+                    public InputStream getInputStream() {
+                        opened.incrementAndGet();
+                        return new ByteArrayInputStream(json);
+                    }
+                };
+            }
+        });
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, "nt:folder", null);
+                inSequence(mySequence);
+                oneOf(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                exactly(2).of(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.jsonReader.parse(url, this.creator);
+        assertEquals(1, opened.get());
+    }
+
+    @org.junit.Test
+    public void testPrimaryTypeAfterChildInLargeDocument() throws Exception {
+        final char[] chars = new char[1024 * 1024];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+        String json = "{ \"p1\" : \"" + value + "\", \"c1\" : {}, \"jcr:primaryType\" : \"nt:folder\" }";
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, "nt:folder", null);
+                inSequence(mySequence);
+                oneOf(creator).createProperty("p1", PropertyType.UNDEFINED, value);
+                inSequence(mySequence);
+                oneOf(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                exactly(2).of(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
+    @org.junit.Test
+    public void testMixinTypesAfterChildOfChild() throws Exception {
+        String json = "{ \"c1\" : { \"c2\" : {}, \"jcr:mixinTypes\" : [\"mix:title\"] }, \"c3\" : {} }";
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, null, null);
+                inSequence(mySequence);
+                oneOf(creator).createNode("c1", null, new String[] { "mix:title" });
+                inSequence(mySequence);
+                oneOf(creator).createNode("c2", null, null);
+                inSequence(mySequence);
+                exactly(2).of(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).createNode("c3", null, null);
+                inSequence(mySequence);
+                exactly(2).of(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
+    @org.junit.Test
+    public void testTicksAndComments() throws Exception {
+        String json = "/* 'comment' */ 'p1' : 'it\\'s \"quoted\"', 'p2' : \"a'b\" /* 'c' */";
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(creator).createNode(null, null, null);
+                inSequence(mySequence);
+                oneOf(creator).createProperty("p1", PropertyType.UNDEFINED, "it's \"quoted\"");
+                inSequence(mySequence);
+                oneOf(creator).createProperty("p2", PropertyType.UNDEFINED, "a'b");
+                inSequence(mySequence);
+                oneOf(creator).finishNode();
+                inSequence(mySequence);
+                oneOf(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
     @org.junit.Test
     public void testCreateAclWithTickQuotes() throws Exception {
         String json = " { " + "'security:acl' : [ " + "  { " + "    'principal' : 'username1',"
@@ -116,6 +116,23 @@ public class PathEntryTest {
         assertFalse(pathEntry.isIgnoredImportProvider(".avi"));
     }
 
+    @Test
+    public void testAbsoluteTarget() {
+        assertEquals("/", newPathEntry(null).getAbsoluteTarget());
+        assertEquals("/", newPathEntry("/").getAbsoluteTarget());
+        assertEquals("/content/foo", newPathEntry("/content/foo").getAbsoluteTarget());
+        assertEquals("/content/foo", newPathEntry("content/foo").getAbsoluteTarget());
+        assertEquals("/content/foo", newPathEntry("content/foo/").getAbsoluteTarget());
+    }
+
+    private PathEntry newPathEntry(String pathDirective) {
+        final Map<String, String> props = new HashMap<String, String>();
+        if (pathDirective != null) {
+            props.put(PathEntry.PATH_DIRECTIVE, pathDirective);
+        }
+        return new PathEntry(new TestEntry(props), 1L);
+    }
+
     private class TestEntry implements ManifestHeader.Entry {
         private final Map<String, String> values;
 
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.contentloader.internal.ReferenceIndex.PendingReference;
+import org.junit.Test;
+
+public class ReferenceIndexTest {
+
+    @Test
+    public void updateWithInterleavedCopies() {
+        final ReferenceIndex index = new ReferenceIndex();
+        index.put(new PendingReference("default", "/content/a", "ref", false, new String[] { "/target/r" }));
+        index.put(new PendingReference("default", "/content/b", "refs", true,
+                new String[] { "/target/s", "/target/t" }));
+
+        final ReferenceIndex first = index.copy();
+        final ReferenceIndex second = index.copy();
+
+        // the first copy resolves the reference of a and is taken over
+        final PendingReference r = first.get("default", "/target/r").get(0);
+        assertTrue(first.resolve(r, "/target/r", "id-r"));
+        index.update(first);
+        assertEquals(1, index.size());
+
+        // the second copy still has the reference of a, which must not come back
+        final PendingReference s = second.get("default", "/target/s").get(0);
+        second.resolve(s, "/target/s", "id-s");
+        second.put(new PendingReference("default", "/content/c", "ref", false, new String[] { "/target/u" }));
+        index.update(second);
+
+        assertEquals(2, index.size());
+        assertTrue(index.get("default", "/target/r").isEmpty());
+        assertArrayEquals(new String[] { "id-s" }, index.get("default", "/target/t").get(0).getIdentifiers());
+        assertEquals(1, index.get("default", "/target/u").size());
+    }
+
+    @Test
+    public void updateDoesNotRestoreResolvedChangedReference() {
+        final ReferenceIndex index = new ReferenceIndex();
+        index.put(new PendingReference("default", "/content/b", "refs", true,
+                new String[] { "/target/s", "/target/t" }));
+
+        final ReferenceIndex first = index.copy();
+        final ReferenceIndex second = index.copy();
+
+        // the first copy resolves both targets, the second only one of them
+        final PendingReference b = first.get("default", "/target/s").get(0);
+        first.resolve(b, "/target/s", "id-s");
+        assertTrue(first.resolve(b, "/target/t", "id-t"));
+        index.update(first);
+
+        second.resolve(second.get("default", "/target/s").get(0), "/target/s", "id-s");
+        index.update(second);
+
+        assertTrue(index.isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.hc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+
+import javax.jcr.Session;
+
+import org.apache.felix.hc.api.Result;
+import org.apache.sling.jcr.contentloader.hc.BundleContentLoadTimeCheck;
+import org.apache.sling.jcr.contentloader.hc.BundleContentLoadTimeCheck.Config;
+import org.apache.sling.jcr.contentloader.internal.BundleContentLoader;
+import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener;
+import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderTest;
+import org.apache.sling.jcr.contentloader.internal.BundleHelper;
+import org.apache.sling.jcr.contentloader.internal.ContentLoaderMetrics;
+import org.apache.sling.jcr.contentloader.internal.ContentReaderWhiteboard;
+import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
+import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
+import org.apache.sling.testing.mock.osgi.MockBundle;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BundleContentLoadTimeCheckTest {
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
+    private MockBundle bundle;
+    private BundleContentLoader contentLoader;
+    private BundleContentLoadTimeCheck check;
+
+    @Before
+    public void setup() {
+        bundle = BundleContentLoaderTest.newBundleWithInitialContent(context, "SLING-INF/libs/app;path:=/libs/app");
+
+        // prepare content readers
+        context.registerInjectActivateService(new JsonReader());
+        context.registerInjectActivateService(new XmlReader());
+
+        // whiteboard which holds readers
+        context.registerInjectActivateService(new ContentReaderWhiteboard());
+
+        // metrics of the content loading
+        ContentLoaderMetrics metrics = context.registerInjectActivateService(new ContentLoaderMetrics());
+
+        // register the content loader service
+        BundleHelper bundleHelper = context.registerInjectActivateService(new BundleContentLoaderListener());
+
+        ContentReaderWhiteboard whiteboard = context.getService(ContentReaderWhiteboard.class);
+
+        contentLoader = new BundleContentLoader(bundleHelper, whiteboard, null, metrics);
+
+        check = context.registerInjectActivateService(new BundleContentLoadTimeCheck());
+    }
+
+    @Test
+    public void testWithinThresholds() {
+        check.activate(newConfig(60000, 0));
+        contentLoader.registerBundle(context.resourceResolver().adaptTo(Session.class), bundle, false);
+        Result result = check.execute();
+        assertTrue(result.isOk());
+    }
+
+    @Test
+    public void testSlowLoad() {
+        // loading content into the repository takes at least a millisecond
+        check.activate(newConfig(0, 1));
+        contentLoader.registerBundle(context.resourceResolver().adaptTo(Session.class), bundle, false);
+        Result result = check.execute();
+        assertEquals(Result.Status.CRITICAL, result.getStatus());
+    }
+
+    @Test
+    public void testNothingLoaded() {
+        check.activate(newConfig(0, 1));
+        Result result = check.execute();
+        assertTrue(result.isOk());
+    }
+
+    private static Config newConfig(final long warnThresholdMillis, final long criticalThresholdMillis) {
+        return new Config() {
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return null;
+            }
+
+            @Override
+            public String hc_name() {
+                return "Unity";
+            }
+
+            @Override
+            public String[] hc_tags() {
+                return new String[] { "test" };
+            }
+
+            @Override
+            public String includesRegex() {
+                return ".*";
+            }
+
+            @Override
+            public String excludesRegex() {
+                return "";
+            }
+
+            @Override
+            public long warnThresholdMillis() {
+                return warnThresholdMillis;
+            }
+
+            @Override
+            public long criticalThresholdMillis() {
+                return criticalThresholdMillis;
+            }
+
+            @Override
+            public String webconsole_configurationFactory_nameHint() {
+                return null;
+            }
+
+        };
+    }
+}
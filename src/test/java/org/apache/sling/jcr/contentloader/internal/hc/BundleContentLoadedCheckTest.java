@@ -32,6 +32,7 @@ import org.apache.sling.jcr.contentloader.internal.BundleContentLoader;
 import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener;
 import org.apache.sling.jcr.contentloader.internal.BundleContentLoaderTest;
 import org.apache.sling.jcr.contentloader.internal.BundleHelper;
+import org.apache.sling.jcr.contentloader.internal.ContentLoaderMetrics;
 import org.apache.sling.jcr.contentloader.internal.ContentReaderWhiteboard;
 import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
 import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
@@ -39,6 +40,8 @@ import org.apache.sling.jcr.contentloader.internal.readers.ZipReader;
 import org.apache.sling.testing.mock.osgi.MockBundle;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import junitx.util.PrivateAccessor;
+
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.junit.Before;
@@ -54,6 +57,7 @@ public class BundleContentLoadedCheckTest {
     private MockBundle bundle;
     private Mockery mock = new Mockery();
     private BundleContentLoader contentLoader;
+    private BundleContentLoaderListener listener;
     private BundleContentLoadedCheck check;
 
     @Before
@@ -68,8 +72,12 @@ public class BundleContentLoadedCheckTest {
         // whiteboard which holds readers
         context.registerInjectActivateService(new ContentReaderWhiteboard());
 
+        // metrics of the content loading
+        context.registerInjectActivateService(new ContentLoaderMetrics());
+
         // register the content loader service
-        BundleHelper bundleHelper = context.registerInjectActivateService(new BundleContentLoaderListener());
+        listener = context.registerInjectActivateService(new BundleContentLoaderListener());
+        BundleHelper bundleHelper = listener;
 
         ContentReaderWhiteboard whiteboard = context.getService(ContentReaderWhiteboard.class);
 
@@ -115,6 +123,11 @@ public class BundleContentLoadedCheckTest {
                 return false;
             }
 
+            @Override
+            public long waitForQueuedEvents() {
+                return 0;
+            }
+
             @Override
             public String webconsole_configurationFactory_nameHint() {
                 return null;
@@ -136,4 +149,18 @@ public class BundleContentLoadedCheckTest {
         assertTrue(result.isOk());
     }
 
+    @Test
+    public void testInstalledFromStatus() throws Exception {
+        BundleContentLoader listenerLoader = (BundleContentLoader) PrivateAccessor.getField(listener, "bundleContentLoader");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        listenerLoader.registerBundle(session, bundle, false);
+
+        // the status of the content loader is used, the repository is not read
+        session.getNode(BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName()).remove();
+        session.save();
+
+        Result result = check.execute();
+        assertTrue(result.isOk());
+    }
+
 }
@@ -18,6 +18,8 @@
  */
 package org.apache.sling.jcr.contentloader.internal.readers;
 
+import javax.jcr.PropertyType;
+
 import org.apache.sling.jcr.contentloader.internal.JsonReaderTest;
 import org.jmock.Expectations;
 
@@ -33,6 +35,19 @@ public class OrderedJsonReaderTest extends JsonReaderTest {
         this.jsonReader = new OrderedJsonReader();
     }
 
+    @Override
+    @org.junit.Test public void testPrimaryTypeAfterChild() throws Exception {
+        // ordered json is not streamed, so the declaration order does not matter
+        String json = "{ \"c1\" : {}, \"jcr:primaryType\" : \"nt:folder\" }";
+        this.mockery.checking(new Expectations() {{
+            allowing(creator).createNode(null, "nt:folder", null);
+            allowing(creator).createNode("c1", null, null);
+            allowing(creator).finishNode();
+            allowing(creator).finish();
+        }});
+        this.parse(json);
+    }
+
     @org.junit.Test public void testTwoOrderedChildren() throws Exception {
         String json = "{ " +
                 " \"SLING:ordered\" : [" +
@@ -51,4 +66,25 @@ public class OrderedJsonReaderTest extends JsonReaderTest {
         }});
         this.parse(json);
     }
+
+    @org.junit.Test public void testNestedOrderedChildren() throws Exception {
+        // only SLING:ordered is imported from a node which has it
+        String json = "{ " +
+                " \"title\" : \"Parent\"," +
+                " \"SLING:ordered\" : [" +
+                        "{ \"SLING:name\": \"c1\", \"title\": \"First\", \"SLING:ordered\" : [" +
+                            "{ \"SLING:name\": \"c11\", \"title\": \"Leaf\"}" +
+                        "]}" +
+                    "]" +
+                "}";
+        this.mockery.checking(new Expectations() {{
+            oneOf(creator).createNode(null, null, null); inSequence(mySequence);
+            oneOf(creator).createNode("c1", null, null); inSequence(mySequence);
+            oneOf(creator).createNode("c11", null, null); inSequence(mySequence);
+            oneOf(creator).createProperty("title", PropertyType.UNDEFINED, "Leaf"); inSequence(mySequence);
+            exactly(3).of(creator).finishNode(); inSequence(mySequence);
+            oneOf(creator).finish(); inSequence(mySequence);
+        }});
+        this.parse(json);
+    }
 }
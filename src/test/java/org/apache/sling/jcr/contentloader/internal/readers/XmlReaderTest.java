@@ -19,20 +19,34 @@
 package org.apache.sling.jcr.contentloader.internal.readers;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
+import javax.xml.transform.Templates;
 
 import org.apache.sling.jcr.contentloader.ContentCreator;
 
@@ -53,6 +67,82 @@ public class XmlReaderTest extends TestCase {
         assertEquals("Did not create expected number of nodes", 1, creator.size());
     }
 
+    /**
+     * Test that compiled stylesheets are reused until they are modified.
+     */
+    public void testTemplatesCache() throws Exception {
+        final Path dir = Files.createTempDirectory("xmlreader");
+        try {
+            final Path xml = Files.copy(Paths.get("src/test/resources/reader/sample.xml"), dir.resolve("sample.xml"));
+            final Path xsl = Files.copy(Paths.get("src/test/resources/reader/sample.xsl"), dir.resolve("sample.xsl"));
+            final URL testdata = xml.toUri().toURL();
+
+            reader.parse(testdata, creator);
+            assertEquals("Stylesheet was not cached", 1, reader.templatesCache.size());
+            final Templates templates = reader.templatesCache.values().iterator().next();
+
+            reader.parse(testdata, creator);
+            assertEquals("Did not create expected number of nodes", 2, creator.size());
+            assertEquals("Stylesheet was cached again", 1, reader.templatesCache.size());
+            assertSame("Stylesheet was compiled again", templates, reader.templatesCache.values().iterator().next());
+
+            // the modification time of files might only have a resolution of seconds
+            Files.setLastModifiedTime(xsl, FileTime.fromMillis(Files.getLastModifiedTime(xsl).toMillis() + 10000));
+            reader.parse(testdata, creator);
+            assertEquals("Did not create expected number of nodes", 3, creator.size());
+            assertEquals("Modified stylesheet was not cached", 2, reader.templatesCache.size());
+            assertNotSame("Modified stylesheet was not compiled again", templates,
+                    reader.getTemplates(xsl.toUri().toURL()));
+        } finally {
+            for (final String name : new String[] { "sample.xml", "sample.xsl" }) {
+                Files.deleteIfExists(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Test that getting the modification time of a stylesheet closes the
+     * stream opened by its connection.
+     */
+    public void testLastModifiedClosesConnection() throws Exception {
+        final AtomicBoolean closed = new AtomicBoolean();
+        final URL xsl = new URL(null, "test:/sample.xsl", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    private InputStream stream;
+
+                    @Override
+                    public void connect() {
+                        if (stream == null) {
+                            stream = new ByteArrayInputStream(new byte[0]) {
+                                @Override
+                                public void close() {
+                                    closed.set(true);
+                                }
+                            };
+                        }
+                    }
+
+                    @Override
+                    public long getLastModified() {
+                        connect();
+                        return 1000L;
+                    }
+
+                    @Override
+                    public InputStream getInputStream() {
+                        connect();
+                        return stream;
+                    }
+                };
+            }
+        });
+        assertEquals(1000L, XmlReader.getLastModified(xsl));
+        assertTrue("Stream of the connection was not closed", closed.get());
+    }
+
     /**
      * Test inclusion of binary files.
      */
@@ -99,13 +189,59 @@ public class XmlReaderTest extends TestCase {
 
     }
 
+    /**
+     * Parse different documents concurrently with the same reader.
+     */
+    public void testConcurrentParse() throws Exception {
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int t = 0; t < threads * 4; t++) {
+                final String prefix = "t" + t + "-";
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        final MockContentCreator threadCreator = new MockContentCreator();
+                        reader.parse(new ByteArrayInputStream(nodesXml(prefix, 200).getBytes("UTF-8")), threadCreator);
+                        return threadCreator;
+                    }
+                }));
+            }
+            for (int t = 0; t < results.size(); t++) {
+                final List<String> names = results.get(t).get(60, TimeUnit.SECONDS);
+                assertEquals("Did not create expected number of nodes", 201, names.size());
+                for (int i = 0; i < 200; i++) {
+                    assertEquals("Unexpected node name", "t" + t + "-" + i, names.get(i + 1));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String nodesXml(String prefix, int count) {
+        final StringBuilder xml = new StringBuilder("<node><name>root</name><nodes>");
+        for (int i = 0; i < count; i++) {
+            xml.append("<node><name>").append(prefix).append(i).append("</name>")
+                    .append("<primaryNodeType>nt:unstructured</primaryNodeType>")
+                    .append("<properties><property><name>p</name><value>").append(i)
+                    .append("</value><type>Long</type></property></properties></node>");
+        }
+        return xml.append("</nodes></node>").toString();
+    }
+
     protected void setUp() throws Exception {
         super.setUp();
         reader = new XmlReader();
-        reader.activate();
         creator = new MockContentCreator();
     }
 
+    protected void tearDown() throws Exception {
+        reader.deactivate();
+        super.tearDown();
+    }
+
     @SuppressWarnings("serial")
     private static class MockContentCreator extends ArrayList<String> implements ContentCreator {
 
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.jcr.contentloader.ContentCreator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipReaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ZipReader reader;
+
+    private File archive;
+
+    @Before
+    public void setUp() throws IOException {
+        reader = new ZipReader();
+        reader.activate(new ZipReader.Config() {
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return ZipReader.Config.class;
+            }
+
+            @Override
+            public int parallelism() {
+                return 3;
+            }
+        });
+
+        archive = folder.newFile("content.zip");
+        final Random random = new Random(0);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry("empty/"));
+            zip.closeEntry();
+            for (int i = 0; i < 20; i++) {
+                zip.putNextEntry(new ZipEntry((i % 3 == 0 ? "" : "a/" + (i % 2 == 0 ? "b/" : "")) + "file" + i));
+                // one entry larger than the memory threshold
+                final byte[] data = new byte[i == 7 ? 2 * 1024 * 1024 : 100 + i];
+                random.nextBytes(data);
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        reader.deactivate();
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        final RecordingContentCreator sequential = new RecordingContentCreator();
+        try (InputStream in = new FileInputStream(archive)) {
+            reader.parse(in, sequential);
+        }
+
+        final RecordingContentCreator parallel = new RecordingContentCreator();
+        reader.parse(archive.toURI().toURL(), parallel);
+
+        assertEquals(20, sequential.files.size());
+        assertEquals("Files were not created in archive order", sequential.files, parallel.files);
+        assertEquals(Arrays.asList("a", "a/b"), parallel.folders);
+        assertEquals("Folders were not created ahead of the files", 2, parallel.foldersBeforeFirstFile);
+        assertTrue("Empty directories must not be created", !sequential.folders.contains("empty"));
+        assertEquals(0, sequential.depth);
+        assertEquals(0, parallel.depth);
+    }
+
+    @Test
+    public void testSequentialWithoutParallelism() throws Exception {
+        reader.deactivate();
+        final RecordingContentCreator creator = new RecordingContentCreator();
+        reader.parse(archive.toURI().toURL(), creator);
+        assertEquals(20, creator.files.size());
+        assertEquals(0, creator.depth);
+    }
+
+    @Test
+    public void testSmallArchiveWithoutFileReadSequentially() throws Exception {
+        final URL url = new URL(null, "bundle://1.0:1/content.zip", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {
+                    }
+
+                    @Override
+                    public long getContentLengthLong() {
+                        return archive.length();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return new FileInputStream(archive);
+                    }
+                };
+            }
+        });
+        final RecordingContentCreator creator = new RecordingContentCreator();
+        reader.parse(url, creator);
+        assertEquals(20, creator.files.size());
+        assertEquals("Folders were created ahead of the files", 0, creator.foldersBeforeFirstFile);
+        assertEquals(0, creator.depth);
+    }
+
+    @Test(timeout = 30000)
+    public void testDeactivateWhileParsing() throws Exception {
+        final RecordingContentCreator sequential = new RecordingContentCreator();
+        try (InputStream in = new FileInputStream(archive)) {
+            reader.parse(in, sequential);
+        }
+
+        final RecordingContentCreator creator = new RecordingContentCreator() {
+
+            @Override
+            public void createFileAndResourceNode(String name, InputStream data, String mimeType,
+                    long lastModified) throws RepositoryException {
+                if (files.isEmpty()) {
+                    reader.deactivate();
+                }
+                super.createFileAndResourceNode(name, data, mimeType, lastModified);
+            }
+        };
+        reader.parse(archive.toURI().toURL(), creator);
+        assertEquals("Files were not created in archive order", sequential.files, creator.files);
+        assertEquals(0, creator.depth);
+    }
+
+    private static class RecordingContentCreator implements ContentCreator {
+
+        final List<String> files = new ArrayList<>();
+
+        final List<String> folders = new ArrayList<>();
+
+        int foldersBeforeFirstFile = -1;
+
+        int depth;
+
+        @Override
+        public void createNode(String name, String primaryNodeType, String[] mixinNodeTypes) {
+            depth++;
+        }
+
+        @Override
+        public void finishNode() {
+            depth--;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void createProperty(String name, int propertyType, String value) {
+        }
+
+        @Override
+        public void createProperty(String name, int propertyType, String[] values) {
+        }
+
+        @Override
+        public void createProperty(String name, Object value) {
+        }
+
+        @Override
+        public void createProperty(String name, Object[] values) {
+        }
+
+        @Override
+        public void createFileAndResourceNode(String name, InputStream data, String mimeType, long lastModified)
+                throws RepositoryException {
+            if (files.isEmpty()) {
+                foldersBeforeFirstFile = folders.size();
+            }
+            try {
+                files.add(name + ":" + Arrays.hashCode(IOUtils.toByteArray(data)) + ":" + lastModified);
+            } catch (IOException e) {
+                throw new RepositoryException(e);
+            }
+            // file and resource node
+            depth += 2;
+        }
+
+        @Override
+        public boolean switchCurrentNode(String subPath, String newNodeType) {
+            if (!folders.contains(subPath)) {
+                folders.add(subPath);
+            }
+            depth++;
+            return true;
+        }
+
+        @Override
+        public void createUser(String name, String password, Map<String, Object> extraProperties) {
+        }
+
+        @Override
+        public void createGroup(String name, String[] members, Map<String, Object> extraProperties) {
+        }
+
+        @Override
+        public void createAce(String principal, String[] grantedPrivileges, String[] deniedPrivileges,
+                String order) {
+        }
+    }
+}